@@ -0,0 +1,286 @@
+package org.ki.meb.regionannotator.benchmark;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+
+import org.jakz.common.ApplicationException;
+import org.jakz.common.DataCache;
+import org.jakz.common.DataEntry;
+import org.jakz.common.JSONObject;
+import org.ki.meb.regionannotator.BulkLoader;
+import org.ki.meb.regionannotator.GenomicBin;
+import org.ki.meb.regionannotator.IndexPlanner;
+import org.ki.meb.regionannotator.RegionTrack;
+import org.ki.meb.regionannotator.StageQueries;
+import org.ki.meb.regionannotator.SyntheticRegions;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark data: synthetic GWAS clump regions ({@link SyntheticRegions}), GFF3 built from the shipped GENE_MASTER file, and a database with the shipped gene and reference files and a synthetic user input, loaded and prepared as by the operation.
+ * The shipped files are looked up in the folder of the system property regionannotator.home, else in the working folder or its parent.
+ * <p>
+ * The main method writes the data files: clumps &lt;regions&gt; &lt;file&gt; writes a user input TSV, gff3 &lt;gene rows&gt; &lt;file&gt; writes a GFF3 file.
+ */
+public class BenchmarkData
+{
+	public static final String schemaName = "PUBLIC";
+	public static final String geneFile = "inputGene/gencode.genes.txt";
+	public static final String gwasCatalogFile = "inputReference/gwas.catalog.txt";
+	public static final String psychiatricCnvsFile = "inputReference/psychiatric.cnvs.txt";
+	public static final String omimFile = "inputReference/omim.txt";
+	public static final long seed = SyntheticRegions.defaultSeed;
+
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length<3)
+		{
+			System.out.println("Usage: clumps <regions> <file> | gff3 <gene rows> <file>");
+			return;
+		}
+		if(args[0].equals("clumps"))
+			writeClumps(new File(args[2]), Integer.parseInt(args[1]));
+		else if(args[0].equals("gff3"))
+			writeGff3(getFile(geneFile), new File(args[2]), Integer.parseInt(args[1]));
+		else
+			System.out.println("Unknown data type "+args[0]);
+	}
+
+	/**
+	 * Writes synthetic GWAS clump regions as user input TSV.
+	 */
+	public static void writeClumps(File file, int regions) throws IOException
+	{
+		SyntheticRegions.writeTsv(file, regions, seed);
+	}
+
+	/**
+	 * The synthetic GWAS clump regions as a track, without the database.
+	 */
+	public static RegionTrack clumpTrack(int regions)
+	{
+		RegionTrack track = new RegionTrack("_USER_INPUT");
+		SyntheticRegions generator = new SyntheticRegions(seed);
+		for(int i=0; i<regions; i++)
+		{
+			generator.next();
+			track.add(generator.getInputId(), generator.getChr(), generator.getBp1(), generator.getBp2());
+		}
+		return track;
+	}
+
+	/**
+	 * Writes GFF3 with a gene row, two transcript rows and two exon rows per transcript for the genes of a GENE_MASTER file, cycled and shifted by 1 kbase per round until the number of gene rows.
+	 */
+	public static void writeGff3(File geneMasterFile, File gff3File, int geneRows) throws IOException
+	{
+		ArrayList<String[]> genes = readTsv(geneMasterFile);
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(gff3File), StandardCharsets.UTF_8), 1<<16);
+		try
+		{
+			out.write("##gff-version 3\n");
+			for(int i=0; i<geneRows; i++)
+			{
+				String[] gene = genes.get(i%genes.size());
+				int shift = i/genes.size()*1000;
+				int bp1 = Integer.parseInt(gene[1])+shift, bp2 = Integer.parseInt(gene[2])+shift;
+				String strand = gene[7].equals("-")?"-":"+";
+				String geneId = gene[5]+(shift>0?"_"+i/genes.size():"");
+				String attributes = "gene_id="+geneId+";gene_type="+gene[6]+";gene_name="+gene[3];
+				out.write(gene[0]+"\tHAVANA\tgene\t"+bp1+"\t"+bp2+"\t.\t"+strand+"\t.\tID="+geneId+";"+attributes+"\n");
+				for(int t=1; t<=2; t++)
+				{
+					String transcriptId = geneId+"-T"+t;
+					out.write(gene[0]+"\tHAVANA\ttranscript\t"+bp1+"\t"+bp2+"\t.\t"+strand+"\t.\tID="+transcriptId+";Parent="+geneId+";"+attributes+";transcript_id="+transcriptId+";transcript_type="+gene[6]+"\n");
+					int middle = bp1+(bp2-bp1)/2;
+					out.write(gene[0]+"\tHAVANA\texon\t"+bp1+"\t"+middle+"\t.\t"+strand+"\t.\tParent="+transcriptId+";"+attributes+";transcript_id="+transcriptId+";exon_number=1\n");
+					out.write(gene[0]+"\tHAVANA\texon\t"+(middle+1)+"\t"+bp2+"\t.\t"+strand+"\t.\tParent="+transcriptId+";"+attributes+";transcript_id="+transcriptId+";exon_number=2\n");
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * The data rows of a TSV file, without the ## comment lines and the header row.
+	 */
+	private static ArrayList<String[]> readTsv(File file) throws IOException
+	{
+		ArrayList<String[]> rows = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try
+		{
+			boolean header = true;
+			String line;
+			while((line = in.readLine())!=null)
+			{
+				if(line.startsWith("##") || line.trim().isEmpty())
+					continue;
+				if(header)
+				{
+					header = false;
+					continue;
+				}
+				rows.add(line.split("\t", -1));
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * A shipped file of the regionannotator.home folder, the working folder or its parent.
+	 */
+	public static File getFile(String path)
+	{
+		String home = System.getProperty("regionannotator.home");
+		File file = home!=null?new File(home, path):new File(path);
+		if(home==null && !file.exists())
+			file = new File("..", path);
+		if(!file.exists())
+			throw new IllegalStateException("Benchmark data error. Provided file ["+file.getAbsolutePath()+"] does not exist, set -Dregionannotator.home to the RegionAnnotator folder.");
+		return file;
+	}
+
+	/**
+	 * Loads a TSV file into a table with the bulk loader, with the given column types and VARCHAR for the other columns.
+	 */
+	public static void load(DataCache cache, File file, String tableName, boolean binned, String[] columnName, int[] columnType) throws IOException, SQLException, ApplicationException
+	{
+		DataEntry entry = cache.newEntry(tableName);
+		for(int i=0; i<columnName.length; i++)
+		{
+			JSONObject element = new JSONObject();
+			element.put("type", columnType[i]);
+			entry.namemap.put(columnName[i], element);
+		}
+		BulkLoader loader = new BulkLoader(entry);
+		loader.setBinned(binned);
+		loader.load(cache.getConnection(), schemaName, file, '\t', true);
+		cache.commit();
+	}
+
+	/**
+	 * Creates a database in the folder with GENE_MASTER, _gwas_catalog, _psychiatric_cnvs and _omim from the shipped files and a synthetic user input of the given number of regions, with the bin columns, the bin list table and the planned indexes of the benchmarked statements.
+	 * The PROTEIN_CODING_GENES_ALL table and the GENE_MASTER_EXPANDED and PROTEIN_CODING_GENES views are created as by the operation.
+	 */
+	public static DataCache createDatabase(File folder, int regions) throws Exception
+	{
+		folder.mkdirs();
+		DataCache cache = new DataCache(new File(folder, "RegionAnnotator").getAbsolutePath()).createCacheConnectionEmbedded();
+		Connection connection = cache.getConnection();
+
+		load(cache, getFile(geneFile), "GENE_MASTER", true, new String[]{"BP1", "BP2", "ENTREZ"}, new int[]{Types.INTEGER, Types.INTEGER, Types.INTEGER});
+		GenomicBin.updateBinColumn(connection, schemaName, "GENE_MASTER", GenomicBin.expandedBinColumn, StageQueries.proteinCodingExpansion);
+		//typed as by the reference template
+		String[] referenceColumn = new String[]{"BP1", "BP2"};
+		int[] referenceType = new int[]{Types.INTEGER, Types.INTEGER};
+		load(cache, getFile(gwasCatalogFile), "_gwas_catalog", true, referenceColumn, referenceType);
+		load(cache, getFile(psychiatricCnvsFile), "_psychiatric_cnvs", true, referenceColumn, referenceType);
+		load(cache, getFile(omimFile), "_omim", true, referenceColumn, referenceType);
+
+		File clumpFile = new File(folder, "clumps.tsv");
+		writeClumps(clumpFile, regions);
+		load(cache, clumpFile, "_USER_INPUT", false, new String[]{"INPUTID", "BP1", "BP2", "PVALUE"}, new int[]{Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.DOUBLE});
+		clumpFile.delete();
+		GenomicBin.createBinListTable(connection, schemaName, "_USER_INPUT", StageQueries.userInputBinTable);
+
+		IndexPlanner indexPlanner = new IndexPlanner(schemaName);
+		String q = StageQueries.geneMasterExpanded(schemaName);
+		indexPlanner.registerView("GENE_MASTER_EXPANDED", q);
+		cache.view("GENE_MASTER_EXPANDED", q).commit();
+		q = StageQueries.proteinCodingGenesAll(cache, schemaName);
+		indexPlanner.prepare(connection, q);
+		cache.table("PROTEIN_CODING_GENES_ALL", q).commit();
+		q = StageQueries.proteinCodingGenes(schemaName, StageQueries.proteinCodingMaxDistance);
+		indexPlanner.registerView("PROTEIN_CODING_GENES", q);
+		cache.view("PROTEIN_CODING_GENES", q).commit();
+		indexPlanner.prepare(connection, overlapLinkQuery(cache));
+		indexPlanner.prepare(connection, geneNameLinkQuery());
+		return cache;
+	}
+
+	/**
+	 * The GWAS catalog overlap link statement.
+	 */
+	public static String overlapLinkQuery(DataCache cache)
+	{
+		return StageQueries.overlapLink(cache, schemaName, "_gwas_catalog", StageQueries.gwasCatalogColumns, "INPUTID,pvalue_gwas,snpid_gwas");
+	}
+
+	/**
+	 * The OMIM gene name link statement.
+	 */
+	public static String geneNameLinkQuery()
+	{
+		return StageQueries.geneNameLink(schemaName, "_omim", StageQueries.omimColumns, "INPUTID,dist,omimgene_omim,genename_gm");
+	}
+
+	/**
+	 * Runs a statement and reads every value of the result.
+	 * @return the number of rows
+	 */
+	public static long consume(Connection connection, String q, Blackhole blackhole) throws SQLException
+	{
+		long rowCounter = 0;
+		Statement s = connection.createStatement();
+		try
+		{
+			ResultSet rs = s.executeQuery(q);
+			ResultSetMetaData md = rs.getMetaData();
+			int columnCount = md.getColumnCount();
+			while(rs.next())
+			{
+				for(int i=1; i<=columnCount; i++)
+					blackhole.consume(rs.getObject(i));
+				rowCounter++;
+			}
+			rs.close();
+		}
+		finally
+		{
+			s.close();
+		}
+		return rowCounter;
+	}
+
+	/**
+	 * Closes the database and deletes the folder.
+	 */
+	public static void deleteDatabase(DataCache cache, File folder) throws SQLException
+	{
+		if(cache!=null)
+			cache.shutdownCacheConnection();
+		delete(folder);
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if(children!=null)
+		{
+			for(File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
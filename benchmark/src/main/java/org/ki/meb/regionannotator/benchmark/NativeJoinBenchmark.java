@@ -0,0 +1,103 @@
+package org.ki.meb.regionannotator.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.jakz.common.DataCache;
+import org.ki.meb.regionannotator.GeneDistanceEngine;
+import org.ki.meb.regionannotator.GeneSymbolDictionary;
+import org.ki.meb.regionannotator.GeneSymbolIndex;
+import org.ki.meb.regionannotator.LinkPairs;
+import org.ki.meb.regionannotator.NativeOperator;
+import org.ki.meb.regionannotator.OverlapEngine;
+import org.ki.meb.regionannotator.RegionTrack;
+import org.ki.meb.regionannotator.StageQueries;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The joins of -engine NATIVE on the shipped gene and reference files and synthetic GWAS clumps, which are generated as a track without the database.
+ * The gene name link runs on the protein coding gene pairs computed in the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class NativeJoinBenchmark
+{
+	@Param({"1000", "100000", "10000000"})
+	public int regions;
+
+	private RegionTrack userTrack, gwasCatalogTrack, omimTrack;
+	private GeneDistanceEngine proteinCodingEngine;
+	private LinkPairs proteinCodingPairs;
+	private int[] geneSymbolId;
+	private GeneSymbolIndex omimIndex;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		File folder = Files.createTempDirectory("regionannotator-benchmark").toFile();
+		DataCache cache = BenchmarkData.createDatabase(folder, 0);
+		try
+		{
+			RegionTrack genes = RegionTrack.load(cache.getConnection(), BenchmarkData.schemaName, "GENE_MASTER", "TTYPE='protein_coding'", true);
+			gwasCatalogTrack = RegionTrack.load(cache.getConnection(), BenchmarkData.schemaName, "_gwas_catalog", null);
+			omimTrack = RegionTrack.loadGeneNames(cache.getConnection(), BenchmarkData.schemaName, "_omim");
+			proteinCodingEngine = new GeneDistanceEngine(genes, StageQueries.proteinCodingExpansion);
+			GeneSymbolDictionary dictionary = new GeneSymbolDictionary();
+			geneSymbolId = dictionary.encode(genes);
+			omimIndex = new GeneSymbolIndex(dictionary.encode(omimTrack));
+			genes.getIndex();
+			gwasCatalogTrack.getIndex();
+		}
+		finally
+		{
+			BenchmarkData.deleteDatabase(cache, folder);
+		}
+		userTrack = BenchmarkData.clumpTrack(regions);
+		userTrack.getPartitions();
+		proteinCodingPairs = proteinCodingEngine.link(userTrack, StageQueries.proteinCodingMaxDistance);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		userTrack = null;
+		proteinCodingPairs = null;
+	}
+
+	@Benchmark
+	public LinkPairs overlapLink()
+	{
+		return new OverlapEngine().link(userTrack, gwasCatalogTrack);
+	}
+
+	@Benchmark
+	public LinkPairs proteinCodingGenes()
+	{
+		return proteinCodingEngine.link(userTrack, StageQueries.proteinCodingMaxDistance);
+	}
+
+	@Benchmark
+	public LinkPairs geneNameLink()
+	{
+		LinkPairs pairs = new LinkPairs(userTrack, omimTrack, proteinCodingEngine.getGenes(), true);
+		NativeOperator.linkGeneNames(proteinCodingPairs, geneSymbolId, omimIndex, pairs);
+		return pairs;
+	}
+}
@@ -0,0 +1,79 @@
+package org.ki.meb.regionannotator.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.jakz.common.DataCache;
+import org.jakz.common.formatter.CustomFormatter;
+import org.jakz.common.formatter.CustomFormatter.IOType;
+import org.ki.meb.regionannotator.StreamingExcelWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The output of the PROTEIN_CODING_GENES_ALL table of synthetic GWAS clumps, as an Excel sheet by the streaming writer and as TSV by the formatter of the -output operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class OutputBenchmark
+{
+	@Param({"1000", "10000"})
+	public int regions;
+
+	private File folder, excelFile, tsvFile;
+	private DataCache cache;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		folder = Files.createTempDirectory("regionannotator-benchmark").toFile();
+		cache = BenchmarkData.createDatabase(folder, regions);
+		excelFile = new File(folder, "output.xlsx");
+		tsvFile = new File(folder, "output.tsv");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		BenchmarkData.deleteDatabase(cache, folder);
+	}
+
+	@Benchmark
+	public long excel() throws Exception
+	{
+		StreamingExcelWriter writer = new StreamingExcelWriter(excelFile, 1000);
+		try
+		{
+			writer.writeSheet(cache.getConnection(), BenchmarkData.schemaName, "PROTEIN_CODING_GENES_ALL", "protein_coding_genes_all", null);
+			writer.write();
+		}
+		finally
+		{
+			writer.dispose();
+		}
+		return excelFile.length();
+	}
+
+	@Benchmark
+	public long tsv() throws Exception
+	{
+		new CustomFormatter().setDataCache(cache).setInputType(IOType.DATACACHE).setPath("PROTEIN_CODING_GENES_ALL").setOutputType(IOType.TSV).setOutputFile(tsvFile).setOutputSkipEmptyColumns(true).write(null);
+		return tsvFile.length();
+	}
+}
@@ -0,0 +1,68 @@
+package org.ki.meb.regionannotator.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.ki.meb.regionannotator.RegionConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The GFF3 conversion of {@link RegionConverter}, streaming and legacy, on GFF3 built from the shipped GENE_MASTER file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class RegionConverterBenchmark
+{
+	@Param({"60000"})
+	public int geneRows;
+
+	private File folder, gff3File, outputFile;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		folder = Files.createTempDirectory("regionannotator-benchmark").toFile();
+		gff3File = new File(folder, "genes.gff3");
+		outputFile = new File(folder, "genes.tsv");
+		BenchmarkData.writeGff3(BenchmarkData.getFile(BenchmarkData.geneFile), gff3File, geneRows);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		outputFile.delete();
+		gff3File.delete();
+		folder.delete();
+	}
+
+	@Benchmark
+	public long streaming() throws Exception
+	{
+		new RegionConverter(gff3File, outputFile, false);
+		return outputFile.length();
+	}
+
+	@Benchmark
+	public long legacy() throws Exception
+	{
+		new RegionConverter(gff3File, outputFile, true);
+		return outputFile.length();
+	}
+}
@@ -0,0 +1,75 @@
+package org.ki.meb.regionannotator.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.jakz.common.DataCache;
+import org.ki.meb.regionannotator.StageQueries;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The joins of -engine SQL, the statements of {@link StageQueries} on the shipped gene and reference files and synthetic GWAS clumps, reading every value of the results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class SqlJoinBenchmark
+{
+	@Param({"1000", "100000"})
+	public int regions;
+
+	private File folder;
+	private DataCache cache;
+	private String overlapLinkQuery, proteinCodingGenesQuery, geneNameLinkQuery;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		folder = Files.createTempDirectory("regionannotator-benchmark").toFile();
+		cache = BenchmarkData.createDatabase(folder, regions);
+		overlapLinkQuery = BenchmarkData.overlapLinkQuery(cache);
+		proteinCodingGenesQuery = StageQueries.proteinCodingGenesAll(cache, BenchmarkData.schemaName);
+		geneNameLinkQuery = BenchmarkData.geneNameLinkQuery();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		BenchmarkData.deleteDatabase(cache, folder);
+	}
+
+	@Benchmark
+	public long overlapLink(Blackhole blackhole) throws Exception
+	{
+		return BenchmarkData.consume(cache.getConnection(), overlapLinkQuery, blackhole);
+	}
+
+	@Benchmark
+	public long proteinCodingGenes(Blackhole blackhole) throws Exception
+	{
+		return BenchmarkData.consume(cache.getConnection(), proteinCodingGenesQuery, blackhole);
+	}
+
+	@Benchmark
+	public long geneNameLink(Blackhole blackhole) throws Exception
+	{
+		return BenchmarkData.consume(cache.getConnection(), geneNameLinkQuery, blackhole);
+	}
+}
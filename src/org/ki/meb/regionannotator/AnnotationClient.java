@@ -0,0 +1,126 @@
+package org.ki.meb.regionannotator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.jakz.common.ApplicationException;
+
+/**
+ * Sends an input file, plain or gzipped, to an {@link AnnotationServer} and writes the returned annotations to a file.
+ */
+public class AnnotationClient
+{
+	private String serverUrl;
+	private long serverMillis, roundTripMillis;
+	private int compressionThreads;
+
+	/**
+	 * @param nServerUrl the server base url, e.g. http://localhost:8080
+	 */
+	public AnnotationClient(String nServerUrl)
+	{
+		serverUrl = nServerUrl.endsWith("/")?nServerUrl.substring(0, nServerUrl.length()-1):nServerUrl;
+	}
+
+	/**
+	 * The number of threads deflating the output file as BGZF, 0 for a plain file.
+	 */
+	public void setCompressionThreads(int nCompressionThreads)
+	{
+		compressionThreads=nCompressionThreads;
+	}
+
+	/**
+	 * Posts the input file, plain or gzipped, to the annotate endpoint.
+	 * @param json JSON output, else TSV
+	 */
+	public void send(File inputFile, File outputFile, boolean json) throws IOException, ApplicationException
+	{
+		long startNanos = System.nanoTime();
+		HttpURLConnection connection = (HttpURLConnection)new URL(serverUrl+AnnotationServer.pathAnnotate+(json?"?format=json":"")).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		//gzipped input is decompressed while sending, with its length unknown
+		boolean compressedInput = CompressedFiles.isCompressed(inputFile);
+		if(compressedInput)
+			connection.setChunkedStreamingMode(1<<16);
+		else
+			connection.setFixedLengthStreamingMode(inputFile.length());
+		connection.setRequestProperty("Content-Type", "text/tab-separated-values; charset=utf-8");
+		try
+		{
+			OutputStream out = connection.getOutputStream();
+			InputStream in = compressedInput?CompressedFiles.open(inputFile, 1):new FileInputStream(inputFile);
+			try
+			{
+				copy(in, out);
+			}
+			finally
+			{
+				in.close();
+				out.close();
+			}
+
+			int status = connection.getResponseCode();
+			if(status!=HttpURLConnection.HTTP_OK)
+			{
+				ByteArrayOutputStream error = new ByteArrayOutputStream();
+				InputStream errorIn = connection.getErrorStream();
+				if(errorIn!=null)
+				{
+					copy(errorIn, error);
+					errorIn.close();
+				}
+				throw new ApplicationException("Server error "+status+": "+new String(error.toByteArray(), StandardCharsets.UTF_8).trim());
+			}
+
+			InputStream responseIn = connection.getInputStream();
+			OutputStream fileOut = compressionThreads>0?CompressedFiles.create(outputFile, compressionThreads):new FileOutputStream(outputFile);
+			try
+			{
+				copy(responseIn, fileOut);
+			}
+			finally
+			{
+				responseIn.close();
+				fileOut.close();
+			}
+			String millis = connection.getHeaderField(AnnotationServer.headerMillis);
+			serverMillis = millis!=null?Math.round(Double.parseDouble(millis)):-1;
+		}
+		finally
+		{
+			connection.disconnect();
+		}
+		roundTripMillis = (System.nanoTime()-startNanos)/1000000;
+	}
+
+	/**
+	 * The annotation time reported by the server for the last request, -1 if not reported.
+	 */
+	public long getServerMillis()
+	{
+		return serverMillis;
+	}
+
+	public long getRoundTripMillis()
+	{
+		return roundTripMillis;
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException
+	{
+		byte[] buffer = new byte[1<<16];
+		int n;
+		while((n=in.read(buffer))>0)
+			out.write(buffer, 0, n);
+	}
+}
@@ -0,0 +1,586 @@
+package org.ki.meb.regionannotator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.jakz.common.ApplicationException;
+import org.jakz.common.Util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Annotation daemon on a local HTTP endpoint. The reference tracks are held by a prepared {@link NativeOperator} and the output columns of the reference rows are held in memory by row id, so a request is annotated without the database.
+ * <p>
+ * POST /annotate takes the user input as TSV (or CSV) with a header row, with at least the columns CHR and BP1 (BP2 defaults to BP1), and returns the result datasets as TSV or JSON (?format=json), all of them or one (?dataset=name).
+ * The rows of a dataset are in input order (and by dist for the gene links). GET /status reports the number of served requests, POST /shutdown stops the server.
+ */
+public class AnnotationServer
+{
+	public static final String pathAnnotate = "/annotate";
+	public static final String pathStatus = "/status";
+	public static final String pathShutdown = "/shutdown";
+	public static final String headerMillis = "X-Annotation-Millis";
+	public static final String userInputName = "user_input";
+
+	private NativeOperator operator;
+	private ReferenceColumns geneColumns;
+	private LinkedHashMap<String, String> datasetLink;
+	private LinkedHashMap<String, ReferenceColumns> datasetColumns;
+	private HttpServer server;
+	private ExecutorService executor;
+	private CountDownLatch shutdown;
+	private AtomicLong requestCount, requestNanos;
+
+	/**
+	 * The output columns of a reference table, by row id.
+	 */
+	private static class ReferenceColumns
+	{
+		String[] name;
+		HashMap<Long, String[]> row;
+
+		static ReferenceColumns load(Connection connection, String schemaName, String tableName, String alias, String condition, String columns) throws SQLException
+		{
+			ReferenceColumns referenceColumns = new ReferenceColumns();
+			referenceColumns.row = new HashMap<Long, String[]>();
+			Statement s = connection.createStatement();
+			try
+			{
+				ResultSet rs = s.executeQuery("SELECT "+alias+"._ROWID_, "+columns+" FROM "+schemaName+"."+tableName+" "+alias+(condition!=null?" WHERE "+condition:""));
+				ResultSetMetaData md = rs.getMetaData();
+				referenceColumns.name = new String[md.getColumnCount()-1];
+				for(int i=0; i<referenceColumns.name.length; i++)
+					referenceColumns.name[i]=md.getColumnLabel(i+2);
+				while(rs.next())
+				{
+					String[] value = new String[referenceColumns.name.length];
+					for(int i=0; i<value.length; i++)
+						value[i]=rs.getString(i+2);
+					referenceColumns.row.put(rs.getLong(1), value);
+				}
+				rs.close();
+			}
+			finally
+			{
+				s.close();
+			}
+			return referenceColumns;
+		}
+	}
+
+	/**
+	 * The result datasets of a request, by dataset name.
+	 */
+	public static class Annotation
+	{
+		private LinkedHashMap<String, String[]> column = new LinkedHashMap<String, String[]>();
+		private LinkedHashMap<String, ArrayList<String[]>> row = new LinkedHashMap<String, ArrayList<String[]>>();
+
+		public String[] getColumns(String datasetName)
+		{
+			return column.get(datasetName);
+		}
+
+		public ArrayList<String[]> getRows(String datasetName)
+		{
+			return row.get(datasetName);
+		}
+	}
+
+	/**
+	 * @param nOperator the operator of the reference tracks, prepared here if not already
+	 */
+	public AnnotationServer(NativeOperator nOperator)
+	{
+		operator=nOperator;
+		operator.prepare();
+		datasetLink = new LinkedHashMap<String, String>();
+		datasetColumns = new LinkedHashMap<String, ReferenceColumns>();
+		requestCount = new AtomicLong();
+		requestNanos = new AtomicLong();
+	}
+
+	/**
+	 * Loads the output columns of the genes of the protein coding gene track.
+	 * @param columns the column expressions, on the table alias g
+	 */
+	public void loadGeneColumns(Connection connection, String schemaName, String tableName, String condition, String columns) throws SQLException
+	{
+		geneColumns = ReferenceColumns.load(connection, schemaName, tableName, "g", condition, columns);
+	}
+
+	/**
+	 * Adds a result dataset of a link of the operator, in output order.
+	 * @param referenceTableName the reference table of the link, or null for the protein coding genes
+	 * @param referenceColumns the column expressions of the reference table, on the table alias r
+	 */
+	public void addDataset(String datasetName, String linkName, Connection connection, String schemaName, String referenceTableName, String referenceColumns) throws SQLException
+	{
+		datasetLink.put(datasetName, linkName);
+		if(referenceTableName!=null)
+			datasetColumns.put(datasetName, ReferenceColumns.load(connection, schemaName, referenceTableName, "r", null, referenceColumns));
+	}
+
+	/**
+	 * Annotates user input rows.
+	 * @param inputColumn the input column names, containing CHR and BP1, and optionally BP2
+	 * @param inputRow the input rows
+	 */
+	public Annotation annotate(String[] inputColumn, ArrayList<String[]> inputRow) throws ApplicationException
+	{
+		int iChr=-1, iBp1=-1, iBp2=-1;
+		for(int i=0; i<inputColumn.length; i++)
+		{
+			if(inputColumn[i].equalsIgnoreCase("CHR"))
+				iChr=i;
+			else if(inputColumn[i].equalsIgnoreCase("BP1"))
+				iBp1=i;
+			else if(inputColumn[i].equalsIgnoreCase("BP2"))
+				iBp2=i;
+		}
+		if(iChr<0 || iBp1<0)
+			throw new ApplicationException("Input error. The columns CHR and BP1 are needed, provided "+Arrays.toString(inputColumn));
+		if(iBp2<0)
+			iBp2=iBp1;
+
+		RegionTrack userTrack = new RegionTrack(userInputName);
+		for(int iRow=0; iRow<inputRow.size(); iRow++)
+		{
+			String[] value = inputRow.get(iRow);
+			String chr = value[iChr];
+			userTrack.add(iRow, chr, parsePosition(value[iBp1]), parsePosition(value[iBp2]), null);
+		}
+
+		LinkedHashMap<String, LinkPairs> links = operator.run(userTrack, null);
+
+		Annotation annotation = new Annotation();
+		annotation.column.put(userInputName, inputColumn);
+		annotation.row.put(userInputName, inputRow);
+		for(Map.Entry<String, String> dataset : datasetLink.entrySet())
+		{
+			LinkPairs pairs = links.get(dataset.getValue());
+			boolean geneLink = dataset.getValue().equals(NativeOperator.proteinCodingGenesName) || pairs.hasGene();
+			RegionTrack geneTrack = pairs.hasGene()?pairs.getGeneTrack():pairs.getRightTrack();
+			ReferenceColumns referenceColumns = datasetColumns.get(dataset.getKey());
+
+			ArrayList<String> column = new ArrayList<String>(Arrays.asList(inputColumn));
+			if(geneLink)
+			{
+				column.addAll(Arrays.asList(geneColumns.name));
+				column.add("DIST");
+			}
+			if(referenceColumns!=null)
+				column.addAll(Arrays.asList(referenceColumns.name));
+
+			ArrayList<String[]> row = new ArrayList<String[]>(pairs.size());
+			for(int i : order(pairs))
+			{
+				String[] value = new String[column.size()];
+				String[] input = inputRow.get(pairs.getLeft(i));
+				System.arraycopy(input, 0, value, 0, Math.min(input.length, inputColumn.length));
+				int iValue = inputColumn.length;
+				if(geneLink)
+				{
+					int genePosition = pairs.hasGene()?pairs.getGene(i):pairs.getRight(i);
+					String[] gene = geneColumns.row.get(geneTrack.getRowId(genePosition));
+					if(gene!=null)
+						System.arraycopy(gene, 0, value, iValue, gene.length);
+					iValue+=geneColumns.name.length;
+					value[iValue++]=formatDistance(pairs.getDistance(i));
+				}
+				if(referenceColumns!=null)
+				{
+					String[] reference = referenceColumns.row.get(pairs.getRightTrack().getRowId(pairs.getRight(i)));
+					if(reference!=null)
+						System.arraycopy(reference, 0, value, iValue, reference.length);
+				}
+				row.add(value);
+			}
+			annotation.column.put(dataset.getKey(), column.toArray(new String[column.size()]));
+			annotation.row.put(dataset.getKey(), row);
+		}
+		return annotation;
+	}
+
+	/**
+	 * The pair indexes in input order, and by dist for pairs with a distance.
+	 */
+	private static Integer[] order(final LinkPairs pairs)
+	{
+		Integer[] index = new Integer[pairs.size()];
+		for(int i=0; i<index.length; i++)
+			index[i]=i;
+		Arrays.sort(index, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				int c = Integer.compare(pairs.getLeft(a), pairs.getLeft(b));
+				if(c==0 && pairs.hasDistance())
+					c = Double.compare(pairs.getDistance(a), pairs.getDistance(b));
+				return c;
+			}
+		});
+		return index;
+	}
+
+	/**
+	 * A BP1 or BP2 value, null if empty or NA. Other values must be integral and within the int range, as for the bulk loader.
+	 */
+	private static Integer parsePosition(String value) throws ApplicationException
+	{
+		if(value==null || value.trim().length()==0 || value.trim().equals("NA"))
+			return null;
+		try
+		{
+			return BulkLoader.parseInt(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			throw new ApplicationException("Input error. Provided position ["+value+"] is not an integer within the integer range.");
+		}
+	}
+
+	private static String formatDistance(double dist)
+	{
+		if(dist==Math.rint(dist) && Math.abs(dist)<1e15)
+			return Long.toString((long)dist);
+		return Double.toString(dist);
+	}
+
+	/**
+	 * Reads TSV, or CSV if the header row has no tabs, with a header row, parsed with the format of the bulk loader. As there, leading ## comment lines are skipped and a # before the header row is removed. Empty values are null.
+	 * @return the header followed by the rows
+	 */
+	public static ArrayList<String[]> readTable(BufferedReader reader) throws IOException
+	{
+		ArrayList<String[]> table = new ArrayList<String[]>();
+		String line;
+		do
+		{
+			line = reader.readLine();
+		}
+		while(line!=null && (line.trim().isEmpty() || line.startsWith("##")));
+		if(line==null)
+			return table;
+		if(line.startsWith("\uFEFF"))
+			line = line.substring(1);
+		if(line.startsWith("#"))
+			line = line.substring(1);
+		CSVFormat format = BulkLoader.format(line.indexOf('\t')>=0||line.indexOf(',')<0?'\t':',');
+
+		CSVParser headerParser = format.parse(new StringReader(line));
+		CSVRecord headerRecord = headerParser.iterator().next();
+		headerParser.close();
+		String[] header = new String[headerRecord.size()];
+		for(int i=0; i<header.length; i++)
+			header[i]=headerRecord.get(i).trim().toUpperCase();
+		table.add(header);
+
+		CSVParser parser = format.parse(reader);
+		try
+		{
+			for(CSVRecord record : parser)
+			{
+				if(record.size()==1 && record.get(0).trim().isEmpty())
+					continue;
+				String[] value = new String[header.length];
+				for(int i=0; i<value.length && i<record.size(); i++)
+				{
+					String v = record.get(i).trim();
+					value[i] = v.length()==0?null:v;
+				}
+				table.add(value);
+			}
+		}
+		finally
+		{
+			parser.close();
+		}
+		return table;
+	}
+
+	/**
+	 * Writes the datasets as TSV. With more than one dataset, every dataset starts with a line #name and ends with an empty line.
+	 */
+	public static String formatTSV(Annotation annotation, String[] datasetName)
+	{
+		StringBuilder out = new StringBuilder();
+		for(String name : datasetName)
+		{
+			if(datasetName.length>1)
+				out.append('#').append(name).append('\n');
+			appendTSVRow(out, annotation.getColumns(name));
+			for(String[] row : annotation.getRows(name))
+				appendTSVRow(out, row);
+			if(datasetName.length>1)
+				out.append('\n');
+		}
+		return out.toString();
+	}
+
+	private static void appendTSVRow(StringBuilder out, String[] value)
+	{
+		for(int i=0; i<value.length; i++)
+		{
+			if(i>0)
+				out.append('\t');
+			if(value[i]!=null)
+				out.append(value[i].replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+		}
+		out.append('\n');
+	}
+
+	/**
+	 * Writes the datasets as a JSON object of {"columns":[...],"rows":[[...],...]} by dataset name.
+	 */
+	public static String formatJSON(Annotation annotation, String[] datasetName)
+	{
+		StringBuilder out = new StringBuilder("{");
+		for(int iDataset=0; iDataset<datasetName.length; iDataset++)
+		{
+			if(iDataset>0)
+				out.append(',');
+			appendJSONString(out, datasetName[iDataset]);
+			out.append(":{\"columns\":");
+			appendJSONArray(out, annotation.getColumns(datasetName[iDataset]));
+			out.append(",\"rows\":[");
+			ArrayList<String[]> rows = annotation.getRows(datasetName[iDataset]);
+			for(int i=0; i<rows.size(); i++)
+			{
+				if(i>0)
+					out.append(',');
+				appendJSONArray(out, rows.get(i));
+			}
+			out.append("]}");
+		}
+		return out.append('}').toString();
+	}
+
+	private static void appendJSONArray(StringBuilder out, String[] value)
+	{
+		out.append('[');
+		for(int i=0; i<value.length; i++)
+		{
+			if(i>0)
+				out.append(',');
+			appendJSONString(out, value[i]);
+		}
+		out.append(']');
+	}
+
+	static void appendJSONString(StringBuilder out, String value)
+	{
+		if(value==null)
+		{
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		for(int i=0; i<value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if(c=='"' || c=='\\')
+				out.append('\\').append(c);
+			else if(c=='\n')
+				out.append("\\n");
+			else if(c=='\r')
+				out.append("\\r");
+			else if(c=='\t')
+				out.append("\\t");
+			else if(c<0x20)
+				out.append(String.format("\\u%04x", (int)c));
+			else
+				out.append(c);
+		}
+		out.append('"');
+	}
+
+	/**
+	 * The names of the result datasets, in output order.
+	 */
+	public String[] getDatasetNames()
+	{
+		String[] name = new String[datasetLink.size()+1];
+		name[0]=userInputName;
+		int i=1;
+		for(String datasetName : datasetLink.keySet())
+			name[i++]=datasetName;
+		return name;
+	}
+
+	/**
+	 * Starts serving on the loopback interface.
+	 * @param threads the number of concurrently served requests
+	 */
+	public void start(int port, int threads) throws IOException
+	{
+		shutdown = new CountDownLatch(1);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext(pathAnnotate, new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				handleAnnotate(exchange);
+			}
+		});
+		server.createContext(pathStatus, new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				long count = requestCount.get();
+				respond(exchange, 200, "text/plain", "ok\trequests="+count+"\tmean_ms="+(count>0?requestNanos.get()/count/1E6:0)+"\n");
+			}
+		});
+		server.createContext(pathShutdown, new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				if(!"POST".equals(exchange.getRequestMethod()))
+				{
+					respond(exchange, 405, "text/plain", "POST only\n");
+					return;
+				}
+				respond(exchange, 200, "text/plain", "stopping\n");
+				shutdown.countDown();
+			}
+		});
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Waits for a shutdown request, then stops the server.
+	 */
+	public void awaitShutdown() throws InterruptedException
+	{
+		shutdown.await();
+		stop();
+	}
+
+	public void stop()
+	{
+		shutdown.countDown();
+		server.stop(1);
+		executor.shutdown();
+	}
+
+	private void handleAnnotate(HttpExchange exchange) throws IOException
+	{
+		long startNanos = System.nanoTime();
+		try
+		{
+			if(!"POST".equals(exchange.getRequestMethod()))
+			{
+				respond(exchange, 405, "text/plain", "POST only\n");
+				return;
+			}
+			HashMap<String, String> parameter = parseQuery(exchange.getRequestURI().getRawQuery());
+			boolean json = "json".equalsIgnoreCase(parameter.get("format"));
+			String[] datasetName = getDatasetNames();
+			if(parameter.containsKey("dataset"))
+			{
+				datasetName = new String[]{parameter.get("dataset").toLowerCase()};
+				if(!datasetName[0].equals(userInputName) && !datasetLink.containsKey(datasetName[0]))
+				{
+					respond(exchange, 404, "text/plain", "Unknown dataset ["+datasetName[0]+"]\n");
+					return;
+				}
+			}
+
+			ArrayList<String[]> table = readTable(new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)));
+			if(table.isEmpty())
+			{
+				respond(exchange, 400, "text/plain", "Empty input\n");
+				return;
+			}
+			String[] inputColumn = table.remove(0);
+			Annotation annotation = annotate(inputColumn, table);
+			String body = json?formatJSON(annotation, datasetName):formatTSV(annotation, datasetName);
+
+			long nanos = System.nanoTime()-startNanos;
+			requestCount.incrementAndGet();
+			requestNanos.addAndGet(nanos);
+			exchange.getResponseHeaders().set(headerMillis, Double.toString(nanos/1E6));
+			respond(exchange, 200, json?"application/json":"text/tab-separated-values", body);
+			System.out.println("Annotated "+table.size()+" regions in "+nanos/1E6+" ms");
+		}
+		catch (ApplicationException e)
+		{
+			respond(exchange, 400, "text/plain", e.getMessage()+"\n");
+		}
+		catch (Exception e)
+		{
+			System.err.println("Failed to annotate a request.\nReason:\n"+Util.getStackTraceString(e));
+			respond(exchange, 500, "text/plain", e.toString()+"\n");
+		}
+	}
+
+	private static HashMap<String, String> parseQuery(String query) throws IOException
+	{
+		HashMap<String, String> parameter = new HashMap<String, String>();
+		if(query==null)
+			return parameter;
+		for(String pair : query.split("&"))
+		{
+			int iEquals = pair.indexOf('=');
+			if(iEquals<0)
+				parameter.put(URLDecoder.decode(pair, "UTF-8"), "");
+			else
+				parameter.put(URLDecoder.decode(pair.substring(0, iEquals), "UTF-8"), URLDecoder.decode(pair.substring(iEquals+1), "UTF-8"));
+		}
+		return parameter;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException
+	{
+		byte[] data = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType+"; charset=utf-8");
+		exchange.sendResponseHeaders(status, data.length);
+		OutputStream out = exchange.getResponseBody();
+		try
+		{
+			out.write(data);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package org.ki.meb.regionannotator;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The report of the -benchmark mode: the reference load times, and per synthetic input size the input, stage, operation and output times, the result rows and the peak heap. Written as JSON, and as TSV with one row per measured time.
+ */
+public class BenchmarkReport
+{
+	private String version, engine;
+	private int threads;
+	private LinkedHashMap<String, long[]> load;
+	private ArrayList<Run> runs;
+
+	/**
+	 * The measurements of one input size.
+	 */
+	public static class Run
+	{
+		private int regions;
+		private long inputNanos, operationNanos, totalNanos, peakHeapBytes, resultRows;
+		private LinkedHashMap<String, Long> stageNanos, datasetRows;
+		private LinkedHashMap<String, long[]> output;
+
+		private Run(int nRegions)
+		{
+			regions=nRegions;
+			stageNanos = new LinkedHashMap<String, Long>();
+			datasetRows = new LinkedHashMap<String, Long>();
+			output = new LinkedHashMap<String, long[]>();
+		}
+
+		public void setInputNanos(long nInputNanos)
+		{
+			inputNanos=nInputNanos;
+		}
+
+		/**
+		 * Sets the operation time and the stage times of its scheduler.
+		 */
+		public void setOperation(long nOperationNanos, StageScheduler scheduler)
+		{
+			operationNanos=nOperationNanos;
+			for(OperationStage stage : scheduler.getStages())
+				stageNanos.put(stage.getName(), stage.getDurationNanos());
+		}
+
+		public void addDatasetRows(String datasetName, long rows)
+		{
+			datasetRows.put(datasetName, rows);
+			resultRows+=rows;
+		}
+
+		public void addOutput(String format, long nanos, long bytes)
+		{
+			output.put(format, new long[]{nanos, bytes});
+		}
+
+		public void setTotal(long nTotalNanos, long nPeakHeapBytes)
+		{
+			totalNanos=nTotalNanos;
+			peakHeapBytes=nPeakHeapBytes;
+		}
+
+		public int getRegions()
+		{
+			return regions;
+		}
+
+		public long getTotalNanos()
+		{
+			return totalNanos;
+		}
+	}
+
+	public BenchmarkReport(String nVersion, String nEngine, int nThreads)
+	{
+		version=nVersion;
+		engine=nEngine;
+		threads=nThreads;
+		load = new LinkedHashMap<String, long[]>();
+		runs = new ArrayList<Run>();
+	}
+
+	public void addLoad(String name, long nanos, long rows)
+	{
+		load.put(name, new long[]{nanos, rows});
+	}
+
+	public Run addRun(int regions)
+	{
+		Run run = new Run(regions);
+		runs.add(run);
+		return run;
+	}
+
+	/**
+	 * Resets the peak usage of the heap memory pools, after a garbage collection.
+	 */
+	public static void resetPeakHeap()
+	{
+		System.gc();
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if(pool.getType()==MemoryType.HEAP)
+				pool.resetPeakUsage();
+		}
+	}
+
+	/**
+	 * The summed peak usage of the heap memory pools since the last reset.
+	 */
+	public static long getPeakHeapBytes()
+	{
+		long sum = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if(pool.getType()==MemoryType.HEAP)
+				sum+=pool.getPeakUsage().getUsed();
+		}
+		return sum;
+	}
+
+	private static double seconds(long nanos)
+	{
+		return nanos/1E9;
+	}
+
+	private static double rowsPerSecond(long rows, long nanos)
+	{
+		return nanos>0?Math.round(rows/seconds(nanos)*10)/10.0:0;
+	}
+
+	public String toJSON()
+	{
+		StringBuilder out = new StringBuilder("{\"version\":");
+		AnnotationServer.appendJSONString(out, version);
+		out.append(",\"engine\":");
+		AnnotationServer.appendJSONString(out, engine);
+		out.append(",\"threads\":").append(threads);
+		out.append(",\"maxHeapBytes\":").append(Runtime.getRuntime().maxMemory());
+		out.append(",\"load\":{");
+		int i=0;
+		for(Map.Entry<String, long[]> e : load.entrySet())
+		{
+			if(i++>0)
+				out.append(',');
+			AnnotationServer.appendJSONString(out, e.getKey());
+			out.append(":{\"seconds\":").append(seconds(e.getValue()[0])).append(",\"rows\":").append(e.getValue()[1]).append(",\"rowsPerSecond\":").append(rowsPerSecond(e.getValue()[1], e.getValue()[0])).append('}');
+		}
+		out.append("},\"runs\":[");
+		for(int iRun=0; iRun<runs.size(); iRun++)
+		{
+			Run run = runs.get(iRun);
+			if(iRun>0)
+				out.append(',');
+			out.append("{\"regions\":").append(run.regions);
+			out.append(",\"inputSeconds\":").append(seconds(run.inputNanos));
+			out.append(",\"operationSeconds\":").append(seconds(run.operationNanos));
+			out.append(",\"stageSeconds\":{");
+			i=0;
+			for(Map.Entry<String, Long> e : run.stageNanos.entrySet())
+			{
+				if(i++>0)
+					out.append(',');
+				AnnotationServer.appendJSONString(out, e.getKey());
+				out.append(':').append(seconds(e.getValue()));
+			}
+			out.append("},\"output\":{");
+			i=0;
+			for(Map.Entry<String, long[]> e : run.output.entrySet())
+			{
+				if(i++>0)
+					out.append(',');
+				AnnotationServer.appendJSONString(out, e.getKey());
+				out.append(":{\"seconds\":").append(seconds(e.getValue()[0])).append(",\"bytes\":").append(e.getValue()[1]).append(",\"rowsPerSecond\":").append(rowsPerSecond(run.resultRows, e.getValue()[0])).append('}');
+			}
+			out.append("},\"datasetRows\":{");
+			i=0;
+			for(Map.Entry<String, Long> e : run.datasetRows.entrySet())
+			{
+				if(i++>0)
+					out.append(',');
+				AnnotationServer.appendJSONString(out, e.getKey());
+				out.append(':').append(e.getValue());
+			}
+			out.append("},\"resultRows\":").append(run.resultRows);
+			out.append(",\"totalSeconds\":").append(seconds(run.totalNanos));
+			out.append(",\"rowsPerSecond\":").append(rowsPerSecond(run.regions, run.totalNanos));
+			out.append(",\"peakHeapBytes\":").append(run.peakHeapBytes);
+			out.append('}');
+		}
+		return out.append("]}").toString();
+	}
+
+	/**
+	 * One row per measured time: regions (0 for the reference load), phase (load, input, stage, operation, output, total), name, seconds, rows, rows per second, output bytes and, for the total, the peak heap. NA if not applicable.
+	 */
+	public String toTSV()
+	{
+		StringBuilder out = new StringBuilder("regions\tphase\tname\tseconds\trows\trows_per_second\tbytes\tpeak_heap_bytes\n");
+		for(Map.Entry<String, long[]> e : load.entrySet())
+			appendTSVRow(out, 0, "load", e.getKey(), e.getValue()[0], e.getValue()[1], null, null);
+		for(Run run : runs)
+		{
+			appendTSVRow(out, run.regions, "input", "_USER_INPUT", run.inputNanos, (long)run.regions, null, null);
+			for(Map.Entry<String, Long> e : run.stageNanos.entrySet())
+				appendTSVRow(out, run.regions, "stage", e.getKey(), e.getValue(), null, null, null);
+			appendTSVRow(out, run.regions, "operation", engine, run.operationNanos, (long)run.regions, null, null);
+			for(Map.Entry<String, long[]> e : run.output.entrySet())
+				appendTSVRow(out, run.regions, "output", e.getKey(), e.getValue()[0], run.resultRows, e.getValue()[1], null);
+			appendTSVRow(out, run.regions, "total", "", run.totalNanos, (long)run.regions, null, run.peakHeapBytes);
+		}
+		return out.toString();
+	}
+
+	private static void appendTSVRow(StringBuilder out, int regions, String phase, String name, long nanos, Long rows, Long bytes, Long peakHeapBytes)
+	{
+		out.append(regions).append('\t').append(phase).append('\t').append(name).append('\t').append(seconds(nanos));
+		out.append('\t').append(rows==null?"NA":rows.toString());
+		out.append('\t').append(rows==null?"NA":Double.toString(rowsPerSecond(rows, nanos)));
+		out.append('\t').append(bytes==null?"NA":bytes.toString());
+		out.append('\t').append(peakHeapBytes==null?"NA":peakHeapBytes.toString());
+		out.append('\n');
+	}
+
+	/**
+	 * Writes benchmark_report.json and benchmark_report.tsv to the folder.
+	 */
+	public void write(File folder) throws IOException
+	{
+		Files.write(new File(folder, "benchmark_report.json").toPath(), toJSON().getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(folder, "benchmark_report.tsv").toPath(), toTSV().getBytes(StandardCharsets.UTF_8));
+	}
+}
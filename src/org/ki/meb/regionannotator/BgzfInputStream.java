@@ -0,0 +1,216 @@
+package org.ki.meb.regionannotator;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a block gzip (BGZF, as written by bgzip) stream. BGZF is a series of gzip members of at most 64 KiB, each with its compressed size in a BC extra field, so that the blocks are read off the stream without inflating them and inflated in parallel.
+ * The blocks are read on the calling thread, inflated on the worker threads with a bounded read ahead, and returned in order. Plain gzip streams are read with {@link java.util.zip.GZIPInputStream}, see {@link CompressedFiles#open(java.io.File, int)}.
+ */
+public class BgzfInputStream extends InputStream
+{
+	static final int headerLength = 18;
+	private static final byte[] empty = new byte[0];
+
+	private DataInputStream in;
+	private ExecutorService executor;
+	private ArrayDeque<Future<byte[]>> pending;
+	private int readAhead;
+	private boolean endOfInput;
+	private byte[] block = empty;
+	private int position;
+
+	/**
+	 * @param nIn the BGZF stream, positioned at a block header
+	 * @param threads the number of inflating threads, at least 1
+	 */
+	public BgzfInputStream(InputStream nIn, int threads)
+	{
+		in = new DataInputStream(nIn);
+		executor = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "bgzf-inflate");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		pending = new ArrayDeque<Future<byte[]>>();
+		readAhead = Math.max(threads, 1)*4;
+	}
+
+	/**
+	 * If the header starts a BGZF block: the gzip magic with the FEXTRA flag and the BC subfield first in the extra field.
+	 */
+	static boolean isBgzfHeader(byte[] header, int length)
+	{
+		return length>=headerLength && (header[0]&0xff)==31 && (header[1]&0xff)==139 && header[2]==8 && (header[3]&4)!=0 && header[12]=='B' && header[13]=='C' && header[14]==2 && header[15]==0;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if(!fill())
+			return -1;
+		return block[position++]&0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if(len==0)
+			return 0;
+		if(!fill())
+			return -1;
+		int count = Math.min(len, block.length-position);
+		System.arraycopy(block, position, b, off, count);
+		position+=count;
+		return count;
+	}
+
+	@Override
+	public int available()
+	{
+		return block.length-position;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		executor.shutdownNow();
+		in.close();
+	}
+
+	/**
+	 * Makes the next inflated block current if the current one is consumed.
+	 * @return false at the end of the stream
+	 */
+	private boolean fill() throws IOException
+	{
+		while(position>=block.length)
+		{
+			while(!endOfInput && pending.size()<readAhead)
+				readBlock();
+			Future<byte[]> next = pending.poll();
+			if(next==null)
+				return false;
+			try
+			{
+				block = next.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("BGZF read interrupted", e);
+			}
+			catch (ExecutionException e)
+			{
+				throw e.getCause() instanceof IOException?(IOException)e.getCause():new IOException(e.getCause());
+			}
+			position=0;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the next compressed block and submits it for inflation.
+	 */
+	private void readBlock() throws IOException
+	{
+		byte[] header = new byte[headerLength];
+		int length = 0;
+		while(length<headerLength)
+		{
+			int count = in.read(header, length, headerLength-length);
+			if(count<0)
+				break;
+			length+=count;
+		}
+		if(length==0)
+		{
+			endOfInput=true;
+			return;
+		}
+		if(!isBgzfHeader(header, length))
+			throw new IOException("BGZF error. Not a BGZF block header.");
+		int extraLength = (header[10]&0xff)|((header[11]&0xff)<<8);
+		int blockSize = ((header[16]&0xff)|((header[17]&0xff)<<8))+1;
+		final byte[] data = new byte[blockSize-headerLength];
+		try
+		{
+			in.readFully(data);
+		}
+		catch (EOFException e)
+		{
+			throw new IOException("BGZF error. Truncated block.", e);
+		}
+		//the compressed data follows the remaining extra subfields, the block ends with the CRC32 and the uncompressed size
+		final int dataOffset = extraLength-6;
+		final int dataLength = data.length-dataOffset-8;
+		if(dataOffset<0 || dataLength<0)
+			throw new IOException("BGZF error. Invalid block size.");
+		pending.add(executor.submit(new Callable<byte[]>()
+		{
+			@Override
+			public byte[] call() throws IOException
+			{
+				return inflate(data, dataOffset, dataLength);
+			}
+		}));
+	}
+
+	private static byte[] inflate(byte[] data, int offset, int length) throws IOException
+	{
+		int trailer = offset+length;
+		long crc = readInt(data, trailer)&0xffffffffL;
+		int size = readInt(data, trailer+4);
+		byte[] out = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try
+		{
+			inflater.setInput(data, offset, length);
+			int count = 0;
+			while(count<size && !inflater.finished())
+			{
+				int inflated = inflater.inflate(out, count, size-count);
+				if(inflated==0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				count+=inflated;
+			}
+			if(count!=size)
+				throw new IOException("BGZF error. Block size mismatch.");
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("BGZF error. Invalid compressed data.", e);
+		}
+		finally
+		{
+			inflater.end();
+		}
+		CRC32 check = new CRC32();
+		check.update(out, 0, size);
+		if(check.getValue()!=crc)
+			throw new IOException("BGZF error. Block checksum mismatch.");
+		return out;
+	}
+
+	private static int readInt(byte[] data, int offset)
+	{
+		return (data[offset]&0xff)|((data[offset+1]&0xff)<<8)|((data[offset+2]&0xff)<<16)|((data[offset+3]&0xff)<<24);
+	}
+}
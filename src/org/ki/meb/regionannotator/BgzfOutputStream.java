@@ -0,0 +1,186 @@
+package org.ki.meb.regionannotator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a block gzip (BGZF) stream, readable by gunzip, zcat and bgzip. The data is cut into blocks of 65280 bytes, which are deflated in parallel on the worker threads and written in order, followed by the BGZF end of file block.
+ */
+public class BgzfOutputStream extends OutputStream
+{
+	private static final int blockDataSize = 0xff00;
+	private static final byte[] endOfFileBlock = new byte[] {31, (byte)139, 8, 4, 0, 0, 0, 0, 0, (byte)255, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+	private OutputStream out;
+	private ExecutorService executor;
+	private ArrayDeque<Future<byte[]>> pending;
+	private int maxPending;
+	private byte[] buffer;
+	private int position;
+	private boolean closed;
+
+	/**
+	 * @param nOut the stream to write the compressed blocks to, closed with this stream
+	 * @param threads the number of deflating threads, at least 1
+	 */
+	public BgzfOutputStream(OutputStream nOut, int threads)
+	{
+		out=nOut;
+		executor = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "bgzf-deflate");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		pending = new ArrayDeque<Future<byte[]>>();
+		maxPending = Math.max(threads, 1)*4;
+		buffer = new byte[blockDataSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		buffer[position++]=(byte)b;
+		if(position==blockDataSize)
+			submitBlock();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while(len>0)
+		{
+			int count = Math.min(len, blockDataSize-position);
+			System.arraycopy(b, off, buffer, position, count);
+			position+=count;
+			off+=count;
+			len-=count;
+			if(position==blockDataSize)
+				submitBlock();
+		}
+	}
+
+	/**
+	 * Writes the completed blocks. The current partial block is kept, so that flushing does not produce small blocks.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		while(!pending.isEmpty() && pending.peek().isDone())
+			writeBlock(pending.poll());
+		out.flush();
+	}
+
+	/**
+	 * Writes the remaining blocks and the end of file block, and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if(closed)
+			return;
+		closed=true;
+		try
+		{
+			if(position>0)
+				submitBlock();
+			while(!pending.isEmpty())
+				writeBlock(pending.poll());
+			out.write(endOfFileBlock);
+		}
+		finally
+		{
+			executor.shutdownNow();
+			out.close();
+		}
+	}
+
+	private void submitBlock() throws IOException
+	{
+		final byte[] data = Arrays.copyOf(buffer, position);
+		position=0;
+		pending.add(executor.submit(new Callable<byte[]>()
+		{
+			@Override
+			public byte[] call()
+			{
+				return deflate(data);
+			}
+		}));
+		while(pending.size()>maxPending)
+			writeBlock(pending.poll());
+	}
+
+	private void writeBlock(Future<byte[]> block) throws IOException
+	{
+		try
+		{
+			out.write(block.get());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("BGZF write interrupted", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Compresses the data to a complete BGZF block: the gzip header with the BC extra field holding the block size, the raw deflate data, the CRC32 and the uncompressed size.
+	 */
+	static byte[] deflate(byte[] data)
+	{
+		//deflating at most 65280 bytes does not expand them past the 64 KiB block limit
+		byte[] block = new byte[65536];
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		int length;
+		try
+		{
+			deflater.setInput(data);
+			deflater.finish();
+			length = BgzfInputStream.headerLength;
+			while(!deflater.finished())
+				length += deflater.deflate(block, length, block.length-8-length);
+		}
+		finally
+		{
+			deflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		System.arraycopy(endOfFileBlock, 0, block, 0, 16);
+		writeShort(block, 16, length+8-1);
+		writeInt(block, length, (int)crc.getValue());
+		writeInt(block, length+4, data.length);
+		return Arrays.copyOf(block, length+8);
+	}
+
+	private static void writeShort(byte[] block, int offset, int value)
+	{
+		block[offset]=(byte)value;
+		block[offset+1]=(byte)(value>>>8);
+	}
+
+	private static void writeInt(byte[] block, int offset, int value)
+	{
+		writeShort(block, offset, value);
+		writeShort(block, offset+2, value>>>16);
+	}
+}
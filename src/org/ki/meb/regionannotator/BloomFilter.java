@@ -0,0 +1,57 @@
+package org.ki.meb.regionannotator;
+
+/**
+ * Bloom filter of int keys, as a cheap pre-check before a hash table probe. Uses double hashing of one 64 bit mix of the key.
+ */
+public class BloomFilter
+{
+	private static final int hashCount = 3;
+
+	private long[] bits;
+	private int mask;
+
+	/**
+	 * @param expectedSize expected number of keys, sized for about 10 bits per key
+	 */
+	public BloomFilter(int expectedSize)
+	{
+		int bitCount = Integer.highestOneBit(Math.max(64, expectedSize*10-1))<<1;
+		bits = new long[bitCount>>>6];
+		mask = bitCount-1;
+	}
+
+	public void add(int key)
+	{
+		long h = mix(key);
+		int h1 = (int)h, h2 = (int)(h>>>32);
+		for(int i=0; i<hashCount; i++)
+		{
+			int bit = (h1+i*h2)&mask;
+			bits[bit>>>6] |= 1L<<bit;
+		}
+	}
+
+	/**
+	 * @return false if the key was certainly not added
+	 */
+	public boolean mightContain(int key)
+	{
+		long h = mix(key);
+		int h1 = (int)h, h2 = (int)(h>>>32);
+		for(int i=0; i<hashCount; i++)
+		{
+			int bit = (h1+i*h2)&mask;
+			if((bits[bit>>>6]&(1L<<bit))==0)
+				return false;
+		}
+		return true;
+	}
+
+	static long mix(int key)
+	{
+		long h = key*0x9E3779B97F4A7C15L;
+		h ^= h>>>31;
+		h *= 0xBF58476D1CE4E5B9L;
+		return h^(h>>>29);
+	}
+}
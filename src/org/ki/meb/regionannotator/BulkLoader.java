@@ -0,0 +1,318 @@
+package org.ki.meb.regionannotator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.jakz.common.ApplicationException;
+import org.jakz.common.DataEntry;
+import org.jakz.common.JSONObject;
+
+/**
+ * Bulk loader of TSV and CSV files, plain or gzipped, with a header row, streaming the parsed rows into a database table with batched prepared statements, without building per row structures.
+ * Leading comment lines (##) are skipped and a # before the header row is removed. The columns of the entry template get their template type, other columns are VARCHAR, and empty and NA cells are null.
+ * No indexes are created, so that they can be built once, after loading. With {@link #setBinned(boolean)}, a table with CHR, BP1 and BP2 columns gets the {@link GenomicBin} column, computed while loading.
+ */
+public class BulkLoader
+{
+	private static final int batchSize = 5000;
+	private static final int commitSize = 100000;
+
+	private DataEntry entry;
+	private boolean binned;
+	private int decompressionThreads = 1;
+	private long rowCounter, loadNanos;
+
+	/**
+	 * @param nEntry the entry with the table path and the template columns
+	 */
+	public BulkLoader(DataEntry nEntry)
+	{
+		entry=nEntry;
+	}
+
+	/**
+	 * Adds the {@link GenomicBin#binColumn} to tables with CHR, BP1 and BP2 columns.
+	 */
+	public void setBinned(boolean nBinned)
+	{
+		binned=nBinned;
+	}
+
+	/**
+	 * The number of threads inflating block gzipped (BGZF) files. Gzipped files are decompressed while loading.
+	 */
+	public void setDecompressionThreads(int nDecompressionThreads)
+	{
+		decompressionThreads=nDecompressionThreads;
+	}
+
+	/**
+	 * Creates the table (replacing it if overwrite is set, else appending to an existing one) and inserts the rows of the file.
+	 * @return the number of inserted rows
+	 */
+	public long load(Connection connection, String schemaName, File file, char delimiter, boolean overwrite) throws IOException, SQLException, ApplicationException
+	{
+		long startNanos = System.nanoTime();
+		String path = schemaName+"."+entry.path;
+		CSVFormat format = format(delimiter);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(CompressedFiles.open(file, decompressionThreads), StandardCharsets.UTF_8), 1<<16);
+		rowCounter=0;
+		try
+		{
+			String headerLine;
+			do
+			{
+				headerLine = reader.readLine();
+			}
+			while(headerLine!=null && (headerLine.trim().isEmpty() || headerLine.startsWith("##")));
+			if(headerLine==null)
+				throw new ApplicationException("Bulk load error. Provided file ["+file+"] has no header row.");
+			if(headerLine.startsWith("\uFEFF"))
+				headerLine = headerLine.substring(1);
+			if(headerLine.startsWith("#"))
+				headerLine = headerLine.substring(1);
+
+			ArrayList<String> columnName = new ArrayList<String>();
+			CSVParser headerParser = format.parse(new StringReader(headerLine));
+			for(String name : headerParser.iterator().next())
+				columnName.add(columnName(name));
+			headerParser.close();
+
+			int columnCount = columnName.size();
+			int[] columnType = new int[columnCount];
+			StringBuilder columnDefinition = new StringBuilder(), columnList = new StringBuilder(), parameterList = new StringBuilder();
+			for(int i=0; i<columnCount; i++)
+			{
+				JSONObject element = entry.namemap.containsKey(columnName.get(i))?entry.namemap.getValue(columnName.get(i)):null;
+				columnType[i] = element!=null?element.getInt("type"):Types.VARCHAR;
+				if(i>0)
+				{
+					columnDefinition.append(", ");
+					columnList.append(',');
+					parameterList.append(',');
+				}
+				columnDefinition.append(columnName.get(i)).append(' ').append(sqlTypeName(columnType[i]));
+				columnList.append(columnName.get(i));
+				parameterList.append('?');
+			}
+			int bp1Index = columnName.indexOf("BP1"), bp2Index = columnName.indexOf("BP2");
+			boolean bin = binned && columnName.contains("CHR") && bp1Index>=0 && bp2Index>=0 && !columnName.contains(GenomicBin.binColumn);
+			if(bin)
+			{
+				columnDefinition.append(", ").append(GenomicBin.binColumn).append(" INT");
+				columnList.append(',').append(GenomicBin.binColumn);
+				parameterList.append(",?");
+			}
+
+			Statement s = connection.createStatement();
+			try
+			{
+				if(overwrite)
+					s.execute("DROP TABLE IF EXISTS "+path+" CASCADE");
+				s.execute("CREATE "+(entry.memory?"MEMORY ":"CACHED ")+"TABLE IF NOT EXISTS "+path+"("+columnDefinition+")");
+				if(bin)
+					s.execute("ALTER TABLE "+path+" ADD COLUMN IF NOT EXISTS "+GenomicBin.binColumn+" INT");
+			}
+			finally
+			{
+				s.close();
+			}
+
+			boolean commit = !connection.getAutoCommit();
+			CSVParser parser = format.parse(reader);
+			PreparedStatement ps = connection.prepareStatement("INSERT INTO "+path+"("+columnList+") VALUES("+parameterList+")");
+			try
+			{
+				for(CSVRecord record : parser)
+				{
+					if(record.size()==1 && record.get(0).trim().isEmpty())
+						continue;
+					for(int i=0; i<columnCount; i++)
+						setValue(ps, i+1, columnType[i], i<record.size()?record.get(i).trim():"", rowCounter+1, columnName.get(i));
+					if(bin)
+					{
+						Integer rowBin = GenomicBin.bin(coordinate(record, bp1Index), coordinate(record, bp2Index));
+						if(rowBin==null)
+							ps.setNull(columnCount+1, Types.INTEGER);
+						else
+							ps.setInt(columnCount+1, rowBin);
+					}
+					ps.addBatch();
+					rowCounter++;
+					if(rowCounter%batchSize==0)
+						ps.executeBatch();
+					if(commit && rowCounter%commitSize==0)
+						connection.commit();
+				}
+				ps.executeBatch();
+			}
+			finally
+			{
+				ps.close();
+				parser.close();
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		loadNanos = System.nanoTime()-startNanos;
+		return rowCounter;
+	}
+
+	private static void setValue(PreparedStatement ps, int parameter, int type, String value, long row, String column) throws SQLException, ApplicationException
+	{
+		if(value.isEmpty() || value.equals("NA") || (value.equals(".") && type!=Types.VARCHAR))
+		{
+			ps.setNull(parameter, type);
+			return;
+		}
+		try
+		{
+			switch(type)
+			{
+				case Types.INTEGER:
+					ps.setInt(parameter, parseInt(value));
+					break;
+				case Types.BIGINT:
+					ps.setLong(parameter, parseLong(value));
+					break;
+				case Types.DOUBLE:
+					ps.setDouble(parameter, Double.parseDouble(value));
+					break;
+				default:
+					ps.setString(parameter, value);
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			throw new ApplicationException("Bulk load error. Provided ["+value+"] for the column "+column+" on data row "+row, e);
+		}
+	}
+
+	/**
+	 * The commons-csv format of TSV (tab delimiter) or CSV input, with quoted fields.
+	 */
+	static CSVFormat format(char delimiter)
+	{
+		return CSVFormat.DEFAULT.withDelimiter(delimiter);
+	}
+
+	/**
+	 * The coordinate of a cell, null if empty, NA or the missing value dot. The cell is already checked by setValue.
+	 */
+	private static Long coordinate(CSVRecord record, int index)
+	{
+		String value = index<record.size()?record.get(index).trim():"";
+		if(value.isEmpty() || value.equals("NA") || value.equals("."))
+			return null;
+		return parseLong(value);
+	}
+
+	/**
+	 * Parses an integral int value, also in exponent notation as written by R (1e+05).
+	 * @throws NumberFormatException if the value is not a number, has a fraction or is outside the int range
+	 */
+	static int parseInt(String value)
+	{
+		try
+		{
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e)
+		{
+			try
+			{
+				return new BigDecimal(value).intValueExact();
+			}
+			catch (ArithmeticException ae)
+			{
+				throw new NumberFormatException("Not an integer within the int range: "+value);
+			}
+		}
+	}
+
+	/**
+	 * Parses an integral long value, also in exponent notation.
+	 * @throws NumberFormatException if the value is not a number, has a fraction or is outside the long range
+	 */
+	static long parseLong(String value)
+	{
+		try
+		{
+			return Long.parseLong(value);
+		}
+		catch (NumberFormatException e)
+		{
+			try
+			{
+				return new BigDecimal(value).longValueExact();
+			}
+			catch (ArithmeticException ae)
+			{
+				throw new NumberFormatException("Not an integer within the long range: "+value);
+			}
+		}
+	}
+
+	/**
+	 * The upper case column name, with other characters than letters, digits and _ replaced by _.
+	 */
+	private static String columnName(String name)
+	{
+		String columnName = name.trim().toUpperCase().replaceAll("[^A-Z0-9_]", "_");
+		if(columnName.isEmpty() || Character.isDigit(columnName.charAt(0)))
+			columnName = "C"+columnName;
+		return columnName;
+	}
+
+	/**
+	 * The H2 column type of a java.sql.Types type, VARCHAR for the other types.
+	 */
+	static String sqlTypeName(int type)
+	{
+		switch(type)
+		{
+			case Types.INTEGER:
+				return "INT";
+			case Types.BIGINT:
+				return "BIGINT";
+			case Types.DOUBLE:
+				return "DOUBLE";
+			default:
+				return "VARCHAR";
+		}
+	}
+
+	public long getRowCount()
+	{
+		return rowCounter;
+	}
+
+	/**
+	 * The rows per second of the last load.
+	 */
+	public double getRowsPerSecond()
+	{
+		return rowCounter/(loadNanos/1E9);
+	}
+
+	public long getLoadMillis()
+	{
+		return loadNanos/1000000;
+	}
+}
@@ -0,0 +1,354 @@
+package org.ki.meb.regionannotator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.jakz.common.ApplicationException;
+
+/**
+ * Offline coordinate liftover with a UCSC chain file (e.g. hg19ToHg38.over.chain.gz), with the aligned blocks of every target chromosome in sorted arrays for binary search.
+ * Positions are 1-based and intervals inclusive, as the region coordinates elsewhere, and chromosome names are compared without a chr prefix.
+ * An interval is lifted if both its ends fall in aligned blocks of the same chain, to the span between the lifted ends, with the highest scoring such chain where chains overlap. Ends in alignment gaps are not lifted.
+ */
+public class ChainLiftover
+{
+	/** The number of positions of a parallel task. */
+	private static final int rangeSize = 1<<16;
+
+	private ArrayList<String> targetChrName, queryChrName;
+	private HashMap<String, Integer> targetChrCodeMap, queryChrCodeMap;
+	//by chain
+	private IntArrayList chainQueryChr, chainQuerySize, chainReversed;
+	private long[] chainScore;
+	//blocks by target chr code, sorted by target start, 0-based half open
+	private int[][] blockStart, blockEnd, blockMaxEnd, blockQueryStart, blockChain;
+	private int blockCount;
+
+	public ChainLiftover(File chainFile) throws IOException, ApplicationException
+	{
+		targetChrName = new ArrayList<String>();
+		queryChrName = new ArrayList<String>();
+		targetChrCodeMap = new HashMap<String, Integer>();
+		queryChrCodeMap = new HashMap<String, Integer>();
+		chainQueryChr = new IntArrayList();
+		chainQuerySize = new IntArrayList();
+		chainReversed = new IntArrayList();
+		load(chainFile);
+	}
+
+	private void load(File chainFile) throws IOException, ApplicationException
+	{
+		ArrayList<IntArrayList[]> blocks = new ArrayList<IntArrayList[]>();
+		ArrayList<Long> scores = new ArrayList<Long>();
+		InputStream in = CompressedFiles.open(chainFile, 1);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 1<<16);
+		try
+		{
+			IntArrayList[] chrBlocks = null;
+			int chain = -1, tPos = 0, qPos = 0, lineNumber = 0;
+			String line;
+			while((line=reader.readLine())!=null)
+			{
+				lineNumber++;
+				if(line.isEmpty() || line.charAt(0)=='#')
+					continue;
+				String[] field = line.trim().split("\\s+");
+				try
+				{
+					if(field[0].equals("chain"))
+					{
+						if(field.length<12)
+							throw new ApplicationException("Chain file error. Provided header line "+lineNumber+" ["+line+"]");
+						int tChr = code(normaliseChr(field[2]), targetChrName, targetChrCodeMap);
+						while(blocks.size()<=tChr)
+							blocks.add(new IntArrayList[]{new IntArrayList(), new IntArrayList(), new IntArrayList(), new IntArrayList()});
+						chrBlocks = blocks.get(tChr);
+						chain = chainQueryChr.size();
+						scores.add(Long.parseLong(field[1]));
+						chainQueryChr.add(code(normaliseChr(field[7]), queryChrName, queryChrCodeMap));
+						chainQuerySize.add(Integer.parseInt(field[8]));
+						chainReversed.add(field[9].equals("-")?1:0);
+						tPos = Integer.parseInt(field[5]);
+						qPos = Integer.parseInt(field[10]);
+					}
+					else
+					{
+						if(chrBlocks==null)
+							throw new ApplicationException("Chain file error. Provided block line "+lineNumber+" before any chain header ["+line+"]");
+						int size = Integer.parseInt(field[0]);
+						chrBlocks[0].add(tPos);
+						chrBlocks[1].add(size);
+						chrBlocks[2].add(qPos);
+						chrBlocks[3].add(chain);
+						blockCount++;
+						tPos += size;
+						qPos += size;
+						if(field.length>=3)
+						{
+							tPos += Integer.parseInt(field[1]);
+							qPos += Integer.parseInt(field[2]);
+						}
+					}
+				}
+				catch (NumberFormatException e)
+				{
+					throw new ApplicationException("Chain file error. Provided line "+lineNumber+" ["+line+"]", e);
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		chainScore = new long[scores.size()];
+		for(int i=0; i<chainScore.length; i++)
+			chainScore[i] = scores.get(i);
+
+		int chrCount = targetChrName.size();
+		blockStart = new int[chrCount][];
+		blockEnd = new int[chrCount][];
+		blockMaxEnd = new int[chrCount][];
+		blockQueryStart = new int[chrCount][];
+		blockChain = new int[chrCount][];
+		for(int chr=0; chr<chrCount; chr++)
+		{
+			IntArrayList[] chrBlocks = blocks.get(chr);
+			int n = chrBlocks[0].size();
+			long[] order = new long[n];
+			for(int i=0; i<n; i++)
+				order[i] = ((long)chrBlocks[0].get(i)<<32)|i;
+			Arrays.sort(order);
+			blockStart[chr] = new int[n];
+			blockEnd[chr] = new int[n];
+			blockMaxEnd[chr] = new int[n];
+			blockQueryStart[chr] = new int[n];
+			blockChain[chr] = new int[n];
+			int maxEnd = Integer.MIN_VALUE;
+			for(int i=0; i<n; i++)
+			{
+				int b = (int)order[i];
+				blockStart[chr][i] = chrBlocks[0].get(b);
+				blockEnd[chr][i] = blockStart[chr][i]+chrBlocks[1].get(b);
+				blockQueryStart[chr][i] = chrBlocks[2].get(b);
+				blockChain[chr][i] = chrBlocks[3].get(b);
+				maxEnd = Math.max(maxEnd, blockEnd[chr][i]);
+				blockMaxEnd[chr][i] = maxEnd;
+			}
+		}
+	}
+
+	private static int code(String name, ArrayList<String> names, HashMap<String, Integer> codeMap)
+	{
+		Integer code = codeMap.get(name);
+		if(code==null)
+		{
+			code = names.size();
+			names.add(name);
+			codeMap.put(name, code);
+		}
+		return code;
+	}
+
+	/**
+	 * The chromosome name without a chr prefix.
+	 */
+	public static String normaliseChr(String chr)
+	{
+		return chr.regionMatches(true, 0, "chr", 0, 3)?chr.substring(3):chr;
+	}
+
+	/**
+	 * @return the code of the source chromosome, or -1 if the chain file has no chain on it
+	 */
+	public int getTargetChrCode(String chr)
+	{
+		Integer code = targetChrCodeMap.get(normaliseChr(chr));
+		return code!=null?code:-1;
+	}
+
+	/**
+	 * @return the name, without a chr prefix, of a lifted chromosome code
+	 */
+	public String getQueryChrName(int code)
+	{
+		return queryChrName.get(code);
+	}
+
+	public int getBlockCount()
+	{
+		return blockCount;
+	}
+
+	public int getChainCount()
+	{
+		return chainQueryChr.size();
+	}
+
+	public long getChainScore(int chain)
+	{
+		return chainScore[chain];
+	}
+
+	/**
+	 * Lifts a 1-based position with the highest scoring chain covering it.
+	 * @return the chain in the upper and the lifted 1-based position in the lower 32 bits, or -1 if the position is not in an aligned block
+	 */
+	public long liftPoint(int chrCode, int position)
+	{
+		return liftPoint(chrCode, position, -1);
+	}
+
+	/**
+	 * Lifts a 1-based position with the given chain, or with the highest scoring chain covering it if chain is -1.
+	 * @return the chain in the upper and the lifted 1-based position in the lower 32 bits, or -1 if the position is not in an aligned block of the chain
+	 */
+	public long liftPoint(int chrCode, int position, int chain)
+	{
+		if(chrCode<0 || chrCode>=blockStart.length)
+			return -1;
+		int t = position-1;
+		int best = -1;
+		int[] bEnd = blockEnd[chrCode], maxEnd = blockMaxEnd[chrCode], bChain = blockChain[chrCode];
+		for(int i=lastStartingAtOrBefore(chrCode, t); i>=0 && maxEnd[i]>t; i--)
+		{
+			if(bEnd[i]<=t)
+				continue;
+			if(chain>=0 && bChain[i]==chain)
+				return lifted(chrCode, i, t);
+			if(chain<0 && (best<0 || chainScore[bChain[i]]>chainScore[bChain[best]]))
+				best = i;
+		}
+		return best<0?-1:lifted(chrCode, best, t);
+	}
+
+	/**
+	 * The last block starting at or before the 0-based target position, or -1. Earlier blocks may still cover the position, up to where the max end is before it.
+	 */
+	private int lastStartingAtOrBefore(int chrCode, int t)
+	{
+		int[] start = blockStart[chrCode];
+		int lo = 0, hi = start.length-1, found = -1;
+		while(lo<=hi)
+		{
+			int mid = (lo+hi)>>>1;
+			if(start[mid]<=t)
+			{
+				found = mid;
+				lo = mid+1;
+			}
+			else
+				hi = mid-1;
+		}
+		return found;
+	}
+
+	/**
+	 * The chain and lifted 1-based position, as returned by {@link #liftPoint(int, int, int)}, of the 0-based target position in a block covering it.
+	 */
+	private long lifted(int chrCode, int block, int t)
+	{
+		int chain = blockChain[chrCode][block];
+		int q = blockQueryStart[chrCode][block]+(t-blockStart[chrCode][block]);
+		if(chainReversed.get(chain)!=0)
+			q = chainQuerySize.get(chain)-1-q;
+		return ((long)chain<<32)|(q+1);
+	}
+
+	/**
+	 * Lifts the intervals from index start to end (exclusive), each with the highest scoring chain covering both of its ends.
+	 * @param outChr set to the lifted chromosome code, or -1 if not lifted
+	 * @return the number of lifted intervals
+	 */
+	public int lift(int[] chrCode, int[] bp1, int[] bp2, int[] outChr, int[] outBp1, int[] outBp2, int start, int end)
+	{
+		int lifted = 0;
+		for(int i=start; i<end; i++)
+		{
+			outChr[i] = -1;
+			int c = chrCode[i];
+			if(c<0 || c>=blockStart.length)
+				continue;
+			//the highest scoring of the chains covering bp1 that also covers bp2
+			int t = bp1[i]-1;
+			long l1 = -1, l2 = -1;
+			int[] bEnd = blockEnd[c], maxEnd = blockMaxEnd[c], bChain = blockChain[c];
+			for(int b=lastStartingAtOrBefore(c, t); b>=0 && maxEnd[b]>t; b--)
+			{
+				if(bEnd[b]<=t || (l1>=0 && chainScore[bChain[b]]<=chainScore[(int)(l1>>>32)]))
+					continue;
+				long p2 = bp2[i]==bp1[i]?lifted(c, b, t):liftPoint(c, bp2[i], bChain[b]);
+				if(p2<0)
+					continue;
+				l1 = lifted(c, b, t);
+				l2 = p2;
+			}
+			if(l1<0)
+				continue;
+			int p1 = (int)l1, p2 = (int)l2;
+			outChr[i] = chainQueryChr.get((int)(l1>>>32));
+			outBp1[i] = Math.min(p1, p2);
+			outBp2[i] = Math.max(p1, p2);
+			lifted++;
+		}
+		return lifted;
+	}
+
+	/**
+	 * Lifts all intervals, in ranges of {@value #rangeSize} run by the pool.
+	 * @param pool the pool running the ranges, or null to run them serially
+	 * @return the number of lifted intervals
+	 */
+	public int lift(int[] chrCode, int[] bp1, int[] bp2, int[] outChr, int[] outBp1, int[] outBp2, ForkJoinPool pool)
+	{
+		ArrayList<RangeTask> tasks = new ArrayList<RangeTask>();
+		for(int start=0; start<chrCode.length; start+=rangeSize)
+			tasks.add(new RangeTask(chrCode, bp1, bp2, outChr, outBp1, outBp2, start, Math.min(chrCode.length, start+rangeSize)));
+
+		if(pool!=null)
+		{
+			for(RangeTask task : tasks)
+				pool.execute(task);
+		}
+
+		int lifted = 0;
+		for(RangeTask task : tasks)
+			lifted += pool!=null?task.join():task.compute();
+		return lifted;
+	}
+
+	private class RangeTask extends RecursiveTask<Integer>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int[] chrCode, bp1, bp2, outChr, outBp1, outBp2;
+		private int start, end;
+
+		public RangeTask(int[] nChrCode, int[] nBp1, int[] nBp2, int[] nOutChr, int[] nOutBp1, int[] nOutBp2, int nStart, int nEnd)
+		{
+			chrCode=nChrCode;
+			bp1=nBp1;
+			bp2=nBp2;
+			outChr=nOutChr;
+			outBp1=nOutBp1;
+			outBp2=nOutBp2;
+			start=nStart;
+			end=nEnd;
+		}
+
+		@Override
+		protected Integer compute()
+		{
+			return lift(chrCode, bp1, bp2, outChr, outBp1, outBp2, start, end);
+		}
+	}
+}
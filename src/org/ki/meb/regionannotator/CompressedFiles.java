@@ -0,0 +1,131 @@
+package org.ki.meb.regionannotator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Gzip and block gzip (BGZF) file handling. Compressed files are recognised by their magic bytes when opened and by their .gz or .bgz suffix when named.
+ */
+public class CompressedFiles
+{
+	private static final int bufferSize = 1<<16;
+
+	/**
+	 * Opens a file, decompressing it if it is gzipped. BGZF files are inflated on the given number of threads, other gzip files with {@link GZIPInputStream}.
+	 */
+	public static InputStream open(File file, int threads) throws IOException
+	{
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), bufferSize);
+		byte[] header = new byte[BgzfInputStream.headerLength];
+		in.mark(header.length);
+		int length = 0;
+		while(length<header.length)
+		{
+			int count = in.read(header, length, header.length-length);
+			if(count<0)
+				break;
+			length+=count;
+		}
+		in.reset();
+		if(BgzfInputStream.isBgzfHeader(header, length))
+			return new BgzfInputStream(in, threads);
+		if(length>=2 && ((header[0]&0xff)|((header[1]&0xff)<<8))==GZIPInputStream.GZIP_MAGIC)
+			return new GZIPInputStream(in, bufferSize);
+		return in;
+	}
+
+	/**
+	 * If the file is gzipped, recognised by its magic bytes.
+	 */
+	public static boolean isCompressed(File file) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			return (in.read()|(in.read()<<8))==GZIPInputStream.GZIP_MAGIC;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * The file name without a .gz or .bgz suffix.
+	 */
+	public static String stripSuffix(String name)
+	{
+		return name.replaceFirst("(?i)\\.b?gz$", "");
+	}
+
+	/**
+	 * Decompresses a gzipped file to the target file.
+	 */
+	public static void decompress(File file, File target, int threads) throws IOException
+	{
+		InputStream in = open(file, threads);
+		try
+		{
+			OutputStream out = new FileOutputStream(target);
+			try
+			{
+				copy(in, out);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Compresses a file to the BGZF target file, deflating on the given number of threads.
+	 */
+	public static void compress(File file, File target, int threads) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			OutputStream out = create(target, threads);
+			try
+			{
+				copy(in, out);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Creates a BGZF file, deflating on the given number of threads.
+	 */
+	public static OutputStream create(File file, int threads) throws IOException
+	{
+		return new BgzfOutputStream(new BufferedOutputStream(new FileOutputStream(file), bufferSize), threads);
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException
+	{
+		byte[] buffer = new byte[bufferSize];
+		int count;
+		while((count = in.read(buffer))>=0)
+			out.write(buffer, 0, count);
+	}
+}
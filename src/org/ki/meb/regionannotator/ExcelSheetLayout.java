@@ -0,0 +1,170 @@
+package org.ki.meb.regionannotator;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+
+import org.jakz.common.DataEntry;
+import org.jakz.common.JSONObject;
+
+/**
+ * The written columns of a dataset and their excel formatting from the entry template, with the row count. Found by one aggregate pass counting the non null values of every column, as empty columns are skipped and the rows are then written in a single pass.
+ */
+public class ExcelSheetLayout
+{
+	public static final int maxSheetRows = 1048576;
+
+	private String path;
+	private long rowCount;
+	private int[] column, type;
+	private String[] name;
+	private boolean[] formula, hyperlink, hide;
+
+	private ExcelSheetLayout()
+	{
+	}
+
+	/**
+	 * @param entryTemplate column settings by upper case column name, or null
+	 */
+	public static ExcelSheetLayout describe(Connection connection, String path, DataEntry entryTemplate) throws SQLException
+	{
+		ExcelSheetLayout layout = new ExcelSheetLayout();
+		layout.path=path;
+		Statement s = connection.createStatement();
+		try
+		{
+			ResultSet rs = s.executeQuery("SELECT * FROM "+path+" WHERE 1=0");
+			ResultSetMetaData md = rs.getMetaData();
+			int columnCount = md.getColumnCount();
+			String[] columnName = new String[columnCount];
+			int[] columnType = new int[columnCount];
+			StringBuilder q = new StringBuilder("SELECT COUNT(*)");
+			for(int ic=1; ic<=columnCount; ic++)
+			{
+				columnName[ic-1]=md.getColumnLabel(ic);
+				columnType[ic-1]=md.getColumnType(ic);
+				q.append(",COUNT(\"").append(md.getColumnName(ic).replace("\"", "\"\"")).append("\")");
+			}
+			q.append(" FROM ").append(path);
+			rs.close();
+
+			rs = s.executeQuery(q.toString());
+			rs.next();
+			layout.rowCount=rs.getLong(1);
+			ArrayList<Integer> written = new ArrayList<Integer>();
+			for(int ic=1; ic<=columnCount; ic++)
+			{
+				if(rs.getLong(ic+1)>0)
+					written.add(ic);
+			}
+			rs.close();
+
+			int n = written.size();
+			layout.column = new int[n];
+			layout.type = new int[n];
+			layout.name = new String[n];
+			layout.formula = new boolean[n];
+			layout.hyperlink = new boolean[n];
+			layout.hide = new boolean[n];
+			for(int i=0; i<n; i++)
+			{
+				int ic = written.get(i);
+				layout.column[i]=ic;
+				layout.type[i]=columnType[ic-1];
+				layout.name[i]=columnName[ic-1];
+				JSONObject element = entryTemplate!=null&&entryTemplate.namemap!=null?entryTemplate.namemap.getValue(layout.name[i].toUpperCase()):null;
+				if(element!=null)
+				{
+					layout.formula[i]=element.has("isExcelFormula") && element.getBoolean("isExcelFormula");
+					layout.hyperlink[i]=element.has("isHyperlink") && element.getBoolean("isHyperlink");
+					layout.hide[i]=element.has("hide") && element.getBoolean("hide");
+				}
+			}
+		}
+		finally
+		{
+			s.close();
+		}
+		return layout;
+	}
+
+	public String getPath()
+	{
+		return path;
+	}
+
+	public long getRowCount()
+	{
+		return rowCount;
+	}
+
+	/**
+	 * The number of sheets the rows and a header row per sheet need.
+	 */
+	public int getSheetCount()
+	{
+		return (int)Math.max(1, (rowCount+maxSheetRows-2)/(maxSheetRows-1));
+	}
+
+	public int size()
+	{
+		return column.length;
+	}
+
+	/**
+	 * @return the result set column index of the written column
+	 */
+	public int getColumn(int i)
+	{
+		return column[i];
+	}
+
+	public int getType(int i)
+	{
+		return type[i];
+	}
+
+	public String getName(int i)
+	{
+		return name[i];
+	}
+
+	public boolean isFormula(int i)
+	{
+		return formula[i];
+	}
+
+	public boolean isHyperlink(int i)
+	{
+		return hyperlink[i];
+	}
+
+	public boolean isHidden(int i)
+	{
+		return hide[i];
+	}
+
+	public boolean isNumeric(int i)
+	{
+		int t = type[i];
+		return t==Types.TINYINT || t==Types.SMALLINT || t==Types.INTEGER || t==Types.BIGINT || t==Types.REAL || t==Types.FLOAT || t==Types.DOUBLE || t==Types.DECIMAL || t==Types.NUMERIC;
+	}
+
+	public boolean isBoolean(int i)
+	{
+		return type[i]==Types.BOOLEAN || type[i]==Types.BIT;
+	}
+
+	/**
+	 * The name of the n:th (1 based) sheet of a dataset, with the suffix _n after the first.
+	 */
+	public static String getSheetName(String sheetName, int sheetNumber)
+	{
+		return sheetNumber==1?sheetName:sheetName+"_"+sheetNumber;
+	}
+}
@@ -0,0 +1,178 @@
+package org.ki.meb.regionannotator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Native distance bounded gene join. Finds the genes within a distance threshold of every region, with the dist of the protein coding join:
+ * CASE WHEN TwoSegmentOverlapCondition(c.bp1,c.bp2,g.bp1,g.bp2) THEN 0 WHEN c.bp1 IS NULL OR c.bp2 IS NULL THEN 9e9 ELSE NUM_MAX_INTEGER(ABS(c.bp1-g.bp2),ABS(c.bp2-g.bp1)) END
+ * <p>
+ * A non overlapping gene can only be closer than the threshold if ABS(c.bp2-g.bp1) is, so the candidates are the overlapping genes from the interval index plus the genes with a bp1 within the threshold of c.bp2, found by binary search in per-chromosome sorted bp1 arrays.
+ * Regions and genes with one null end point are matched as the point of the other end point, as by the SQL condition. Their dist is 0 if they overlap, and otherwise 9e9 or NULL, so they only pass the threshold when overlapping.
+ * Only rows that pass the threshold are materialised.
+ */
+public class GeneDistanceEngine
+{
+	public static final double nullDistance = 9e9;
+
+	private RegionTrack genes;
+	private long expansion;
+	private HashMap<String, int[][]> sortedStart;
+
+	/**
+	 * @param nGenes the gene track, already restricted to the relevant genes
+	 * @param nExpansion the expansion of the gene coordinates in the join condition (10e6 in the protein coding join)
+	 */
+	public GeneDistanceEngine(RegionTrack nGenes, long nExpansion)
+	{
+		genes=nGenes;
+		expansion=nExpansion;
+		sortedStart = new HashMap<String, int[][]>();
+
+		HashMap<String, IntArrayList> byChr = new HashMap<String, IntArrayList>();
+		for(int i=0; i<genes.size(); i++)
+		{
+			if(!genes.isComplete(i))
+				continue;
+			IntArrayList positions = byChr.get(genes.getChr(i));
+			if(positions==null)
+			{
+				positions = new IntArrayList();
+				byChr.put(genes.getChr(i), positions);
+			}
+			positions.add(i);
+		}
+
+		for(String chr : byChr.keySet())
+		{
+			IntArrayList positions = byChr.get(chr);
+			long[] key = new long[positions.size()];
+			for(int i=0; i<key.length; i++)
+				key[i]=((long)genes.getBp1(positions.get(i))<<32)|(positions.get(i)&0xFFFFFFFFL);
+			Arrays.sort(key);
+			int[] start = new int[key.length];
+			int[] label = new int[key.length];
+			for(int i=0; i<key.length; i++)
+			{
+				label[i]=(int)(key[i]&0xFFFFFFFFL);
+				start[i]=genes.getBp1(label[i]);
+			}
+			sortedStart.put(chr, new int[][]{start,label});
+		}
+	}
+
+	/**
+	 * The dist column of the protein coding join.
+	 * @param regionPoint true if c.bp1 or c.bp2 is null, a0=a1 being the other end point
+	 * @param genePoint true if g.bp1 or g.bp2 is null, b0=b1 being the other end point
+	 * @return NaN for the NULL dist of a non overlapping gene with a null end point
+	 */
+	public static double distance(long a0, long a1, boolean regionPoint, long b0, long b1, boolean genePoint)
+	{
+		if(IntervalIndex.twoSegmentOverlap(a0, a1, regionPoint, b0, b1, genePoint))
+			return 0;
+		if(regionPoint)
+			return nullDistance;
+		if(genePoint)
+			return Double.NaN;
+		return Math.max(Math.abs(a0-b1), Math.abs(a1-b0));
+	}
+
+	public RegionTrack getGenes()
+	{
+		return genes;
+	}
+
+	/**
+	 * Joins every region of the left track with the genes fulfilling the expanded overlap condition and dist&lt;maxDistance.
+	 */
+	public LinkPairs link(RegionTrack left, double maxDistance)
+	{
+		LinkPairs pairs = new LinkPairs(left, genes, null, true);
+		for(IntArrayList partition : left.getPartitions().values())
+			link(left, partition, maxDistance, pairs);
+		return pairs;
+	}
+
+	/**
+	 * Joins the regions at the given positions of the left track (a partition) with the genes fulfilling the expanded overlap condition and dist&lt;maxDistance.
+	 */
+	public void link(RegionTrack left, IntArrayList leftPositions, double maxDistance, LinkPairs pairs)
+	{
+		IntervalIndex index = genes.getIndex();
+		IntArrayList candidates = new IntArrayList();
+		long bound = (long)Math.ceil(maxDistance);
+		for(int ip=0; ip<leftPositions.size(); ip++)
+		{
+			int il = leftPositions.get(ip);
+			//a null chr or two null end points never fulfill the join condition
+			if(!left.hasEnds(il))
+				continue;
+
+			String chr = left.getChr(il);
+			long a0 = left.getSegmentBp1(il), a1 = left.getSegmentBp2(il);
+			boolean aPoint = left.isPoint(il);
+
+			//overlapping genes, dist=0
+			candidates.clear();
+			index.overlap(chr, (int)a0, (int)a1, candidates);
+			for(int ic=0; ic<candidates.size(); ic++)
+			{
+				int ig = candidates.get(ic);
+				if(!genes.hasEnds(ig))
+					continue;
+				if(IntervalIndex.twoSegmentOverlap(a0, a1, aPoint, genes.getSegmentBp1(ig), genes.getSegmentBp2(ig), genes.isPoint(ig)) && expandedOverlap(a0, a1, aPoint, ig))
+					pairs.add(il, ig, 0);
+			}
+
+			//the dist of a non overlapping gene is 9e9 for a region with a null end point
+			if(aPoint)
+				continue;
+
+			//non overlapping genes with ABS(c.bp2-g.bp1)<maxDistance
+			int[][] chrStart = sortedStart.get(chr);
+			if(chrStart==null)
+				continue;
+			int[] start = chrStart[0];
+			int[] label = chrStart[1];
+			for(int is=lowerBound(start, a1-bound+1); is<start.length && start[is]<a1+bound; is++)
+			{
+				int ig = label[is];
+				long b0 = genes.getBp1(ig), b1 = genes.getBp2(ig);
+				if(IntervalIndex.twoSegmentOverlap(a0, a1, b0, b1))
+					continue;
+				double dist = distance(a0, a1, false, b0, b1, false);
+				if(dist<maxDistance && expandedOverlap(a0, a1, false, ig))
+					pairs.add(il, ig, dist);
+			}
+		}
+	}
+
+	/**
+	 * The join condition with the expanded gene, whose null end point stays null.
+	 */
+	private boolean expandedOverlap(long a0, long a1, boolean aPoint, int ig)
+	{
+		byte ends = genes.getEnds(ig);
+		long b0 = (long)genes.getBp1(ig)-expansion, b1 = (long)genes.getBp2(ig)+expansion;
+		if(ends==RegionTrack.endsBp1)
+			b1=b0;
+		else if(ends==RegionTrack.endsBp2)
+			b0=b1;
+		return IntervalIndex.twoSegmentOverlap(a0, a1, aPoint, b0, b1, ends!=RegionTrack.endsBoth);
+	}
+
+	private static int lowerBound(int[] sorted, long value)
+	{
+		int lo=0, hi=sorted.length;
+		while(lo<hi)
+		{
+			int mid = (lo+hi)>>>1;
+			if(sorted[mid]<value)
+				lo=mid+1;
+			else
+				hi=mid;
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,170 @@
+package org.ki.meb.regionannotator;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.jakz.common.ApplicationException;
+import org.jakz.common.DataEntry;
+
+/**
+ * Loads GENCODE GFF3, plain or gzipped, into the GENE_MASTER table in one pass, replacing the RegionConverter, R and TSV input chain.
+ * The protein coding gene rows are read with {@link Gff3Parser}, mapped to the columns of the GENE_MASTER template and inserted in batches: gene_id as ENSEMBL, gene_name as GENENAME and gene_type as TTYPE.
+ * Chromosome names are normalised to the chr prefixed style (MT to chrM), and rows on chromosome names of 6 or more characters (haplotypes, scaffolds) are skipped, as by the R preprocessing. ENTREZ and PRODUCT are not in GFF3 and are left null.
+ * The {@link GenomicBin} columns of the gene and of the gene expanded by the protein coding expansion are computed while loading.
+ */
+public class GeneMasterLoader
+{
+	public static final String featureType = "gene";
+	public static final String[] attributeKey = new String[]{"gene_id","gene_name","gene_type"};
+	public static final String proteinCoding = "protein_coding";
+	private static final int batchSize = 1000;
+
+	private DataEntry template;
+	private long binExpansion;
+	private int readCounter, loadedCounter;
+
+	/**
+	 * @param nBinExpansion the expansion of the genes on both sides for the {@link GenomicBin#expandedBinColumn}
+	 */
+	public GeneMasterLoader(DataEntry nTemplate, long nBinExpansion)
+	{
+		template=nTemplate;
+		binExpansion=nBinExpansion;
+	}
+
+	/**
+	 * @return true for a .gff3 or .gff file name, optionally with the .gz suffix
+	 */
+	public static boolean isGff3(File file)
+	{
+		return file.getName().toLowerCase().matches("^.+\\.gff3?(\\.b?gz)?$");
+	}
+
+	/**
+	 * The chr prefixed chromosome name, with the mitochondrial chromosome as chrM.
+	 */
+	public static String normaliseChr(String chr)
+	{
+		String name = ChainLiftover.normaliseChr(chr);
+		if(name.equalsIgnoreCase("MT") || name.equalsIgnoreCase("M"))
+			return "chrM";
+		return "chr"+name;
+	}
+
+	/**
+	 * Creates the table of the template (replacing it if overwrite is set, else appending to an existing one) and inserts the protein coding genes of the GFF3 file. Indexes are left to the caller, to be built once after loading.
+	 * @return the number of inserted genes
+	 */
+	public int load(Connection connection, String schemaName, File gff3File, boolean overwrite) throws IOException, SQLException, ApplicationException
+	{
+		String path = schemaName+"."+template.path;
+		int columnCount = template.namemap.size();
+		StringBuilder columnDefinition = new StringBuilder(), columnList = new StringBuilder(), parameterList = new StringBuilder();
+		for(int i=0; i<columnCount; i++)
+		{
+			if(i>0)
+			{
+				columnDefinition.append(", ");
+				columnList.append(',');
+				parameterList.append(',');
+			}
+			columnDefinition.append(template.namemap.getKeyAt(i)).append(' ').append(BulkLoader.sqlTypeName(template.namemap.getValueAt(i).getInt("type")));
+			columnList.append(template.namemap.getKeyAt(i));
+			parameterList.append('?');
+		}
+		columnDefinition.append(", ").append(GenomicBin.binColumn).append(" INT, ").append(GenomicBin.expandedBinColumn).append(" INT");
+		columnList.append(',').append(GenomicBin.binColumn).append(',').append(GenomicBin.expandedBinColumn);
+		parameterList.append(",?,?");
+
+		Statement s = connection.createStatement();
+		try
+		{
+			if(overwrite)
+				s.execute("DROP TABLE IF EXISTS "+path+" CASCADE");
+			s.execute("CREATE TABLE IF NOT EXISTS "+path+"("+columnDefinition+")");
+			s.execute("ALTER TABLE "+path+" ADD COLUMN IF NOT EXISTS "+GenomicBin.binColumn+" INT");
+			s.execute("ALTER TABLE "+path+" ADD COLUMN IF NOT EXISTS "+GenomicBin.expandedBinColumn+" INT");
+		}
+		finally
+		{
+			s.close();
+		}
+
+		readCounter=0;
+		loadedCounter=0;
+		Gff3Parser parser = new Gff3Parser(Gff3Parser.open(gff3File), featureType, attributeKey);
+		PreparedStatement ps = connection.prepareStatement("INSERT INTO "+path+"("+columnList+") VALUES("+parameterList+")");
+		try
+		{
+			while(parser.next())
+			{
+				readCounter++;
+				String geneType = parser.getAttribute(2);
+				String chr = parser.getColumn(0);
+				String geneName = parser.getAttribute(1);
+				if(!geneType.equals(proteinCoding) || chr.isEmpty() || geneName.equals(Gff3Parser.missingValue))
+					continue;
+				chr = normaliseChr(chr);
+				if(chr.length()>=6)
+					continue;
+
+				int bp1, bp2;
+				try
+				{
+					bp1 = Integer.parseInt(parser.getColumn(3));
+					bp2 = Integer.parseInt(parser.getColumn(4));
+				}
+				catch (NumberFormatException e)
+				{
+					throw new ApplicationException("GFF3 error. Provided line "+parser.getLineNumber()+" with the coordinates ["+parser.getColumn(3)+"], ["+parser.getColumn(4)+"]", e);
+				}
+
+				for(int i=0; i<columnCount; i++)
+				{
+					String column = template.namemap.getKeyAt(i);
+					if(column.equals("CHR"))
+						ps.setString(i+1, chr);
+					else if(column.equals("BP1"))
+						ps.setInt(i+1, bp1);
+					else if(column.equals("BP2"))
+						ps.setInt(i+1, bp2);
+					else if(column.equals("GENENAME"))
+						ps.setString(i+1, geneName);
+					else if(column.equals("ENSEMBL"))
+						ps.setString(i+1, parser.getAttribute(0));
+					else if(column.equals("TTYPE"))
+						ps.setString(i+1, geneType);
+					else if(column.equals("STRAND"))
+						ps.setString(i+1, parser.getColumn(6));
+					else
+						ps.setNull(i+1, template.namemap.getValueAt(i).getInt("type"));
+				}
+				ps.setInt(columnCount+1, GenomicBin.bin((long)bp1, (long)bp2));
+				ps.setInt(columnCount+2, GenomicBin.bin(bp1-binExpansion, bp2+binExpansion));
+				ps.addBatch();
+				loadedCounter++;
+				if(loadedCounter%batchSize==0)
+					ps.executeBatch();
+			}
+			ps.executeBatch();
+		}
+		finally
+		{
+			ps.close();
+			parser.close();
+		}
+		return loadedCounter;
+	}
+
+	/**
+	 * The number of gene rows read by the last load, before filtering.
+	 */
+	public int getReadCount()
+	{
+		return readCounter;
+	}
+}
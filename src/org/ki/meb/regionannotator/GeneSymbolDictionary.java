@@ -0,0 +1,72 @@
+package org.ki.meb.regionannotator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Maps the gene symbols of GENE_MASTER and the reference tables to dense int ids, so that the gene name links are int joins.
+ * Null and empty symbols are excluded here, once, by encoding them as -1, which never joins.
+ */
+public class GeneSymbolDictionary
+{
+	public static final int excluded = -1;
+
+	private ArrayList<String> symbol;
+	private HashMap<String, Integer> id;
+
+	public GeneSymbolDictionary()
+	{
+		symbol = new ArrayList<String>();
+		id = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * @return the id of the symbol, added if new, or {@link #excluded} for a null or empty symbol
+	 */
+	public int encode(String nSymbol)
+	{
+		if(nSymbol==null || nSymbol.length()==0)
+			return excluded;
+		Integer symbolId = id.get(nSymbol);
+		if(symbolId==null)
+		{
+			symbolId = symbol.size();
+			symbol.add(nSymbol);
+			id.put(nSymbol, symbolId);
+		}
+		return symbolId;
+	}
+
+	/**
+	 * The symbol ids of the gene names of a track, by row position. The track local gene name codes are encoded once each.
+	 */
+	public int[] encode(RegionTrack track)
+	{
+		int[] rowId = new int[track.size()];
+		if(!track.hasGeneName())
+		{
+			Arrays.fill(rowId, excluded);
+			return rowId;
+		}
+		int[] codeId = new int[track.getGeneNameCount()];
+		for(int i=0; i<codeId.length; i++)
+			codeId[i]=encode(track.getGeneNameByCode(i));
+		for(int i=0; i<rowId.length; i++)
+		{
+			int code = track.getGeneNameCode(i);
+			rowId[i] = code<0?excluded:codeId[code];
+		}
+		return rowId;
+	}
+
+	public String getSymbol(int symbolId)
+	{
+		return symbol.get(symbolId);
+	}
+
+	public int size()
+	{
+		return symbol.size();
+	}
+}
@@ -0,0 +1,101 @@
+package org.ki.meb.regionannotator;
+
+import java.util.Arrays;
+
+/**
+ * Build side of the gene symbol hash join: the row positions of a reference track by symbol id, in an open addressing int hash table over a packed position array, with a Bloom filter pre-check.
+ * Read only once built, so it is shared by the partitions of the native operations.
+ */
+public class GeneSymbolIndex
+{
+	private BloomFilter filter;
+	private int[] key, first, count;
+	private int[] position;
+	private int mask;
+
+	/**
+	 * @param symbolId the symbol ids of the reference rows, by row position, {@link GeneSymbolDictionary#excluded} rows are left out
+	 */
+	public GeneSymbolIndex(int[] symbolId)
+	{
+		int keyCount = 0;
+		int[] sorted = new int[symbolId.length];
+		for(int i=0; i<symbolId.length; i++)
+		{
+			if(symbolId[i]!=GeneSymbolDictionary.excluded)
+				sorted[keyCount++]=symbolId[i];
+		}
+		sorted = Arrays.copyOf(sorted, keyCount);
+		Arrays.sort(sorted);
+		int distinct = 0;
+		for(int i=0; i<sorted.length; i++)
+		{
+			if(i==0 || sorted[i]!=sorted[i-1])
+				distinct++;
+		}
+
+		filter = new BloomFilter(distinct);
+		int capacity = Integer.highestOneBit(Math.max(2, distinct*2-1))<<1;
+		mask = capacity-1;
+		key = new int[capacity];
+		Arrays.fill(key, GeneSymbolDictionary.excluded);
+		first = new int[capacity];
+		count = new int[capacity];
+
+		//counts, then slot offsets into the packed position array
+		for(int i=0; i<symbolId.length; i++)
+		{
+			if(symbolId[i]!=GeneSymbolDictionary.excluded)
+				count[slot(symbolId[i], true)]++;
+		}
+		int offset = 0;
+		for(int s=0; s<capacity; s++)
+		{
+			first[s]=offset;
+			offset+=count[s];
+			count[s]=0;
+		}
+		position = new int[offset];
+		for(int i=0; i<symbolId.length; i++)
+		{
+			if(symbolId[i]==GeneSymbolDictionary.excluded)
+				continue;
+			int s = slot(symbolId[i], false);
+			position[first[s]+count[s]++]=i;
+			filter.add(symbolId[i]);
+		}
+	}
+
+	private int slot(int symbolId, boolean insert)
+	{
+		int s = (int)BloomFilter.mix(symbolId)&mask;
+		while(key[s]!=symbolId)
+		{
+			if(key[s]==GeneSymbolDictionary.excluded)
+			{
+				if(!insert)
+					return -1;
+				key[s]=symbolId;
+				break;
+			}
+			s=(s+1)&mask;
+		}
+		return s;
+	}
+
+	/**
+	 * Appends the reference row positions of the symbol to the list.
+	 * @return the number of positions appended
+	 */
+	public int get(int symbolId, IntArrayList positions)
+	{
+		if(symbolId==GeneSymbolDictionary.excluded || !filter.mightContain(symbolId))
+			return 0;
+		int s = slot(symbolId, false);
+		if(s<0)
+			return 0;
+		for(int i=first[s]; i<first[s]+count[s]; i++)
+			positions.add(position[i]);
+		return count[s];
+	}
+}
@@ -0,0 +1,206 @@
+package org.ki.meb.regionannotator;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * The hierarchical genomic bins of the UCSC genome browser: 8 bins of 64 Mbases, 64 of 8 Mbases, 512 of 1 Mbase and 4096 of 128 kbases under one top bin of 512 Mbases.
+ * A segment is put in the smallest bin containing it, and a segment overlapping it is in one of the bins overlapping that segment, at most a few per level, so that an overlap join can be restricted to an equi-join on (chr, bin).
+ * Coordinates are inclusive, as BP1 and BP2, and clamped to 0 and the 512 Mbases range, which keeps any overlap. Both end points are used whichever is the larger, as by the segment overlap condition.
+ * A segment with one null end point is binned as the point of the other, as the segment overlap condition is true for it under SQL three-valued logic when a segment contains that point.
+ */
+public class GenomicBin
+{
+	public static final String binFunction = "UCSC_BIN";
+	public static final String binColumn = "REGION_BIN";
+	public static final String expandedBinColumn = "REGION_BIN_EXPANDED";
+	private static final int[] binOffset = new int[]{512+64+8+1, 64+8+1, 8+1, 1, 0};
+	private static final int firstShift = 17, nextShift = 3;
+	private static final long maxCoordinate = (1L<<29)-1;
+
+	/**
+	 * The bin of the segment, the bin of the point if one end point is null, or null if both are null. As the SQL function {@link #binFunction}.
+	 */
+	public static Integer bin(Long bp1, Long bp2)
+	{
+		if(bp1==null && bp2==null)
+			return null;
+		if(bp1==null)
+			bp1=bp2;
+		else if(bp2==null)
+			bp2=bp1;
+		long start = clamp(Math.min(bp1, bp2));
+		long end = clamp(Math.max(bp1, bp2));
+		int startBin = (int)(start>>firstShift), endBin = (int)(end>>firstShift);
+		for(int i=0; i<binOffset.length; i++)
+		{
+			if(startBin==endBin)
+				return binOffset[i]+startBin;
+			startBin>>=nextShift;
+			endBin>>=nextShift;
+		}
+		return 0;
+	}
+
+	/**
+	 * Writes the bins overlapping the segment to the array, which needs space for {@link #maxBinCount(long, long)} bins.
+	 * @return the number of bins
+	 */
+	public static int overlappingBins(long bp1, long bp2, int[] bins)
+	{
+		long start = clamp(Math.min(bp1, bp2));
+		long end = clamp(Math.max(bp1, bp2));
+		int startBin = (int)(start>>firstShift), endBin = (int)(end>>firstShift);
+		int count = 0;
+		for(int i=0; i<binOffset.length; i++)
+		{
+			for(int bin=startBin; bin<=endBin; bin++)
+				bins[count++] = binOffset[i]+bin;
+			startBin>>=nextShift;
+			endBin>>=nextShift;
+		}
+		return count;
+	}
+
+	public static int maxBinCount(long bp1, long bp2)
+	{
+		return (int)((Math.abs(clamp(bp2)-clamp(bp1))>>firstShift)+2)*binOffset.length;
+	}
+
+	private static long clamp(long coordinate)
+	{
+		return Math.max(0, Math.min(maxCoordinate, coordinate));
+	}
+
+	/**
+	 * @return true if the table has the column
+	 */
+	public static boolean hasColumn(Connection connection, String schemaName, String tableName, String columnName) throws SQLException
+	{
+		return columns(connection, schemaName, tableName).contains(columnName.toUpperCase(Locale.ROOT));
+	}
+
+	private static HashSet<String> columns(Connection connection, String schemaName, String tableName) throws SQLException
+	{
+		HashSet<String> columns = new HashSet<String>();
+		ResultSet rs = connection.getMetaData().getColumns(null, schemaName.toUpperCase(Locale.ROOT), tableName.toUpperCase(Locale.ROOT), null);
+		try
+		{
+			while(rs.next())
+				columns.add(rs.getString("COLUMN_NAME").toUpperCase(Locale.ROOT));
+		}
+		finally
+		{
+			rs.close();
+		}
+		return columns;
+	}
+
+	/**
+	 * Adds the bin column to a table with CHR, BP1 and BP2 columns if it has no such column yet, and computes it for the rows without a bin, from BP1 and BP2 expanded by the given number of bases on both sides. Rows with one null end point are binned on the other, see {@link #bin(Long, Long)}.
+	 * @return the number of updated rows, or -1 if the table has no CHR, BP1 and BP2 columns
+	 */
+	public static int updateBinColumn(Connection connection, String schemaName, String tableName, String columnName, long expansion) throws SQLException
+	{
+		HashSet<String> columns = columns(connection, schemaName, tableName);
+		if(!columns.contains("CHR") || !columns.contains("BP1") || !columns.contains("BP2"))
+			return -1;
+
+		String path = schemaName+"."+tableName;
+		int updated;
+		Statement s = connection.createStatement();
+		try
+		{
+			createFunction(connection);
+			if(!columns.contains(columnName.toUpperCase(Locale.ROOT)))
+				s.execute("ALTER TABLE "+path+" ADD COLUMN "+columnName+" INT");
+			updated = s.executeUpdate("UPDATE "+path+" SET "+columnName+"="+binFunction+"(BP1-"+expansion+",BP2+"+expansion+") WHERE "+columnName+" IS NULL AND (BP1 IS NOT NULL OR BP2 IS NOT NULL)");
+		}
+		finally
+		{
+			s.close();
+		}
+		if(!connection.getAutoCommit())
+			connection.commit();
+		return updated;
+	}
+
+	/**
+	 * Creates the SQL function {@link #binFunction}.
+	 */
+	public static void createFunction(Connection connection) throws SQLException
+	{
+		Statement s = connection.createStatement();
+		try
+		{
+			s.execute("CREATE ALIAS IF NOT EXISTS "+binFunction+" FOR \""+GenomicBin.class.getName()+".bin\"");
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+
+	/**
+	 * Creates the bin list table of a table with CHR, BP1 and BP2 columns, with a (INPUT_ROW, CHR, BIN) row for every bin overlapping a row segment, INPUT_ROW being the _ROWID_ of the row. A row with one null end point has the bins of the point of the other, rows with a null chr or two null end points have no bins.
+	 * @return the number of bin rows
+	 */
+	public static long createBinListTable(Connection connection, String schemaName, String tableName, String binListTableName) throws SQLException
+	{
+		String path = schemaName+"."+binListTableName;
+		Statement s = connection.createStatement();
+		long binRowCounter = 0;
+		try
+		{
+			s.execute("DROP TABLE IF EXISTS "+path);
+			s.execute("CREATE MEMORY TABLE "+path+"(INPUT_ROW BIGINT, CHR VARCHAR, "+binColumn+" INT)");
+			PreparedStatement ps = connection.prepareStatement("INSERT INTO "+path+"(INPUT_ROW, CHR, "+binColumn+") VALUES(?,?,?)");
+			ResultSet rs = s.executeQuery("SELECT _ROWID_, CHR, BP1, BP2 FROM "+schemaName+"."+tableName+" WHERE CHR IS NOT NULL AND (BP1 IS NOT NULL OR BP2 IS NOT NULL)");
+			try
+			{
+				int[] bins = new int[0];
+				while(rs.next())
+				{
+					long bp1 = rs.getLong(3);
+					boolean bp1Null = rs.wasNull();
+					long bp2 = rs.getLong(4);
+					if(bp1Null)
+						bp1=bp2;
+					else if(rs.wasNull())
+						bp2=bp1;
+					if(bins.length<maxBinCount(bp1, bp2))
+						bins = new int[maxBinCount(bp1, bp2)];
+					int count = overlappingBins(bp1, bp2, bins);
+					for(int i=0; i<count; i++)
+					{
+						ps.setLong(1, rs.getLong(1));
+						ps.setString(2, rs.getString(2));
+						ps.setInt(3, bins[i]);
+						ps.addBatch();
+						binRowCounter++;
+						if(binRowCounter%5000==0)
+							ps.executeBatch();
+					}
+				}
+				ps.executeBatch();
+			}
+			finally
+			{
+				rs.close();
+				ps.close();
+			}
+		}
+		finally
+		{
+			s.close();
+		}
+		if(!connection.getAutoCommit())
+			connection.commit();
+		return binRowCounter;
+	}
+}
@@ -0,0 +1,263 @@
+package org.ki.meb.regionannotator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.jakz.common.ApplicationException;
+
+/**
+ * Streaming GFF3 parser scanning the bytes of the input, plain or gzipped, for the rows of one feature type.
+ * The feature type is compared before anything else of a row is decoded, and of the attributes only the requested keys are extracted. Comment lines are passed to an optional stream, and parsing stops at a ##FASTA directive.
+ * Columns and attribute keys and values are trimmed, attribute values are not unescaped.
+ */
+public class Gff3Parser
+{
+	public static final int columnCount = 9;
+	public static final String missingValue = ".";
+	private static final byte[] fastaDirective = "##FASTA".getBytes(StandardCharsets.US_ASCII);
+
+	private InputStream in;
+	private byte[] featureType;
+	private byte[][] attributeKey;
+	private PrintStream commentStream;
+
+	private byte[] buffer;
+	private int position, limit;
+	private boolean endOfInput;
+	private long lineNumber;
+	private int[] columnStart, columnEnd;
+	private String[] attributeValue;
+
+	/**
+	 * @param nIn the input, plain or gzipped, see {@link #open(File)}
+	 * @param nFeatureType the feature type (column 3) of the rows to read, e.g. gene
+	 * @param nAttributeKey the attribute keys to extract
+	 */
+	public Gff3Parser(InputStream nIn, String nFeatureType, String[] nAttributeKey)
+	{
+		in=nIn;
+		featureType=nFeatureType.getBytes(StandardCharsets.UTF_8);
+		attributeKey = new byte[nAttributeKey.length][];
+		for(int i=0; i<nAttributeKey.length; i++)
+			attributeKey[i]=nAttributeKey[i].getBytes(StandardCharsets.UTF_8);
+		buffer = new byte[1<<16];
+		position=0;
+		limit=0;
+		columnStart = new int[columnCount];
+		columnEnd = new int[columnCount];
+		attributeValue = new String[nAttributeKey.length];
+	}
+
+	/**
+	 * Opens a file, decompressing it if it is gzipped (also bgzip), recognised by its magic bytes.
+	 */
+	public static InputStream open(File file) throws IOException
+	{
+		return CompressedFiles.open(file, 1);
+	}
+
+	/**
+	 * Comment lines, without the line break, are printed to the stream. By default they are skipped.
+	 */
+	public void setCommentStream(PrintStream nCommentStream)
+	{
+		commentStream=nCommentStream;
+	}
+
+	/**
+	 * Advances to the next row of the feature type.
+	 * @return false at the end of the input
+	 */
+	public boolean next() throws IOException, ApplicationException
+	{
+		while(true)
+		{
+			int lineEnd = nextLine();
+			if(lineEnd<0)
+				return false;
+			int lineStart = position;
+			position = lineEnd+1;
+			if(lineEnd>lineStart && buffer[lineEnd-1]=='\r')
+				lineEnd--;
+			if(lineEnd==lineStart)
+				continue;
+			if(buffer[lineStart]=='#')
+			{
+				if(startsWith(lineStart, lineEnd, fastaDirective))
+				{
+					endOfInput=true;
+					limit=position;
+					return false;
+				}
+				if(commentStream!=null)
+					commentStream.println(new String(buffer, lineStart, lineEnd-lineStart, StandardCharsets.UTF_8));
+				continue;
+			}
+
+			int column = 0;
+			columnStart[0] = lineStart;
+			for(int i=lineStart; i<lineEnd && column<columnCount-1; i++)
+			{
+				if(buffer[i]=='\t')
+				{
+					columnEnd[column] = i;
+					columnStart[++column] = i+1;
+				}
+			}
+			columnEnd[column] = lineEnd;
+			if(column<2)
+				throw new ApplicationException("GFF3 error. Provided line "+lineNumber+" with "+(column+1)+" columns, "+columnCount+" are needed.");
+			if(!trimmedEquals(columnStart[2], columnEnd[2], featureType))
+				continue;
+			if(column<columnCount-1)
+				throw new ApplicationException("GFF3 error. Provided line "+lineNumber+" with "+(column+1)+" columns, "+columnCount+" are needed.");
+			//the attribute column is the last, so that it keeps any further tabs
+			readAttributes(columnStart[columnCount-1], columnEnd[columnCount-1]);
+			return true;
+		}
+	}
+
+	/**
+	 * @return the trimmed value of a column of the current row, 0-based from 0 to 7
+	 */
+	public String getColumn(int column)
+	{
+		int start = columnStart[column], end = columnEnd[column];
+		while(start<end && buffer[start]<=' ')
+			start++;
+		while(end>start && buffer[end-1]<=' ')
+			end--;
+		return new String(buffer, start, end-start, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the value of a requested attribute, by its index in the requested keys, or {@value #missingValue} if the current row does not have it
+	 */
+	public String getAttribute(int key)
+	{
+		return attributeValue[key];
+	}
+
+	public long getLineNumber()
+	{
+		return lineNumber;
+	}
+
+	public void close() throws IOException
+	{
+		in.close();
+	}
+
+	private void readAttributes(int start, int end)
+	{
+		Arrays.fill(attributeValue, missingValue);
+		int partStart = start;
+		for(int i=start; i<=end; i++)
+		{
+			if(i<end && buffer[i]!=';')
+				continue;
+			int separator = partStart;
+			while(separator<i && buffer[separator]!='=')
+				separator++;
+			if(separator<i)
+			{
+				for(int k=0; k<attributeKey.length; k++)
+				{
+					if(trimmedEquals(partStart, separator, attributeKey[k]))
+					{
+						int valueStart = separator+1, valueEnd = i;
+						while(valueStart<valueEnd && buffer[valueStart]<=' ')
+							valueStart++;
+						while(valueEnd>valueStart && buffer[valueEnd-1]<=' ')
+							valueEnd--;
+						attributeValue[k] = new String(buffer, valueStart, valueEnd-valueStart, StandardCharsets.UTF_8);
+						break;
+					}
+				}
+			}
+			partStart = i+1;
+		}
+	}
+
+	private boolean trimmedEquals(int start, int end, byte[] value)
+	{
+		while(start<end && buffer[start]<=' ')
+			start++;
+		while(end>start && buffer[end-1]<=' ')
+			end--;
+		if(end-start!=value.length)
+			return false;
+		for(int i=0; i<value.length; i++)
+		{
+			if(buffer[start+i]!=value[i])
+				return false;
+		}
+		return true;
+	}
+
+	private boolean startsWith(int start, int end, byte[] value)
+	{
+		if(end-start<value.length)
+			return false;
+		for(int i=0; i<value.length; i++)
+		{
+			if(buffer[start+i]!=value[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Makes the next line available from the position, reading more input as needed.
+	 * @return the index of the line break, or -1 at the end of the input
+	 */
+	private int nextLine() throws IOException
+	{
+		int scan = position;
+		while(true)
+		{
+			for(; scan<limit; scan++)
+			{
+				if(buffer[scan]=='\n')
+				{
+					lineNumber++;
+					return scan;
+				}
+			}
+			if(endOfInput)
+			{
+				if(position<limit)
+				{
+					//a last line without a line break
+					if(limit==buffer.length)
+						buffer = Arrays.copyOf(buffer, buffer.length+1);
+					buffer[limit]='\n';
+					limit++;
+					lineNumber++;
+					return limit-1;
+				}
+				return -1;
+			}
+			//move the partial line to the front, growing the buffer for a line longer than it
+			int scanned = scan-position;
+			if(position>0)
+			{
+				System.arraycopy(buffer, position, buffer, 0, limit-position);
+				limit -= position;
+				position = 0;
+			}
+			else if(limit==buffer.length)
+				buffer = Arrays.copyOf(buffer, buffer.length*2);
+			scan = scanned;
+			int read = in.read(buffer, limit, buffer.length-limit);
+			if(read<0)
+				endOfInput=true;
+			else
+				limit += read;
+		}
+	}
+}
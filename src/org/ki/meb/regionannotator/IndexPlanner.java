@@ -0,0 +1,372 @@
+package org.ki.meb.regionannotator;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Derives the indexes a query needs from its join and where conditions, and creates them, once, before the query runs.
+ * Per table alias the columns compared with = come first and the columns compared with &lt;, &gt;, &lt;= or &gt;= after them, e.g. (CHR,BP1,BP2) for a segment overlap join on chr, or (GENENAME) for a gene name join.
+ * Views registered with {@link #registerView(String, String)} are resolved to their base table, and their own conditions are planned with the query using them. Columns that are not in the base table (computed view columns) and _ROWID_ are left out.
+ * The per column indexes that the planned indexes replace can be registered, to estimate the time saved from the measured index build time per row.
+ * The indexes of the gene and reference tables are created when the tables are loaded, with {@link #prepareTable(Connection, String, String)}, and are then found in place.
+ */
+public class IndexPlanner
+{
+	private static final int maxIndexColumns = 3;
+	private static final Pattern tablePattern = Pattern.compile("\\b(?:FROM|JOIN)\\s+(?:(\\w+)\\.)?(\\w+)(?:\\s+(?:AS\\s+)?(\\w+))?", Pattern.CASE_INSENSITIVE);
+	private static final Pattern conditionPattern = Pattern.compile("\\b(?:ON|WHERE)\\b(.*?)(?=\\b(?:INNER|LEFT|RIGHT|FULL|CROSS|JOIN|WHERE|ORDER|GROUP|HAVING|LIMIT)\\b|$)", Pattern.CASE_INSENSITIVE|Pattern.DOTALL);
+	private static final Pattern columnPattern = Pattern.compile("(?<![\\w.'])(?:(\\w+)\\.)?([A-Za-z_]\\w*)(?![\\w.(])");
+	private static final HashSet<String> keywords = new HashSet<String>(java.util.Arrays.asList("ON", "WHERE", "INNER", "LEFT", "RIGHT", "FULL", "CROSS", "JOIN", "ORDER", "GROUP", "HAVING", "LIMIT", "AND", "OR", "NOT", "IS", "NULL", "IN", "BETWEEN", "LIKE", "CASE", "WHEN", "THEN", "ELSE", "END", "AS", "UNION", "SELECT", "FROM", "TRUE", "FALSE"));
+
+	private String schemaName;
+	private HashMap<String, String> viewQuery;
+	private LinkedHashMap<String, List<String>> createdIndex;
+	private int foundIndexCount;
+	private LinkedHashSet<String> replacedIndex;
+	private HashMap<String, Long> indexRows;
+	private long createNanos, createRowColumns;
+
+	public IndexPlanner(String nSchemaName)
+	{
+		schemaName=nSchemaName.toUpperCase(Locale.ROOT);
+		viewQuery = new HashMap<String, String>();
+		createdIndex = new LinkedHashMap<String, List<String>>();
+		replacedIndex = new LinkedHashSet<String>();
+		indexRows = new HashMap<String, Long>();
+	}
+
+	/**
+	 * Registers the query of a view, to resolve the view to its base table in later queries.
+	 */
+	public synchronized void registerView(String viewName, String query)
+	{
+		viewQuery.put(viewName.toUpperCase(Locale.ROOT), query);
+	}
+
+	/**
+	 * Registers single column indexes that were built unconditionally before, for the estimate of the saved time.
+	 */
+	public synchronized void addReplacedIndexes(String tableName, String... columns)
+	{
+		for(String column : columns)
+			replacedIndex.add(tableName.toUpperCase(Locale.ROOT)+"."+column.toUpperCase(Locale.ROOT));
+	}
+
+	/**
+	 * Plans the indexes of the query and creates those that are missing. Warns if the query has join or where conditions but none of their columns can be indexed, as then the plan failed.
+	 */
+	public synchronized void prepare(Connection connection, String query) throws SQLException
+	{
+		prepare(connection, query, null);
+	}
+
+	/**
+	 * Plans the indexes of a query reading the table and creates those of the table that are missing, e.g. when the table is loaded, ahead of the query.
+	 */
+	public synchronized void prepareTable(Connection connection, String tableName, String query) throws SQLException
+	{
+		prepare(connection, query, tableName.toUpperCase(Locale.ROOT));
+	}
+
+	private void prepare(Connection connection, String query, String onlyTable) throws SQLException
+	{
+		int usable = 0;
+		for(Map.Entry<String, List<String>> e : plan(query).entrySet())
+		{
+			String table = e.getKey().substring(0, e.getKey().indexOf('('));
+			if(onlyTable!=null && !table.equals(onlyTable))
+				continue;
+			List<String> columns = existingColumns(connection, table, e.getValue());
+			if(columns.isEmpty())
+				continue;
+			usable++;
+			String indexName = "IX_"+table+"_"+join(columns, "_");
+			if(createdIndex.containsKey(indexName))
+				continue;
+			//created by the loader of the table
+			if(hasIndex(connection, table, indexName))
+			{
+				createdIndex.put(indexName, columns);
+				foundIndexCount++;
+				continue;
+			}
+			long startNanos = System.nanoTime();
+			Statement s = connection.createStatement();
+			try
+			{
+				s.execute("CREATE INDEX IF NOT EXISTS "+indexName+" ON "+schemaName+"."+table+"("+join(columns, ",")+")");
+			}
+			finally
+			{
+				s.close();
+			}
+			long rows = countRows(connection, table);
+			createNanos += System.nanoTime()-startNanos;
+			createRowColumns += rows*columns.size();
+			createdIndex.put(indexName, columns);
+			indexRows.put(table, rows);
+			System.out.println("Index planner: "+indexName+" on "+table+"("+join(columns, ",")+")");
+		}
+		if(usable==0 && conditionPattern.matcher(query).find())
+			System.err.println("Index planner warning: no indexable condition columns"+(onlyTable!=null?" of "+onlyTable:"")+" found in the query, it runs without planned indexes:\n"+query);
+	}
+
+	/**
+	 * The indexes of a query, as TABLE(columns) keys with the columns in index order, before checking the table columns.
+	 */
+	LinkedHashMap<String, List<String>> plan(String query)
+	{
+		LinkedHashMap<String, List<String>> planned = new LinkedHashMap<String, List<String>>();
+		plan(query, planned, new HashSet<String>());
+		return planned;
+	}
+
+	private void plan(String query, LinkedHashMap<String, List<String>> planned, HashSet<String> visitedViews)
+	{
+		//alias to table, views resolved to their base table
+		HashMap<String, String> aliasTable = new HashMap<String, String>();
+		String singleTable = null;
+		int tableCount = 0;
+		Matcher m = tablePattern.matcher(query);
+		while(m.find())
+		{
+			String table = m.group(2).toUpperCase(Locale.ROOT);
+			String alias = m.group(3)!=null && !keywords.contains(m.group(3).toUpperCase(Locale.ROOT))?m.group(3).toUpperCase(Locale.ROOT):table;
+			String viewQueryString = viewQuery.get(table);
+			if(viewQueryString!=null)
+			{
+				if(visitedViews.add(table))
+					plan(viewQueryString, planned, visitedViews);
+				table = baseTable(viewQueryString);
+			}
+			if(table!=null)
+			{
+				aliasTable.put(alias, table);
+				aliasTable.put(m.group(2).toUpperCase(Locale.ROOT), table);
+			}
+			singleTable = table;
+			tableCount++;
+		}
+
+		//per alias, the columns compared with = and the columns compared by range, in order of appearance
+		LinkedHashMap<String, LinkedHashSet<String>> equality = new LinkedHashMap<String, LinkedHashSet<String>>();
+		LinkedHashMap<String, LinkedHashSet<String>> range = new LinkedHashMap<String, LinkedHashSet<String>>();
+		Matcher cm = conditionPattern.matcher(query);
+		while(cm.find())
+		{
+			String condition = cm.group(1);
+			Matcher col = columnPattern.matcher(condition);
+			while(col.find())
+			{
+				String column = col.group(2).toUpperCase(Locale.ROOT);
+				if(keywords.contains(column) || column.equals("_ROWID_"))
+					continue;
+				String table = col.group(1)!=null?aliasTable.get(col.group(1).toUpperCase(Locale.ROOT)):(tableCount==1?singleTable:null);
+				if(table==null)
+					continue;
+				String comparison = comparison(condition, col.start(), col.end());
+				if(comparison==null)
+					continue;
+				LinkedHashMap<String, LinkedHashSet<String>> target = comparison.equals("=")?equality:range;
+				if(!target.containsKey(table))
+					target.put(table, new LinkedHashSet<String>());
+				target.get(table).add(column);
+			}
+		}
+
+		LinkedHashSet<String> tables = new LinkedHashSet<String>(equality.keySet());
+		tables.addAll(range.keySet());
+		for(String table : tables)
+		{
+			LinkedHashSet<String> columns = new LinkedHashSet<String>();
+			if(equality.containsKey(table))
+				columns.addAll(equality.get(table));
+			if(range.containsKey(table))
+				columns.addAll(range.get(table));
+			ArrayList<String> indexColumns = new ArrayList<String>(columns);
+			if(indexColumns.size()>maxIndexColumns)
+				indexColumns = new ArrayList<String>(indexColumns.subList(0, maxIndexColumns));
+			planned.put(table+"("+join(indexColumns, ",")+")", indexColumns);
+		}
+	}
+
+	/**
+	 * The comparison operator next to a column reference: = for an equality, &lt; for a range comparison, or null if it is not compared (or with != only).
+	 */
+	private static String comparison(String condition, int start, int end)
+	{
+		int after = end;
+		while(after<condition.length() && Character.isWhitespace(condition.charAt(after)))
+			after++;
+		int before = start-1;
+		while(before>=0 && Character.isWhitespace(condition.charAt(before)))
+			before--;
+		char next = after<condition.length()?condition.charAt(after):' ';
+		char nextNext = after+1<condition.length()?condition.charAt(after+1):' ';
+		char previous = before>=0?condition.charAt(before):' ';
+		char previousPrevious = before>=1?condition.charAt(before-1):' ';
+		if(next=='=' || (previous=='=' && previousPrevious!='!' && previousPrevious!='<' && previousPrevious!='>'))
+			return "=";
+		if((next=='<' || next=='>') && nextNext!='>')
+			return "<";
+		if(previous=='<' || previous=='>' || (previous=='=' && (previousPrevious=='<' || previousPrevious=='>')))
+			return "<";
+		return null;
+	}
+
+	/**
+	 * The base table of a view selecting from one table, or null.
+	 */
+	private static String baseTable(String viewQueryString)
+	{
+		Matcher m = tablePattern.matcher(viewQueryString);
+		if(!m.find())
+			return null;
+		String table = m.group(2).toUpperCase(Locale.ROOT);
+		return m.find()?null:table;
+	}
+
+	private List<String> existingColumns(Connection connection, String table, List<String> columns) throws SQLException
+	{
+		HashSet<String> tableColumns = new HashSet<String>();
+		DatabaseMetaData md = connection.getMetaData();
+		ResultSet rs = md.getColumns(null, schemaName, table, null);
+		try
+		{
+			while(rs.next())
+				tableColumns.add(rs.getString("COLUMN_NAME").toUpperCase(Locale.ROOT));
+		}
+		finally
+		{
+			rs.close();
+		}
+		//a view is not indexed
+		rs = md.getTables(null, schemaName, table, new String[]{"TABLE"});
+		try
+		{
+			if(!rs.next())
+				return new ArrayList<String>();
+		}
+		finally
+		{
+			rs.close();
+		}
+		ArrayList<String> existing = new ArrayList<String>();
+		for(String column : columns)
+		{
+			if(!tableColumns.contains(column))
+				break;
+			existing.add(column);
+		}
+		return existing;
+	}
+
+	private boolean hasIndex(Connection connection, String table, String indexName) throws SQLException
+	{
+		ResultSet rs = connection.getMetaData().getIndexInfo(null, schemaName, table, false, true);
+		try
+		{
+			while(rs.next())
+			{
+				if(indexName.equalsIgnoreCase(rs.getString("INDEX_NAME")))
+					return true;
+			}
+			return false;
+		}
+		finally
+		{
+			rs.close();
+		}
+	}
+
+	private long countRows(Connection connection, String table) throws SQLException
+	{
+		Statement s = connection.createStatement();
+		try
+		{
+			ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM "+schemaName+"."+table);
+			rs.next();
+			return rs.getLong(1);
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+
+	private static String join(List<String> values, String separator)
+	{
+		StringBuilder sb = new StringBuilder();
+		for(String value : values)
+		{
+			if(sb.length()>0)
+				sb.append(separator);
+			sb.append(value);
+		}
+		return sb.toString();
+	}
+
+	public synchronized int getCreatedIndexCount()
+	{
+		return createdIndex.size()-foundIndexCount;
+	}
+
+	public synchronized long getCreateNanos()
+	{
+		return createNanos;
+	}
+
+	/**
+	 * The summary of the created indexes, and of the replaced per column indexes that were not needed, with the time they would have taken estimated from the build time per row and column of the created indexes.
+	 */
+	public synchronized String getSummary(Connection connection) throws SQLException
+	{
+		//a replaced index is covered by a created index leading with its column
+		HashSet<String> covered = new HashSet<String>();
+		for(Map.Entry<String, List<String>> e : createdIndex.entrySet())
+		{
+			String table = e.getKey().substring(3, e.getKey().length()-join(e.getValue(), "_").length()-1);
+			covered.add(table+"."+e.getValue().get(0));
+		}
+		int skipped = 0;
+		long skippedRows = 0;
+		for(String index : replacedIndex)
+		{
+			if(covered.contains(index))
+				continue;
+			String table = index.substring(0, index.indexOf('.'));
+			Long rows = indexRows.get(table);
+			if(rows==null)
+			{
+				try
+				{
+					rows = countRows(connection, table);
+				}
+				catch (SQLException e)
+				{
+					continue;
+				}
+				indexRows.put(table, rows);
+			}
+			skipped++;
+			skippedRows += rows;
+		}
+		String summary = "Index planner: "+(createdIndex.size()-foundIndexCount)+" indexes created in "+createNanos/1E9+" seconds, "+foundIndexCount+" found from loading, "+skipped+" of "+replacedIndex.size()+" per column indexes not needed";
+		if(createRowColumns>0)
+			summary += ", estimated "+String.format(Locale.ROOT, "%.3f", skippedRows*((double)createNanos/createRowColumns)/1E9)+" seconds saved";
+		return summary;
+	}
+}
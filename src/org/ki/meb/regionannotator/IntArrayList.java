@@ -0,0 +1,52 @@
+package org.ki.meb.regionannotator;
+
+import java.util.Arrays;
+
+/**
+ * Growable primitive int list, to keep the join engines free of boxing.
+ */
+public class IntArrayList
+{
+	private int[] data;
+	private int size;
+
+	public IntArrayList()
+	{
+		this(16);
+	}
+
+	public IntArrayList(int capacity)
+	{
+		data = new int[Math.max(capacity, 1)];
+		size=0;
+	}
+
+	public void add(int value)
+	{
+		if(size==data.length)
+			data = Arrays.copyOf(data, size*2);
+		data[size++]=value;
+	}
+
+	public int get(int index)
+	{
+		if(index>=size)
+			throw new IndexOutOfBoundsException("Index "+index+", size "+size);
+		return data[index];
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public void clear()
+	{
+		size=0;
+	}
+
+	public int[] toArray()
+	{
+		return Arrays.copyOf(data, size);
+	}
+}
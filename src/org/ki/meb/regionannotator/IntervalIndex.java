@@ -0,0 +1,288 @@
+package org.ki.meb.regionannotator;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Per-chromosome interval index. Intervals are kept sorted by start and form an implicit, max-end augmented binary tree over the sorted arrays (the cgranges layout), giving O(log m + k) overlap queries.
+ * Coordinates are closed intervals, as in the SQL overlap condition. A built index is held in int buffers, which may be views of a memory mapped reference snapshot.
+ */
+public class IntervalIndex
+{
+	private static final int scanLevel = 3;
+
+	private HashMap<String, Contig> contigs;
+	private boolean built;
+
+	private static class Contig
+	{
+		int size;
+		int[] start, end, maxEnd, label;
+		IntBuffer startBuffer, endBuffer, maxEndBuffer, labelBuffer;
+		int rootLevel;
+
+		Contig()
+		{
+			start = new int[16];
+			end = new int[16];
+			label = new int[16];
+		}
+
+		void add(int nStart, int nEnd, int nLabel)
+		{
+			if(size==start.length)
+			{
+				start = Arrays.copyOf(start, size*2);
+				end = Arrays.copyOf(end, size*2);
+				label = Arrays.copyOf(label, size*2);
+			}
+			start[size]=nStart;
+			end[size]=nEnd;
+			label[size]=nLabel;
+			size++;
+		}
+	}
+
+	public IntervalIndex()
+	{
+		contigs = new HashMap<String, Contig>();
+		built=false;
+	}
+
+	/**
+	 * Two segment overlap condition, identical to the SQL condition used by the join operations: ((a0<=b0 AND b0<=a1) OR (a0<=b1 AND b1<=a1) OR (b0<=a0 AND a0<=b1) OR (b0<=a1 AND a1<=b1))
+	 */
+	public static boolean twoSegmentOverlap(long a0, long a1, long b0, long b1)
+	{
+		return (a0<=b0 && b0<=a1) || (a0<=b1 && b1<=a1) || (b0<=a0 && a0<=b1) || (b0<=a1 && a1<=b1);
+	}
+
+	/**
+	 * The SQL overlap condition, where a point segment (aPoint, bPoint) stands for a segment with one null end point and a0=a1 or b0=b1 is its other end point.
+	 * By three valued logic only the terms comparing the point with both ends of the other segment can be true, so a point overlaps a segment if x0&lt;=p AND p&lt;=x1 (not for reversed segments), and two points never overlap.
+	 */
+	public static boolean twoSegmentOverlap(long a0, long a1, boolean aPoint, long b0, long b1, boolean bPoint)
+	{
+		if(aPoint && bPoint)
+			return false;
+		if(aPoint)
+			return b0<=a0 && a0<=b1;
+		if(bPoint)
+			return a0<=b0 && b0<=a1;
+		return twoSegmentOverlap(a0, a1, b0, b1);
+	}
+
+	/**
+	 * Adds an interval. Reversed intervals are indexed by their span.
+	 */
+	public IntervalIndex add(String chr, int bp1, int bp2, int label)
+	{
+		if(built)
+			throw new IllegalStateException("The index is already built.");
+		Contig c = contigs.get(chr);
+		if(c==null)
+		{
+			c=new Contig();
+			contigs.put(chr, c);
+		}
+		if(bp1<=bp2)
+			c.add(bp1, bp2, label);
+		else
+			c.add(bp2, bp1, label);
+		return this;
+	}
+
+	public IntervalIndex build()
+	{
+		for(Contig c : contigs.values())
+		{
+			sort(c);
+			c.maxEnd = new int[c.size];
+			c.rootLevel = indexCore(c.size, c.end, c.maxEnd);
+			c.startBuffer = IntBuffer.wrap(c.start);
+			c.endBuffer = IntBuffer.wrap(c.end);
+			c.maxEndBuffer = IntBuffer.wrap(c.maxEnd);
+			c.labelBuffer = IntBuffer.wrap(c.label);
+			c.start=c.end=c.maxEnd=c.label=null;
+		}
+		built=true;
+		return this;
+	}
+
+	/**
+	 * Creates a built index from the stored buffers of each chromosome, as written by {@link #getBuffers(String)}.
+	 */
+	public static IntervalIndex wrap(HashMap<String, IntBuffer[]> buffers, HashMap<String, Integer> rootLevels)
+	{
+		IntervalIndex index = new IntervalIndex();
+		for(String chr : buffers.keySet())
+		{
+			IntBuffer[] b = buffers.get(chr);
+			Contig c = new Contig();
+			c.startBuffer=b[0];
+			c.endBuffer=b[1];
+			c.maxEndBuffer=b[2];
+			c.labelBuffer=b[3];
+			c.size=b[0].limit();
+			c.start=c.end=c.label=null;
+			c.rootLevel=rootLevels.get(chr);
+			index.contigs.put(chr, c);
+		}
+		index.built=true;
+		return index;
+	}
+
+	/**
+	 * The sorted start, end, max end and label buffers of a chromosome of a built index.
+	 */
+	public IntBuffer[] getBuffers(String chr)
+	{
+		Contig c = contigs.get(chr);
+		return new IntBuffer[]{c.startBuffer.duplicate(),c.endBuffer.duplicate(),c.maxEndBuffer.duplicate(),c.labelBuffer.duplicate()};
+	}
+
+	public int getRootLevel(String chr)
+	{
+		return contigs.get(chr).rootLevel;
+	}
+
+	public Set<String> getChromosomes()
+	{
+		return contigs.keySet();
+	}
+
+	public int size(String chr)
+	{
+		Contig c = contigs.get(chr);
+		return c==null?0:c.size;
+	}
+
+	/**
+	 * Collects the labels of all intervals on chr overlapping the closed query interval [qStart,qEnd] into result.
+	 * @return the number of labels added
+	 */
+	public int overlap(String chr, int qStart, int qEnd, IntArrayList result)
+	{
+		if(!built)
+			throw new IllegalStateException("The index is not built.");
+		Contig c = contigs.get(chr);
+		if(c==null||c.size==0)
+			return 0;
+		if(qStart>qEnd)
+		{
+			int tmp=qStart;
+			qStart=qEnd;
+			qEnd=tmp;
+		}
+
+		IntBuffer start = c.startBuffer, end = c.endBuffer, maxEnd = c.maxEndBuffer, label = c.labelBuffer;
+		int found = 0;
+		long[] stackX = new long[64];
+		int[] stackK = new int[64];
+		boolean[] stackW = new boolean[64];
+		int t=0;
+		stackX[t]=(1L<<c.rootLevel)-1; stackK[t]=c.rootLevel; stackW[t]=false; t++;
+		while(t>0)
+		{
+			t--;
+			long x = stackX[t];
+			int k = stackK[t];
+			boolean w = stackW[t];
+			if(k<=scanLevel)
+			{
+				//small subtree, linear scan
+				long i0 = x>>k<<k;
+				long i1 = i0+(1L<<(k+1))-1;
+				if(i1>=c.size)
+					i1=c.size;
+				for(int i=(int)i0; i<i1 && start.get(i)<=qEnd; i++)
+				{
+					if(qStart<=end.get(i))
+					{
+						result.add(label.get(i));
+						found++;
+					}
+				}
+			}
+			else if(!w)
+			{
+				//re-add the node with its left child marked as processed
+				long y = x-(1L<<(k-1));
+				stackX[t]=x; stackK[t]=k; stackW[t]=true; t++;
+				if(y>=c.size || maxEnd.get((int)y)>=qStart)
+				{
+					stackX[t]=y; stackK[t]=k-1; stackW[t]=false; t++;
+				}
+			}
+			else if(x<c.size && start.get((int)x)<=qEnd)
+			{
+				if(qStart<=end.get((int)x))
+				{
+					result.add(label.get((int)x));
+					found++;
+				}
+				stackX[t]=x+(1L<<(k-1)); stackK[t]=k-1; stackW[t]=false; t++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Computes the max end augmentation bottom up.
+	 * @return the root level
+	 */
+	private static int indexCore(int n, int[] end, int[] maxEnd)
+	{
+		if(n==0)
+			return 0;
+		long lastI=0;
+		int last=0;
+		for(int i=0; i<n; i+=2)
+		{
+			lastI=i;
+			last=maxEnd[i]=end[i];
+		}
+		int k;
+		for(k=1; 1L<<k<=n; k++)
+		{
+			long x = 1L<<(k-1);
+			long i0 = (x<<1)-1;
+			long step = x<<2;
+			for(long i=i0; i<n; i+=step)
+			{
+				int el = maxEnd[(int)(i-x)];
+				int er = i+x<n?maxEnd[(int)(i+x)]:last;
+				int e = end[(int)i];
+				if(el>e) e=el;
+				if(er>e) e=er;
+				maxEnd[(int)i]=e;
+			}
+			lastI = ((lastI>>k)&1)!=0?lastI-x:lastI+x;
+			if(lastI<n && maxEnd[(int)lastI]>last)
+				last=maxEnd[(int)lastI];
+		}
+		return k-1;
+	}
+
+	private static void sort(Contig c)
+	{
+		//sort by start, via packed (start,position) keys
+		long[] key = new long[c.size];
+		for(int i=0; i<c.size; i++)
+			key[i]=((long)c.start[i]<<32)|(i&0xFFFFFFFFL);
+		Arrays.sort(key);
+		int[] nStart = new int[c.size], nEnd = new int[c.size], nLabel = new int[c.size];
+		for(int i=0; i<c.size; i++)
+		{
+			int pos = (int)(key[i]&0xFFFFFFFFL);
+			nStart[i]=c.start[pos];
+			nEnd[i]=c.end[pos];
+			nLabel[i]=c.label[pos];
+		}
+		c.start=nStart;
+		c.end=nEnd;
+		c.label=nLabel;
+	}
+}
@@ -0,0 +1,208 @@
+package org.ki.meb.regionannotator;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * Row pairs (left row, right row), optionally with a gene row and a distance, produced by a native join. The rows are kept as track positions and written as row ids to a pair table, which the link tables are then built from by row id equi-joins.
+ */
+public class LinkPairs
+{
+	private static final int batchSize = 10000;
+
+	private RegionTrack leftTrack, rightTrack, geneTrack;
+	private int size;
+	private int[] left, right, gene;
+	private double[] distance;
+
+	public LinkPairs(RegionTrack nLeftTrack, RegionTrack nRightTrack)
+	{
+		this(nLeftTrack, nRightTrack, null, false);
+	}
+
+	/**
+	 * @param nGeneTrack the track of the gene column, or null for no gene column
+	 */
+	public LinkPairs(RegionTrack nLeftTrack, RegionTrack nRightTrack, RegionTrack nGeneTrack, boolean withDistance)
+	{
+		leftTrack=nLeftTrack;
+		rightTrack=nRightTrack;
+		geneTrack=nGeneTrack;
+		size=0;
+		left = new int[1024];
+		right = new int[1024];
+		if(geneTrack!=null)
+			gene = new int[1024];
+		if(withDistance)
+			distance = new double[1024];
+	}
+
+	/**
+	 * An empty pair set with the same tracks and columns.
+	 */
+	public LinkPairs newEmpty()
+	{
+		return new LinkPairs(leftTrack, rightTrack, geneTrack, distance!=null);
+	}
+
+	public void add(int leftPosition, int rightPosition)
+	{
+		if(gene!=null || distance!=null)
+			throw new IllegalStateException("The pairs require a gene and/or distance.");
+		grow();
+		left[size]=leftPosition;
+		right[size]=rightPosition;
+		size++;
+	}
+
+	public void add(int leftPosition, int rightPosition, double dist)
+	{
+		if(gene!=null || distance==null)
+			throw new IllegalStateException("The pairs have no distance, or require a gene.");
+		grow();
+		left[size]=leftPosition;
+		right[size]=rightPosition;
+		distance[size]=dist;
+		size++;
+	}
+
+	public void add(int leftPosition, int rightPosition, int genePosition, double dist)
+	{
+		if(gene==null || distance==null)
+			throw new IllegalStateException("The pairs have no gene or distance.");
+		grow();
+		left[size]=leftPosition;
+		right[size]=rightPosition;
+		gene[size]=genePosition;
+		distance[size]=dist;
+		size++;
+	}
+
+	/**
+	 * Appends the pairs of a partial result with the same tracks and columns.
+	 */
+	public void addAll(LinkPairs other)
+	{
+		if(other.leftTrack!=leftTrack || other.rightTrack!=rightTrack || other.geneTrack!=geneTrack || (other.distance==null)!=(distance==null))
+			throw new IllegalArgumentException("The pairs are of different tracks or columns.");
+		for(int i=0; i<other.size; i++)
+		{
+			grow();
+			left[size]=other.left[i];
+			right[size]=other.right[i];
+			if(gene!=null)
+				gene[size]=other.gene[i];
+			if(distance!=null)
+				distance[size]=other.distance[i];
+			size++;
+		}
+	}
+
+	private void grow()
+	{
+		if(size==left.length)
+		{
+			left = Arrays.copyOf(left, size*2);
+			right = Arrays.copyOf(right, size*2);
+			if(gene!=null)
+				gene = Arrays.copyOf(gene, size*2);
+			if(distance!=null)
+				distance = Arrays.copyOf(distance, size*2);
+		}
+	}
+
+	public boolean hasGene()
+	{
+		return gene!=null;
+	}
+
+	public boolean hasDistance()
+	{
+		return distance!=null;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public RegionTrack getLeftTrack()
+	{
+		return leftTrack;
+	}
+
+	public RegionTrack getRightTrack()
+	{
+		return rightTrack;
+	}
+
+	public RegionTrack getGeneTrack()
+	{
+		return geneTrack;
+	}
+
+	public int getLeft(int index)
+	{
+		return left[index];
+	}
+
+	public int getRight(int index)
+	{
+		return right[index];
+	}
+
+	public int getGene(int index)
+	{
+		return gene[index];
+	}
+
+	public double getDistance(int index)
+	{
+		return distance[index];
+	}
+
+	/**
+	 * (Re)creates the pair table with the row id columns L, R (and G) and the column DIST if present, and inserts the pairs in batches.
+	 */
+	public void write(Connection connection, String schemaName, String tableName) throws SQLException
+	{
+		String path = schemaName+"."+tableName;
+		String columns = "L,R"+(gene!=null?",G":"")+(distance!=null?",DIST":"");
+		Statement s = connection.createStatement();
+		try
+		{
+			s.execute("DROP TABLE IF EXISTS "+path);
+			s.execute("CREATE TABLE "+path+"(L BIGINT, R BIGINT"+(gene!=null?", G BIGINT":"")+(distance!=null?", DIST DOUBLE":"")+")");
+		}
+		finally
+		{
+			s.close();
+		}
+
+		PreparedStatement ps = connection.prepareStatement("INSERT INTO "+path+"("+columns+") VALUES(?,?"+(gene!=null?",?":"")+(distance!=null?",?":"")+")");
+		try
+		{
+			for(int i=0; i<size; i++)
+			{
+				int iParameter=1;
+				ps.setLong(iParameter++, leftTrack.getRowId(left[i]));
+				ps.setLong(iParameter++, rightTrack.getRowId(right[i]));
+				if(gene!=null)
+					ps.setLong(iParameter++, geneTrack.getRowId(gene[i]));
+				if(distance!=null)
+					ps.setDouble(iParameter++, distance[i]);
+				ps.addBatch();
+				if((i+1)%batchSize==0)
+					ps.executeBatch();
+			}
+			ps.executeBatch();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package org.ki.meb.regionannotator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The native link operations of the user input, partitioned by chromosome: the protein coding genes within the distance threshold, the overlap links and the gene name links of the protein coding genes.
+ * Every join is keyed on chr, so each partition is computed independently (on a fork-join pool if one is given) and the partial pairs are merged in chromosome order.
+ * The final output order is set by the ORDER BY of the statements building the link tables from the pair tables.
+ * The reference side (indexes, gene symbol dictionary and gene symbol indexes) is prepared once, on the first run, and shared by the runs of any user input.
+ */
+public class NativeOperator
+{
+	public static final String proteinCodingGenesName = "PROTEIN_CODING_GENES";
+
+	private GeneDistanceEngine proteinCodingEngine;
+	private double proteinCodingMaxDistance;
+	private LinkedHashMap<String, RegionTrack> overlapLink, geneNameLink;
+	private int[] geneSymbolId;
+	private LinkedHashMap<String, GeneSymbolIndex> geneSymbolIndex;
+
+	/**
+	 * @param nProteinCodingTrack the protein coding genes, with gene names
+	 */
+	public NativeOperator(RegionTrack nProteinCodingTrack, long nProteinCodingExpansion, double nProteinCodingMaxDistance)
+	{
+		proteinCodingEngine = new GeneDistanceEngine(nProteinCodingTrack, nProteinCodingExpansion);
+		proteinCodingMaxDistance=nProteinCodingMaxDistance;
+		overlapLink = new LinkedHashMap<String, RegionTrack>();
+		geneNameLink = new LinkedHashMap<String, RegionTrack>();
+	}
+
+	/**
+	 * Links the user input with the overlapping regions of the reference track.
+	 */
+	public synchronized void addOverlapLink(String name, RegionTrack referenceTrack)
+	{
+		overlapLink.put(name, referenceTrack);
+		geneSymbolIndex=null;
+	}
+
+	/**
+	 * Links the protein coding genes of the user input with the reference rows of the same (non empty) gene name, giving (user, reference, gene, dist) pairs.
+	 * The gene names are joined as int ids of a gene symbol dictionary, by hash join.
+	 */
+	public synchronized void addGeneNameLink(String name, RegionTrack referenceTrack)
+	{
+		geneNameLink.put(name, referenceTrack);
+		geneSymbolIndex=null;
+	}
+
+	/**
+	 * Builds the lazily built shared structures of the reference side, which the runs and their partitions then only read.
+	 */
+	public synchronized void prepare()
+	{
+		if(geneSymbolIndex!=null)
+			return;
+		RegionTrack genes = proteinCodingEngine.getGenes();
+		genes.getIndex();
+		for(RegionTrack referenceTrack : overlapLink.values())
+			referenceTrack.getIndex();
+		//gene names are encoded once, as int ids of one dictionary, and the reference ids are indexed for the hash joins
+		GeneSymbolDictionary dictionary = new GeneSymbolDictionary();
+		geneSymbolId = dictionary.encode(genes);
+		LinkedHashMap<String, GeneSymbolIndex> index = new LinkedHashMap<String, GeneSymbolIndex>();
+		for(Map.Entry<String, RegionTrack> e : geneNameLink.entrySet())
+			index.put(e.getKey(), new GeneSymbolIndex(dictionary.encode(e.getValue())));
+		geneSymbolIndex = index;
+	}
+
+	/**
+	 * Computes all links of the user input.
+	 * @param pool the pool running the partitions, or null to run them serially
+	 * @return the pairs by link name, the protein coding genes as {@link #proteinCodingGenesName} followed by the added links
+	 */
+	public LinkedHashMap<String, LinkPairs> run(RegionTrack userTrack, ForkJoinPool pool)
+	{
+		prepare();
+		RegionTrack genes = proteinCodingEngine.getGenes();
+
+		LinkedHashMap<String, LinkPairs> result = new LinkedHashMap<String, LinkPairs>();
+		result.put(proteinCodingGenesName, new LinkPairs(userTrack, genes, null, true));
+		for(Map.Entry<String, RegionTrack> e : overlapLink.entrySet())
+			result.put(e.getKey(), new LinkPairs(userTrack, e.getValue()));
+		for(Map.Entry<String, RegionTrack> e : geneNameLink.entrySet())
+			result.put(e.getKey(), new LinkPairs(userTrack, e.getValue(), genes, true));
+
+		ArrayList<PartitionTask> tasks = new ArrayList<PartitionTask>();
+		for(IntArrayList partition : userTrack.getPartitions().values())
+			tasks.add(new PartitionTask(userTrack, partition, result, geneSymbolId, geneSymbolIndex));
+
+		if(pool!=null)
+		{
+			for(PartitionTask task : tasks)
+				pool.execute(task);
+		}
+
+		for(PartitionTask task : tasks)
+		{
+			LinkedHashMap<String, LinkPairs> partial = pool!=null?task.join():task.compute();
+			for(Map.Entry<String, LinkPairs> e : partial.entrySet())
+				result.get(e.getKey()).addAll(e.getValue());
+		}
+
+		return result;
+	}
+
+	private class PartitionTask extends RecursiveTask<LinkedHashMap<String, LinkPairs>>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private RegionTrack userTrack;
+		private IntArrayList partition;
+		private LinkedHashMap<String, LinkPairs> template;
+		private int[] geneSymbolId;
+		private LinkedHashMap<String, GeneSymbolIndex> geneSymbolIndex;
+
+		public PartitionTask(RegionTrack nUserTrack, IntArrayList nPartition, LinkedHashMap<String, LinkPairs> nTemplate, int[] nGeneSymbolId, LinkedHashMap<String, GeneSymbolIndex> nGeneSymbolIndex)
+		{
+			userTrack=nUserTrack;
+			partition=nPartition;
+			template=nTemplate;
+			geneSymbolId=nGeneSymbolId;
+			geneSymbolIndex=nGeneSymbolIndex;
+		}
+
+		@Override
+		protected LinkedHashMap<String, LinkPairs> compute()
+		{
+			LinkedHashMap<String, LinkPairs> partial = new LinkedHashMap<String, LinkPairs>();
+			for(Map.Entry<String, LinkPairs> e : template.entrySet())
+				partial.put(e.getKey(), e.getValue().newEmpty());
+
+			LinkPairs proteinCodingPairs = partial.get(proteinCodingGenesName);
+			proteinCodingEngine.link(userTrack, partition, proteinCodingMaxDistance, proteinCodingPairs);
+
+			OverlapEngine overlapEngine = new OverlapEngine();
+			for(Map.Entry<String, RegionTrack> e : overlapLink.entrySet())
+				overlapEngine.link(userTrack, partition, e.getValue(), partial.get(e.getKey()));
+
+			for(Map.Entry<String, GeneSymbolIndex> e : geneSymbolIndex.entrySet())
+				linkGeneNames(proteinCodingPairs, geneSymbolId, e.getValue(), partial.get(e.getKey()));
+
+			return partial;
+		}
+	}
+
+	/**
+	 * Adds the (user, reference, gene, dist) pairs of the protein coding gene pairs whose gene name id is in the reference gene symbol index.
+	 * @param geneSymbolId the gene name ids of the genes, by gene track position
+	 */
+	public static void linkGeneNames(LinkPairs proteinCodingPairs, int[] geneSymbolId, GeneSymbolIndex index, LinkPairs pairs)
+	{
+		IntArrayList referencePositions = new IntArrayList();
+		for(int i=0; i<proteinCodingPairs.size(); i++)
+		{
+			referencePositions.clear();
+			if(index.get(geneSymbolId[proteinCodingPairs.getRight(i)], referencePositions)==0)
+				continue;
+			for(int ir=0; ir<referencePositions.size(); ir++)
+				pairs.add(proteinCodingPairs.getLeft(i), referencePositions.get(ir), proteinCodingPairs.getRight(i), proteinCodingPairs.getDistance(i));
+		}
+	}
+}
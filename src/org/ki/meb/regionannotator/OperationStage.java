@@ -0,0 +1,83 @@
+package org.ki.meb.regionannotator;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import org.jakz.common.DataCache;
+
+/**
+ * A stage of the operations, with the datasets (tables/views) it reads and the datasets it creates. Run by the {@link StageScheduler}, on its own database connection when run concurrently.
+ */
+public abstract class OperationStage
+{
+	private String name;
+	private LinkedHashSet<String> inputs, outputs;
+	private long startTimeNanos, endTimeNanos;
+	private RunMetrics.Metric metric;
+
+	public OperationStage(String nName, String[] nInputs, String[] nOutputs)
+	{
+		name=nName;
+		inputs = new LinkedHashSet<String>();
+		for(String input : nInputs)
+			inputs.add(input.toUpperCase());
+		outputs = new LinkedHashSet<String>();
+		for(String output : nOutputs)
+			outputs.add(output.toUpperCase());
+	}
+
+	/**
+	 * Creates the outputs of the stage, committing them on the given cache.
+	 */
+	public abstract void run(DataCache cache) throws Exception;
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public LinkedHashSet<String> getInputs()
+	{
+		return inputs;
+	}
+
+	public LinkedHashSet<String> getOutputs()
+	{
+		return outputs;
+	}
+
+	void setTime(long nStartTimeNanos, long nEndTimeNanos)
+	{
+		startTimeNanos=nStartTimeNanos;
+		endTimeNanos=nEndTimeNanos;
+	}
+
+	public long getStartTimeNanos()
+	{
+		return startTimeNanos;
+	}
+
+	public long getDurationNanos()
+	{
+		return endTimeNanos-startTimeNanos;
+	}
+
+	void setMetric(RunMetrics.Metric nMetric)
+	{
+		metric=nMetric;
+	}
+
+	/**
+	 * The measured run, null if the scheduler has no metrics.
+	 */
+	public RunMetrics.Metric getMetric()
+	{
+		return metric;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name+" "+Arrays.toString(inputs.toArray())+" -> "+Arrays.toString(outputs.toArray());
+	}
+}
@@ -0,0 +1,45 @@
+package org.ki.meb.regionannotator;
+
+/**
+ * Native segment overlap join. Answers c.chr=r.chr AND TwoSegmentOverlapCondition(c.bp1,c.bp2,r.bp1,r.bp2) with the per-chromosome interval index of the right hand track, in O((n+k) log m).
+ */
+public class OverlapEngine
+{
+	/**
+	 * Joins every region of the left track with the overlapping regions of the right track.
+	 */
+	public LinkPairs link(RegionTrack left, RegionTrack right)
+	{
+		LinkPairs pairs = new LinkPairs(left, right);
+		for(IntArrayList partition : left.getPartitions().values())
+			link(left, partition, right, pairs);
+		return pairs;
+	}
+
+	/**
+	 * Joins the regions at the given positions of the left track (a partition) with the overlapping regions of the right track.
+	 * The index is queried with the span of the left region and the candidates are then checked against the exact (orientation sensitive) overlap condition. Regions with one null end point are matched as the point of the other end point.
+	 */
+	public void link(RegionTrack left, IntArrayList leftPositions, RegionTrack right, LinkPairs pairs)
+	{
+		IntervalIndex index = right.getIndex();
+		IntArrayList candidates = new IntArrayList();
+		for(int ip=0; ip<leftPositions.size(); ip++)
+		{
+			int il = leftPositions.get(ip);
+			if(!left.hasEnds(il))
+				continue;
+
+			int a0 = left.getSegmentBp1(il), a1 = left.getSegmentBp2(il);
+			boolean aPoint = left.isPoint(il);
+			candidates.clear();
+			index.overlap(left.getChr(il), a0, a1, candidates);
+			for(int ic=0; ic<candidates.size(); ic++)
+			{
+				int ir = candidates.get(ic);
+				if(right.hasEnds(ir) && IntervalIndex.twoSegmentOverlap(a0, a1, aPoint, right.getSegmentBp1(ir), right.getSegmentBp2(ir), right.isPoint(ir)))
+					pairs.add(il, ir);
+			}
+		}
+	}
+}
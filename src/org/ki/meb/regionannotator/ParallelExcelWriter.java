@@ -0,0 +1,560 @@
+package org.ki.meb.regionannotator;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.jakz.common.ApplicationException;
+import org.jakz.common.DataCache;
+import org.jakz.common.DataEntry;
+
+/**
+ * Writes datasets as sheets of one workbook, serializing the sheet parts concurrently. A skeleton workbook holds everything but the sheet data (e.g. the README sheet and its styles, the sheet order, hidden columns).
+ * Every dataset is read on its own connection and its sheet XML is deflated to a temporary file, and the package is then assembled by copying the skeleton entries and the precompressed sheet parts into one zip.
+ * Cell strings are inline, so the sheets share no string table.
+ */
+public class ParallelExcelWriter
+{
+	private static final long zipLimit = 0xFFFFFFFFL;
+
+	private File outputFile;
+	private int threads;
+	private XSSFWorkbook workbook;
+	private XSSFCellStyle hyperlinkStyle;
+	private ArrayList<String> datasetPath, sheetName;
+	private ArrayList<DataEntry> entryTemplate;
+
+	/**
+	 * @param nThreads the number of sheets serialized concurrently
+	 */
+	public ParallelExcelWriter(File nOutputFile, int nThreads)
+	{
+		outputFile=nOutputFile;
+		threads=nThreads;
+		workbook = new XSSFWorkbook();
+		XSSFFont hyperlinkFont = workbook.createFont();
+		hyperlinkFont.setUnderline(Font.U_SINGLE);
+		hyperlinkFont.setColor(IndexedColors.BLUE.getIndex());
+		hyperlinkStyle = workbook.createCellStyle();
+		hyperlinkStyle.setFont(hyperlinkFont);
+		datasetPath = new ArrayList<String>();
+		sheetName = new ArrayList<String>();
+		entryTemplate = new ArrayList<DataEntry>();
+	}
+
+	/**
+	 * The skeleton workbook, for sheets written before the datasets, e.g. the README.
+	 */
+	public XSSFWorkbook getWorkbook()
+	{
+		return workbook;
+	}
+
+	/**
+	 * Adds a dataset, written to a sheet after the sheets added so far.
+	 * @param entryTemplate column settings by upper case column name, or null
+	 */
+	public void addSheet(String nDatasetPath, String nSheetName, DataEntry nEntryTemplate)
+	{
+		datasetPath.add(nDatasetPath);
+		sheetName.add(nSheetName);
+		entryTemplate.add(nEntryTemplate);
+	}
+
+	/**
+	 * Serializes the sheets and writes the workbook.
+	 * @param cache the cache used for the layouts of the datasets
+	 * @param cacheFactory the connections of the concurrently serialized datasets
+	 */
+	public void write(DataCache cache, final StageScheduler.CacheFactory cacheFactory) throws SQLException, IOException, ApplicationException
+	{
+		//skeleton
+		final ArrayList<ExcelSheetLayout> layout = new ArrayList<ExcelSheetLayout>();
+		final ArrayList<ArrayList<String>> partName = new ArrayList<ArrayList<String>>();
+		for(int iDataset=0; iDataset<datasetPath.size(); iDataset++)
+		{
+			ExcelSheetLayout datasetLayout = ExcelSheetLayout.describe(cache.getConnection(), datasetPath.get(iDataset), entryTemplate.get(iDataset));
+			layout.add(datasetLayout);
+			ArrayList<String> datasetPartName = new ArrayList<String>();
+			for(int sheetNumber=1; sheetNumber<=datasetLayout.getSheetCount(); sheetNumber++)
+			{
+				XSSFSheet sheet = workbook.createSheet(ExcelSheetLayout.getSheetName(sheetName.get(iDataset), sheetNumber));
+				for(int i=0; i<datasetLayout.size(); i++)
+				{
+					if(datasetLayout.isHidden(i))
+						sheet.setColumnHidden(i, true);
+				}
+				datasetPartName.add(sheet.getPackagePart().getPartName().getName().substring(1));
+			}
+			partName.add(datasetPartName);
+		}
+		ByteArrayOutputStream skeletonBytes = new ByteArrayOutputStream();
+		workbook.write(skeletonBytes);
+		final LinkedHashMap<String, byte[]> skeleton = readZip(skeletonBytes.toByteArray());
+
+		//concurrent sheet parts
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<ArrayList<SheetPart>>> futures = new ArrayList<Future<ArrayList<SheetPart>>>();
+		LinkedHashMap<String, SheetPart> parts = new LinkedHashMap<String, SheetPart>();
+		try
+		{
+			for(int iDataset=0; iDataset<datasetPath.size(); iDataset++)
+			{
+				final int i = iDataset;
+				futures.add(executor.submit(new Callable<ArrayList<SheetPart>>()
+				{
+					@Override
+					public ArrayList<SheetPart> call() throws Exception
+					{
+						DataCache datasetCache = cacheFactory.open();
+						try
+						{
+							return writeParts(datasetCache, layout.get(i), partName.get(i), skeleton);
+						}
+						finally
+						{
+							cacheFactory.close(datasetCache);
+						}
+					}
+				}));
+			}
+			ApplicationException failure = null;
+			for(int iDataset=0; iDataset<futures.size(); iDataset++)
+			{
+				try
+				{
+					for(SheetPart part : futures.get(iDataset).get())
+						parts.put(part.name, part);
+				}
+				catch (ExecutionException e)
+				{
+					if(failure==null)
+						failure = new ApplicationException("Sheet error ["+sheetName.get(iDataset)+"]", e.getCause());
+				}
+				catch (InterruptedException e)
+				{
+					throw new ApplicationException("Sheet writing interrupted", e);
+				}
+			}
+			if(failure!=null)
+				throw failure;
+
+			assemble(skeleton, parts);
+		}
+		finally
+		{
+			executor.shutdownNow();
+			//also the parts of datasets that were done but not collected, when interrupted
+			for(Future<ArrayList<SheetPart>> future : futures)
+			{
+				if(!future.isDone() || future.isCancelled())
+					continue;
+				try
+				{
+					for(SheetPart part : future.get())
+						part.file.delete();
+				}
+				catch (ExecutionException e)
+				{
+					//a failed dataset deletes its own parts
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private static class SheetPart
+	{
+		String name;
+		File file;
+		long crc, size, compressedSize;
+	}
+
+	/**
+	 * Counts and checksums the bytes written through it.
+	 */
+	private static class CheckedCountingOutputStream extends FilterOutputStream
+	{
+		CRC32 crc = new CRC32();
+		long count = 0;
+
+		CheckedCountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			crc.update(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			crc.update(b, off, len);
+			count+=len;
+		}
+	}
+
+	/**
+	 * Writes the sheet parts of a dataset as raw deflate data in temporary files. If a part fails, the files of all parts of the dataset are deleted.
+	 */
+	private ArrayList<SheetPart> writeParts(DataCache cache, ExcelSheetLayout layout, ArrayList<String> partName, LinkedHashMap<String, byte[]> skeleton) throws SQLException, IOException
+	{
+		String[] columnReference = new String[layout.size()];
+		for(int i=0; i<columnReference.length; i++)
+			columnReference[i]=columnReference(i);
+		int hyperlinkStyleIndex = hyperlinkStyle.getIndex();
+
+		ArrayList<SheetPart> parts = new ArrayList<SheetPart>();
+		boolean written = false;
+		Statement s = cache.getConnection().createStatement();
+		s.setFetchSize(1000);
+		try
+		{
+			ResultSet rs = s.executeQuery("SELECT * FROM "+layout.getPath());
+			StringBuilder row = new StringBuilder();
+			for(int iPart=0; iPart<partName.size(); iPart++)
+			{
+				SheetPart part = new SheetPart();
+				part.name = partName.get(iPart);
+				part.file = File.createTempFile("regionannotator-sheet", ".deflate");
+				parts.add(part);
+
+				String template = new String(skeleton.get(part.name), StandardCharsets.UTF_8);
+				int iSheetData = template.indexOf("<sheetData/>");
+				Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+				FileOutputStream fileOut = new FileOutputStream(part.file);
+				CheckedCountingOutputStream compressedOut = new CheckedCountingOutputStream(new BufferedOutputStream(fileOut, 1<<16));
+				CheckedCountingOutputStream out = new CheckedCountingOutputStream(new DeflaterOutputStream(compressedOut, deflater, 1<<16));
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1<<16);
+				try
+				{
+					writer.write(template, 0, iSheetData);
+					writer.write("<sheetData>");
+
+					row.setLength(0);
+					row.append("<row r=\"1\">");
+					for(int i=0; i<layout.size(); i++)
+						appendInlineString(row, columnReference[i]+"1", layout.getName(i));
+					row.append("</row>");
+					writer.append(row);
+
+					int sheetRow = 1;
+					while(sheetRow<ExcelSheetLayout.maxSheetRows && rs.next())
+					{
+						sheetRow++;
+						String rowNumber = Integer.toString(sheetRow);
+						row.setLength(0);
+						row.append("<row r=\"").append(rowNumber).append("\">");
+						for(int i=0; i<layout.size(); i++)
+						{
+							int ic = layout.getColumn(i);
+							String reference = columnReference[i]+rowNumber;
+							if(layout.isNumeric(i))
+							{
+								int type = layout.getType(i);
+								String value;
+								if(type==Types.TINYINT || type==Types.SMALLINT || type==Types.INTEGER || type==Types.BIGINT)
+								{
+									long longValue = rs.getLong(ic);
+									value = rs.wasNull()?null:Long.toString(longValue);
+								}
+								else
+								{
+									double doubleValue = rs.getDouble(ic);
+									value = rs.wasNull()||Double.isNaN(doubleValue)||Double.isInfinite(doubleValue)?null:Double.toString(doubleValue);
+								}
+								if(value!=null)
+									row.append("<c r=\"").append(reference).append("\"><v>").append(value).append("</v></c>");
+							}
+							else if(layout.isBoolean(i))
+							{
+								boolean value = rs.getBoolean(ic);
+								if(!rs.wasNull())
+									row.append("<c r=\"").append(reference).append("\" t=\"b\"><v>").append(value?"1":"0").append("</v></c>");
+							}
+							else
+							{
+								String value = rs.getString(ic);
+								if(value==null)
+									continue;
+								if(layout.isFormula(i))
+								{
+									row.append("<c r=\"").append(reference).append("\"");
+									if(layout.isHyperlink(i))
+										row.append(" s=\"").append(hyperlinkStyleIndex).append("\"");
+									row.append(" t=\"str\"><f>");
+									appendEscaped(row, value);
+									row.append("</f></c>");
+								}
+								else
+									appendInlineString(row, reference, value);
+							}
+						}
+						row.append("</row>");
+						writer.append(row);
+					}
+
+					writer.write("</sheetData>");
+					writer.write(template, iSheetData+"<sheetData/>".length(), template.length()-iSheetData-"<sheetData/>".length());
+				}
+				finally
+				{
+					writer.close();
+					deflater.end();
+				}
+				part.crc = out.crc.getValue();
+				part.size = out.count;
+				part.compressedSize = compressedOut.count;
+			}
+			rs.close();
+			written = true;
+		}
+		finally
+		{
+			s.close();
+			//the parts of a failed dataset are not returned, so they are not deleted with the assembled parts
+			if(!written)
+			{
+				for(SheetPart part : parts)
+					part.file.delete();
+			}
+		}
+		return parts;
+	}
+
+	private static String columnReference(int column)
+	{
+		StringBuilder reference = new StringBuilder();
+		for(int c=column+1; c>0; c=(c-1)/26)
+			reference.insert(0, (char)('A'+(c-1)%26));
+		return reference.toString();
+	}
+
+	private static void appendInlineString(StringBuilder row, String reference, String value)
+	{
+		row.append("<c r=\"").append(reference).append("\" t=\"inlineStr\"><is><t");
+		if(value.length()>0 && (Character.isWhitespace(value.charAt(0)) || Character.isWhitespace(value.charAt(value.length()-1))))
+			row.append(" xml:space=\"preserve\"");
+		row.append(">");
+		appendEscaped(row, value);
+		row.append("</t></is></c>");
+	}
+
+	/**
+	 * XML escaping, replacing the characters not allowed in XML by ? as the streaming workbook does.
+	 */
+	private static void appendEscaped(StringBuilder row, String value)
+	{
+		for(int i=0; i<value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if(c=='<')
+				row.append("&lt;");
+			else if(c=='>')
+				row.append("&gt;");
+			else if(c=='&')
+				row.append("&amp;");
+			else if(c=='"')
+				row.append("&quot;");
+			else if((c<0x20 && c!='\t' && c!='\n' && c!='\r') || c==0xFFFE || c==0xFFFF)
+				row.append('?');
+			else
+				row.append(c);
+		}
+	}
+
+	private static LinkedHashMap<String, byte[]> readZip(byte[] zip) throws IOException
+	{
+		LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+		ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip));
+		try
+		{
+			ZipEntry entry;
+			byte[] buffer = new byte[1<<14];
+			while((entry=in.getNextEntry())!=null)
+			{
+				ByteArrayOutputStream data = new ByteArrayOutputStream();
+				int n;
+				while((n=in.read(buffer))>0)
+					data.write(buffer, 0, n);
+				entries.put(entry.getName(), data.toByteArray());
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * Writes the package: the skeleton entries in their order, with the sheet parts copied as precompressed deflate data.
+	 */
+	private void assemble(LinkedHashMap<String, byte[]> skeleton, LinkedHashMap<String, SheetPart> parts) throws IOException
+	{
+		Calendar now = Calendar.getInstance();
+		int dosTime = (now.get(Calendar.HOUR_OF_DAY)<<11)|(now.get(Calendar.MINUTE)<<5)|(now.get(Calendar.SECOND)>>1);
+		int dosDate = ((now.get(Calendar.YEAR)-1980)<<9)|((now.get(Calendar.MONTH)+1)<<5)|now.get(Calendar.DAY_OF_MONTH);
+
+		ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+		int entryCount = 0;
+		CheckedCountingOutputStream out = new CheckedCountingOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), 1<<16));
+		try
+		{
+			byte[] buffer = new byte[1<<16];
+			for(Map.Entry<String, byte[]> entry : skeleton.entrySet())
+			{
+				SheetPart part = parts.get(entry.getKey());
+				long crc, size, compressedSize;
+				InputStream data;
+				if(part!=null)
+				{
+					crc=part.crc;
+					size=part.size;
+					compressedSize=part.compressedSize;
+					data = new FileInputStream(part.file);
+				}
+				else
+				{
+					CRC32 entryCrc = new CRC32();
+					entryCrc.update(entry.getValue());
+					crc=entryCrc.getValue();
+					size=entry.getValue().length;
+					ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+					Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+					DeflaterOutputStream deflaterOut = new DeflaterOutputStream(compressed, deflater);
+					deflaterOut.write(entry.getValue());
+					deflaterOut.close();
+					deflater.end();
+					compressedSize=compressed.size();
+					data = new ByteArrayInputStream(compressed.toByteArray());
+				}
+				long offset = out.count;
+				if(size>zipLimit || compressedSize>zipLimit || offset>zipLimit)
+				{
+					data.close();
+					throw new IOException("Excel package entry "+entry.getKey()+" exceeds the zip size limit of 4 GB");
+				}
+
+				byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				writeInt(out, 0x04034b50);
+				writeShort(out, 20);
+				writeShort(out, 0x0800);
+				writeShort(out, 8);
+				writeShort(out, dosTime);
+				writeShort(out, dosDate);
+				writeInt(out, crc);
+				writeInt(out, compressedSize);
+				writeInt(out, size);
+				writeShort(out, name.length);
+				writeShort(out, 0);
+				out.write(name);
+				try
+				{
+					int n;
+					while((n=data.read(buffer))>0)
+						out.write(buffer, 0, n);
+				}
+				finally
+				{
+					data.close();
+				}
+
+				writeInt(centralDirectory, 0x02014b50);
+				writeShort(centralDirectory, 20);
+				writeShort(centralDirectory, 20);
+				writeShort(centralDirectory, 0x0800);
+				writeShort(centralDirectory, 8);
+				writeShort(centralDirectory, dosTime);
+				writeShort(centralDirectory, dosDate);
+				writeInt(centralDirectory, crc);
+				writeInt(centralDirectory, compressedSize);
+				writeInt(centralDirectory, size);
+				writeShort(centralDirectory, name.length);
+				writeShort(centralDirectory, 0);
+				writeShort(centralDirectory, 0);
+				writeShort(centralDirectory, 0);
+				writeShort(centralDirectory, 0);
+				writeInt(centralDirectory, 0);
+				writeInt(centralDirectory, offset);
+				centralDirectory.write(name);
+				entryCount++;
+			}
+
+			long centralDirectoryOffset = out.count;
+			if(centralDirectoryOffset>zipLimit)
+				throw new IOException("Excel package exceeds the zip size limit of 4 GB");
+			centralDirectory.writeTo(out);
+			writeInt(out, 0x06054b50);
+			writeShort(out, 0);
+			writeShort(out, 0);
+			writeShort(out, entryCount);
+			writeShort(out, entryCount);
+			writeInt(out, centralDirectory.size());
+			writeInt(out, centralDirectoryOffset);
+			writeShort(out, 0);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static void writeShort(OutputStream out, int value) throws IOException
+	{
+		out.write(value&0xFF);
+		out.write((value>>>8)&0xFF);
+	}
+
+	private static void writeInt(OutputStream out, long value) throws IOException
+	{
+		out.write((int)(value&0xFF));
+		out.write((int)((value>>>8)&0xFF));
+		out.write((int)((value>>>16)&0xFF));
+		out.write((int)((value>>>24)&0xFF));
+	}
+}
@@ -0,0 +1,313 @@
+package org.ki.meb.regionannotator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Query plan diagnostics of the stage queries. Every query is run with EXPLAIN ANALYZE before its stage runs it, and the table accesses of the plan are read: the table, the index or table scan used, the join position and the number of rows scanned.
+ * A table access is flagged when it scans more rows than the threshold as a full table scan, or as the inner table of a nested loop join, which in H2 is every joined table after the first.
+ */
+public class QueryDiagnostics
+{
+	public static final long defaultScanThreshold = 100000;
+	private static final Pattern filterPattern = Pattern.compile("^( *)(FROM|(?:INNER |LEFT OUTER |RIGHT OUTER |CROSS |NATURAL )?JOIN) (\\S+)(?: (\\S+))?$");
+	private static final Pattern commentPattern = Pattern.compile("^( *)/\\* (.*?)(?: \\*/)?$");
+	private static final Pattern scanCountPattern = Pattern.compile("^scanCount: (\\d+)$");
+	private static final Pattern readsPattern = Pattern.compile("(?m)^reads: (\\d+)$");
+
+	/**
+	 * A table access of a plan.
+	 */
+	public static class TableAccess
+	{
+		private String table, access;
+		private boolean joined;
+		private long scanCount = -1;
+		private int indent;
+
+		public String getTable()
+		{
+			return table;
+		}
+
+		/**
+		 * The index with its condition, tableScan, or view for a view.
+		 */
+		public String getAccess()
+		{
+			return access;
+		}
+
+		public boolean isTableScan()
+		{
+			return access!=null && access.endsWith(".tableScan");
+		}
+
+		/**
+		 * If the table is joined, i.e. scanned as the inner table of a nested loop.
+		 */
+		public boolean isJoined()
+		{
+			return joined;
+		}
+
+		public long getScanCount()
+		{
+			return scanCount;
+		}
+	}
+
+	/**
+	 * An analysed query.
+	 */
+	public static class Entry
+	{
+		private String input, stage, query, plan, error;
+		private long analyzeNanos, reads = -1;
+		private ArrayList<TableAccess> accesses = new ArrayList<TableAccess>();
+		private ArrayList<String> flags = new ArrayList<String>();
+
+		public String getStage()
+		{
+			return stage;
+		}
+
+		public String getPlan()
+		{
+			return plan;
+		}
+
+		public ArrayList<TableAccess> getAccesses()
+		{
+			return accesses;
+		}
+
+		public ArrayList<String> getFlags()
+		{
+			return flags;
+		}
+	}
+
+	private long scanThreshold;
+	private String input;
+	private ArrayList<Entry> entries;
+
+	public QueryDiagnostics(long nScanThreshold)
+	{
+		scanThreshold=nScanThreshold;
+		entries = new ArrayList<Entry>();
+	}
+
+	/**
+	 * The input file of the following queries, in batch mode.
+	 */
+	public synchronized void setInput(String nInput)
+	{
+		input=nInput;
+	}
+
+	/**
+	 * Runs the query with EXPLAIN ANALYZE and records its plan and table accesses. A failed analysis is recorded, not thrown, so that the stage still runs.
+	 */
+	public Entry analyze(Connection connection, String stage, String query)
+	{
+		Entry entry = new Entry();
+		synchronized(this)
+		{
+			entry.input=input;
+		}
+		entry.stage=stage;
+		entry.query=query;
+		long startNanos = System.nanoTime();
+		try
+		{
+			Statement s = connection.createStatement();
+			try
+			{
+				ResultSet rs = s.executeQuery("EXPLAIN ANALYZE "+query);
+				rs.next();
+				entry.plan = rs.getString(1);
+			}
+			finally
+			{
+				s.close();
+			}
+		}
+		catch (SQLException e)
+		{
+			entry.error = e.getMessage();
+		}
+		entry.analyzeNanos = System.nanoTime()-startNanos;
+
+		if(entry.plan!=null)
+		{
+			entry.accesses = parsePlan(entry.plan);
+			Matcher m = readsPattern.matcher(entry.plan);
+			if(m.find())
+				entry.reads = Long.parseLong(m.group(1));
+			for(TableAccess access : entry.accesses)
+			{
+				if(access.scanCount<=scanThreshold)
+					continue;
+				String flag;
+				if(access.isTableScan() && access.joined)
+					flag = "nested loop full scan of ";
+				else if(access.isTableScan())
+					flag = "full scan of ";
+				else if(access.joined)
+					flag = "nested loop on ";
+				else
+					continue;
+				entry.flags.add(flag+access.table+" ("+access.scanCount+" rows scanned"+(access.isTableScan()?"":", "+access.access)+")");
+			}
+			for(String flag : entry.flags)
+				System.out.println("Diagnostics: "+stage+" "+flag);
+		}
+		else
+			System.out.println("Diagnostics: "+stage+" could not be analysed: "+entry.error);
+
+		synchronized(this)
+		{
+			entries.add(entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * The table accesses of an H2 plan, in join order, including those of the views, whose plans are nested in /++ ++/ comments.
+	 */
+	public static ArrayList<TableAccess> parsePlan(String plan)
+	{
+		ArrayList<TableAccess> accesses = new ArrayList<TableAccess>();
+		for(String line : plan.split("\r?\n"))
+		{
+			line = line.replace("/++", "/*").replace("++/", "*/");
+			Matcher m = filterPattern.matcher(line);
+			if(m.matches())
+			{
+				TableAccess access = new TableAccess();
+				access.indent = m.group(1).length();
+				access.joined = !m.group(2).equals("FROM");
+				access.table = m.group(3);
+				accesses.add(access);
+				continue;
+			}
+			m = commentPattern.matcher(line);
+			if(!m.matches())
+				continue;
+			//the comments of a table access are indented under it
+			TableAccess access = null;
+			for(int i=accesses.size()-1; i>=0 && access==null; i--)
+			{
+				if(accesses.get(i).indent==m.group(1).length()-4)
+					access = accesses.get(i);
+			}
+			if(access==null)
+				continue;
+			Matcher scanCount = scanCountPattern.matcher(m.group(2));
+			if(scanCount.matches())
+				access.scanCount = Long.parseLong(scanCount.group(1));
+			else if(access.access==null)
+				access.access = m.group(2).equals("SELECT")?"view":m.group(2);
+		}
+		return accesses;
+	}
+
+	public synchronized int getFlaggedCount()
+	{
+		int flagged = 0;
+		for(Entry entry : entries)
+		{
+			if(!entry.flags.isEmpty())
+				flagged++;
+		}
+		return flagged;
+	}
+
+	public synchronized String getSummary()
+	{
+		return "Diagnostics: "+entries.size()+" queries analysed, "+getFlaggedCount()+" flagged (scan threshold "+scanThreshold+" rows)";
+	}
+
+	/**
+	 * Writes the diagnostics report: the flagged queries, the stages by wall time from the run metrics with their flags, and per query its table accesses and plan.
+	 */
+	public synchronized void write(File file, String version, String engine, int threads, RunMetrics metrics) throws IOException
+	{
+		StringBuilder out = new StringBuilder();
+		out.append("RegionAnnotator ").append(version).append(" query diagnostics\n");
+		out.append("Engine ").append(engine).append(", threads ").append(threads).append(", scan threshold ").append(scanThreshold).append(" rows\n");
+		out.append(entries.size()).append(" queries analysed, ").append(getFlaggedCount()).append(" flagged\n");
+
+		out.append("\nFlagged\n");
+		for(Entry entry : entries)
+		{
+			for(String flag : entry.flags)
+				out.append(label(entry)).append(": ").append(flag).append('\n');
+		}
+
+		out.append("\nStages by wall time\n");
+		out.append("stage\tseconds\trows\tflags\n");
+		ArrayList<RunMetrics.Metric> stages = new ArrayList<RunMetrics.Metric>();
+		for(RunMetrics.Metric metric : metrics.getMetrics())
+		{
+			if(metric.getKind().equals(RunMetrics.kindStage))
+				stages.add(metric);
+		}
+		Collections.sort(stages, new Comparator<RunMetrics.Metric>()
+		{
+			@Override
+			public int compare(RunMetrics.Metric a, RunMetrics.Metric b)
+			{
+				return Long.compare(b.getWallNanos(), a.getWallNanos());
+			}
+		});
+		for(RunMetrics.Metric stage : stages)
+		{
+			int flags = 0;
+			for(Entry entry : entries)
+			{
+				if(entry.stage.equalsIgnoreCase(stage.getName()))
+					flags += entry.flags.size();
+			}
+			out.append(stage.getName()).append('\t').append(stage.getWallNanos()/1E9).append('\t').append(stage.getRows()<0?"NA":Long.toString(stage.getRows())).append('\t').append(flags).append('\n');
+		}
+
+		out.append("\nQueries\n");
+		for(Entry entry : entries)
+		{
+			out.append("\n== ").append(label(entry)).append(", analysed in ").append(entry.analyzeNanos/1E9).append(" seconds");
+			if(entry.reads>=0)
+				out.append(", ").append(entry.reads).append(" page reads");
+			out.append('\n');
+			if(entry.plan==null)
+			{
+				out.append("Analysis failed: ").append(entry.error).append('\n').append(entry.query).append('\n');
+				continue;
+			}
+			out.append("table\taccess\tjoined\trows scanned\n");
+			for(TableAccess access : entry.accesses)
+				out.append(access.table).append('\t').append(access.access).append('\t').append(access.joined?"yes":"no").append('\t').append(access.scanCount<0?"NA":Long.toString(access.scanCount)).append('\n');
+			for(String flag : entry.flags)
+				out.append("FLAG ").append(flag).append('\n');
+			out.append(entry.plan).append('\n');
+		}
+		Files.write(file.toPath(), out.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String label(Entry entry)
+	{
+		return entry.input==null?entry.stage:entry.stage+" ("+entry.input+")";
+	}
+}
@@ -0,0 +1,177 @@
+package org.ki.meb.regionannotator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+/**
+ * Manifest of the loaded reference tables and GENE_MASTER in the database table {@value #tableName}, named without the _ prefix so that it is not taken for a reference table.
+ * Per table it records the source file, a SHA-256 hash of the file content and the load options, the row count and the load time. A reference file only needs to be reloaded if its hash differs from the manifest, or if the table is missing or has another row count.
+ * The hash and the load time are also the load stamp of a table in the reference snapshot, which changes with every load.
+ */
+public class ReferenceManifest
+{
+	public static final String tableName = "REFERENCE_MANIFEST";
+
+	private Connection connection;
+	private String schemaName, path;
+
+	public ReferenceManifest(Connection nConnection, String nSchemaName) throws SQLException
+	{
+		connection=nConnection;
+		schemaName=nSchemaName;
+		path=schemaName+"."+tableName;
+		Statement s = connection.createStatement();
+		try
+		{
+			s.execute("CREATE TABLE IF NOT EXISTS "+path+"(TABLE_NAME VARCHAR PRIMARY KEY, FILE_NAME VARCHAR, FILE_SIZE BIGINT, CONTENT_HASH VARCHAR, ROW_COUNT BIGINT, LOADED_AT TIMESTAMP, LOAD_MILLIS BIGINT)");
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+
+	/**
+	 * The hex SHA-256 hash of the file content followed by the options, so that a reload with other options is not taken as unchanged.
+	 */
+	public static String hash(File file, String options) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IOException("No SHA-256 digest available", e);
+		}
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] buffer = new byte[1<<16];
+			int n;
+			while((n=in.read(buffer))>0)
+				digest.update(buffer, 0, n);
+		}
+		finally
+		{
+			in.close();
+		}
+		digest.update(options.getBytes(StandardCharsets.UTF_8));
+		StringBuilder hex = new StringBuilder();
+		for(byte b : digest.digest())
+			hex.append(String.format("%02x", b&0xff));
+		return hex.toString();
+	}
+
+	/**
+	 * @return true if the manifest has the hash for the table, and the table exists with the recorded row count
+	 */
+	public boolean isCurrent(String referenceTableName, String contentHash) throws SQLException
+	{
+		long rowCount;
+		PreparedStatement ps = connection.prepareStatement("SELECT CONTENT_HASH, ROW_COUNT FROM "+path+" WHERE TABLE_NAME=?");
+		try
+		{
+			ps.setString(1, referenceTableName);
+			ResultSet rs = ps.executeQuery();
+			if(!rs.next() || !contentHash.equals(rs.getString(1)))
+				return false;
+			rowCount = rs.getLong(2);
+		}
+		finally
+		{
+			ps.close();
+		}
+		Long currentRowCount = countRows(referenceTableName);
+		return currentRowCount!=null && currentRowCount==rowCount;
+	}
+
+	/**
+	 * The load stamp of a table: its content hash and load time.
+	 * @return the stamp, or null if the table is not recorded or there is no manifest
+	 */
+	public static String getLoadStamp(Connection connection, String schemaName, String referenceTableName)
+	{
+		try
+		{
+			PreparedStatement ps = connection.prepareStatement("SELECT CONTENT_HASH, LOADED_AT FROM "+schemaName+"."+tableName+" WHERE UPPER(TABLE_NAME)=UPPER(?)");
+			try
+			{
+				ps.setString(1, referenceTableName);
+				ResultSet rs = ps.executeQuery();
+				if(!rs.next() || rs.getTimestamp(2)==null)
+					return null;
+				return rs.getString(1)+"@"+rs.getTimestamp(2).getTime();
+			}
+			finally
+			{
+				ps.close();
+			}
+		}
+		catch (SQLException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Records a loaded table, with its current row count.
+	 */
+	public void record(String referenceTableName, File file, String contentHash, long loadMillis) throws SQLException
+	{
+		Long rowCount = countRows(referenceTableName);
+		PreparedStatement ps = connection.prepareStatement("MERGE INTO "+path+"(TABLE_NAME, FILE_NAME, FILE_SIZE, CONTENT_HASH, ROW_COUNT, LOADED_AT, LOAD_MILLIS) KEY(TABLE_NAME) VALUES(?,?,?,?,?,?,?)");
+		try
+		{
+			ps.setString(1, referenceTableName);
+			ps.setString(2, file.getName());
+			ps.setLong(3, file.length());
+			ps.setString(4, contentHash);
+			ps.setLong(5, rowCount!=null?rowCount:-1);
+			ps.setTimestamp(6, new Timestamp(System.currentTimeMillis()));
+			ps.setLong(7, loadMillis);
+			ps.executeUpdate();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	/**
+	 * @return the row count of the table, or null if there is no such table
+	 */
+	private Long countRows(String referenceTableName)
+	{
+		try
+		{
+			Statement s = connection.createStatement();
+			try
+			{
+				ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM "+schemaName+"."+referenceTableName);
+				rs.next();
+				return rs.getLong(1);
+			}
+			finally
+			{
+				s.close();
+			}
+		}
+		catch (SQLException e)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,782 @@
+package org.ki.meb.regionannotator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import org.jakz.common.ApplicationException;
+
+/**
+ * Compact columnar binary snapshot of GENE_MASTER and the reference tables (_*), memory mapped by the native join engines so that no rows have to be read through SQL.
+ * <p>
+ * Per table, the header holds the load stamp of the table in the {@link ReferenceManifest}, so that a reloaded table is recognised as changed. The rows are sorted by chr and bp1 (bp2 if bp1 is null), with rows lacking chr or both bp1 and bp2 last, and the end points of every row are stored as in {@link RegionTrack}. Every column is stored as a null mask and a fixed width array (int, long or double), or as dictionary codes with an offset table into the UTF-8 dictionary data for strings.
+ * The interval index of each chromosome is stored as its sorted start, end, max end and label (row position) arrays.
+ * All arrays are 8 byte aligned and big endian. A directory of table section offsets is written last, followed by its offset and the magic number.
+ */
+public class ReferenceSnapshot
+{
+	private static final long magic = 0x5241534E41503031L; //RASNAP01
+	private static final int formatVersion = 3;
+	private static final Charset utf8 = Charset.forName("UTF-8");
+	private static final byte kindInt=0, kindLong=1, kindDouble=2, kindString=3;
+
+	public static final String geneMasterName = "GENE_MASTER";
+	public static final String userInputName = "_USER_INPUT";
+
+	private File file;
+	private ByteBuffer buffer;
+	private LinkedHashMap<String, Table> tables;
+
+	private ReferenceSnapshot(File nFile, ByteBuffer nBuffer)
+	{
+		file=nFile;
+		buffer=nBuffer;
+		tables = new LinkedHashMap<String, Table>();
+	}
+
+	/**
+	 * A snapshot table, as views of the mapped file.
+	 */
+	public static class Table
+	{
+		private String name;
+		private String loadStamp;
+		private int rowCount;
+		private String[] columnName;
+		private int[] columnType;
+		private byte[] columnKind;
+		private HashMap<String, Integer> columnIndex;
+		private LongBuffer rowId;
+		private ByteBuffer ends;
+		private ByteBuffer[] nullMask;
+		private IntBuffer[] intData;
+		private LongBuffer[] longData;
+		private DoubleBuffer[] doubleData;
+		private IntBuffer[] dictionaryOffset;
+		private ByteBuffer[] dictionaryData;
+		private IntervalIndex index;
+
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * @return the load stamp of the table when the snapshot was compiled, or null if it was not in the reference manifest
+		 */
+		public String getLoadStamp()
+		{
+			return loadStamp;
+		}
+
+		public int getRowCount()
+		{
+			return rowCount;
+		}
+
+		public int getColumnCount()
+		{
+			return columnName.length;
+		}
+
+		public String getColumnName(int column)
+		{
+			return columnName[column];
+		}
+
+		/**
+		 * @return the java.sql.Types type of the source column
+		 */
+		public int getColumnType(int column)
+		{
+			return columnType[column];
+		}
+
+		/**
+		 * @return the column index of the (upper case) column name, or -1
+		 */
+		public int getColumnIndex(String nColumnName)
+		{
+			Integer i = columnIndex.get(nColumnName.toUpperCase());
+			return i==null?-1:i;
+		}
+
+		public long getRowId(int row)
+		{
+			return rowId.get(row);
+		}
+
+		public boolean isNull(int column, int row)
+		{
+			return nullMask[column].get(row)!=0;
+		}
+
+		public int getInt(int column, int row)
+		{
+			return intData[column].get(row);
+		}
+
+		public long getLong(int column, int row)
+		{
+			return longData[column].get(row);
+		}
+
+		public double getDouble(int column, int row)
+		{
+			return doubleData[column].get(row);
+		}
+
+		/**
+		 * @return the dictionary code of a string value, -1 for null
+		 */
+		public int getStringCode(int column, int row)
+		{
+			return intData[column].get(row);
+		}
+
+		public int getDictionarySize(int column)
+		{
+			return dictionaryOffset[column].limit()-1;
+		}
+
+		public String getDictionaryValue(int column, int code)
+		{
+			if(code<0)
+				return null;
+			int from = dictionaryOffset[column].get(code);
+			int to = dictionaryOffset[column].get(code+1);
+			byte[] b = new byte[to-from];
+			ByteBuffer d = dictionaryData[column].duplicate();
+			d.position(from);
+			d.get(b);
+			return new String(b, utf8);
+		}
+
+		public String getString(int column, int row)
+		{
+			if(isNull(column, row))
+				return null;
+			if(columnKind[column]==kindString)
+				return getDictionaryValue(column, intData[column].get(row));
+			return getValue(column, row).toString();
+		}
+
+		public Object getValue(int column, int row)
+		{
+			if(isNull(column, row))
+				return null;
+			switch(columnKind[column])
+			{
+			case kindInt:
+				return intData[column].get(row);
+			case kindLong:
+				return longData[column].get(row);
+			case kindDouble:
+				return doubleData[column].get(row);
+			default:
+				return getDictionaryValue(column, intData[column].get(row));
+			}
+		}
+
+		public RegionTrack toRegionTrack()
+		{
+			return toRegionTrack(null, null);
+		}
+
+		/**
+		 * A region track (with gene names if there is a GENENAME column) of the rows where the string column equals value, or of all rows if column is null. The track shares the mapped buffers and interval index.
+		 */
+		public RegionTrack toRegionTrack(String column, String value)
+		{
+			int iChr = getColumnIndex("CHR");
+			int iBp1 = getColumnIndex("BP1");
+			int iBp2 = getColumnIndex("BP2");
+			if(iChr<0||iBp1<0||iBp2<0||columnKind[iBp1]!=kindInt||columnKind[iBp2]!=kindInt||columnKind[iChr]!=kindString)
+				return null;
+
+			ByteBuffer trackEnds = ends;
+			if(column!=null)
+			{
+				int iColumn = getColumnIndex(column);
+				trackEnds = ByteBuffer.allocate(rowCount);
+				for(int i=0; i<rowCount; i++)
+				{
+					boolean match = iColumn>=0 && !isNull(iColumn, i) && value.equals(getString(iColumn, i));
+					trackEnds.put(i, match?ends.get(i):RegionTrack.endsNone);
+				}
+			}
+
+			String[] chrName = new String[getDictionarySize(iChr)];
+			for(int i=0; i<chrName.length; i++)
+				chrName[i]=getDictionaryValue(iChr, i);
+
+			IntBuffer geneNameCode = null;
+			String[] geneName = null;
+			int iGeneName = getColumnIndex("GENENAME");
+			if(iGeneName>=0 && columnKind[iGeneName]==kindString)
+			{
+				geneNameCode = intData[iGeneName].duplicate();
+				geneName = new String[getDictionarySize(iGeneName)];
+				for(int i=0; i<geneName.length; i++)
+					geneName[i]=getDictionaryValue(iGeneName, i);
+			}
+
+			return new RegionTrack(name, rowCount, rowId.duplicate(), intData[iChr].duplicate(), chrName, intData[iBp1].duplicate(), intData[iBp2].duplicate(), trackEnds, index, geneNameCode, geneName);
+		}
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public Set<String> getTableNames()
+	{
+		return tables.keySet();
+	}
+
+	/**
+	 * @return the table with the (upper case) name, or null
+	 */
+	public Table getTable(String name)
+	{
+		return tables.get(name.toUpperCase());
+	}
+
+	/**
+	 * Lists GENE_MASTER and the reference tables (_*, except _USER_INPUT) of the schema.
+	 */
+	public static ArrayList<String> listReferenceTables(Connection connection, String schemaName) throws SQLException
+	{
+		ArrayList<String> names = new ArrayList<String>();
+		ResultSet rs = connection.getMetaData().getTables(null, schemaName, null, new String[]{"TABLE"});
+		try
+		{
+			while(rs.next())
+			{
+				String tableName = rs.getString("TABLE_NAME");
+				if(tableName.equals(geneMasterName) || (tableName.startsWith("_") && !tableName.equals(userInputName)))
+					names.add(tableName);
+			}
+		}
+		finally
+		{
+			rs.close();
+		}
+		return names;
+	}
+
+	/**
+	 * Compiles GENE_MASTER and all reference tables of the schema into a snapshot file.
+	 */
+	public static void compile(Connection connection, String schemaName, File file) throws SQLException, IOException
+	{
+		ArrayList<String> names = listReferenceTables(connection, schemaName);
+		File tmp = new File(file.getAbsolutePath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1<<16));
+		try
+		{
+			out.writeLong(magic);
+			out.writeInt(formatVersion);
+			pad(out);
+			long[] offset = new long[names.size()];
+			for(int i=0; i<names.size(); i++)
+			{
+				offset[i]=out.size();
+				writeTable(connection, schemaName, names.get(i), ReferenceManifest.getLoadStamp(connection, schemaName, names.get(i)), out);
+			}
+			long directoryOffset = out.size();
+			out.writeInt(names.size());
+			for(int i=0; i<names.size(); i++)
+			{
+				writeString(out, names.get(i));
+				out.writeLong(offset[i]);
+			}
+			out.writeLong(directoryOffset);
+			out.writeLong(magic);
+		}
+		finally
+		{
+			out.close();
+		}
+		if(file.exists() && !file.delete())
+			throw new IOException("Could not replace the snapshot "+file.getAbsolutePath());
+		if(!tmp.renameTo(file))
+			throw new IOException("Could not rename the snapshot to "+file.getAbsolutePath());
+	}
+
+	private static void writeTable(Connection connection, String schemaName, String tableName, String loadStamp, DataOutputStream out) throws SQLException, IOException
+	{
+		//read the columns into primitive arrays, strings as dictionary codes
+		Statement s = connection.createStatement();
+		int rowCount, columnCount;
+		String[] columnName;
+		int[] columnType;
+		byte[] columnKind;
+		long[] rowId;
+		byte[][] nullMask;
+		int[][] intData;
+		long[][] longData;
+		double[][] doubleData;
+		ArrayList<LinkedHashMap<String, Integer>> dictionary = new ArrayList<LinkedHashMap<String, Integer>>();
+		try
+		{
+			ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM "+schemaName+"."+tableName);
+			rs.next();
+			rowCount = rs.getInt(1);
+			rs.close();
+
+			rs = s.executeQuery("SELECT _ROWID_, * FROM "+schemaName+"."+tableName);
+			ResultSetMetaData md = rs.getMetaData();
+			columnCount = md.getColumnCount()-1;
+			columnName = new String[columnCount];
+			columnType = new int[columnCount];
+			columnKind = new byte[columnCount];
+			rowId = new long[rowCount];
+			nullMask = new byte[columnCount][];
+			intData = new int[columnCount][];
+			longData = new long[columnCount][];
+			doubleData = new double[columnCount][];
+			for(int i=0; i<columnCount; i++)
+			{
+				columnName[i]=md.getColumnLabel(i+2).toUpperCase();
+				columnType[i]=md.getColumnType(i+2);
+				columnKind[i]=kindOf(columnType[i]);
+				nullMask[i] = new byte[rowCount];
+				if(columnKind[i]==kindLong)
+					longData[i] = new long[rowCount];
+				else if(columnKind[i]==kindDouble)
+					doubleData[i] = new double[rowCount];
+				else
+					intData[i] = new int[rowCount];
+				dictionary.add(columnKind[i]==kindString?new LinkedHashMap<String, Integer>():null);
+			}
+			int row = 0;
+			while(rs.next())
+			{
+				if(row==rowCount)
+					throw new SQLException("The table "+tableName+" changed while it was compiled into the snapshot.");
+				rowId[row]=rs.getLong(1);
+				for(int i=0; i<columnCount; i++)
+				{
+					if(columnKind[i]==kindInt)
+						intData[i][row]=rs.getInt(i+2);
+					else if(columnKind[i]==kindLong)
+						longData[i][row]=rs.getLong(i+2);
+					else if(columnKind[i]==kindDouble)
+						doubleData[i][row]=rs.getDouble(i+2);
+					else
+					{
+						String v = rs.getString(i+2);
+						Integer code = -1;
+						if(v!=null)
+						{
+							code = dictionary.get(i).get(v);
+							if(code==null)
+							{
+								code=dictionary.get(i).size();
+								dictionary.get(i).put(v, code);
+							}
+						}
+						intData[i][row]=code;
+					}
+					if(rs.wasNull())
+						nullMask[i][row]=1;
+				}
+				row++;
+			}
+			rs.close();
+			if(row!=rowCount)
+				throw new SQLException("The table "+tableName+" changed while it was compiled into the snapshot.");
+		}
+		finally
+		{
+			s.close();
+		}
+
+		//coordinate columns
+		int iChr = indexOf(columnName, "CHR"), iBp1 = indexOf(columnName, "BP1"), iBp2 = indexOf(columnName, "BP2");
+		boolean region = iChr>=0 && iBp1>=0 && iBp2>=0 && columnKind[iChr]==kindString && columnKind[iBp1]==kindInt && columnKind[iBp2]==kindInt;
+
+		//sort by chr, bp1 (bp2 if bp1 is null) and scan order, with the rows without end points last
+		int[] order = new int[rowCount];
+		if(region)
+		{
+			String[] chrValue = dictionary.get(iChr).keySet().toArray(new String[0]);
+			String[] sortedChrValue = chrValue.clone();
+			Arrays.sort(sortedChrValue);
+			int[] chrRank = new int[chrValue.length];
+			for(int i=0; i<chrValue.length; i++)
+				chrRank[i]=Arrays.binarySearch(sortedChrValue, chrValue[i]);
+
+			//counting sort by chr rank, then by the segment start packed above the scan position within each chr
+			int[] chrStart = new int[chrValue.length+1];
+			int withEnds = 0;
+			for(int i=0; i<rowCount; i++)
+			{
+				if(hasEnds(i, iChr, iBp1, iBp2, nullMask))
+				{
+					chrStart[chrRank[intData[iChr][i]]+1]++;
+					withEnds++;
+				}
+			}
+			for(int i=0; i<chrValue.length; i++)
+				chrStart[i+1]+=chrStart[i];
+			long[] key = new long[withEnds];
+			int[] next = Arrays.copyOf(chrStart, chrValue.length);
+			int last = withEnds;
+			for(int i=0; i<rowCount; i++)
+			{
+				if(hasEnds(i, iChr, iBp1, iBp2, nullMask))
+				{
+					int bp1 = nullMask[iBp1][i]==0?intData[iBp1][i]:intData[iBp2][i];
+					key[next[chrRank[intData[iChr][i]]]++]=((bp1^Integer.MIN_VALUE)&0xffffffffL)<<32|i;
+				}
+				else
+					order[last++]=i;
+			}
+			for(int i=0; i<chrValue.length; i++)
+				Arrays.sort(key, chrStart[i], chrStart[i+1]);
+			for(int i=0; i<withEnds; i++)
+				order[i]=(int)key[i];
+		}
+		else
+		{
+			for(int i=0; i<rowCount; i++)
+				order[i]=i;
+		}
+
+		//chromosome ranges and the interval index, a row with one end point is indexed as that point
+		ArrayList<String> chrName = new ArrayList<String>();
+		IntArrayList chrFrom = new IntArrayList(), chrTo = new IntArrayList();
+		byte[] ends = new byte[rowCount];
+		IntervalIndex index = new IntervalIndex();
+		if(region)
+		{
+			String[] chrValue = dictionary.get(iChr).keySet().toArray(new String[0]);
+			for(int i=0; i<rowCount; i++)
+			{
+				int row = order[i];
+				boolean bp1Null = nullMask[iBp1][row]!=0, bp2Null = nullMask[iBp2][row]!=0;
+				String chr = nullMask[iChr][row]==0?chrValue[intData[iChr][row]]:null;
+				ends[i]=RegionTrack.ends(chr, bp1Null, bp2Null);
+				if(ends[i]==RegionTrack.endsNone)
+					break;
+				if(chrName.isEmpty() || !chrName.get(chrName.size()-1).equals(chr))
+				{
+					if(!chrName.isEmpty())
+						chrTo.add(i);
+					chrName.add(chr);
+					chrFrom.add(i);
+				}
+				int bp1 = intData[iBp1][row], bp2 = intData[iBp2][row];
+				index.add(chr, !bp1Null?bp1:bp2, !bp2Null?bp2:bp1, i);
+			}
+			if(!chrName.isEmpty())
+				chrTo.add(chrFrom.get(chrFrom.size()-1)+index.size(chrName.get(chrName.size()-1)));
+		}
+		index.build();
+
+		//header
+		writeString(out, loadStamp!=null?loadStamp:"");
+		out.writeInt(rowCount);
+		out.writeInt(columnCount);
+		for(int i=0; i<columnCount; i++)
+		{
+			writeString(out, columnName[i]);
+			out.writeInt(columnType[i]);
+			out.writeByte(columnKind[i]);
+		}
+		out.writeInt(chrName.size());
+		for(int i=0; i<chrName.size(); i++)
+		{
+			writeString(out, chrName.get(i));
+			out.writeInt(chrFrom.get(i));
+			out.writeInt(chrTo.get(i));
+			out.writeInt(index.getRootLevel(chrName.get(i)));
+		}
+		pad(out);
+
+		//row ids and end points
+		for(int i=0; i<rowCount; i++)
+			out.writeLong(rowId[order[i]]);
+		out.write(ends);
+		pad(out);
+
+		//columns
+		for(int ic=0; ic<columnCount; ic++)
+		{
+			for(int i=0; i<rowCount; i++)
+				out.writeByte(nullMask[ic][order[i]]);
+			pad(out);
+			if(columnKind[ic]==kindLong)
+			{
+				for(int i=0; i<rowCount; i++)
+					out.writeLong(longData[ic][order[i]]);
+			}
+			else if(columnKind[ic]==kindDouble)
+			{
+				for(int i=0; i<rowCount; i++)
+					out.writeDouble(doubleData[ic][order[i]]);
+			}
+			else
+			{
+				for(int i=0; i<rowCount; i++)
+					out.writeInt(intData[ic][order[i]]);
+			}
+			if(columnKind[ic]==kindString)
+			{
+				pad(out);
+				writeDictionary(out, dictionary.get(ic).keySet());
+			}
+			pad(out);
+			//release the written column
+			intData[ic]=null;
+			longData[ic]=null;
+			doubleData[ic]=null;
+		}
+
+		//interval index
+		for(int i=0; i<chrName.size(); i++)
+		{
+			IntBuffer[] b = index.getBuffers(chrName.get(i));
+			for(int ib=0; ib<b.length; ib++)
+			{
+				for(int j=0; j<b[ib].limit(); j++)
+					out.writeInt(b[ib].get(j));
+			}
+			pad(out);
+		}
+	}
+
+	private static boolean hasEnds(int row, int iChr, int iBp1, int iBp2, byte[][] nullMask)
+	{
+		return nullMask[iChr][row]==0 && (nullMask[iBp1][row]==0 || nullMask[iBp2][row]==0);
+	}
+
+	private static void writeDictionary(DataOutputStream out, Set<String> values) throws IOException
+	{
+		ArrayList<byte[]> encoded = new ArrayList<byte[]>(values.size());
+		for(String v : values)
+			encoded.add(v.getBytes(utf8));
+		out.writeInt(encoded.size());
+		int offset = 0;
+		out.writeInt(offset);
+		for(int i=0; i<encoded.size(); i++)
+		{
+			offset+=encoded.get(i).length;
+			out.writeInt(offset);
+		}
+		out.writeInt(offset);
+		for(int i=0; i<encoded.size(); i++)
+			out.write(encoded.get(i));
+	}
+
+	/**
+	 * Memory maps a snapshot file.
+	 */
+	public static ReferenceSnapshot open(File file) throws IOException, ApplicationException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer mapped;
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			if(channel.size()>Integer.MAX_VALUE)
+				throw new ApplicationException("The snapshot "+file.getAbsolutePath()+" is too large to be mapped.");
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		ReferenceSnapshot snapshot = new ReferenceSnapshot(file, mapped);
+		int size = mapped.limit();
+		if(size<32 || mapped.getLong(0)!=magic || mapped.getLong(size-8)!=magic)
+			throw new ApplicationException("The file "+file.getAbsolutePath()+" is not a reference snapshot.");
+		if(mapped.getInt(8)!=formatVersion)
+			throw new ApplicationException("The reference snapshot "+file.getAbsolutePath()+" is of an unsupported version.");
+
+		ByteBuffer b = mapped.duplicate();
+		b.position((int)mapped.getLong(size-16));
+		int tableCount = b.getInt();
+		for(int i=0; i<tableCount; i++)
+		{
+			String tableName = readString(b);
+			long offset = b.getLong();
+			snapshot.tables.put(tableName, readTable(mapped, tableName, (int)offset));
+		}
+		return snapshot;
+	}
+
+	private static Table readTable(ByteBuffer mapped, String tableName, int offset)
+	{
+		ByteBuffer b = mapped.duplicate();
+		b.position(offset);
+		Table t = new Table();
+		t.name=tableName;
+		String loadStamp = readString(b);
+		t.loadStamp=loadStamp.isEmpty()?null:loadStamp;
+		t.rowCount=b.getInt();
+		int columnCount = b.getInt();
+		t.columnName = new String[columnCount];
+		t.columnType = new int[columnCount];
+		t.columnKind = new byte[columnCount];
+		t.columnIndex = new HashMap<String, Integer>();
+		for(int i=0; i<columnCount; i++)
+		{
+			t.columnName[i]=readString(b);
+			t.columnType[i]=b.getInt();
+			t.columnKind[i]=b.get();
+			t.columnIndex.put(t.columnName[i], i);
+		}
+		int chrCount = b.getInt();
+		String[] chrName = new String[chrCount];
+		int[] chrFrom = new int[chrCount], chrTo = new int[chrCount], rootLevel = new int[chrCount];
+		for(int i=0; i<chrCount; i++)
+		{
+			chrName[i]=readString(b);
+			chrFrom[i]=b.getInt();
+			chrTo[i]=b.getInt();
+			rootLevel[i]=b.getInt();
+		}
+		align(b);
+
+		int n = t.rowCount;
+		t.rowId = view(b, n*8).asLongBuffer();
+		t.ends = view(b, n);
+		align(b);
+
+		t.nullMask = new ByteBuffer[columnCount];
+		t.intData = new IntBuffer[columnCount];
+		t.longData = new LongBuffer[columnCount];
+		t.doubleData = new DoubleBuffer[columnCount];
+		t.dictionaryOffset = new IntBuffer[columnCount];
+		t.dictionaryData = new ByteBuffer[columnCount];
+		for(int ic=0; ic<columnCount; ic++)
+		{
+			t.nullMask[ic]=view(b, n);
+			align(b);
+			if(t.columnKind[ic]==kindInt)
+				t.intData[ic]=view(b, n*4).asIntBuffer();
+			else if(t.columnKind[ic]==kindLong)
+				t.longData[ic]=view(b, n*8).asLongBuffer();
+			else if(t.columnKind[ic]==kindDouble)
+				t.doubleData[ic]=view(b, n*8).asDoubleBuffer();
+			else
+			{
+				t.intData[ic]=view(b, n*4).asIntBuffer();
+				align(b);
+				int dictionarySize = b.getInt();
+				t.dictionaryOffset[ic]=view(b, (dictionarySize+1)*4).asIntBuffer();
+				int dataSize = b.getInt();
+				t.dictionaryData[ic]=view(b, dataSize);
+			}
+			align(b);
+		}
+
+		HashMap<String, IntBuffer[]> indexBuffers = new HashMap<String, IntBuffer[]>();
+		HashMap<String, Integer> indexRootLevels = new HashMap<String, Integer>();
+		for(int i=0; i<chrCount; i++)
+		{
+			int size = chrTo[i]-chrFrom[i];
+			IntBuffer[] ib = new IntBuffer[4];
+			for(int j=0; j<4; j++)
+				ib[j]=view(b, size*4).asIntBuffer();
+			align(b);
+			indexBuffers.put(chrName[i], ib);
+			indexRootLevels.put(chrName[i], rootLevel[i]);
+		}
+		t.index = IntervalIndex.wrap(indexBuffers, indexRootLevels);
+		return t;
+	}
+
+	private static byte kindOf(int sqlType)
+	{
+		switch(sqlType)
+		{
+		case Types.INTEGER:
+		case Types.SMALLINT:
+		case Types.TINYINT:
+			return kindInt;
+		case Types.BIGINT:
+			return kindLong;
+		case Types.DOUBLE:
+		case Types.FLOAT:
+		case Types.REAL:
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+			return kindDouble;
+		default:
+			return kindString;
+		}
+	}
+
+	private static int indexOf(String[] names, String name)
+	{
+		for(int i=0; i<names.length; i++)
+		{
+			if(names[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] b = s.getBytes(utf8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(ByteBuffer b)
+	{
+		byte[] s = new byte[b.getInt()];
+		b.get(s);
+		return new String(s, utf8);
+	}
+
+	private static void pad(DataOutputStream out) throws IOException
+	{
+		while(out.size()%8!=0)
+			out.writeByte(0);
+	}
+
+	private static void align(ByteBuffer b)
+	{
+		b.position((b.position()+7)&~7);
+	}
+
+	/**
+	 * A view of the next length bytes, advancing the position.
+	 */
+	private static ByteBuffer view(ByteBuffer b, int length)
+	{
+		ByteBuffer d = b.duplicate();
+		d.limit(d.position()+length);
+		ByteBuffer v = d.slice();
+		b.position(b.position()+length);
+		return v;
+	}
+}
@@ -3,8 +3,24 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -21,9 +37,11 @@ import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.DateUtil;
 import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFCell;
 import org.apache.poi.xssf.usermodel.XSSFCellStyle;
-import org.apache.poi.xssf.usermodel.XSSFRow;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.jakz.common.JSONObject;
@@ -52,17 +70,43 @@ public class RegionAnnotator
 	private static String clInputFormat = "iformat";
 	private static String clOutputFormat = "oformat";
 	private static String clOverwrite = "overwrite";
+	private static String clBulk = "bulk";
+	private static String clOutputCompress = "ocompress";
 	private static String clOperate= "operate";
 	private static String clTimeout = "timeout";
 	private static String clDatabaseLocation = "db";
 	private static String clConfigFile = "config";
 	private static String clTemplate = "template";
+	private static String clEngine = "engine";
+	private static String clThreads = "threads";
+	private static String clDatabaseMultiThreaded = "dbmultithreaded";
+	private static String clBatch = "batch";
+	private static String clServer = TextMap.server;
+	private static String clClient = TextMap.client;
+	private static String clBenchmark = "benchmark";
+	private static String clDiagnostics = "diagnostics";
 	
 	private static String confInputfolderpath = clInputFileFolder;
 	private static String confOutputfolderpath = clOutputFileFolder;
 	private static String confTempfolderpath = "temp";
 	private static String confDatabaseCacheSizeKb = "dbcachesizekb";
 	
+	private static final int proteinCodingMaxDistance = StageQueries.proteinCodingMaxDistance;
+	private static final long proteinCodingExpansion = StageQueries.proteinCodingExpansion;
+	private static final int excelRowWindow = 1000;
+	private static final String defaultBenchmarkSizes = "1000,10000,100000";
+	private static final String[] resultDatasetName = new String[]{"user_input", "protein_coding_genes", "gwas_catalog", "omim", "psychiatric_cnvs", "asd_genes", "id_devdelay_genes", "mouse_knockout"};
+	private static final String[] nativeLinkName = new String[]{NativeOperator.proteinCodingGenesName, "GWAS_CATALOG", "PSYCHIATRIC_CNVS", "OMIM", "ASD_GENES", "ID_DEVDELAY_GENES", "MOUSE_KNOCKOUT"};
+	private static final String runSummarySuffix = "_metrics.json";
+	private static final String diagnosticsSuffix = "_diagnostics.txt";
+	private static final String proteinCodingGeneColumns = StageQueries.proteinCodingGeneColumns;
+	private static final String gwasCatalogColumns = StageQueries.gwasCatalogColumns;
+	private static final String omimColumns = StageQueries.omimColumns;
+	private static final String psychiatricCnvsColumns = StageQueries.psychiatricCnvsColumns;
+	private static final String asdGenesColumns = StageQueries.asdGenesColumns;
+	private static final String idDevdelayGenesColumns = StageQueries.idDevdelayGenesColumns;
+	private static final String mouseKnockoutColumns = StageQueries.mouseKnockoutColumns;
+	
 	
 	
 	private CommandLine commandLine;
@@ -70,15 +114,28 @@ public class RegionAnnotator
 	
 	private static Options clOptions = new Options();
 	
-	private File settingConfigFile, settingInputFileFolder, settingOutputFileFolder, settingDBFolder, settingTempFolder, settingDocumentationTemplate;
+	private File settingConfigFile, settingInputFileFolder, settingOutputFileFolder, settingDBFolder, settingTempFolder, settingDocumentationTemplate, settingBatch;
 	private CustomFormatter.IOType settingInputFormat, settingOutputFormat;
-	private boolean settingReference, settingGene, settingOverwriteExistingTables, settingFirstRowVariableNames;
-	private Integer settingDBCacheSizeKB;
+	private Engine settingEngine;
+	private boolean settingReference, settingGene, settingOverwriteExistingTables, settingFirstRowVariableNames, settingInputGff3, settingBulk, settingStreamingExport, settingOutputCompress, settingDatabaseMultiThreaded;
+	private Integer settingDBCacheSizeKB, settingThreads, settingServerPort;
 	private DataCache dataCache;
-	private FilenameFilter filterExcelXlsx, filterCSV, filterTSV, filterJSON;
+	private FilenameFilter filterExcelXlsx, filterCSV, filterTSV, filterJSON, filterGff3;
 	private DataEntry referenceEntryTemplate, linkEntryTemplate, reducedLinkEntryTemplate;
 	private IndexedMap<String, DataEntry> entryTemplate;
 	private IndexedMap<String,XSSFCellStyle> excelStyle;
+	private NativeOperator batchNativeOperator;
+	private IndexPlanner indexPlanner;
+	private int referenceTablesLoaded;
+	private int[] settingBenchmarkSizes;
+	private StageScheduler operationScheduler;
+	private RunMetrics runMetrics;
+	private QueryDiagnostics queryDiagnostics;
+	
+	/**
+	 * Join engine for the protein coding and overlap operations. SQL joins in the database, or NATIVE in-memory index joins that write row id pair tables.
+	 */
+	public enum Engine {SQL, NATIVE}
 	
 	static
 	{
@@ -94,12 +151,22 @@ public class RegionAnnotator
 		clOptions.addOption(clGetall,false,"Output all database content.");
 		
 		clOptions.addOption(Option.builder(clOutputFormat).hasArg().argName("format - DATACACHE,EXCEL,CSV,TSV").desc("Force output format.").build());
-		clOptions.addOption(Option.builder(clInputFormat).hasArg().argName("format - DATACACHE,EXCEL,CSV,TSV").desc("Force input format.").build());
+		clOptions.addOption(Option.builder(clInputFormat).hasArg().argName("format - DATACACHE,EXCEL,CSV,TSV,GFF3").desc("Force input format. GFF3 (GENCODE, plain or gzipped) is for gene data, and is also recognised by the .gff3 and .gff3.gz file name suffixes. Gzipped and bgzipped input files (.gz, .bgz) are decompressed while reading, and their format recognised by the suffix before it.").build());
 		clOptions.addOption(Option.builder(clOverwrite).hasArg().argName("true/false").desc("Overwrite existing tables with the same names. Default - true.").build());
+		clOptions.addOption(Option.builder(clBulk).hasArg().argName("true/false").desc("Load TSV and CSV input with column names with the bulk loader, streaming the rows into the database in batches. Default - true.").build());
+		clOptions.addOption(Option.builder(clOutputCompress).hasArg().argName("true/false").desc("Write the TSV, CSV and JSON output files block gzipped (BGZF, readable by gunzip, zcat and bgzip) with the .gz suffix, the blocks compressed on the -"+clThreads+" threads. Default - true for an output file name ending with .gz or .bgz, else false.").build());
 		clOptions.addOption(Option.builder(clOperate).hasArg().argName("true/false").desc("Perform operation specifics or not. Default - true.").build());
 		clOptions.addOption(Option.builder(clTimeout).hasArg().argName("time limit in milliseconds").desc("Database connection timeout. Default 30000 milliseconds.").build());
 		clOptions.addOption(Option.builder(clDatabaseLocation).hasArg().argName("folder path").desc("Database location.").build());
 		clOptions.addOption(Option.builder(clConfigFile).hasArg().argName("file path").desc("Config file.").build());
+		clOptions.addOption(Option.builder(clEngine).hasArg().argName("engine - SQL,NATIVE").desc("Join engine for the protein coding and overlap operations. Default - SQL.").build());
+		clOptions.addOption(Option.builder(clDatabaseMultiThreaded).hasArg().argName("true/false").desc("Set the database to the multi threaded mode while the stages run on the -"+clThreads+" threads, so that the stage queries run in parallel instead of one at a time. The mode is experimental in H2 1.4 with the MVStore. Default - false.").build());
+		clOptions.addOption(Option.builder(clThreads).hasArg().argName("number of threads").desc("Number of threads of the operations, running independent stages concurrently and, with the NATIVE engine, the chromosome partitions of the user input, and of the block gzip (BGZF) decompression of the input and compression of the output. Default - 1.").build());
+		clOptions.addOption(Option.builder(clBatch).hasArg().argName("folder/file path").desc("Annotate every input file of the specified folder, or listed in the specified manifest file (one path per line), separately in one database session. One output per input file.").build());
+		clOptions.addOption(Option.builder(clServer).hasArg().argName("port").desc("Run as an annotation server on the specified local port, with the reference data loaded once. Regions posted as TSV to /annotate are annotated with the NATIVE engine and returned as TSV, or JSON with ?format=json.").build());
+		clOptions.addOption(Option.builder(clBenchmark).hasArg().optionalArg(true).argName("region counts").desc("Benchmark the whole run on synthetic user inputs of the specified comma separated region counts, in a scratch database loaded with inputGene and inputReference. Writes benchmark_report.json and benchmark_report.tsv. Default - "+defaultBenchmarkSizes+".").build());
+		clOptions.addOption(Option.builder(clDiagnostics).hasArg().optionalArg(true).argName("scan row threshold").desc("Analyse every stage query with EXPLAIN ANALYZE before running it, and flag the full table scans and nested loop joins scanning more rows than the threshold. Writes the plans and flags to a diagnostics file next to the output. Default - "+QueryDiagnostics.defaultScanThreshold+".").build());
+		clOptions.addOption(Option.builder(clClient).hasArg().argName("server url").desc("Send the input file to the annotation server at the specified url, e.g. http://localhost:8080, and write the annotations to the output. JSON with the DATACACHE output format, else TSV.").build());
 	}
 
 	public RegionAnnotator()
@@ -120,7 +187,7 @@ public class RegionAnnotator
 			@Override
 			public boolean accept(File dir, String name) 
 			{
-				return name.toLowerCase().matches("^.+\\.csv$");
+				return CompressedFiles.stripSuffix(name).toLowerCase().matches("^.+\\.csv$");
 			}
 		};
 		
@@ -129,7 +196,7 @@ public class RegionAnnotator
 			@Override
 			public boolean accept(File dir, String name) 
 			{
-				return name.toLowerCase().matches("^.+\\.tsv$");
+				return CompressedFiles.stripSuffix(name).toLowerCase().matches("^.+\\.tsv$");
 			}
 		};
 		
@@ -138,7 +205,16 @@ public class RegionAnnotator
 			@Override
 			public boolean accept(File dir, String name) 
 			{
-				return name.toLowerCase().matches("^.+\\.json$");
+				return CompressedFiles.stripSuffix(name).toLowerCase().matches("^.+\\.json$") && !name.endsWith(runSummarySuffix);
+			}
+		};
+		
+		filterGff3= new FilenameFilter() 
+		{
+			@Override
+			public boolean accept(File dir, String name) 
+			{
+				return GeneMasterLoader.isGff3(new File(dir, name));
 			}
 		};
 	}
@@ -200,22 +276,48 @@ public class RegionAnnotator
 			}
 		}
 		
+		if(commandLine.hasOption(clBatch))
+		{
+			settingBatch=new File(commandLine.getOptionValue(clBatch)).getAbsoluteFile();
+			if(!settingBatch.exists())
+				throw new ApplicationException("Batch error. Provided ["+settingBatch+"] does not exist.");
+			if(commandLine.hasOption(clInputFileFolder)||commandLine.hasOption(clReference)||commandLine.hasOption(clGene))
+				throw new ApplicationException("Batch error. The batch mode can't be combined with the -"+clInputFileFolder+", -"+clReference+" or -"+clGene+" options.");
+			
+			//force output settings, the output folder holds one output per input file
+			if(settingBatch.isDirectory())
+				settingOutputFileFolder=settingBatch;
+			else
+				settingOutputFileFolder=settingBatch.getParentFile();
+		}
+		
 		if(commandLine.hasOption(clOutputFileFolder))
 		{
 			settingOutputFileFolder=new File(commandLine.getOptionValue(clOutputFileFolder));
+			if(settingBatch!=null && !settingOutputFileFolder.isDirectory() && !settingOutputFileFolder.mkdirs())
+				throw new ApplicationException("Batch error. The output ["+settingOutputFileFolder+"] is not a folder.");
 		}
 		
 		
 		if(commandLine.hasOption(clInputFormat))
 		{
 			String ov = commandLine.getOptionValue(clInputFormat).trim().toUpperCase();
-			try
+			if(ov.equals("GFF3"))
 			{
-				settingInputFormat=IOType.valueOf(ov);
+				if(!commandLine.hasOption(clGene))
+					throw new ApplicationException("Input format error. Provided [GFF3] is for gene data only, with the -"+clGene+" option.");
+				settingInputGff3=true;
 			}
-			catch (Exception e)
+			else
 			{
-				throw new ApplicationException("Input format error. Provided ["+ov+"]",e);
+				try
+				{
+					settingInputFormat=IOType.valueOf(ov);
+				}
+				catch (Exception e)
+				{
+					throw new ApplicationException("Input format error. Provided ["+ov+"]",e);
+				}
 			}
 		}
 		
@@ -232,6 +334,95 @@ public class RegionAnnotator
 			}
 		}
 		
+		settingEngine=Engine.SQL;
+		if(commandLine.hasOption(clEngine))
+		{
+			String ov = commandLine.getOptionValue(clEngine).trim().toUpperCase();
+			try
+			{
+				settingEngine=Engine.valueOf(ov);
+			}
+			catch (Exception e)
+			{
+				throw new ApplicationException("Engine error. Provided ["+ov+"]",e);
+			}
+		}
+		
+		settingThreads=1;
+		if(commandLine.hasOption(clThreads))
+		{
+			String ov = commandLine.getOptionValue(clThreads).trim();
+			try
+			{
+				settingThreads=Integer.parseInt(ov);
+			}
+			catch (Exception e)
+			{
+				throw new ApplicationException("Threads error. Provided ["+ov+"]",e);
+			}
+			if(settingThreads<1)
+				throw new ApplicationException("Threads error. Provided ["+ov+"]");
+		}
+		
+		if(commandLine.hasOption(clServer))
+		{
+			String ov = commandLine.getOptionValue(clServer).trim();
+			try
+			{
+				settingServerPort=Integer.parseInt(ov);
+			}
+			catch (Exception e)
+			{
+				throw new ApplicationException("Server error. Provided ["+ov+"]",e);
+			}
+			if(settingServerPort<0 || settingServerPort>65535)
+				throw new ApplicationException("Server error. Provided ["+ov+"]");
+		}
+		
+		if(commandLine.hasOption(clClient) && (!commandLine.hasOption(clInputFileFolder) || !settingInputFileFolder.isFile()))
+			throw new ApplicationException("Client error. An input file is needed.");
+		
+		if(commandLine.hasOption(clBenchmark))
+		{
+			String ov = commandLine.getOptionValue(clBenchmark, defaultBenchmarkSizes).trim();
+			try
+			{
+				String[] size = ov.split(",");
+				settingBenchmarkSizes = new int[size.length];
+				for(int i=0; i<size.length; i++)
+					settingBenchmarkSizes[i]=Integer.parseInt(size[i].trim());
+			}
+			catch (Exception e)
+			{
+				throw new ApplicationException("Benchmark error. Provided ["+ov+"]",e);
+			}
+			for(int size : settingBenchmarkSizes)
+			{
+				if(size<1)
+					throw new ApplicationException("Benchmark error. Provided ["+ov+"]");
+			}
+			if(commandLine.hasOption(clInputFileFolder)||commandLine.hasOption(clReference)||commandLine.hasOption(clGene)||commandLine.hasOption(clBatch)||commandLine.hasOption(clServer)||commandLine.hasOption(clClient)||commandLine.hasOption(clGet)||commandLine.hasOption(clGetall))
+				throw new ApplicationException("Benchmark error. The benchmark mode can't be combined with the -"+clInputFileFolder+", -"+clReference+", -"+clGene+", -"+clBatch+", -"+clServer+", -"+clClient+", -"+clGet+" or -"+clGetall+" options.");
+		}
+		
+		if(commandLine.hasOption(clDiagnostics))
+		{
+			String ov = commandLine.getOptionValue(clDiagnostics, Long.toString(QueryDiagnostics.defaultScanThreshold)).trim();
+			long scanThreshold;
+			try
+			{
+				scanThreshold=Long.parseLong(ov);
+			}
+			catch (Exception e)
+			{
+				throw new ApplicationException("Diagnostics error. Provided ["+ov+"]",e);
+			}
+			if(scanThreshold<0)
+				throw new ApplicationException("Diagnostics error. Provided ["+ov+"]");
+			if(commandLine.hasOption(clServer)||commandLine.hasOption(clClient)||commandLine.hasOption(clBenchmark))
+				throw new ApplicationException("Diagnostics error. The diagnostics mode can't be combined with the -"+clServer+", -"+clClient+" or -"+clBenchmark+" options.");
+			queryDiagnostics = new QueryDiagnostics(scanThreshold);
+		}
 		
 		if(settingDBCacheSizeKB==null)
 			settingDBCacheSizeKB=2000000;
@@ -246,6 +437,19 @@ public class RegionAnnotator
 			settingDBFolder=new File(commandLine.getOptionValue(clDatabaseLocation));
 		}
 		
+		if(settingBenchmarkSizes!=null)
+		{
+			//a scratch database in the database location, deleted after the benchmark
+			try
+			{
+				settingDBFolder=Files.createTempDirectory(settingDBFolder.getAbsoluteFile().toPath(), "benchmark").toFile();
+			}
+			catch (IOException e)
+			{
+				throw new ApplicationException("Benchmark error. Provided ["+settingDBFolder.getAbsolutePath()+"] can't hold the scratch database.",e);
+			}
+		}
+		
 		//dataCache=new DataCache("./RegionAnnotator");
 		String path = settingDBFolder.getAbsolutePath()+File.separator+"RegionAnnotator";
 		dataCache=new DataCache(path);
@@ -273,11 +477,32 @@ public class RegionAnnotator
 			settingOverwriteExistingTables=Boolean.parseBoolean(commandLine.getOptionValue(clOverwrite));
 		}
 		
+		settingBulk=true;
+		if(commandLine.hasOption(clBulk))
+		{
+			settingBulk=Boolean.parseBoolean(commandLine.getOptionValue(clBulk));
+		}
+		
+		settingDatabaseMultiThreaded=false;
+		if(commandLine.hasOption(clDatabaseMultiThreaded))
+		{
+			settingDatabaseMultiThreaded=Boolean.parseBoolean(commandLine.getOptionValue(clDatabaseMultiThreaded));
+		}
+		
+		settingOutputCompress=CompressedFiles.stripSuffix(settingOutputFileFolder.getName()).length()<settingOutputFileFolder.getName().length();
+		if(commandLine.hasOption(clOutputCompress))
+		{
+			settingOutputCompress=Boolean.parseBoolean(commandLine.getOptionValue(clOutputCompress));
+		}
+		
 		if(commandLine.hasOption(clTimeout))
 		{
 			dataCache.setConnectionTimeoutMilliseconds(Long.parseLong(commandLine.getOptionValue(clTimeout)));
 		}
 		
+		//TSV and CSV result datasets are streamed from views to the per dataset files of the output folder, unless the tables are asked for
+		settingStreamingExport = (settingOutputFormat==IOType.TSV||settingOutputFormat==IOType.CSV) && !commandLine.hasOption(clGet) && !commandLine.hasOption(clGetall) && settingBenchmarkSizes==null && settingServerPort==null && (settingBatch!=null||settingOutputFileFolder.isDirectory());
+		
 		//tempfiles - for poi
 		//redirect temp to output
 		if(settingOutputFileFolder.isDirectory())
@@ -546,24 +771,101 @@ public class RegionAnnotator
 		
 		init();
 		
+		if(commandLine.hasOption(clClient))
+		{
+			runClient();
+			System.out.println("THE END");
+			return this;
+		}
+		
 		System.out.println("Waiting for database connection...");
 		dataCache.createCacheConnectionEmbedded();
 		System.out.println("Database connected");
 		dataCache.setDBCacheSizeKB(settingDBCacheSizeKB);
 		dataCache.commit();
 		
+		runMetrics = new RunMetrics();
+		runMetrics.addFlightRecorderListener();
+		if(settingServerPort==null)
+			runMetrics.enableStatementCounting(dataCache.getConnection());
 		
-		inputDataFromFiles();
-		operate();
-		outputDataToFiles();
+		if(settingBatch!=null)
+		{
+			runBatch();
+			writeRunSummary();
+			writeDiagnostics();
+		}
+		else if(settingBenchmarkSizes!=null)
+			runBenchmark();
+		else if(settingServerPort!=null)
+			runServer();
+		else
+		{
+			inputDataFromFiles();
+			operate();
+			outputDataToFiles();
+			writeRunSummary();
+			writeDiagnostics();
+		}
 		
 		dataCache.shutdownCacheConnection();
+		if(settingBenchmarkSizes!=null)
+			deleteFiles(settingDBFolder);
 		
 		System.out.println("THE END");
 		return this;
 	}
 	
 	
+	/**
+	 * The file name without its extension and a .gz or .bgz suffix.
+	 */
+	private static String getBaseName(File file)
+	{
+		String filename = CompressedFiles.stripSuffix(file.getName());
+		if(filename.indexOf('.')>=0)
+			filename = filename.substring(0,filename.lastIndexOf("."));
+		return filename;
+	}
+	
+	/**
+	 * A file of the run next to the output: &lt;output file name&gt;&lt;suffix&gt;, or run&lt;suffix&gt; in the output folder, or in the database folder if there is no output.
+	 */
+	private File getRunFile(String suffix)
+	{
+		boolean output = false;
+		for(RunMetrics.Metric metric : runMetrics.getMetrics())
+			output|=metric.getKind().equals(RunMetrics.kindOutput);
+		
+		if(!output)
+			return new File(settingDBFolder.getAbsoluteFile(), "run"+suffix);
+		if(settingOutputFileFolder.isDirectory())
+			return new File(settingOutputFileFolder, "run"+suffix);
+		return new File(settingOutputFileFolder.getAbsoluteFile().getParentFile(), getBaseName(settingOutputFileFolder)+suffix);
+	}
+	
+	/**
+	 * Writes the run metrics as JSON next to the output.
+	 */
+	private void writeRunSummary() throws IOException
+	{
+		File summaryFile = getRunFile(runSummarySuffix);
+		runMetrics.writeJSON(summaryFile, version, settingEngine.toString(), settingThreads);
+		System.out.println("Run metrics written to "+summaryFile.getAbsolutePath());
+	}
+	
+	/**
+	 * Writes the query diagnostics next to the output, in the diagnostics mode.
+	 */
+	private void writeDiagnostics() throws IOException
+	{
+		if(queryDiagnostics==null)
+			return;
+		File diagnosticsFile = getRunFile(diagnosticsSuffix);
+		queryDiagnostics.write(diagnosticsFile, version, settingEngine.toString(), settingThreads, runMetrics);
+		System.out.println("Query diagnostics written to "+diagnosticsFile.getAbsolutePath());
+	}
+	
 	//always to standard output
 	private void printHelp()
 	{
@@ -584,7 +886,7 @@ public class RegionAnnotator
 	private void inputDataFromFiles() throws ApplicationException, Exception
 	{
 		
-		if(!commandLine.hasOption(clInputFileFolder))
+		if(!commandLine.hasOption(clInputFileFolder) && settingBenchmarkSizes==null)
 			return;
 			
 		CustomFormatter inputReader = new CustomFormatter().setDataCache(dataCache).setOverwriteExistingTables(settingOverwriteExistingTables).setFirstRowVariableNames(settingFirstRowVariableNames);
@@ -600,39 +902,49 @@ public class RegionAnnotator
 			currentEntryTemplate=entryTemplate.getValue("_USER_INPUT"); //for standard input
 		
 		inputReader.setPath(currentEntryTemplate.path);
+		referenceTablesLoaded=0;
 		
 		if(settingInputFileFolder.isFile())
 		{
-			 inputDataFromFile(settingInputFileFolder, settingInputFormat, inputReader, currentEntryTemplate);
+			 inputDataFromFile(dataCache, settingInputFileFolder, settingInputFormat, inputReader, currentEntryTemplate);
 		}
 		else if(settingInputFileFolder.isDirectory())
 		{
 			
 			//import all files in input
-			if(settingInputFormat==null)
+			if(settingInputFormat==null && !settingInputGff3)
 			{
 				File[] inputFilesJSON = settingInputFileFolder.listFiles(filterJSON);
 				for(int iFile=0; iFile<inputFilesJSON.length; iFile++)
 				{
-					inputDataFromFile(inputFilesJSON[iFile], IOType.DATACACHE, inputReader, currentEntryTemplate);
+					inputDataFromFile(dataCache, inputFilesJSON[iFile], IOType.DATACACHE, inputReader, currentEntryTemplate);
 				}
 				
 				File[] inputFilesCsv = settingInputFileFolder.listFiles(filterCSV);
 				for(int iFile=0; iFile<inputFilesCsv.length; iFile++)
 				{
-					inputDataFromFile(inputFilesCsv[iFile], IOType.CSV, inputReader, currentEntryTemplate);
+					inputDataFromFile(dataCache, inputFilesCsv[iFile], IOType.CSV, inputReader, currentEntryTemplate);
 				}
 				
 				File[] inputFilesTsv = settingInputFileFolder.listFiles(filterTSV);
 				for(int iFile=0; iFile<inputFilesTsv.length; iFile++)
 				{
-					inputDataFromFile(inputFilesTsv[iFile], IOType.TSV, inputReader, currentEntryTemplate);
+					inputDataFromFile(dataCache, inputFilesTsv[iFile], IOType.TSV, inputReader, currentEntryTemplate);
 				}
 				
 				File[] inputFilesXlsx = settingInputFileFolder.listFiles(filterExcelXlsx);
 				for(int iFile=0; iFile<inputFilesXlsx.length; iFile++)
 				{
-					inputDataFromFile(inputFilesXlsx[iFile], IOType.EXCEL, inputReader, currentEntryTemplate);
+					inputDataFromFile(dataCache, inputFilesXlsx[iFile], IOType.EXCEL, inputReader, currentEntryTemplate);
+				}
+				
+				if(settingGene)
+				{
+					File[] inputFilesGff3 = settingInputFileFolder.listFiles(filterGff3);
+					for(int iFile=0; iFile<inputFilesGff3.length; iFile++)
+					{
+						inputDataFromFile(dataCache, inputFilesGff3[iFile], null, inputReader, currentEntryTemplate);
+					}
 				}
 			}
 			else
@@ -642,7 +954,7 @@ public class RegionAnnotator
 				{
 					try 
 					{
-						inputDataFromFile(inputFiles[iFile], settingInputFormat, inputReader, currentEntryTemplate);
+						inputDataFromFile(dataCache, inputFiles[iFile], settingInputFormat, inputReader, currentEntryTemplate);
 					}
 					catch (Exception e)
 					{
@@ -655,171 +967,684 @@ public class RegionAnnotator
 		else throw new ApplicationException("Wrong type of input; it is not a file nor a directory.");
 		
 		dataCache.commit();
+		
+		//the snapshot is kept if no reference table was reloaded
+		if(settingGene||(settingReference&&(referenceTablesLoaded>0||!getReferenceSnapshotFile().exists())))
+			compileReferenceSnapshot();
 	}
 	
-	private void inputDataFromFile(File inputFile, IOType usedInputFormat, CustomFormatter inputReader, DataEntry currentEntryTemplate) throws InvalidFormatException, IOException, ApplicationException, SQLException
+	/**
+	 * Serves annotations until a shutdown request. The reference tracks are indexed and the output columns of the reference tables are read once, at start.
+	 */
+	private void runServer() throws Exception
 	{
-		if(inputFile.isDirectory())
-			throw new ApplicationException("Can't input data from directory.");
+		String schemaName = "PUBLIC";
+		System.out.println("Loading reference data...");
+		AnnotationServer server = new AnnotationServer(createNativeOperator(dataCache, schemaName));
+		Connection connection = dataCache.getConnection();
+		server.loadGeneColumns(connection, schemaName, "GENE_MASTER", "g.ttype='protein_coding'", proteinCodingGeneColumns);
+		server.addDataset("protein_coding_genes", NativeOperator.proteinCodingGenesName, connection, schemaName, null, null);
+		server.addDataset("gwas_catalog", "GWAS_CATALOG", connection, schemaName, "_gwas_catalog", gwasCatalogColumns);
+		server.addDataset("omim", "OMIM", connection, schemaName, "_omim", omimColumns);
+		server.addDataset("psychiatric_cnvs", "PSYCHIATRIC_CNVS", connection, schemaName, "_psychiatric_cnvs", psychiatricCnvsColumns);
+		server.addDataset("asd_genes", "ASD_GENES", connection, schemaName, "_asd_genes", asdGenesColumns);
+		server.addDataset("id_devdelay_genes", "ID_DEVDELAY_GENES", connection, schemaName, "_id_devdelay_genes", idDevdelayGenesColumns);
+		server.addDataset("mouse_knockout", "MOUSE_KNOCKOUT", connection, schemaName, "_mouse_knockout", mouseKnockoutColumns);
+		printTimeMeasure();
+		System.out.println("Reference data loaded");
 		
-		if(usedInputFormat==null)
+		server.start(settingServerPort, settingThreads);
+		System.out.println("Annotation server listening on http://localhost:"+server.getPort()+AnnotationServer.pathAnnotate+" ("+settingThreads+" threads). Stop with a POST to "+AnnotationServer.pathShutdown);
+		server.awaitShutdown();
+		System.out.println("Annotation server stopped");
+	}
+	
+	/**
+	 * Sends the input file to the annotation server, and writes the annotations next to it, or to the output file.
+	 */
+	private void runClient() throws Exception
+	{
+		boolean json = settingOutputFormat==IOType.DATACACHE;
+		File outputFile = settingOutputFileFolder;
+		if(outputFile.isDirectory())
 		{
-			if(inputFile.getName().toLowerCase().matches("^.+\\.xlsx$"))
-			{
-				usedInputFormat=IOType.EXCEL;
-			}
-			else if(inputFile.getName().toLowerCase().matches("^.+\\.csv$"))
-			{
-				usedInputFormat=IOType.CSV;
-			}
-			else if(inputFile.getName().toLowerCase().matches("^.+\\.tsv$"))
-			{
-				usedInputFormat=IOType.TSV;
-			}
-			else if(inputFile.getName().toLowerCase().matches("^.+\\.json$"))
-			{
-				usedInputFormat=IOType.DATACACHE;
-			}
+			outputFile = new File(outputFile, getBaseName(settingInputFileFolder)+"_out"+(json?".json":".tsv")+(settingOutputCompress?".gz":""));
 		}
 		
-		DataEntry currentEntry = currentEntryTemplate.copy();
-		if(settingGene)
+		AnnotationClient client = new AnnotationClient(commandLine.getOptionValue(clClient));
+		if(settingOutputCompress)
+			client.setCompressionThreads(settingThreads);
+		client.send(settingInputFileFolder, outputFile, json);
+		System.out.println("Annotations written to "+outputFile.getAbsolutePath()+" (server "+client.getServerMillis()+" ms, round trip "+client.getRoundTripMillis()+" ms)");
+	}
+	
+	/**
+	 * Annotates every batch input file separately, against the reference data of the open database session, with one output per input file.
+	 * The next input file is read on a separate connection while the output of the current one is written, as the output only reads the operation result tables.
+	 */
+	private void runBatch() throws Exception
+	{
+		ArrayList<File> inputFiles = listBatchInputFiles();
+		System.out.println("Batch of "+inputFiles.size()+" input files");
+		File outputFolder = settingOutputFileFolder;
+		
+		StageScheduler.CacheFactory cacheFactory = createCacheFactory();
+		DataCache readerCache = cacheFactory.open();
+		CustomFormatter inputReader = new CustomFormatter().setDataCache(readerCache).setOverwriteExistingTables(settingOverwriteExistingTables).setFirstRowVariableNames(settingFirstRowVariableNames);
+		DataEntry currentEntryTemplate = entryTemplate.getValue("_USER_INPUT");
+		inputReader.setPath(currentEntryTemplate.path);
+		ExecutorService reader = Executors.newSingleThreadExecutor();
+		int failed = 0;
+		try
 		{
-			inputReader.setInputType(usedInputFormat).setInputFile(inputFile).read(currentEntry);
-			for(int i=0; i<currentEntryTemplate.namemap.size(); i++)
+			Future<Void> read = readBatchInput(reader, readerCache, inputReader, currentEntryTemplate, inputFiles.get(0));
+			for(int iFile=0; iFile<inputFiles.size(); iFile++)
 			{
-				dataCache.index(currentEntry.path, currentEntryTemplate.namemap.getKeyAt(i));
+				File inputFile = inputFiles.get(iFile);
+				Future<Void> nextRead = null;
+				printTimeMeasure();
+				System.out.println("Batch input "+(iFile+1)+"/"+inputFiles.size()+": "+inputFile.getAbsolutePath());
+				try
+				{
+					try
+					{
+						read.get();
+					}
+					catch (ExecutionException e)
+					{
+						if(e.getCause() instanceof Exception)
+							throw (Exception)e.getCause();
+						throw e;
+					}
+					
+					if(queryDiagnostics!=null)
+						queryDiagnostics.setInput(inputFile.getName());
+					operate();
+					
+					//the streamed export reads _USER_INPUT, so the next input is read after it
+					if(iFile+1<inputFiles.size() && !settingStreamingExport)
+						nextRead = readBatchInput(reader, readerCache, inputReader, currentEntryTemplate, inputFiles.get(iFile+1));
+					
+					settingInputFileFolder = inputFile;
+					settingOutputFileFolder = outputFolder;
+					if(settingOutputFormat!=IOType.EXCEL)
+					{
+						//one folder per input file for the per dataset files
+						settingOutputFileFolder = new File(outputFolder, getBaseName(inputFile)+"_out");
+						settingOutputFileFolder.mkdirs();
+					}
+					outputAllResultData();
+					printTimeMeasure();
+					System.out.println("Batch output written to "+settingOutputFileFolder.getAbsolutePath());
+				}
+				catch (Exception e)
+				{
+					failed++;
+					System.err.println("Failed to annotate file "+inputFile.getAbsolutePath()+".\nReason:\n"+Util.getStackTraceString(e));
+				}
+				
+				if(nextRead==null && iFile+1<inputFiles.size())
+					nextRead = readBatchInput(reader, readerCache, inputReader, currentEntryTemplate, inputFiles.get(iFile+1));
+				read = nextRead;
 			}
-
 		}
-		else if(settingReference)
+		finally
 		{
-			//custom naming
-			currentEntry.path=inputFile.getName();
-			int dotIndex = currentEntry.path.lastIndexOf('.');
-			if(dotIndex>=0)
-				currentEntry.path="_"+currentEntry.path.substring(0,dotIndex).replace('.', '_');
-			
-			inputReader.setInputType(usedInputFormat).setInputFile(inputFile).read(currentEntry);
-			for(int i=0; i<currentEntryTemplate.namemap.size(); i++)
-			{
-				dataCache.index(currentEntry.path, currentEntryTemplate.namemap.getKeyAt(i));
-			}
+			reader.shutdownNow();
+			cacheFactory.close(readerCache);
 		}
-		else
+		
+		settingOutputFileFolder = outputFolder;
+		printTimeMeasure();
+		System.out.println("Batch done: "+(inputFiles.size()-failed)+" of "+inputFiles.size()+" input files annotated, "+failed+" failed");
+	}
+	
+	/**
+	 * Reads a batch input file to a new _USER_INPUT table, on the reader connection.
+	 */
+	private Future<Void> readBatchInput(ExecutorService reader, final DataCache readerCache, final CustomFormatter inputReader, final DataEntry currentEntryTemplate, final File inputFile)
+	{
+		return reader.submit(new Callable<Void>()
 		{
-			//USER_INPUT settings
-			currentEntryTemplate.memory=true;
-			currentEntryTemplate.temporary=false;
-			currentEntryTemplate.local=false;
-			inputReader.setInputType(usedInputFormat).setInputFile(inputFile).read(currentEntry);
-			for(int i=0; i<currentEntryTemplate.namemap.size(); i++)
+			@Override
+			public Void call() throws Exception
 			{
-				dataCache.index(currentEntry.path, currentEntryTemplate.namemap.getKeyAt(i));
+				if(readerCache.getHasTable(currentEntryTemplate.path))
+					readerCache.dropTable(currentEntryTemplate.path);
+				inputDataFromFile(readerCache, inputFile, settingInputFormat, inputReader, currentEntryTemplate);
+				readerCache.commit();
+				return null;
 			}
-		}
+		});
 	}
 	
-	
-	private void outputDataToFiles() throws InstantiationException, IllegalAccessException, ClassNotFoundException, InvalidFormatException, SQLException, ApplicationException, IOException
+	/**
+	 * If the file is an output of a run: an annotation &lt;name&gt;_out.*, a run summary or a diagnostics report.
+	 */
+	private static boolean isBatchOutput(File file)
 	{
-		
-		if(commandLine.hasOption(clGetall))
-		{
-			System.out.println("Outputting to files...");
-			outputAllData();
-			System.out.println("Outputted files done");
-		}
-		else if(commandLine.hasOption(clGet))
-		{
-			System.out.println("Outputting to file...");
-			outputDataToFile(commandLine.getOptionValue(TextMap.get),null,false,entryTemplate.getValue(commandLine.getOptionValue(TextMap.get)),null);
-			System.out.println("Outputted file done");
-		}
-		else if((!settingGene&&!settingReference) && (commandLine.hasOption(clOutputFileFolder)||commandLine.hasOption(clOutputFormat)||commandLine.hasOption(clInputFileFolder)))
-		{
-			//Outputting result data
-			System.out.println("Outputting to file...");
-			outputAllResultData();
-			System.out.println("Outputted file done");
-		}
-		
-		printTimeMeasure();
-		
+		String name = CompressedFiles.stripSuffix(file.getName());
+		int dotIndex = name.lastIndexOf('.');
+		return (dotIndex>=0?name.substring(0, dotIndex):name).endsWith("_out") || name.endsWith(runSummarySuffix) || name.endsWith(diagnosticsSuffix);
 	}
 	
-	private void outputDataToFile(String datasetName, String filename, boolean appendToExcel, DataEntry currentEntryTemplate, File nof) throws InstantiationException, IllegalAccessException, ClassNotFoundException, SQLException, ApplicationException, InvalidFormatException, IOException
+	/**
+	 * The input files of the batch folder (by name, of the known input formats unless the input format is set, without the outputs of an earlier run), or the input files listed in the batch manifest file.
+	 * Manifest lines are file paths, relative to the folder of the manifest unless absolute. Empty lines and lines starting with # are skipped.
+	 */
+	private ArrayList<File> listBatchInputFiles() throws IOException, ApplicationException
 	{
-
-		CustomFormatter outputWriter = new CustomFormatter().setDataCache(dataCache).setInputType(IOType.DATACACHE).setExcelStyle(excelStyle);
-		File of;
-		if(filename==null)
-		{
-			if(datasetName==null)
-				filename="output";
-			else
-				filename=datasetName+"_out";
-		}
-		
-		if(nof!=null&&!nof.isDirectory())
-		{
-			of=nof;
-		}
-		else if(!settingOutputFileFolder.isDirectory())
+		ArrayList<File> inputFiles = new ArrayList<File>();
+		if(settingBatch.isDirectory())
 		{
-			of=settingOutputFileFolder;
-		}
-		else
-		{
-			String outputFolderPath="";
-			if(settingOutputFileFolder.isDirectory())
-				outputFolderPath= settingOutputFileFolder.getAbsolutePath()+File.separator;
-			
-			if(settingOutputFormat==IOType.CSV)
+			if(settingInputFormat==null)
 			{
-				of=new File(outputFolderPath+filename+".csv");
+				inputFiles.addAll(Arrays.asList(settingBatch.listFiles(filterJSON)));
+				inputFiles.addAll(Arrays.asList(settingBatch.listFiles(filterCSV)));
+				inputFiles.addAll(Arrays.asList(settingBatch.listFiles(filterTSV)));
+				inputFiles.addAll(Arrays.asList(settingBatch.listFiles(filterExcelXlsx)));
 			}
-			else if(settingOutputFormat==IOType.TSV)
+			else
 			{
-				of=new File(outputFolderPath+filename+".tsv");
+				for(File inputFile : settingBatch.listFiles())
+				{
+					if(inputFile.isFile())
+						inputFiles.add(inputFile);
+				}
 			}
-			else if(settingOutputFormat==IOType.EXCEL)
+			//the output folder defaults to the batch folder, so a second run would read the outputs of the first
+			for(Iterator<File> i = inputFiles.iterator(); i.hasNext();)
 			{
-				of=new File(outputFolderPath+filename+".xlsx");
+				if(isBatchOutput(i.next()))
+					i.remove();
 			}
-			else
+			Collections.sort(inputFiles);
+		}
+		else
+		{
+			for(String line : Files.readAllLines(settingBatch.toPath(), StandardCharsets.UTF_8))
 			{
-				of=new File(outputFolderPath+filename+".json");
+				line = line.trim();
+				if(line.length()==0 || line.startsWith("#"))
+					continue;
+				File inputFile = new File(line);
+				if(!inputFile.isAbsolute())
+					inputFile = new File(settingBatch.getParentFile(), line);
+				inputFiles.add(inputFile);
 			}
 		}
 		
-		
-		outputWriter.setPath(datasetName).setOutputType(settingOutputFormat).setOutputFile(of).setExcelAppend(appendToExcel).setOutputSkipEmptyColumns(true);
-		DataEntry currentEntry = null;
-		if(currentEntryTemplate!=null)
-			currentEntry = currentEntryTemplate.copy();
-		outputWriter.write(currentEntry);
+		if(inputFiles.isEmpty())
+			throw new ApplicationException("Batch error. No input files in ["+settingBatch+"]");
+		return inputFiles;
 	}
 	
-	private void outputAllResultData() throws InstantiationException, IllegalAccessException, ClassNotFoundException, InvalidFormatException, SQLException, ApplicationException, IOException
+	/**
+	 * Loads the shipped gene and reference data into the scratch database, and then annotates synthetic user inputs of the benchmark sizes with input, operation and output of every output format as in a normal run, reporting the times, result rows and peak heap.
+	 * A warm-up run of the smallest size is done first and not reported. The outputs are deleted after being measured.
+	 */
+	private void runBenchmark() throws Exception
+	{
+		File geneFolder = new File("inputGene").getAbsoluteFile();
+		File referenceFolder = new File("inputReference").getAbsoluteFile();
+		if(!geneFolder.isDirectory() || !referenceFolder.isDirectory())
+			throw new ApplicationException("Benchmark error. Provided ["+geneFolder.getParent()+"] does not hold the inputGene and inputReference folders.");
+		File reportFolder = commandLine.hasOption(clOutputFileFolder)?settingOutputFileFolder.getAbsoluteFile():new File("").getAbsoluteFile();
+		if(!reportFolder.isDirectory() && !reportFolder.mkdirs())
+			throw new ApplicationException("Benchmark error. The output ["+reportFolder+"] is not a folder.");
+		IOType[] outputFormat = commandLine.hasOption(clOutputFormat)?new IOType[]{settingOutputFormat}:new IOType[]{IOType.EXCEL, IOType.TSV, IOType.CSV, IOType.DATACACHE};
+		String[] referenceTable = new String[]{"_gwas_catalog", "_psychiatric_cnvs", "_omim", "_asd_genes", "_id_devdelay_genes", "_mouse_knockout"};
+		BenchmarkReport report = new BenchmarkReport(version, settingEngine.toString(), settingThreads);
+		
+		System.out.println("Benchmark database: "+settingDBFolder.getAbsolutePath());
+		settingInputFormat=IOType.TSV;
+		settingGene=true;
+		settingInputFileFolder=geneFolder;
+		long startNanos = System.nanoTime();
+		inputDataFromFiles();
+		report.addLoad("GENE_MASTER", System.nanoTime()-startNanos, countRows(dataCache, "PUBLIC", "GENE_MASTER"));
+		settingGene=false;
+		
+		settingReference=true;
+		settingInputFileFolder=referenceFolder;
+		startNanos = System.nanoTime();
+		inputDataFromFiles();
+		long referenceRows = 0;
+		for(String tableName : referenceTable)
+			referenceRows+=countRows(dataCache, "PUBLIC", tableName);
+		report.addLoad("reference", System.nanoTime()-startNanos, referenceRows);
+		settingReference=false;
+		
+		int warmUpSize = settingBenchmarkSizes[0];
+		for(int size : settingBenchmarkSizes)
+			warmUpSize = Math.min(warmUpSize, size);
+		runBenchmarkSize(warmUpSize, outputFormat, new BenchmarkReport(version, settingEngine.toString(), settingThreads).addRun(warmUpSize));
+		for(int size : settingBenchmarkSizes)
+			runBenchmarkSize(size, outputFormat, report.addRun(size));
+		
+		report.write(reportFolder);
+		System.out.println("Benchmark report written to "+new File(reportFolder, "benchmark_report.json").getAbsolutePath()+" and "+new File(reportFolder, "benchmark_report.tsv").getAbsolutePath());
+	}
+	
+	/**
+	 * Annotates a synthetic user input of the given number of regions, in the scratch database folder.
+	 */
+	private void runBenchmarkSize(int regions, IOType[] outputFormat, BenchmarkReport.Run run) throws Exception
+	{
+		File inputFile = new File(settingDBFolder, "synthetic_"+regions+".tsv");
+		SyntheticRegions.writeTsv(inputFile, regions, SyntheticRegions.defaultSeed);
+		printTimeMeasure();
+		System.out.println("Benchmark run of "+regions+" regions");
+		
+		BenchmarkReport.resetPeakHeap();
+		long runStartNanos = System.nanoTime();
+		settingInputFileFolder = inputFile;
+		inputDataFromFiles();
+		run.setInputNanos(System.nanoTime()-runStartNanos);
+		
+		long startNanos = System.nanoTime();
+		operate();
+		run.setOperation(System.nanoTime()-startNanos, operationScheduler);
+		
+		for(IOType format : outputFormat)
+		{
+			settingOutputFormat = format;
+			File outputFile;
+			if(format==IOType.EXCEL)
+			{
+				settingOutputFileFolder = settingDBFolder;
+				outputFile = new File(settingDBFolder, "synthetic_"+regions+"_out.xlsx");
+			}
+			else
+			{
+				//one folder for the per dataset files
+				settingOutputFileFolder = new File(settingDBFolder, "synthetic_"+regions+"_out_"+format.toString().toLowerCase());
+				settingOutputFileFolder.mkdirs();
+				outputFile = settingOutputFileFolder;
+			}
+			startNanos = System.nanoTime();
+			outputDataToFiles();
+			run.addOutput(format.toString(), System.nanoTime()-startNanos, deleteFiles(outputFile));
+		}
+		run.setTotal(System.nanoTime()-runStartNanos, BenchmarkReport.getPeakHeapBytes());
+		
+		for(String datasetName : resultDatasetName)
+			run.addDatasetRows(datasetName, countRows(dataCache, "PUBLIC", datasetName.toUpperCase()));
+		inputFile.delete();
+		System.out.println("Benchmark run of "+regions+" regions: "+run.getTotalNanos()/1E9+" seconds");
+	}
+	
+	/**
+	 * Deletes a file, or a folder with its content.
+	 * @return the size of the deleted files in bytes
+	 */
+	private static long deleteFiles(File file)
+	{
+		long bytes = 0;
+		File[] children = file.listFiles();
+		if(children!=null)
+		{
+			for(File child : children)
+				bytes+=deleteFiles(child);
+		}
+		else
+			bytes+=file.length();
+		file.delete();
+		return bytes;
+	}
+	
+	private File getReferenceSnapshotFile()
+	{
+		return new File(settingDBFolder.getAbsolutePath()+File.separator+"RegionAnnotator.snapshot");
+	}
+	
+	/**
+	 * Compiles GENE_MASTER and the reference tables into the memory mapped snapshot used by the native engine.
+	 */
+	private void compileReferenceSnapshot() throws SQLException, IOException
+	{
+		System.out.println("Compiling reference snapshot...");
+		File snapshotFile = getReferenceSnapshotFile();
+		ReferenceSnapshot.compile(dataCache.getConnection(), "PUBLIC", snapshotFile);
+		printTimeMeasure();
+		System.out.println("Reference snapshot compiled to "+snapshotFile.getAbsolutePath());
+	}
+	
+	/**
+	 * @return the mapped reference snapshot, or null if there is none or it can't be read
+	 */
+	private ReferenceSnapshot openReferenceSnapshot()
+	{
+		File snapshotFile = getReferenceSnapshotFile();
+		if(!snapshotFile.exists())
+			return null;
+		try
+		{
+			return ReferenceSnapshot.open(snapshotFile);
+		}
+		catch (Exception e)
+		{
+			System.err.println("Failed to open the reference snapshot "+snapshotFile.getAbsolutePath()+", reading reference data from the database.\nReason:\n"+Util.getStackTraceString(e));
+			return null;
+		}
+	}
+	
+	/**
+	 * Region track of a reference table, from the snapshot if it holds the table with its current load stamp in the reference manifest, else from the database.
+	 * @param column optional string column restricting the rows to those equal to value
+	 * @param withGeneName read the gene names from the database (the snapshot track has them if the table has a GENENAME column)
+	 */
+	private RegionTrack loadReferenceTrack(DataCache cache, ReferenceSnapshot referenceSnapshot, String schemaName, String tableName, String column, String value, boolean withGeneName) throws SQLException, ApplicationException
+	{
+		if(referenceSnapshot!=null)
+		{
+			ReferenceSnapshot.Table snapshotTable = referenceSnapshot.getTable(tableName);
+			String loadStamp = ReferenceManifest.getLoadStamp(cache.getConnection(), schemaName, tableName);
+			if(snapshotTable!=null && loadStamp!=null && loadStamp.equals(snapshotTable.getLoadStamp()))
+			{
+				RegionTrack track = snapshotTable.toRegionTrack(column, value);
+				if(track!=null)
+					return track;
+			}
+			System.out.println("The reference snapshot is not current for "+tableName+", reading it from the database.");
+		}
+		return RegionTrack.load(cache.getConnection(), schemaName, tableName, column==null?null:column+"='"+value+"'", withGeneName);
+	}
+	
+	private long countRows(DataCache cache, String schemaName, String tableName) throws SQLException
+	{
+		Statement s = cache.getConnection().createStatement();
+		try
+		{
+			ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM "+schemaName+"."+tableName);
+			rs.next();
+			return rs.getLong(1);
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+	
+	/**
+	 * Reads a file into the table of the entry, with the bulk loader for TSV and CSV with column names, else with the formatter.
+	 * @param binned if the bulk loader adds the genomic bin column
+	 * @return the number of rows read
+	 */
+	private long readInputFile(DataCache cache, File inputFile, IOType usedInputFormat, CustomFormatter inputReader, DataEntry currentEntry, boolean binned) throws InvalidFormatException, IOException, ApplicationException, SQLException
+	{
+		if(settingBulk && settingFirstRowVariableNames && (usedInputFormat==IOType.TSV || usedInputFormat==IOType.CSV))
+		{
+			BulkLoader loader = new BulkLoader(currentEntry);
+			loader.setBinned(binned);
+			loader.setDecompressionThreads(settingThreads);
+			loader.load(cache.getConnection(), "PUBLIC", inputFile, usedInputFormat==IOType.TSV?'\t':',', settingOverwriteExistingTables);
+			System.out.println("Loaded "+loader.getRowCount()+" rows of "+inputFile.getName()+" into "+currentEntry.path+" in "+loader.getLoadMillis()+" ms ("+Math.round(loader.getRowsPerSecond())+" rows/s)");
+			return loader.getRowCount();
+		}
+		if(CompressedFiles.isCompressed(inputFile))
+		{
+			//the formatter reads plain files only
+			File plainFile = File.createTempFile("input", "."+usedInputFormat.toString().toLowerCase(), settingTempFolder.isDirectory()?settingTempFolder:null);
+			try
+			{
+				CompressedFiles.decompress(inputFile, plainFile, settingThreads);
+				inputReader.setInputType(usedInputFormat).setInputFile(plainFile).read(currentEntry);
+			}
+			finally
+			{
+				plainFile.delete();
+			}
+		}
+		else
+			inputReader.setInputType(usedInputFormat).setInputFile(inputFile).read(currentEntry);
+		return countRows(cache, "PUBLIC", currentEntry.path);
+	}
+	
+	private void inputDataFromFile(DataCache cache, File inputFile, IOType usedInputFormat, CustomFormatter inputReader, DataEntry currentEntryTemplate) throws InvalidFormatException, IOException, ApplicationException, SQLException
+	{
+		if(inputFile.isDirectory())
+			throw new ApplicationException("Can't input data from directory.");
+		
+		//a .gz or .bgz suffix is read past
+		String inputFileName = CompressedFiles.stripSuffix(inputFile.getName()).toLowerCase();
+		if(usedInputFormat==null)
+		{
+			if(inputFileName.matches("^.+\\.xlsx$"))
+			{
+				usedInputFormat=IOType.EXCEL;
+			}
+			else if(inputFileName.matches("^.+\\.csv$"))
+			{
+				usedInputFormat=IOType.CSV;
+			}
+			else if(inputFileName.matches("^.+\\.tsv$"))
+			{
+				usedInputFormat=IOType.TSV;
+			}
+			else if(inputFileName.matches("^.+\\.json$"))
+			{
+				usedInputFormat=IOType.DATACACHE;
+			}
+		}
+		
+		DataEntry currentEntry = currentEntryTemplate.copy();
+		RunMetrics.Measurement measurement;
+		long rows;
+		if(settingGene)
+		{
+			measurement = runMetrics.start(RunMetrics.kindInput, currentEntry.path, inputFile, cache.getConnection());
+			long loadStartNanos = System.nanoTime();
+			if(settingInputGff3 || GeneMasterLoader.isGff3(inputFile))
+			{
+				//streamed from GFF3 into the table in one pass
+				GeneMasterLoader loader = new GeneMasterLoader(currentEntry, proteinCodingExpansion);
+				int loaded = loader.load(cache.getConnection(), "PUBLIC", inputFile, settingOverwriteExistingTables);
+				rows = loaded;
+				System.out.println("Loaded "+loaded+" protein coding genes of "+loader.getReadCount()+" gene rows from "+inputFile.getName());
+			}
+			else
+			{
+				rows = readInputFile(cache, inputFile, usedInputFormat, inputReader, currentEntry, true);
+				GenomicBin.updateBinColumn(cache.getConnection(), "PUBLIC", currentEntry.path, GenomicBin.binColumn, 0);
+				GenomicBin.updateBinColumn(cache.getConnection(), "PUBLIC", currentEntry.path, GenomicBin.expandedBinColumn, proteinCodingExpansion);
+			}
+			createPlannedIndexes(cache, currentEntry.path);
+			//the load stamp of GENE_MASTER in the reference snapshot
+			new ReferenceManifest(cache.getConnection(), "PUBLIC").record(currentEntry.path, inputFile, ReferenceManifest.hash(inputFile, usedInputFormat+","+settingFirstRowVariableNames+","+settingBulk), (System.nanoTime()-loadStartNanos)/1000000);
+		}
+		else if(settingReference)
+		{
+			//custom naming
+			currentEntry.path=CompressedFiles.stripSuffix(inputFile.getName());
+			int dotIndex = currentEntry.path.lastIndexOf('.');
+			if(dotIndex>=0)
+				currentEntry.path="_"+currentEntry.path.substring(0,dotIndex).replace('.', '_');
+			
+			//only changed files are reloaded
+			ReferenceManifest manifest = new ReferenceManifest(cache.getConnection(), "PUBLIC");
+			String contentHash = ReferenceManifest.hash(inputFile, usedInputFormat+","+settingFirstRowVariableNames+","+settingBulk);
+			if(manifest.isCurrent(currentEntry.path, contentHash))
+			{
+				System.out.println("Reference "+inputFile.getName()+" unchanged, keeping "+currentEntry.path);
+				//a table loaded before the bin columns gets its bin column here, not in the operation
+				if(GenomicBin.updateBinColumn(cache.getConnection(), "PUBLIC", currentEntry.path, GenomicBin.binColumn, 0)>0)
+					System.out.println("Added the genomic bin column "+GenomicBin.binColumn+" to "+currentEntry.path);
+				createPlannedIndexes(cache, currentEntry.path);
+				return;
+			}
+			
+			measurement = runMetrics.start(RunMetrics.kindInput, currentEntry.path, inputFile, cache.getConnection());
+			long loadStartNanos = System.nanoTime();
+			rows = readInputFile(cache, inputFile, usedInputFormat, inputReader, currentEntry, true);
+			GenomicBin.updateBinColumn(cache.getConnection(), "PUBLIC", currentEntry.path, GenomicBin.binColumn, 0);
+			createPlannedIndexes(cache, currentEntry.path);
+			manifest.record(currentEntry.path, inputFile, contentHash, (System.nanoTime()-loadStartNanos)/1000000);
+			referenceTablesLoaded++;
+			System.out.println("Reference "+inputFile.getName()+" loaded into "+currentEntry.path);
+		}
+		else
+		{
+			//USER_INPUT settings
+			currentEntryTemplate.memory=true;
+			currentEntryTemplate.temporary=false;
+			currentEntryTemplate.local=false;
+			measurement = runMetrics.start(RunMetrics.kindInput, currentEntry.path, inputFile, cache.getConnection());
+			rows = readInputFile(cache, inputFile, usedInputFormat, inputReader, currentEntry, false);
+		}
+		measurement.stop();
+		measurement.record(rows);
+	}
+	
+	
+	/**
+	 * Creates the indexes planned from the SQL stage queries reading a loaded gene or reference table, so that the operation finds them in place.
+	 */
+	private void createPlannedIndexes(DataCache cache, String tableName) throws SQLException
+	{
+		IndexPlanner planner = new IndexPlanner("PUBLIC");
+		String q;
+		if(tableName.equalsIgnoreCase(ReferenceSnapshot.geneMasterName))
+		{
+			planner.registerView("GENE_MASTER_EXPANDED", StageQueries.geneMasterExpanded("PUBLIC"));
+			q=StageQueries.proteinCodingGenesAll(cache, "PUBLIC");
+		}
+		else
+			q=StageQueries.referenceLink(cache, "PUBLIC", tableName);
+		if(q!=null)
+			planner.prepareTable(cache.getConnection(), tableName, q);
+		cache.commit();
+	}
+	
+	private void outputDataToFiles() throws InstantiationException, IllegalAccessException, ClassNotFoundException, InvalidFormatException, SQLException, ApplicationException, IOException
+	{
+		
+		if(commandLine.hasOption(clGetall))
+		{
+			System.out.println("Outputting to files...");
+			outputAllData();
+			System.out.println("Outputted files done");
+		}
+		else if(commandLine.hasOption(clGet))
+		{
+			System.out.println("Outputting to file...");
+			outputDataToFile(commandLine.getOptionValue(TextMap.get),null,false,entryTemplate.getValue(commandLine.getOptionValue(TextMap.get)),null);
+			System.out.println("Outputted file done");
+		}
+		else if((!settingGene&&!settingReference) && (commandLine.hasOption(clOutputFileFolder)||commandLine.hasOption(clOutputFormat)||commandLine.hasOption(clInputFileFolder)||settingBenchmarkSizes!=null))
+		{
+			//Outputting result data
+			System.out.println("Outputting to file...");
+			outputAllResultData();
+			System.out.println("Outputted file done");
+		}
+		
+		printTimeMeasure();
+		
+	}
+	
+	private void outputDataToFile(String datasetName, String filename, boolean appendToExcel, DataEntry currentEntryTemplate, File nof) throws InstantiationException, IllegalAccessException, ClassNotFoundException, SQLException, ApplicationException, InvalidFormatException, IOException
+	{
+
+		CustomFormatter outputWriter = new CustomFormatter().setDataCache(dataCache).setInputType(IOType.DATACACHE).setExcelStyle(excelStyle);
+		File of;
+		if(filename==null)
+		{
+			if(datasetName==null)
+				filename="output";
+			else
+				filename=datasetName+"_out";
+		}
+		
+		if(nof!=null&&!nof.isDirectory())
+		{
+			of=nof;
+		}
+		else if(!settingOutputFileFolder.isDirectory())
+		{
+			of=settingOutputFileFolder;
+		}
+		else
+		{
+			String outputFolderPath="";
+			if(settingOutputFileFolder.isDirectory())
+				outputFolderPath= settingOutputFileFolder.getAbsolutePath()+File.separator;
+			
+			if(settingOutputFormat==IOType.CSV)
+			{
+				of=new File(outputFolderPath+filename+".csv");
+			}
+			else if(settingOutputFormat==IOType.TSV)
+			{
+				of=new File(outputFolderPath+filename+".tsv");
+			}
+			else if(settingOutputFormat==IOType.EXCEL)
+			{
+				of=new File(outputFolderPath+filename+".xlsx");
+			}
+			else
+			{
+				of=new File(outputFolderPath+filename+".json");
+			}
+		}
+		
+		
+		//the formatter writes plain files, compressed after writing
+		File compressedFile = null;
+		if(settingOutputCompress && settingOutputFormat!=IOType.EXCEL)
+		{
+			String plainPath = CompressedFiles.stripSuffix(of.getPath());
+			compressedFile = plainPath.length()<of.getPath().length()?of:new File(of.getPath()+".gz");
+			of = new File(plainPath);
+		}
+		
+		outputWriter.setPath(datasetName).setOutputType(settingOutputFormat).setOutputFile(of).setExcelAppend(appendToExcel).setOutputSkipEmptyColumns(true);
+		DataEntry currentEntry = null;
+		if(currentEntryTemplate!=null)
+			currentEntry = currentEntryTemplate.copy();
+		RunMetrics.Measurement measurement = runMetrics.start(RunMetrics.kindOutput, datasetName, compressedFile!=null?compressedFile:of, dataCache.getConnection());
+		outputWriter.write(currentEntry);
+		if(compressedFile!=null && of.exists())
+		{
+			CompressedFiles.compress(of, compressedFile, settingThreads);
+			Files.delete(of.toPath());
+		}
+		measurement.stop();
+		measurement.record(datasetName==null?-1:countOutputRows(datasetName));
+	}
+	
+	/**
+	 * The rows of an output dataset, -1 if they can't be counted.
+	 */
+	private long countOutputRows(String datasetName)
+	{
+		try
+		{
+			return countRows(dataCache, "PUBLIC", datasetName);
+		}
+		catch (SQLException e)
+		{
+			return -1;
+		}
+	}
+	
+	private void outputAllResultData() throws InstantiationException, IllegalAccessException, ClassNotFoundException, InvalidFormatException, SQLException, ApplicationException, IOException
 	{
 		
 		//excel composite file as standard
-		if(!commandLine.hasOption(clOutputFormat)||settingOutputFormat==IOType.EXCEL)
+		if((!commandLine.hasOption(clOutputFormat)&&settingBenchmarkSizes==null)||settingOutputFormat==IOType.EXCEL)
 		{
 			String filename = clOutputFileFolder+"_excel";
 			settingOutputFormat=IOType.EXCEL;
 		
-			if(!commandLine.hasOption(clOutputFileFolder))
+			if(!commandLine.hasOption(clOutputFileFolder) || settingBatch!=null || settingBenchmarkSizes!=null)
 			{
 				if(settingInputFileFolder!=null&&!settingInputFileFolder.isDirectory())
 				{
-					filename = settingInputFileFolder.getName();
+					filename = getBaseName(settingInputFileFolder);
 					String outputFolderPath="";
 					if(settingOutputFileFolder.isDirectory())
 						outputFolderPath= settingOutputFileFolder.getAbsolutePath()+File.separator;
-					if(filename.indexOf('.')>=0)
-						filename = filename.substring(0,filename.lastIndexOf("."));
 					
 					settingOutputFileFolder = new File(outputFolderPath+filename+"_out.xlsx");
 				}
@@ -832,78 +1657,32 @@ public class RegionAnnotator
 			Util.deleteFileIfExistsOldCompatSafe(settingOutputFileFolder);
 		
 		
-		//append documentation/READ ME
-		if(settingDocumentationTemplate.exists() && !settingDocumentationTemplate.isDirectory())
+		//one workbook for the composite excel file, its sheets serialized concurrently if more than one thread is set
+		if(settingOutputFormat==IOType.EXCEL && !settingOutputFileFolder.isDirectory())
+		{
+			if(settingThreads>1)
+				outputAllResultDataParallel();
+			else
+				outputAllResultDataStreaming();
+			return;
+		}
+		
+		if(settingStreamingExport && settingOutputFileFolder.isDirectory())
+		{
+			exportResultData();
+			return;
+		}
+		
+		//append documentation/READ ME, not for the per dataset files of an output folder
+		if(settingDocumentationTemplate.exists() && !settingDocumentationTemplate.isDirectory() && !settingOutputFileFolder.isDirectory())
 		{
 			System.out.println("Importing documentation...");
-			XSSFWorkbook documentationExcelWorkbook = new XSSFWorkbook(settingDocumentationTemplate);
 			XSSFWorkbook outputFileWorkbook = new XSSFWorkbook();
-			XSSFSheet readMeSheetSource = documentationExcelWorkbook.getSheet("readme");
-			XSSFSheet readMeSheetTarget  = outputFileWorkbook.createSheet("README");
-			
-			//Style copy
-			for(int i=0; i<documentationExcelWorkbook.getNumCellStyles();i++)
-			{
-				String styleCallsign = "read_me"+i;
-				XSSFCellStyle newCellStyle;
-				newCellStyle = outputFileWorkbook.createCellStyle();
-				newCellStyle.cloneStyleFrom(documentationExcelWorkbook.getCellStyleAt(i));
-				excelStyle.put(styleCallsign,newCellStyle);
-			}
-			
-			//Iterator<Row> iRow = readMeSheetSource.rowIterator();
-			int irow =0;
-			for (Row crow : readMeSheetSource)
-			{
-				XSSFRow trow = readMeSheetTarget.createRow(irow++);
-				for(Cell ccell : crow)
-				{
-					
-					XSSFCell tcell = trow.createCell(ccell.getColumnIndex());
-					int type = ccell.getCellType();
-					tcell.setCellType(ccell.getCellType());
-					//tcell.setCellStyle(ccell.getCellStyle()); //not working
-					int cindex = ccell.getCellStyle().getIndex();
-					//System.out.println("Style index: "+cindex);
-					
-					XSSFCellStyle newCellStyle;
-					newCellStyle=excelStyle.getValueAt(cindex);
-					tcell.setCellStyle(newCellStyle);
-					
-					if(type==XSSFCell.CELL_TYPE_BLANK||type==XSSFCell.CELL_TYPE_ERROR)
-					{
-						//nothing
-					}
-					else if(type==Cell.CELL_TYPE_BOOLEAN || (type==Cell.CELL_TYPE_FORMULA && ccell.getCachedFormulaResultType()==Cell.CELL_TYPE_BOOLEAN))
-					{
-						tcell.setCellValue(ccell.getBooleanCellValue());
-					}
-					else if(type==Cell.CELL_TYPE_NUMERIC || (type==Cell.CELL_TYPE_FORMULA && ccell.getCachedFormulaResultType()==Cell.CELL_TYPE_NUMERIC))
-					{
-						if (DateUtil.isCellDateFormatted(ccell))
-							tcell.setCellValue(ccell.getDateCellValue());
-						else 
-							tcell.setCellValue(ccell.getNumericCellValue());
-					}
-					else if(type==Cell.CELL_TYPE_STRING || (type==Cell.CELL_TYPE_FORMULA && ccell.getCachedFormulaResultType()==Cell.CELL_TYPE_STRING))
-					{
-						tcell.setCellValue(ccell.getRichStringCellValue());
-					}
-					
-				}
-			}
-			
-			//column sizes
-			for(int i=0; i<10;i++)
-			{
-				readMeSheetTarget.autoSizeColumn(i);
-			}
-			//System.out.println("Num styles after read me import:"+outputFileWorkbook.getNumCellStyles());
+			copyReadMeSheet(outputFileWorkbook);
 			FileOutputStream fileOut = new FileOutputStream(settingOutputFileFolder);
 			outputFileWorkbook.write(fileOut);
 		    fileOut.close();
 			//outputFileWorkbook.close(); //unclear if we need to close these
-			//documentationExcelWorkbook.close();
 			System.out.println("Documentation import done. Continuing with outputting files...");
 		}
 		
@@ -919,6 +1698,229 @@ public class RegionAnnotator
 		
 	}
 	
+	/**
+	 * Writes the documentation and all result datasets as sheets of one streaming workbook, in a single pass with bounded memory.
+	 */
+	private void outputAllResultDataStreaming() throws SQLException, IOException, InvalidFormatException
+	{
+		StreamingExcelWriter writer = new StreamingExcelWriter(settingOutputFileFolder, excelRowWindow);
+		try
+		{
+			if(settingDocumentationTemplate.exists() && !settingDocumentationTemplate.isDirectory())
+			{
+				System.out.println("Importing documentation...");
+				copyReadMeSheet(writer.getWorkbook());
+				System.out.println("Documentation import done. Continuing with outputting files...");
+			}
+			
+			DataEntry[] datasetTemplate = getResultDatasetTemplates();
+			for(int i=0; i<resultDatasetName.length; i++)
+			{
+				RunMetrics.Measurement measurement = runMetrics.start(RunMetrics.kindOutput, resultDatasetName[i], settingOutputFileFolder, dataCache.getConnection());
+				long rows = writer.writeSheet(dataCache.getConnection(), "PUBLIC", resultDatasetName[i].toUpperCase(), resultDatasetName[i], datasetTemplate[i]);
+				measurement.stop();
+				measurement.record(rows);
+				printTimeMeasure();
+				System.out.println(resultDatasetName[i]+" ("+rows+" rows)");
+			}
+			//the workbook is assembled from the flushed sheets
+			RunMetrics.Measurement measurement = runMetrics.start(RunMetrics.kindOutput, "workbook", settingOutputFileFolder, null);
+			writer.write();
+			measurement.stop();
+			measurement.record(-1);
+		}
+		finally
+		{
+			writer.dispose();
+		}
+	}
+	
+	/**
+	 * Streams the result datasets, views in the streaming export, to TSV or CSV files of the output folder, concurrently on separate connections if more than one thread is set. The views, and the bin list table and native pair tables they read, are dropped after the export.
+	 */
+	private void exportResultData() throws SQLException, IOException, ApplicationException
+	{
+		final String suffix = (settingOutputFormat==IOType.TSV?".tsv":".csv")+(settingOutputCompress?".gz":"");
+		final StreamingTextWriter writer = new StreamingTextWriter(settingOutputFormat==IOType.TSV?'\t':',');
+		if(settingOutputCompress)
+			writer.setCompressionThreads(settingThreads);
+		final StageScheduler.CacheFactory cacheFactory = createCacheFactory();
+		ExecutorService exporter = Executors.newFixedThreadPool(settingThreads);
+		try
+		{
+			ArrayList<Future<Long>> exported = new ArrayList<Future<Long>>();
+			for(final String datasetName : resultDatasetName)
+			{
+				exported.add(exporter.submit(new Callable<Long>()
+				{
+					@Override
+					public Long call() throws Exception
+					{
+						DataCache cache = settingThreads>1?cacheFactory.open():dataCache;
+						try
+						{
+							File outputFile = new File(settingOutputFileFolder, datasetName+"_out"+suffix);
+							RunMetrics.Measurement measurement = runMetrics.start(RunMetrics.kindOutput, datasetName, outputFile, cache.getConnection());
+							long rows = writer.write(cache.getConnection(), "SELECT * FROM PUBLIC."+datasetName.toUpperCase(), outputFile);
+							measurement.stop();
+							measurement.record(rows);
+							return rows;
+						}
+						finally
+						{
+							if(cache!=dataCache)
+								cacheFactory.close(cache);
+						}
+					}
+				}));
+			}
+			for(int i=0; i<resultDatasetName.length; i++)
+			{
+				try
+				{
+					long rows = exported.get(i).get();
+					printTimeMeasure();
+					System.out.println(resultDatasetName[i]+" ("+rows+" rows)");
+				}
+				catch (ExecutionException e)
+				{
+					throw new ApplicationException("Export error ["+resultDatasetName[i]+"]", e.getCause());
+				}
+				catch (InterruptedException e)
+				{
+					throw new ApplicationException("Export interrupted", e);
+				}
+			}
+		}
+		finally
+		{
+			exporter.shutdownNow();
+		}
+		
+		Statement s = dataCache.getConnection().createStatement();
+		try
+		{
+			for(String datasetName : resultDatasetName)
+			{
+				if(!datasetName.equalsIgnoreCase("protein_coding_genes"))
+					s.execute("DROP TABLE IF EXISTS PUBLIC."+datasetName.toUpperCase());
+			}
+			for(String linkName : nativeLinkName)
+				s.execute("DROP TABLE IF EXISTS PUBLIC."+linkName+"_PAIRS");
+			s.execute("DROP TABLE IF EXISTS PUBLIC."+StageQueries.userInputBinTable);
+		}
+		finally
+		{
+			s.close();
+		}
+		dataCache.commit();
+	}
+	
+	/**
+	 * The entry templates of the result datasets, in the order of {@link #resultDatasetName}.
+	 */
+	private DataEntry[] getResultDatasetTemplates()
+	{
+		return new DataEntry[]{entryTemplate.getValue("USER_INPUT"), linkEntryTemplate, linkEntryTemplate, reducedLinkEntryTemplate, linkEntryTemplate, reducedLinkEntryTemplate, reducedLinkEntryTemplate, linkEntryTemplate};
+	}
+	
+	/**
+	 * Writes the documentation and all result datasets as sheets of one workbook, the dataset sheets serialized concurrently on separate connections.
+	 */
+	private void outputAllResultDataParallel() throws SQLException, IOException, InvalidFormatException, ApplicationException
+	{
+		ParallelExcelWriter writer = new ParallelExcelWriter(settingOutputFileFolder, settingThreads);
+		if(settingDocumentationTemplate.exists() && !settingDocumentationTemplate.isDirectory())
+		{
+			System.out.println("Importing documentation...");
+			copyReadMeSheet(writer.getWorkbook());
+			System.out.println("Documentation import done. Continuing with outputting files...");
+		}
+		
+		DataEntry[] datasetTemplate = getResultDatasetTemplates();
+		for(int i=0; i<resultDatasetName.length; i++)
+			writer.addSheet("PUBLIC."+resultDatasetName[i].toUpperCase(), resultDatasetName[i], datasetTemplate[i]);
+		dataCache.commit();
+		//one unit, the sheets are serialized on the writer threads
+		RunMetrics.Measurement measurement = runMetrics.start(RunMetrics.kindOutput, "workbook", settingOutputFileFolder, dataCache.getConnection());
+		writer.write(dataCache, createCacheFactory());
+		measurement.stop();
+		measurement.record(-1);
+		printTimeMeasure();
+		System.out.println("Excel output written ("+resultDatasetName.length+" datasets, "+settingThreads+" threads)");
+	}
+	
+	/**
+	 * Copies the readme sheet of the documentation template, with its cell styles, to the README sheet of the output workbook.
+	 */
+	private void copyReadMeSheet(Workbook outputFileWorkbook) throws IOException, InvalidFormatException
+	{
+		XSSFWorkbook documentationExcelWorkbook = new XSSFWorkbook(settingDocumentationTemplate);
+		XSSFSheet readMeSheetSource = documentationExcelWorkbook.getSheet("readme");
+		Sheet readMeSheetTarget  = outputFileWorkbook.createSheet("README");
+		if(readMeSheetTarget instanceof SXSSFSheet)
+			((SXSSFSheet)readMeSheetTarget).trackAllColumnsForAutoSizing();
+		
+		//Style copy
+		for(int i=0; i<documentationExcelWorkbook.getNumCellStyles();i++)
+		{
+			String styleCallsign = "read_me"+i;
+			XSSFCellStyle newCellStyle;
+			newCellStyle = (XSSFCellStyle)outputFileWorkbook.createCellStyle();
+			newCellStyle.cloneStyleFrom(documentationExcelWorkbook.getCellStyleAt(i));
+			excelStyle.put(styleCallsign,newCellStyle);
+		}
+		
+		//Iterator<Row> iRow = readMeSheetSource.rowIterator();
+		int irow =0;
+		for (Row crow : readMeSheetSource)
+		{
+			Row trow = readMeSheetTarget.createRow(irow++);
+			for(Cell ccell : crow)
+			{
+				
+				Cell tcell = trow.createCell(ccell.getColumnIndex());
+				int type = ccell.getCellType();
+				tcell.setCellType(ccell.getCellType());
+				//tcell.setCellStyle(ccell.getCellStyle()); //not working
+				int cindex = ccell.getCellStyle().getIndex();
+				//System.out.println("Style index: "+cindex);
+				
+				XSSFCellStyle newCellStyle;
+				newCellStyle=excelStyle.getValueAt(cindex);
+				tcell.setCellStyle(newCellStyle);
+				
+				if(type==XSSFCell.CELL_TYPE_BLANK||type==XSSFCell.CELL_TYPE_ERROR)
+				{
+					//nothing
+				}
+				else if(type==Cell.CELL_TYPE_BOOLEAN || (type==Cell.CELL_TYPE_FORMULA && ccell.getCachedFormulaResultType()==Cell.CELL_TYPE_BOOLEAN))
+				{
+					tcell.setCellValue(ccell.getBooleanCellValue());
+				}
+				else if(type==Cell.CELL_TYPE_NUMERIC || (type==Cell.CELL_TYPE_FORMULA && ccell.getCachedFormulaResultType()==Cell.CELL_TYPE_NUMERIC))
+				{
+					if (DateUtil.isCellDateFormatted(ccell))
+						tcell.setCellValue(ccell.getDateCellValue());
+					else 
+						tcell.setCellValue(ccell.getNumericCellValue());
+				}
+				else if(type==Cell.CELL_TYPE_STRING || (type==Cell.CELL_TYPE_FORMULA && ccell.getCachedFormulaResultType()==Cell.CELL_TYPE_STRING))
+				{
+					tcell.setCellValue(ccell.getRichStringCellValue());
+				}
+				
+			}
+		}
+		
+		//column sizes
+		for(int i=0; i<10;i++)
+		{
+			readMeSheetTarget.autoSizeColumn(i);
+		}
+		//documentationExcelWorkbook.close();
+	}
+	
 	private void outputAllData() throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException, InvalidFormatException, ApplicationException, IOException
 	{
 		ArrayList<String> datasets =dataCache.listDatasets();
@@ -945,7 +1947,7 @@ public class RegionAnnotator
 		if(settingGene||settingReference)
 			return;
 		
-		if(!commandLine.hasOption(clInputFileFolder))
+		if(!commandLine.hasOption(clInputFileFolder) && settingBatch==null && settingBenchmarkSizes==null)
 			return;
 		
 		printTimeMeasure();
@@ -953,7 +1955,6 @@ public class RegionAnnotator
 		long operationStartTimeNanos = System.nanoTime();
 		
 		final String schemaName = "PUBLIC";
-		String q;
 		
 		
 		
@@ -991,57 +1992,66 @@ public class RegionAnnotator
 		dataCache.enter(documentationEntry).commit();
 		*/
 		
-		dataCache.index("_USER_INPUT", "INPUTID");
-		dataCache.index("_USER_INPUT", "CHR");
-		dataCache.index("_USER_INPUT", "BP1");
-		dataCache.index("_USER_INPUT", "BP2");
-		dataCache.index("_USER_INPUT", "GENENAME");
-		dataCache.index("_USER_INPUT", "SNPID");
-		dataCache.index("_USER_INPUT", "PVALUE");
+		//indexes are planned from the join and where conditions of the stage queries, and created before the first query that needs them
+		indexPlanner = new IndexPlanner(schemaName);
+		indexPlanner.addReplacedIndexes("_USER_INPUT", "INPUTID", "CHR", "BP1", "BP2", "GENENAME", "SNPID", "PVALUE");
 		
 		
 		
-		final SQL userInput = new SQL()
+		StageScheduler scheduler = new StageScheduler();
+		operationScheduler = scheduler;
+		
+		//SQL: the overlap joins are equi-joins on (chr, genomic bin), with the bins overlapping each user input region in a bin list table
+		if(settingEngine==Engine.SQL)
 		{
+			checkBinColumn(schemaName, "GENE_MASTER", GenomicBin.expandedBinColumn, clGene);
+			checkBinColumn(schemaName, "_gwas_catalog", GenomicBin.binColumn, clReference);
+			checkBinColumn(schemaName, "_psychiatric_cnvs", GenomicBin.binColumn, clReference);
+			scheduler.add(new OperationStage("_USER_INPUT_BIN", new String[]{"_USER_INPUT"}, new String[]{"_USER_INPUT_BIN"})
 			{
-				//SELECT("CHR"); //hg19chrc,	r0
-				//SELECT("BP1"); //six1, 		r1
-				//SELECT("BP2"); //six2, 		r2
-				SELECT("_USER_INPUT.*"); //WORK
-				SELECT("chr||':'||"+dataCache.scriptSeparateFixedSpacingRight(dataCache.scriptDoubleToVarchar("bp1"),",", 3)+"||'-'||"+dataCache.scriptSeparateFixedSpacingRight(dataCache.scriptDoubleToVarchar("bp2"),",", 3)+" AS location");
-				SELECT("'HYPERLINK(\"http://genome.ucsc.edu/cgi-bin/hgTracks?&org=Human&db=hg19&position='||chr||'%3A'||"+dataCache.scriptDoubleToVarchar("bp1")+"||'-'||"+dataCache.scriptDoubleToVarchar("bp2")+"||'\",\"ucsc\")' AS UCSC_LINK");
-				FROM(schemaName+"._USER_INPUT");
-				ORDER_BY("INPUTID,CHR,BP1,BP2");
-			}
-		};
-		
-		q=userInput.toString();
-		dataCache.table("USER_INPUT", q).commit(); //candidate
-		dataCache.index("USER_INPUT", "INPUTID");
-		dataCache.index("USER_INPUT", "CHR");
-		dataCache.index("USER_INPUT", "BP1");
-		dataCache.index("USER_INPUT", "BP2");
-		dataCache.index("USER_INPUT", "GENENAME");
-		dataCache.index("USER_INPUT", "SNPID");
-		dataCache.index("USER_INPUT", "PVALUE");
-		
-		printTimeMeasure();
-		System.out.println("USER_INPUT");
+				@Override
+				public void run(DataCache cache) throws Exception
+				{
+					GenomicBin.createBinListTable(cache.getConnection(), schemaName, "_USER_INPUT", StageQueries.userInputBinTable);
+				}
+			});
+		}
 		
+		scheduler.add(new OperationStage("USER_INPUT", new String[]{"_USER_INPUT"}, new String[]{"USER_INPUT"})
+		{
+			@Override
+			public void run(final DataCache cache) throws Exception
+			{
+				String q=new SQL()
+				{
+					{
+						//SELECT("CHR"); //hg19chrc,	r0
+						//SELECT("BP1"); //six1, 		r1
+						//SELECT("BP2"); //six2, 		r2
+						SELECT("_USER_INPUT.*"); //WORK
+						SELECT("chr||':'||"+cache.scriptSeparateFixedSpacingRight(cache.scriptDoubleToVarchar("bp1"),",", 3)+"||'-'||"+cache.scriptSeparateFixedSpacingRight(cache.scriptDoubleToVarchar("bp2"),",", 3)+" AS location");
+						SELECT("'HYPERLINK(\"http://genome.ucsc.edu/cgi-bin/hgTracks?&org=Human&db=hg19&position='||chr||'%3A'||"+cache.scriptDoubleToVarchar("bp1")+"||'-'||"+cache.scriptDoubleToVarchar("bp2")+"||'\",\"ucsc\")' AS UCSC_LINK");
+						FROM(schemaName+"._USER_INPUT");
+						ORDER_BY("INPUTID,CHR,BP1,BP2");
+					}
+				}.toString();
+				stageTable(cache, schemaName, "USER_INPUT", q); //candidate
+				indexPlanner.addReplacedIndexes("USER_INPUT", "INPUTID", "CHR", "BP1", "BP2", "GENENAME", "SNPID", "PVALUE");
+			}
+		});
 		
 		//GENE_MASTER EXPANDED
-		q=new SQL()
+		scheduler.add(new OperationStage("GENE_MASTER_EXPANDED", new String[]{"GENE_MASTER"}, new String[]{"GENE_MASTER_EXPANDED"})
 		{
+			@Override
+			public void run(DataCache cache) throws Exception
 			{
-				SELECT("g.*");
-				SELECT("(g.bp1-20000) AS bp1s20k_gm"); //expand by 20kb;
-				SELECT("(g.bp2+20000) AS bp2a20k_gm");
-				SELECT("(g.bp1-10e6) AS bp1s10m_gm"); //expand by 10mb;
-				SELECT("(g.bp2+10e6) AS bp2a10m_gm");
-				FROM(schemaName+".GENE_MASTER g");
+				String q=StageQueries.geneMasterExpanded(schemaName);
+				indexPlanner.registerView("GENE_MASTER_EXPANDED", q);
+				cache.view("GENE_MASTER_EXPANDED", q).commit();
+				diagnoseQuery(cache, getName(), q);
 			}
-		}.toString();
-		dataCache.view("GENE_MASTER_EXPANDED", q).commit();
+		});
 		
 		/*
 		//*====== Candidate genes (all) for bioinformatics ======;
@@ -1087,54 +2097,65 @@ public class RegionAnnotator
 		//* expand by 10mb;
 		
 		
+		//native: all links are computed up front, per chromosome partition, and written as pair tables. Only the candidates within the distance threshold are materialised.
+		if(settingEngine==Engine.NATIVE)
+		{
+			String[] pairTables = new String[nativeLinkName.length];
+			for(int i=0; i<nativeLinkName.length; i++)
+				pairTables[i]=nativeLinkName[i]+"_PAIRS";
+			scheduler.add(new OperationStage("native links", new String[]{"_USER_INPUT", "GENE_MASTER", "_gwas_catalog", "_psychiatric_cnvs", "_omim", "_asd_genes", "_id_devdelay_genes", "_mouse_knockout"}, pairTables)
+			{
+				@Override
+				public void run(DataCache cache) throws Exception
+				{
+					operateNative(cache, schemaName);
+				}
+			});
+		}
+		
 		//* join;
-		q=new SQL()
+		scheduler.add(new OperationStage("PROTEIN_CODING_GENES_ALL", settingEngine==Engine.NATIVE?new String[]{"_USER_INPUT", "GENE_MASTER", "PROTEIN_CODING_GENES_PAIRS"}:new String[]{"_USER_INPUT", "_USER_INPUT_BIN", "GENE_MASTER_EXPANDED"}, new String[]{"PROTEIN_CODING_GENES_ALL"})
 		{
+			@Override
+			public void run(final DataCache cache) throws Exception
 			{
-				SELECT("c.*");
-				//SELECT("g.chr AS chr_gm");
-				SELECT("g.bp1 AS bp1_gm, g.bp2 AS bp2_gm, g.genename AS genename_gm, g.entrez AS entrez_gm, g.ensembl AS ensembl_gm, g.ttype AS ttype_gm, g.strand AS strand_gm, g.product AS product_gm");
-				SELECT("( CASE WHEN ("+dataCache.scriptTwoSegmentOverlapCondition("c.bp1","c.bp2","g.bp1","g.bp2")+") THEN 0 WHEN c.bp1 IS NULL OR c.bp2 IS NULL THEN 9e9 ELSE NUM_MAX_INTEGER(ABS(c.bp1-g.bp2),ABS(c.bp2-g.bp1)) END) dist");
-				FROM(schemaName+"._USER_INPUT c");
-				//INNER_JOIN(schemaName+".GENE_MASTER_EXPANDED g ON (g.ttype='protein_coding' AND c.chr=g.chr AND ("+dataCache.scriptTwoSegmentOverlapCondition("c.bp1","c.bp2","g.bp1s10m_gm","g.bp1")+" OR "+dataCache.scriptTwoSegmentOverlapCondition("c.bp1","c.bp2","g.bp2","g.bp2a10m_gm")+"))");
-				INNER_JOIN(schemaName+".GENE_MASTER_EXPANDED g ON (g.ttype='protein_coding' AND c.chr=g.chr AND "+dataCache.scriptTwoSegmentOverlapCondition("c.bp1","c.bp2","g.bp1s10m_gm","g.bp2a10m_gm")+")");
-				ORDER_BY("INPUTID,chr,bp1,bp2");
+				String q;
+				if(settingEngine==Engine.NATIVE)
+				{
+					q=new SQL()
+					{
+						{
+							SELECT("c.*");
+							SELECT(proteinCodingGeneColumns);
+							FROM(schemaName+"._USER_INPUT c");
+							SELECT("p.DIST AS dist");
+							INNER_JOIN(schemaName+".PROTEIN_CODING_GENES_PAIRS p ON c._ROWID_=p.L");
+							INNER_JOIN(schemaName+".GENE_MASTER g ON g._ROWID_=p.R");
+							ORDER_BY("INPUTID,chr,bp1,bp2");
+						}
+					}.toString();
+				}
+				else
+					q=StageQueries.proteinCodingGenesAll(cache, schemaName);
+				stageTable(cache, schemaName, "PROTEIN_CODING_GENES_ALL", q); //earlier GENES_PROTEIN_CODING
+				if(settingEngine==Engine.NATIVE)
+					cache.dropTable("PROTEIN_CODING_GENES_PAIRS").commit();
+				indexPlanner.addReplacedIndexes("PROTEIN_CODING_GENES_ALL", "INPUTID", "chr", "bp1", "bp2", "pvalue", "bp1_gm", "bp2_gm", "genename_gm", "entrez_gm", "ensembl_gm", "ttype_gm", "strand_gm");
 			}
-		}.toString();
-		dataCache.table("PROTEIN_CODING_GENES_ALL", q).commit(); //earlier GENES_PROTEIN_CODING
-		dataCache.index("PROTEIN_CODING_GENES_ALL", "INPUTID");
-		dataCache.index("PROTEIN_CODING_GENES_ALL", "chr");
-		dataCache.index("PROTEIN_CODING_GENES_ALL", "bp1");
-		dataCache.index("PROTEIN_CODING_GENES_ALL", "bp2");
-		dataCache.index("PROTEIN_CODING_GENES_ALL", "pvalue");
-		//dataCache.index("PROTEIN_CODING_GENES_ALL", "chr_gm");
-		dataCache.index("PROTEIN_CODING_GENES_ALL", "bp1_gm");
-		dataCache.index("PROTEIN_CODING_GENES_ALL", "bp2_gm");
-		dataCache.index("PROTEIN_CODING_GENES_ALL", "genename_gm");
-		dataCache.index("PROTEIN_CODING_GENES_ALL", "entrez_gm");
-		dataCache.index("PROTEIN_CODING_GENES_ALL", "ensembl_gm");
-		dataCache.index("PROTEIN_CODING_GENES_ALL", "ttype_gm");
-		dataCache.index("PROTEIN_CODING_GENES_ALL", "strand_gm");
-		//dataCache.index("PROTEIN_CODING_GENES_ALL", "product_gm");
-		
-		printTimeMeasure();
-		System.out.println("PROTEIN_CODING_GENES_ALL"); //genesPC10m
+		}); //genesPC10m
 		
 		//*====== PC genes near======;
-		
-		q=new SQL()
+		scheduler.add(new OperationStage("PROTEIN_CODING_GENES", new String[]{"PROTEIN_CODING_GENES_ALL"}, new String[]{"PROTEIN_CODING_GENES"})
 		{
+			@Override
+			public void run(DataCache cache) throws Exception
 			{
-				SELECT("g.*");
-				FROM(schemaName+".PROTEIN_CODING_GENES_ALL g");
-				WHERE("dist<100000");
-				ORDER_BY("INPUTID,dist,ensembl_gm");
+				String q=StageQueries.proteinCodingGenes(schemaName, proteinCodingMaxDistance);
+				indexPlanner.registerView("PROTEIN_CODING_GENES", q);
+				cache.view("PROTEIN_CODING_GENES", q).commit(); //genesPCnear
+				diagnoseQuery(cache, getName(), q);
 			}
-		}.toString();
-		dataCache.view("PROTEIN_CODING_GENES", q).commit(); //genesPCnear
-		
-		printTimeMeasure();
-		System.out.println("PROTEIN_CODING_GENES");
+		});
 		
 		
 		
@@ -1144,104 +2165,316 @@ public class RegionAnnotator
 		
 		
 		//*=== gwas catalog;
-				
-		q=new SQL()
-		{
-			{
-				SELECT("c.*, r.bp1 AS bp1_gwas, r.snpid AS snpid_gwas, r.pvalue AS pvalue_gwas, r.pmid AS pmid_gwas, r.trait AS trait_gwas");
-				FROM(schemaName+"._USER_INPUT c");
-				INNER_JOIN(schemaName+"._gwas_catalog r ON c.chr=r.chr AND "+dataCache.scriptTwoSegmentOverlapCondition("c.bp1", "c.bp2", "r.bp1", "r.bp2"));
-				ORDER_BY("INPUTID,pvalue_gwas,snpid_gwas");
-			}
-		}.toString();
-		dataCache.table("gwas_catalog", q).commit();
+		scheduler.add(new OverlapLinkStage("gwas_catalog", "_gwas_catalog", "GWAS_CATALOG", gwasCatalogColumns, "INPUTID,pvalue_gwas,snpid_gwas", schemaName));
 		
-		printTimeMeasure();
-		System.out.println("gwas_catalog");
+		//*=== omim;
+		scheduler.add(new GeneNameLinkStage("omim", "_omim", "OMIM", omimColumns, "INPUTID,dist,omimgene_omim,genename_gm", schemaName));
 		
+		//*=== psych CNVs;
+		scheduler.add(new OverlapLinkStage("psychiatric_cnvs", "_psychiatric_cnvs", "PSYCHIATRIC_CNVS", psychiatricCnvsColumns, "INPUTID,disease_r,type_r", schemaName));
 		
-		//*=== omim;
-		q=new SQL()
+		//*=== asd genes;
+		scheduler.add(new GeneNameLinkStage("asd_genes", "_asd_genes", "ASD_GENES", asdGenesColumns, "INPUTID,dist,type_asd,genename_gm", schemaName));
+		
+		//*=== id/dev delay ;
+		scheduler.add(new GeneNameLinkStage("id_devdelay_genes", "_id_devdelay_genes", "ID_DEVDELAY_GENES", idDevdelayGenesColumns, "INPUTID,dist,type_id_dd,genename_gm", schemaName));
+		
+		//*=== mouse knockout, jax;
+		scheduler.add(new GeneNameLinkStage("mouse_knockout", "_mouse_knockout", "MOUSE_KNOCKOUT", mouseKnockoutColumns, "INPUTID,dist,ensembl_gm", schemaName));
+		
+		
+		runStages(scheduler);
+		
+		
+		System.out.println("Operations done");
+		System.out.println("Operations time: "+(System.nanoTime()- operationStartTimeNanos)/1E9+" seconds");
+		
+	}
+	
+	/**
+	 * Opens further connections to the database of the data cache, for work running concurrently with it.
+	 */
+	private StageScheduler.CacheFactory createCacheFactory()
+	{
+		final String path = settingDBFolder.getAbsolutePath()+File.separator+"RegionAnnotator";
+		return new StageScheduler.CacheFactory()
 		{
+			@Override
+			public DataCache open() throws Exception
 			{
-				SELECT("g.*, r.OMIMgene AS omimgene_omim, r.OMIMDisease AS omimdisease_omim, r.type AS type_omimi");
-				FROM(schemaName+".PROTEIN_CODING_GENES g");
-				INNER_JOIN(schemaName+"._omim r ON g.genename_gm=r.geneName AND g.geneName_gm IS NOT NULL AND g.geneName_gm!='' AND r.geneName IS NOT NULL AND r.geneName!=''");
-				ORDER_BY("INPUTID,dist,omimgene_omim,genename_gm");
+				DataCache cache = new DataCache(path);
+				if(commandLine.hasOption(clTimeout))
+					cache.setConnectionTimeoutMilliseconds(Long.parseLong(commandLine.getOptionValue(clTimeout)));
+				cache.createCacheConnectionEmbedded();
+				return cache;
 			}
-		}.toString();
-		dataCache.table("omim", q).commit();
-		
-		printTimeMeasure();
-		System.out.println("omim");
+			
+			@Override
+			public void close(DataCache cache) throws Exception
+			{
+				//not shutdownCacheConnection, the database is shared with the other connections
+				cache.getConnection().close();
+			}
+		};
+	}
+	
+	/**
+	 * Runs the operation stages, concurrently on separate connections if more than one thread is set, and reports the stage times.
+	 */
+	private void runStages(StageScheduler scheduler) throws SQLException, ApplicationException
+	{
+		if(settingThreads>1 && settingDatabaseMultiThreaded)
+		{
+			//statements of different connections only run in parallel in the multi threaded database mode, which is experimental with the MVStore and so opt-in
+			Statement s = dataCache.getConnection().createStatement();
+			try
+			{
+				s.execute("SET MULTI_THREADED 1");
+			}
+			finally
+			{
+				s.close();
+			}
+		}
+		dataCache.commit();
 		
-		//*=== psych CNVs;
-		q=new SQL()
+		scheduler.setMetrics(runMetrics, "PUBLIC");
+		scheduler.run(settingThreads, dataCache, createCacheFactory(), new StageScheduler.Listener()
 		{
+			@Override
+			public void stageDone(OperationStage stage)
 			{
-				SELECT("c.*, r.chr AS chr_r, r.bp1 AS bp1_r, r.bp2 AS bp2_r, r.disease AS disease_r, r.type AS type_r, r.note AS note_r");
-				FROM(schemaName+"._USER_INPUT c");
-				INNER_JOIN(schemaName+"._psychiatric_cnvs r ON c.chr=r.chr AND "+dataCache.scriptTwoSegmentOverlapCondition("c.bp1", "c.bp2", "r.bp1", "r.bp2"));
-				ORDER_BY("INPUTID,disease_r,type_r");
+				printTimeMeasure();
+				System.out.println(stage.getName()+" ("+stage.getMetric()+")");
 			}
-		}.toString();
-		dataCache.table("psychiatric_cnvs", q).commit();
+		});
 		
 		printTimeMeasure();
-		System.out.println("psychiatric_cnvs");
-		
-		
-		//*=== asd genes;
-		q=new SQL()
+		System.out.println("Stages: "+scheduler.getStages().size()+", threads: "+settingThreads+", summed stage time: "+scheduler.getStageTimeNanos()/1E9+" seconds, critical path: "+scheduler.getCriticalPathNanos()/1E9+" seconds, wall time: "+scheduler.getWallTimeNanos()/1E9+" seconds, speedup: "+String.format("%.2f", (double)scheduler.getStageTimeNanos()/Math.max(1, scheduler.getWallTimeNanos()))+" (critical path bound "+String.format("%.2f", (double)scheduler.getStageTimeNanos()/Math.max(1, scheduler.getCriticalPathNanos()))+")");
+		System.out.println(indexPlanner.getSummary(dataCache.getConnection()));
+		if(queryDiagnostics!=null)
+			System.out.println(queryDiagnostics.getSummary());
+		//dropping a table drops the views reading it, the streamed views are exported first
+		if(settingEngine==Engine.SQL && !settingStreamingExport)
+			dataCache.dropTable("_USER_INPUT_BIN").commit();
+	}
+	
+	/**
+	 * Checks that a table with CHR, BP1 and BP2 columns has its genomic bin column. The bin columns are added by the loaders only, so that the operation does not alter the shared gene and reference tables.
+	 * @param loadOption the option loading the table again with its bin column
+	 */
+	private void checkBinColumn(String schemaName, String tableName, String columnName, String loadOption) throws SQLException, ApplicationException
+	{
+		Connection connection = dataCache.getConnection();
+		if(GenomicBin.hasColumn(connection, schemaName, tableName, "CHR") && !GenomicBin.hasColumn(connection, schemaName, tableName, columnName))
+			throw new ApplicationException("Operation error. Provided table ["+tableName+"] has no genomic bin column "+columnName+", as it was loaded by an earlier version. Load it again with -"+loadOption+".");
+	}
+	
+	/**
+	 * Creates a stage table, after the indexes planned from the query. When stages run concurrently, the table is created empty and then filled, as CREATE TABLE AS SELECT holds the schema lock for the whole query.
+	 * In the streaming export a result dataset is created as a view instead, run once when it is exported.
+	 */
+	private void stageTable(DataCache cache, String schemaName, String tableName, String q) throws SQLException
+	{
+		indexPlanner.prepare(cache.getConnection(), q);
+		diagnoseQuery(cache, tableName, q);
+		if(isStreamedDataset(tableName))
 		{
+			//a table or view of the name is replaced
+			Statement s = cache.getConnection().createStatement();
+			try
 			{
-				SELECT("g.*, r.type AS type_asd");
-				FROM(schemaName+".PROTEIN_CODING_GENES g");
-				INNER_JOIN(schemaName+"._asd_genes r ON g.genename_gm=r.geneName AND g.geneName_gm IS NOT NULL AND g.geneName_gm!='' AND r.geneName IS NOT NULL AND r.geneName!=''");
-				ORDER_BY("INPUTID,dist,type_asd,genename_gm");
+				s.execute("DROP TABLE IF EXISTS "+schemaName+"."+tableName);
 			}
-		}.toString();
-		dataCache.table("asd_genes", q).commit();
+			finally
+			{
+				s.close();
+			}
+			cache.view(tableName, q).commit();
+			return;
+		}
 		
-		printTimeMeasure();
-		System.out.println("asd_genes");
+		if(settingThreads<=1)
+		{
+			cache.table(tableName, q).commit();
+			return;
+		}
+		
+		cache.table(tableName, "SELECT * FROM ("+q+") WHERE 1=0").commit();
+		Statement s = cache.getConnection().createStatement();
+		try
+		{
+			s.execute("INSERT INTO "+schemaName+"."+tableName+" "+q);
+		}
+		finally
+		{
+			s.close();
+		}
+		cache.commit();
+	}
+	
+	/**
+	 * If the dataset is a view exported by the streaming export, i.e. a result dataset with the TSV or CSV output.
+	 */
+	private boolean isStreamedDataset(String datasetName)
+	{
+		if(!settingStreamingExport)
+			return false;
+		for(String name : resultDatasetName)
+		{
+			if(name.equalsIgnoreCase(datasetName))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Analyses the query of a stage with EXPLAIN ANALYZE, in the diagnostics mode. The stage tables are named as their stages.
+	 */
+	private void diagnoseQuery(DataCache cache, String stageName, String q)
+	{
+		if(queryDiagnostics!=null)
+			queryDiagnostics.analyze(cache.getConnection(), stageName, q);
+	}
+	
+	/**
+	 * Links the user input with a reference table by segment overlap.
+	 */
+	private class OverlapLinkStage extends OperationStage
+	{
+		private String referenceTable, pairTable, referenceColumns, orderBy, schemaName;
 		
+		public OverlapLinkStage(String nName, String nReferenceTable, String nLinkName, String nReferenceColumns, String nOrderBy, String nSchemaName)
+		{
+			super(nName, settingEngine==Engine.NATIVE?new String[]{"_USER_INPUT", nReferenceTable, nLinkName+"_PAIRS"}:new String[]{"_USER_INPUT", "_USER_INPUT_BIN", nReferenceTable}, new String[]{nName});
+			referenceTable=nReferenceTable;
+			pairTable=nLinkName+"_PAIRS";
+			referenceColumns=nReferenceColumns;
+			orderBy=nOrderBy;
+			schemaName=nSchemaName;
+		}
 		
-		//*=== id/dev delay ;
-		q=new SQL()
+		@Override
+		public void run(final DataCache cache) throws Exception
 		{
+			String q;
+			if(settingEngine==Engine.NATIVE)
 			{
-				SELECT("g.*, r.type AS type_id_dd");
-				FROM(schemaName+".PROTEIN_CODING_GENES g");
-				INNER_JOIN(schemaName+"._id_devdelay_genes r ON g.geneName_gm=r.geneName AND g.geneName_gm IS NOT NULL AND g.geneName_gm!='' AND r.geneName IS NOT NULL AND r.geneName!=''");
-				ORDER_BY("INPUTID,dist,type_id_dd,genename_gm");
+				q=new SQL()
+				{
+					{
+						SELECT("c.*, "+referenceColumns);
+						FROM(schemaName+"._USER_INPUT c");
+						INNER_JOIN(schemaName+"."+pairTable+" p ON c._ROWID_=p.L");
+						INNER_JOIN(schemaName+"."+referenceTable+" r ON r._ROWID_=p.R");
+						ORDER_BY(orderBy);
+					}
+				}.toString();
 			}
-		}.toString();
-		dataCache.table("id_devdelay_genes", q).commit();
-		
-		printTimeMeasure();
-		System.out.println("id_devdelay_genes");
+			else
+				q=StageQueries.overlapLink(cache, schemaName, referenceTable, referenceColumns, orderBy);
+			stageTable(cache, schemaName, getName(), q);
+			if(settingEngine==Engine.NATIVE && !isStreamedDataset(getName()))
+				cache.dropTable(pairTable).commit();
+		}
+	}
+	
+	/**
+	 * Links the protein coding genes near the user input with a reference gene list by gene name.
+	 */
+	private class GeneNameLinkStage extends OperationStage
+	{
+		private String referenceTable, pairTable, referenceColumns, orderBy, schemaName;
 		
+		public GeneNameLinkStage(String nName, String nReferenceTable, String nLinkName, String nReferenceColumns, String nOrderBy, String nSchemaName)
+		{
+			super(nName, settingEngine==Engine.NATIVE?new String[]{"_USER_INPUT", "GENE_MASTER", nReferenceTable, nLinkName+"_PAIRS"}:new String[]{"PROTEIN_CODING_GENES", nReferenceTable}, new String[]{nName});
+			referenceTable=nReferenceTable;
+			pairTable=nLinkName+"_PAIRS";
+			referenceColumns=nReferenceColumns;
+			orderBy=nOrderBy;
+			schemaName=nSchemaName;
+		}
 		
-		//*=== mouse knockout, jax;
-		q=new SQL()
+		@Override
+		public void run(DataCache cache) throws Exception
 		{
+			String q;
+			if(settingEngine==Engine.NATIVE)
 			{
-				SELECT("g.*, r.musName AS musname_r, r.phenotype AS phenotype_r");
-				FROM(schemaName+".PROTEIN_CODING_GENES g");
-				INNER_JOIN(schemaName+"._mouse_knockout r ON g.geneName_gm=r.geneName AND g.geneName_gm IS NOT NULL AND g.geneName_gm!='' AND r.geneName IS NOT NULL AND r.geneName!=''");
-				ORDER_BY("INPUTID,dist,ensembl_gm");
+				q=new SQL()
+				{
+					{
+						SELECT("c.*, "+proteinCodingGeneColumns+", p.DIST AS dist, "+referenceColumns);
+						FROM(schemaName+"._USER_INPUT c");
+						INNER_JOIN(schemaName+"."+pairTable+" p ON c._ROWID_=p.L");
+						INNER_JOIN(schemaName+".GENE_MASTER g ON g._ROWID_=p.G");
+						INNER_JOIN(schemaName+"."+referenceTable+" r ON r._ROWID_=p.R");
+						ORDER_BY(orderBy);
+					}
+				}.toString();
 			}
-		}.toString();
-		dataCache.table("mouse_knockout", q).commit();
+			else
+				q=StageQueries.geneNameLink(schemaName, referenceTable, referenceColumns, orderBy);
+			stageTable(cache, schemaName, getName(), q);
+			if(settingEngine==Engine.NATIVE && !isStreamedDataset(getName()))
+				cache.dropTable(pairTable).commit();
+		}
+	}
+	
+	/**
+	 * The native operator of the reference tracks: the protein coding genes of GENE_MASTER, the overlap links and the gene name links.
+	 */
+	private NativeOperator createNativeOperator(DataCache cache, String schemaName) throws SQLException, ApplicationException
+	{
+		ReferenceSnapshot referenceSnapshot = openReferenceSnapshot();
+		NativeOperator operator = new NativeOperator(loadReferenceTrack(cache, referenceSnapshot, schemaName, "GENE_MASTER", "TTYPE", "protein_coding", true), proteinCodingExpansion, proteinCodingMaxDistance);
+		operator.addOverlapLink("GWAS_CATALOG", loadReferenceTrack(cache, referenceSnapshot, schemaName, "_gwas_catalog", null, null, false));
+		operator.addOverlapLink("PSYCHIATRIC_CNVS", loadReferenceTrack(cache, referenceSnapshot, schemaName, "_psychiatric_cnvs", null, null, false));
+		operator.addGeneNameLink("OMIM", RegionTrack.loadGeneNames(cache.getConnection(), schemaName, "_omim"));
+		operator.addGeneNameLink("ASD_GENES", RegionTrack.loadGeneNames(cache.getConnection(), schemaName, "_asd_genes"));
+		operator.addGeneNameLink("ID_DEVDELAY_GENES", RegionTrack.loadGeneNames(cache.getConnection(), schemaName, "_id_devdelay_genes"));
+		operator.addGeneNameLink("MOUSE_KNOCKOUT", RegionTrack.loadGeneNames(cache.getConnection(), schemaName, "_mouse_knockout"));
+		return operator;
+	}
+	
+	/**
+	 * Native link operations, partitioned by chromosome and run on a fork-join pool if more than one thread is set. Writes a row id pair table per link (L=_USER_INPUT, R=reference, G=GENE_MASTER for the gene name links), named as the link with the suffix _PAIRS.
+	 */
+	private void operateNative(DataCache cache, String schemaName) throws SQLException, ApplicationException
+	{
+		RegionTrack userInputTrack = RegionTrack.load(cache.getConnection(), schemaName, "_USER_INPUT", null);
 		
-		printTimeMeasure();
-		System.out.println("mouse_knockout");
+		//in batch mode the operator, with the reference tracks and their lazily built indexes, is built once and shared by all input files
+		NativeOperator operator = batchNativeOperator;
+		if(operator==null)
+		{
+			operator = createNativeOperator(cache, schemaName);
+			if(settingBatch!=null)
+				batchNativeOperator = operator;
+		}
 		
+		LinkedHashMap<String, LinkPairs> links;
+		if(settingThreads>1)
+		{
+			ForkJoinPool pool = new ForkJoinPool(settingThreads);
+			try
+			{
+				links = operator.run(userInputTrack, pool);
+			}
+			finally
+			{
+				pool.shutdown();
+			}
+		}
+		else
+			links = operator.run(userInputTrack, null);
 		
-		System.out.println("Operations done");
-		System.out.println("Operations time: "+(System.nanoTime()- operationStartTimeNanos)/1E9+" seconds");
+		System.out.println("Native links computed ("+userInputTrack.getPartitions().size()+" chromosome partitions, "+settingThreads+" threads)");
 		
+		for(Map.Entry<String, LinkPairs> link : links.entrySet())
+			link.getValue().write(cache.getConnection(), schemaName, link.getKey()+"_PAIRS");
+		cache.commit();
 	}
 	
 }
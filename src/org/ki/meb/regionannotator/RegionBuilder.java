@@ -3,20 +3,26 @@ package org.ki.meb.regionannotator;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
-import javax.ws.rs.core.Form;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -27,10 +33,31 @@ import org.apache.commons.csv.CSVRecord;
 import org.jakz.common.ApplicationException;
 import org.jakz.common.JSONArray;
 import org.jakz.common.JSONObject;
-import org.jakz.common.OperationException;
 
+/**
+ * Remaps the rsIDs of a GWAS catalog file to GRCh37 coordinates with the Ensembl REST API, writing newSNPMapping.tsv (rsID, new position) in input order.
+ * The distinct rsIDs are looked up in bulk POST requests, a bounded number of them in flight, under a token bucket rate limit following the Retry-After and X-RateLimit-* headers of the server.
+ * Results, also unresolved rsIDs, are kept in an {@link RsIdCache} ({@value #cacheFileName}) so that only new and expired rsIDs are looked up again by the next run.
+ * <p>
+ * Alternatively, in liftover mode, remaps the regions of a coordinate file (e.g. coordMapToConvert.bed) offline with a UCSC chain file, see {@link ChainLiftover}.
+ */
 public class RegionBuilder
 {
+	public static final String defaultServerUrl = "http://grch37.rest.ensembl.org";
+	public static final String variationPath = "variation/homo_sapiens";
+	public static final String assembly = "GRCh37";
+	public static final String cacheFileName = "rsIdCache.log";
+	public static final String liftoverMode = "-liftover";
+	public static final String defaultLiftoverOutputFileName = "coordMapConverted.bed";
+	public static final String unliftedSuffix = ".unlifted";
+	/** The maximum number of ids of a POST request to the variation endpoint. */
+	public static final int batchSize = 200;
+	public static final int maxInFlight = 4;
+	public static final int maxAttempts = 10;
+	/** The Ensembl limit of 55000 requests per hour. */
+	public static final double defaultRate = 15;
+	private static final long defaultRetryAfterMillis = 5000;
+
 	private static CSVFormat csvFormatTSV = CSVFormat.DEFAULT.withDelimiter('\t').withAllowMissingColumnNames(false);
 	private File infile,outfile;
 
@@ -42,22 +69,148 @@ public class RegionBuilder
 	
 	Client restWSClient;
 	WebTarget t;
+	private TokenBucket rateLimit;
+	private RsIdCache cache;
 
+	/**
+	 * @param args input file path, optionally followed by the server url (default {@value #defaultServerUrl}), e.g. of a local stub server.
+	 * Or {@value #liftoverMode} followed by the chain file path, the coordinate file path and optionally the output file path (default {@value #defaultLiftoverOutputFileName}).
+	 */
 	public static void main(String[] args) throws IOException, ApplicationException
 	{
-		
-		new RegionBuilder(args[0]);
+		if(args.length>0 && args[0].equals(liftoverMode))
+		{
+			if(args.length<3)
+				throw new ApplicationException("Liftover argument error. Provided ["+args.length+"] arguments, the chain file and the coordinate file are needed.");
+			liftover(new File(args[1]), new File(args[2]), new File(args.length>3?args[3]:defaultLiftoverOutputFileName), Runtime.getRuntime().availableProcessors());
+			return;
+		}
+
+		new RegionBuilder(args[0], args.length>1?args[1]:defaultServerUrl);
 
 	}
+
+	/**
+	 * Lifts the regions of a whitespace separated coordinate file, with the columns chr, bp1, bp2 and any further columns kept as they are. Comment lines (#) are copied.
+	 * The lifted rows are written to the output file, in input order and with the separator and chr prefix style of the input, and the rows that could not be lifted to the output file with the suffix {@value #unliftedSuffix}.
+	 */
+	public static void liftover(File chainFile, File inputFile, File outputFile, int threads) throws IOException, ApplicationException
+	{
+		long startNanos = System.nanoTime();
+		ChainLiftover liftover = new ChainLiftover(chainFile);
+		System.out.println("Loaded "+liftover.getChainCount()+" chains, "+liftover.getBlockCount()+" blocks in "+(System.nanoTime()-startNanos)/1000000+" ms");
+
+		ArrayList<String> lines = new ArrayList<String>();
+		IntArrayList chrCode = new IntArrayList(), bp1 = new IntArrayList(), bp2 = new IntArrayList(), lineRow = new IntArrayList();
+		BufferedReader reader = new BufferedReader(new FileReader(inputFile), 1<<16);
+		try
+		{
+			String line;
+			while((line=reader.readLine())!=null)
+			{
+				lines.add(line);
+				if(line.trim().isEmpty() || line.charAt(0)=='#')
+				{
+					lineRow.add(-1);
+					continue;
+				}
+				String[] field = line.trim().split("\\s+", 4);
+				if(field.length<3)
+					throw new ApplicationException("Coordinate file error. Provided line "+lines.size()+" ["+line+"], the columns chr, bp1, bp2 are needed.");
+				try
+				{
+					bp1.add(Integer.parseInt(field[1]));
+					bp2.add(Integer.parseInt(field[2]));
+				}
+				catch (NumberFormatException e)
+				{
+					throw new ApplicationException("Coordinate file error. Provided line "+lines.size()+" ["+line+"]", e);
+				}
+				chrCode.add(liftover.getTargetChrCode(field[0]));
+				lineRow.add(chrCode.size()-1);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		int rows = chrCode.size();
+		int[] outChr = new int[rows], outBp1 = new int[rows], outBp2 = new int[rows];
+		long liftNanos = System.nanoTime();
+		ForkJoinPool pool = threads>1?new ForkJoinPool(threads):null;
+		int lifted;
+		try
+		{
+			lifted = liftover.lift(chrCode.toArray(), bp1.toArray(), bp2.toArray(), outChr, outBp1, outBp2, pool);
+		}
+		finally
+		{
+			if(pool!=null)
+				pool.shutdown();
+		}
+		liftNanos = System.nanoTime()-liftNanos;
+
+		BufferedWriter liftedWriter = new BufferedWriter(new FileWriter(outputFile), 1<<16);
+		BufferedWriter unliftedWriter = new BufferedWriter(new FileWriter(new File(outputFile.getPath()+unliftedSuffix)));
+		try
+		{
+			for(int iLine=0; iLine<lines.size(); iLine++)
+			{
+				String line = lines.get(iLine);
+				int row = lineRow.get(iLine);
+				if(row<0)
+				{
+					liftedWriter.write(line);
+					liftedWriter.newLine();
+					continue;
+				}
+				if(outChr[row]<0)
+				{
+					unliftedWriter.write(line);
+					unliftedWriter.newLine();
+					continue;
+				}
+				String[] field = line.trim().split("\\s+", 4);
+				String separator = line.indexOf('\t')>=0?"\t":" ";
+				String chr = liftover.getQueryChrName(outChr[row]);
+				if(!field[0].equals(ChainLiftover.normaliseChr(field[0])))
+					chr = field[0].substring(0, 3)+chr;
+				liftedWriter.write(chr+separator+outBp1[row]+separator+outBp2[row]+(field.length>3?separator+field[3]:""));
+				liftedWriter.newLine();
+			}
+		}
+		finally
+		{
+			liftedWriter.close();
+			unliftedWriter.close();
+		}
+		System.out.println("Lifted "+lifted+" of "+rows+" regions in "+liftNanos/1000000+" ms ("+Math.round(rows/(liftNanos/1E9))+" regions/s), "+(rows-lifted)+" unlifted");
+	}
 	
 	public RegionBuilder(String infilepath) throws IOException, ApplicationException
+	{
+		this(infilepath, defaultServerUrl);
+	}
+
+	public RegionBuilder(String infilepath, String serverUrl) throws IOException, ApplicationException
+	{
+		this(infilepath, serverUrl, new File("newSNPMapping.tsv"), new File(cacheFileName));
+	}
+
+	/**
+	 * @param nOutfile the newSNPMapping.tsv file
+	 * @param cacheFile the {@value #cacheFileName} file
+	 */
+	RegionBuilder(String infilepath, String serverUrl, File nOutfile, File cacheFile) throws IOException, ApplicationException
 	{
 		restWSClient = ClientBuilder.newClient();
-		t = restWSClient.target("http://grch37.rest.ensembl.org/variation/human/");
-		
-		
+		t = restWSClient.target(serverUrl).path(variationPath);
+		rateLimit = new TokenBucket(defaultRate, defaultRate);
+		cache = new RsIdCache(cacheFile);
+
 		infile = new File(infilepath);
-		outfile = new File("newSNPMapping.tsv");
+		outfile = nOutfile;
 		inreader = new BufferedReader(new FileReader(infile));
 		outwriter = new BufferedWriter(new FileWriter(outfile));
 		
@@ -70,36 +223,62 @@ public class RegionBuilder
 		//remove header row
 		if(rowIt.hasNext())
 			rowIt.next();
-		
+
+		//the rsIDs of the rows, in input order
+		ArrayList<String> rowRsId = new ArrayList<String>();
 		while(rowIt.hasNext())
 		{
-			if(rowIndexCounter % 1000 ==0)
-				System.out.println("1k rows passed");
-			
-			operateRow(rowIt.next());
+			String rsId = operateRow(rowIt.next());
+			if(rsId!=null)
+				rowRsId.add(rsId);
 			rowIndexCounter++;
-			//Dev settings
-			//if(rowIndexCounter>100)
-				//break;
 		}
-		
+
+		LinkedHashSet<String> distinctRsId = new LinkedHashSet<String>();
+		for(String rsId : rowRsId)
+		{
+			if(rsId.length()>2)
+				distinctRsId.add(rsId);
+		}
+		System.out.println(rowRsId.size()+" rows, "+distinctRsId.size()+" distinct rsIDs to remap");
+		HashMap<String, Integer> newCoordinate;
+		try
+		{
+			newCoordinate = fetchNewCoordinates(new ArrayList<String>(distinctRsId));
+		}
+		finally
+		{
+			cache.close();
+		}
+
+		for(String rsId : rowRsId)
+		{
+			ArrayList<String> rowToWrite = new ArrayList<String>();
+			rowToWrite.add(rsId);
+			Integer coordinate = newCoordinate.get(rsId);
+			rowToWrite.add(coordinate!=null?""+coordinate:"");
+			csvPrinter.printRecord(rowToWrite);
+		}
+
 		outwriter.flush();
 		csvPrinter.close();
 		outwriter.close();
 		csvParser.close();
 		inreader.close();
+		restWSClient.close();
 	}
-	
-	private void operateRow(CSVRecord csvRecord) throws ApplicationException, IOException
+
+	/**
+	 * @return the rsID of the row, or null for a comment row or a row without one
+	 */
+	private String operateRow(CSVRecord csvRecord) throws ApplicationException, IOException
 	{
 		if(!csvRecord.isConsistent())
 			throw new ApplicationException("Row index "+rowIndexCounter+" is of non consistent size");
 		Iterator<String> cellIt = csvRecord.iterator();
-		ArrayList<String> rowToWrite = new ArrayList<String>();
-		
+
 		String rsId = null;
-		String newPos=null;
-		
+
 		for(int icell=0; cellIt.hasNext(); icell++)
 		{
 			String cellContent = cellIt.next().trim();
@@ -108,7 +287,7 @@ public class RegionBuilder
 			if(icell==0 && cellContent.indexOf("#")==0)
 			{
 				System.out.println(cellContent);
-				return;
+				return null;
 			}
 			
 			
@@ -119,88 +298,225 @@ public class RegionBuilder
 			}
 				
 		}
-		
-		if(rsId!=null)
+
+		return rsId;
+	}
+
+	/**
+	 * Looks up the GRCh37 coordinates of the rsIDs, from the cache, and the cache misses in batches of {@link #batchSize} with at most {@link #maxInFlight} requests in flight.
+	 * @return the coordinates of the resolved rsIDs
+	 */
+	private HashMap<String, Integer> fetchNewCoordinates(List<String> rsIds) throws ApplicationException, IOException
+	{
+		HashMap<String, Integer> newCoordinate = new HashMap<String, Integer>();
+		ArrayList<String> missing = new ArrayList<String>();
+		for(String rsId : rsIds)
 		{
-			rowToWrite.add(rsId);
-			newPos="";
-			if(rsId.length()>2)
+			RsIdCache.Entry entry = cache.get(assembly, rsId);
+			if(entry==null)
+				missing.add(rsId);
+			else if(entry.isFound())
+				newCoordinate.put(rsId, entry.getCoordinate());
+		}
+		System.out.println("rsID cache: "+cache.getHits()+" hits, "+cache.getMisses()+" misses ("+cache.getExpired()+" expired), "+(rsIds.size()-missing.size())+" remote lookups saved");
+		rsIds = missing;
+
+		ExecutorService executor = Executors.newFixedThreadPool(maxInFlight);
+		CompletionService<HashMap<String, Integer>> completion = new ExecutorCompletionService<HashMap<String, Integer>>(executor);
+		int batches = 0;
+		try
+		{
+			for(int i=0; i<rsIds.size(); i+=batchSize)
 			{
-				Integer newCoordinate = fetchNewCoordinate(rsId);
-				if(newCoordinate!=null)
-					newPos=""+newCoordinate;
+				final List<String> batch = rsIds.subList(i, Math.min(rsIds.size(), i+batchSize));
+				completion.submit(new Callable<HashMap<String, Integer>>()
+				{
+					@Override
+					public HashMap<String, Integer> call() throws Exception
+					{
+						return fetchNewCoordinateBatch(batch);
+					}
+				});
+				batches++;
+			}
+
+			int resolved = 0, reported = 0;
+			for(int iBatch=0; iBatch<batches; iBatch++)
+			{
+				HashMap<String, Integer> batchCoordinate;
+				try
+				{
+					batchCoordinate = completion.take().get();
+				}
+				catch (ExecutionException e)
+				{
+					throw new ApplicationException("Exception when communicating with external.", e.getCause());
+				}
+				for(String rsId : batchCoordinate.keySet())
+				{
+					Integer coordinate = batchCoordinate.get(rsId);
+					cache.put(assembly, rsId, coordinate);
+					if(coordinate!=null)
+					{
+						newCoordinate.put(rsId, coordinate);
+						resolved++;
+					}
+				}
+				if((resolved-reported)>=1000 || iBatch==batches-1)
+				{
+					reported = resolved;
+					System.out.println((iBatch+1)+" of "+batches+" requests done, "+resolved+" rsIDs resolved");
+				}
 			}
-			rowToWrite.add(newPos);
-			csvPrinter.printRecord(rowToWrite);
 		}
-	}
-	
-	private Integer fetchNewCoordinate(String rsId) throws ApplicationException
-	{
-		Response response = null;
-		
-		try
+		catch (InterruptedException e)
 		{
-			response = t.path(rsId).request(MediaType.APPLICATION_JSON).get();
+			throw new ApplicationException("Interrupted when communicating with external.", e);
 		}
-		catch (Exception e)
+		finally
 		{
-			throw new ApplicationException("Exception when communicating with external.", e);
+			executor.shutdownNow();
 		}
-		
-		if(response!=null&&response.getStatus()==200&&response.hasEntity())
+		return newCoordinate;
+	}
+
+	/**
+	 * One POST request of a batch of rsIDs, retried on 429 (after Retry-After) and on server or connection errors (with backoff), at most {@link #maxAttempts} times.
+	 * A 400 response rejects the whole batch for any bad rsID in it, so the batch is then split in halves and these are requested again, until a bad rsID is alone and is left unresolved.
+	 */
+	private HashMap<String, Integer> fetchNewCoordinateBatch(List<String> rsIds) throws ApplicationException, InterruptedException
+	{
+		StringBuilder body = new StringBuilder("{\"ids\":[");
+		for(int i=0; i<rsIds.size(); i++)
+		{
+			if(i>0)
+				body.append(',');
+			body.append('"').append(rsIds.get(i).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+		}
+		body.append("]}");
+
+		for(int attempt=1; ; attempt++)
 		{
-			String readResponse = response.readEntity(String.class);
-			JSONObject jsonResponse = new JSONObject(readResponse);
-			if(jsonResponse.has("mappings"))
+			rateLimit.acquire();
+			Response response = null;
+			String failure;
+			boolean rateLimited = false, badRequest = false;
+			try
 			{
-				JSONArray mappings = jsonResponse.getJSONArray("mappings");
-				if(mappings.length()>0)
+				response = t.request(MediaType.APPLICATION_JSON).post(Entity.entity(body.toString(), MediaType.APPLICATION_JSON));
+				updateRateLimit(response);
+				int status = response.getStatus();
+				if(status==200)
+					return readNewCoordinates(rsIds, response.hasEntity()?response.readEntity(String.class):"{}");
+				else if(status==400 && rsIds.size()>1)
 				{
-					JSONObject m0 = mappings.getJSONObject(0);
-					if(m0.getString("assembly_name").equals("GRCh37"))
-					{
-						return m0.getInt("start");
-					}
-					else
-						return null;
+					badRequest = true;
+					failure = "Status code 400";
+				}
+				else if(status==400)
+				{
+					System.err.println("Status code 400, rsid="+rsIds.get(0)+" response:\n"+(response.hasEntity()?response.readEntity(String.class):""));
+					HashMap<String, Integer> unresolved = new HashMap<String, Integer>();
+					unresolved.put(rsIds.get(0), null);
+					return unresolved;
+				}
+				else if(status==429)
+				{
+					rateLimit.pause(parseRetryAfterMillis(response.getHeaderString("Retry-After")));
+					rateLimited = true;
+					failure = "Status code 429";
 				}
-				else return null;
+				else
+					failure = "Status code "+status;
 			}
-			else
-				return null;
+			catch (Exception e)
+			{
+				failure = e.toString();
+			}
+			finally
+			{
+				if(response!=null)
+					response.close();
+			}
+
+			if(badRequest)
+			{
+				int half = rsIds.size()/2;
+				HashMap<String, Integer> newCoordinate = fetchNewCoordinateBatch(rsIds.subList(0, half));
+				newCoordinate.putAll(fetchNewCoordinateBatch(rsIds.subList(half, rsIds.size())));
+				return newCoordinate;
+			}
+			if(attempt>=maxAttempts)
+				throw new ApplicationException("No working connection with external after "+attempt+" attempts. "+failure);
+			//a rate limited request waits in the token bucket, other failures back off
+			if(!rateLimited)
+				Thread.sleep(Math.min(60000L, 1000L<<(attempt-1)));
 		}
-		else if(response!=null&&response.getStatus()==400)
+	}
+
+	/**
+	 * The coordinates of the bulk response, keyed by rsID, taking the first mapping if it is on GRCh37, and null for an unresolved rsID.
+	 */
+	private static HashMap<String, Integer> readNewCoordinates(List<String> rsIds, String readResponse)
+	{
+		HashMap<String, Integer> newCoordinate = new HashMap<String, Integer>();
+		JSONObject jsonResponse = new JSONObject(readResponse);
+		for(String rsId : rsIds)
 		{
-			if(response.hasEntity())
+			newCoordinate.put(rsId, null);
+			if(!jsonResponse.has(rsId))
+				continue;
+			JSONObject variation = jsonResponse.getJSONObject(rsId);
+			if(!variation.has("mappings"))
+				continue;
+			JSONArray mappings = variation.getJSONArray("mappings");
+			if(mappings.length()>0)
 			{
-				String readResponse = response.readEntity(String.class);
-				System.err.println("Status code 400, rsid="+rsId+" response:\n"+readResponse);
+				JSONObject m0 = mappings.getJSONObject(0);
+				if(m0.getString("assembly_name").equals(assembly))
+					newCoordinate.put(rsId, m0.getInt("start"));
 			}
-			return null;
 		}
-		else if(response!=null&&response.getStatus()==429)
+		return newCoordinate;
+	}
+
+	/**
+	 * Follows the rate limit headers: the rate of X-RateLimit-Limit per X-RateLimit-Period, and a pause until X-RateLimit-Reset when X-RateLimit-Remaining is 0.
+	 */
+	private void updateRateLimit(Response response)
+	{
+		try
 		{
-			try
-			{
-				Thread.sleep(5000);
-			} catch (InterruptedException e)
+			String limit = response.getHeaderString("X-RateLimit-Limit");
+			String period = response.getHeaderString("X-RateLimit-Period");
+			if(limit!=null && period!=null && Double.parseDouble(period)>0)
 			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				double rate = Double.parseDouble(limit)/Double.parseDouble(period);
+				if(rate>0 && rate!=rateLimit.getRate())
+					rateLimit.setRate(rate);
 			}
-			
-			return fetchNewCoordinate(rsId);
+			String remaining = response.getHeaderString("X-RateLimit-Remaining");
+			String reset = response.getHeaderString("X-RateLimit-Reset");
+			if(remaining!=null && reset!=null && Double.parseDouble(remaining)<=0)
+				rateLimit.pause((long)(Double.parseDouble(reset)*1000));
+		}
+		catch (NumberFormatException e)
+		{
+			//malformed headers are ignored
 		}
-		else if(response!=null)
+	}
+
+	private static long parseRetryAfterMillis(String retryAfter)
+	{
+		if(retryAfter==null)
+			return defaultRetryAfterMillis;
+		try
 		{
-			System.err.println("No working connection with external. Status code "+response.getStatus());
-			return null;
+			return (long)(Double.parseDouble(retryAfter.trim())*1000);
 		}
-		else
+		catch (NumberFormatException e)
 		{
-			System.err.println("No working connection with external. No response available.");
-			return null;
+			return defaultRetryAfterMillis;
 		}
 	}
 
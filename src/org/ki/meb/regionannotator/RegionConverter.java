@@ -1,12 +1,16 @@
 package org.ki.meb.regionannotator;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -21,43 +25,99 @@ import org.jakz.common.ApplicationException;
 
 /**
  * Converts GFF3 into tsv
+ * <p>
+ * The gene rows of the GFF3 file, plain or gzipped, are read with the streaming {@link Gff3Parser}. The former CSV parser based conversion is kept as the legacy implementation, and a benchmark mode runs and compares both.
  * @author johkal
  *
  */
 public class RegionConverter
 {
+	public static final String benchmarkMode = "-benchmark";
+	public static final String legacyMode = "-legacy";
+	public static final String featureType = "gene";
+	public static final String[] attributeKey = new String[]{"gene_id","transcript_id","gene_name","transcript_type"};
 	private static CSVFormat csvFormatTSVGff3 = CSVFormat.DEFAULT.withDelimiter('\t').withAllowMissingColumnNames(true);
 	private static CSVFormat csvFormatTSV = CSVFormat.DEFAULT.withDelimiter('\t').withAllowMissingColumnNames(false);
 	private File infile,outfile;
 	private BufferedReader inreader;
 	private BufferedWriter outwriter;
-	private int rowIndexCounter;
+	private int rowIndexCounter, outputRowCounter;
 	private CSVParser csvParser;
 	private CSVPrinter csvPrinter;
 	
 	/**
 	 * Converts GFF3 into tsv
-	 * @param args
+	 * @param args the GFF3 file path, optionally preceded by {@value #legacyMode} to use the legacy implementation, or {@value #benchmarkMode} followed by the GFF3 file path and optionally the number of rounds
 	 * @throws IOException 
 	 * @throws ApplicationException 
 	 */
 	public static void main(String[] args) throws IOException, ApplicationException
 	{
-		new RegionConverter(args[0]);
+		if(args[0].equals(benchmarkMode))
+			benchmark(new File(args[1]), args.length>2?Integer.parseInt(args[2]):3);
+		else if(args[0].equals(legacyMode))
+			new RegionConverter(new File(args[1]), new File("RCOUT.TSV"), true);
+		else
+			new RegionConverter(args[0]);
 	}
 	
 	public RegionConverter(String infilepath) throws IOException, ApplicationException
 	{
-		infile = new File(infilepath);
-		outfile = new File("RCOUT.TSV");
-		inreader = new BufferedReader(new FileReader(infile));
+		this(new File(infilepath), new File("RCOUT.TSV"), false);
+	}
+	
+	/**
+	 * @param legacy use the legacy CSV parser based implementation
+	 */
+	public RegionConverter(File nInfile, File nOutfile, boolean legacy) throws IOException, ApplicationException
+	{
+		infile = nInfile;
+		outfile = nOutfile;
 		outwriter = new BufferedWriter(new FileWriter(outfile));
+		csvPrinter = csvFormatTSV.print(outwriter);
 		
 		rowIndexCounter=0;
+		outputRowCounter=0;
 		
+		if(legacy)
+			convertLegacy();
+		else
+			convert();
+		
+		outwriter.flush();
+		csvPrinter.close();
+		outwriter.close();
+	}
+	
+	private void convert() throws IOException, ApplicationException
+	{
+		Gff3Parser parser = new Gff3Parser(Gff3Parser.open(infile), featureType, attributeKey);
+		parser.setCommentStream(System.out);
+		try
+		{
+			String[] readRow = new String[12];
+			while(parser.next())
+			{
+				for(int icell=0; icell<8; icell++)
+					readRow[icell]=parser.getColumn(icell);
+				for(int ikey=0; ikey<attributeKey.length; ikey++)
+					readRow[8+ikey]=parser.getAttribute(ikey);
+				csvPrinter.printRecord((Object[])readRow);
+				outputRowCounter++;
+			}
+			rowIndexCounter=(int)parser.getLineNumber();
+		}
+		finally
+		{
+			parser.close();
+		}
+	}
+	
+	private void convertLegacy() throws IOException, ApplicationException
+	{
+		inreader = new BufferedReader(new InputStreamReader(Gff3Parser.open(infile), StandardCharsets.UTF_8));
 		csvParser = csvFormatTSVGff3.parse(inreader);
 		Iterator<CSVRecord> rowIt = csvParser.iterator();
-		csvPrinter = csvFormatTSV.print(outwriter);
 		
 		while(rowIt.hasNext())
 		{
@@ -68,14 +128,63 @@ public class RegionConverter
 				//break;
 		}
 		
-		outwriter.flush();
-		csvPrinter.close();
-		outwriter.close();
 		csvParser.close();
 		inreader.close();
 		
 	}
 	
+	/**
+	 * Runs both implementations on the file, the given number of rounds each, printing their times and rates and whether their outputs are identical.
+	 */
+	public static void benchmark(File gff3File, int rounds) throws IOException, ApplicationException
+	{
+		File legacyOutfile = File.createTempFile("RCOUT_legacy", ".tsv");
+		File streamingOutfile = File.createTempFile("RCOUT_streaming", ".tsv");
+		try
+		{
+			for(int round=1; round<=rounds; round++)
+			{
+				for(int implementation=0; implementation<2; implementation++)
+				{
+					boolean legacy = implementation==0;
+					long startNanos = System.nanoTime();
+					RegionConverter converter = new RegionConverter(gff3File, legacy?legacyOutfile:streamingOutfile, legacy);
+					double seconds = (System.nanoTime()-startNanos)/1E9;
+					System.out.println("Round "+round+" "+(legacy?"legacy":"streaming")+": "+converter.rowIndexCounter+" lines, "+converter.outputRowCounter+" "+featureType+" rows in "+Math.round(seconds*1000)+" ms ("+Math.round(converter.rowIndexCounter/seconds)+" lines/s)");
+				}
+			}
+			System.out.println("Outputs "+(contentEquals(legacyOutfile, streamingOutfile)?"identical":"DIFFERENT"));
+		}
+		finally
+		{
+			legacyOutfile.delete();
+			streamingOutfile.delete();
+		}
+	}
+	
+	private static boolean contentEquals(File a, File b) throws IOException
+	{
+		if(a.length()!=b.length())
+			return false;
+		InputStream inA = new BufferedInputStream(new FileInputStream(a));
+		InputStream inB = new BufferedInputStream(new FileInputStream(b));
+		try
+		{
+			int byteA;
+			while((byteA=inA.read())>=0)
+			{
+				if(byteA!=inB.read())
+					return false;
+			}
+			return true;
+		}
+		finally
+		{
+			inA.close();
+			inB.close();
+		}
+	}
+	
 	private void operateRow(CSVRecord csvRecord) throws ApplicationException, IOException
 	{
 		if(!csvRecord.isConsistent())
@@ -138,9 +247,10 @@ public class RegionConverter
 				
 		}
 		
-		if(readRow[2].equals("gene"))
+		if(readRow[2].equals(featureType))
 		{
 			csvPrinter.printRecord(Arrays.asList(readRow));
+			outputRowCounter++;
 		}
 	}
 
@@ -0,0 +1,364 @@
+package org.ki.meb.regionannotator;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+
+import org.jakz.common.ApplicationException;
+
+/**
+ * Column buffers of the region coordinates of a database table (row id, chr, bp1, bp2, and optionally the gene name), for the native join engines.
+ * A track is either read from the database into heap buffers, or wraps the buffers of a memory mapped reference snapshot.
+ * <p>
+ * Every row records which of its end points are present. A row with a null bp1 or bp2 is matched as the point of its other end point, as the SQL overlap condition does, and a row with a null chr or with both end points null is never matched.
+ */
+public class RegionTrack
+{
+	public static final byte endsNone=0, endsBoth=1, endsBp1=2, endsBp2=3;
+
+	private String name;
+	private int size;
+	private LongBuffer rowId;
+	private IntBuffer chrCode, bp1, bp2, geneNameCode;
+	private ByteBuffer ends;
+	private ArrayList<String> chrName, geneName;
+	private HashMap<String, Integer> chrCodeMap, geneNameCodeMap;
+	private IntervalIndex index;
+
+	public RegionTrack(String nName)
+	{
+		name=nName;
+		size=0;
+		rowId = LongBuffer.allocate(1024);
+		chrCode = IntBuffer.allocate(1024);
+		bp1 = IntBuffer.allocate(1024);
+		bp2 = IntBuffer.allocate(1024);
+		ends = ByteBuffer.allocate(1024);
+		geneNameCode = IntBuffer.allocate(1024);
+		chrName = new ArrayList<String>();
+		chrCodeMap = new HashMap<String, Integer>();
+		geneName = new ArrayList<String>();
+		geneNameCodeMap = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Wraps existing buffers, e.g. from a reference snapshot. The index may cover more rows than the ones with end points, the engines only use the candidates with end points.
+	 * @param nEnds the end points of each row, see {@link #getEnds(int)}
+	 * @param nChrName chromosome names by chr code, a code of -1 is a null chr
+	 * @param nGeneNameCode gene name codes, or null if the track has no gene names
+	 * @param nGeneName gene names by gene name code, a code of -1 is a null name
+	 */
+	public RegionTrack(String nName, int nSize, LongBuffer nRowId, IntBuffer nChrCode, String[] nChrName, IntBuffer nBp1, IntBuffer nBp2, ByteBuffer nEnds, IntervalIndex nIndex, IntBuffer nGeneNameCode, String[] nGeneName)
+	{
+		name=nName;
+		size=nSize;
+		rowId=nRowId;
+		chrCode=nChrCode;
+		bp1=nBp1;
+		bp2=nBp2;
+		ends=nEnds;
+		chrName = new ArrayList<String>();
+		chrCodeMap = new HashMap<String, Integer>();
+		for(int i=0; i<nChrName.length; i++)
+		{
+			chrName.add(nChrName[i]);
+			chrCodeMap.put(nChrName[i], i);
+		}
+		index=nIndex;
+		geneNameCode=nGeneNameCode;
+		geneName = new ArrayList<String>();
+		geneNameCodeMap = new HashMap<String, Integer>();
+		if(nGeneName!=null)
+		{
+			for(int i=0; i<nGeneName.length; i++)
+			{
+				geneName.add(nGeneName[i]);
+				geneNameCodeMap.put(nGeneName[i], i);
+			}
+		}
+	}
+
+	/**
+	 * Reads the coordinates of a table. Rows with a null bp1 or bp2 are indexed on their other end point, rows with a null chr or with both end points null are kept, but never indexed.
+	 * @param condition optional SQL condition restricting the rows, or null
+	 */
+	public static RegionTrack load(Connection connection, String schemaName, String tableName, String condition) throws SQLException, ApplicationException
+	{
+		return load(connection, schemaName, tableName, condition, false);
+	}
+
+	/**
+	 * @param withGeneName also read the GENENAME column
+	 * @throws ApplicationException if a coordinate is outside the int range of the buffers
+	 */
+	public static RegionTrack load(Connection connection, String schemaName, String tableName, String condition, boolean withGeneName) throws SQLException, ApplicationException
+	{
+		RegionTrack track = new RegionTrack(tableName);
+		String q = "SELECT _ROWID_, CHR, BP1, BP2"+(withGeneName?", GENENAME":"")+" FROM "+schemaName+"."+tableName+(condition!=null?" WHERE "+condition:"");
+		Statement s = connection.createStatement();
+		try
+		{
+			ResultSet rs = s.executeQuery(q);
+			while(rs.next())
+			{
+				long id = rs.getLong(1);
+				String c = rs.getString(2);
+				long b1 = rs.getLong(3);
+				boolean b1Null = rs.wasNull();
+				long b2 = rs.getLong(4);
+				boolean b2Null = rs.wasNull();
+				String g = withGeneName?rs.getString(5):null;
+				if(!b1Null && (b1<Integer.MIN_VALUE || b1>Integer.MAX_VALUE) || !b2Null && (b2<Integer.MIN_VALUE || b2>Integer.MAX_VALUE))
+					throw new ApplicationException("Native engine error. Provided coordinates ["+(b1Null?"null":b1)+","+(b2Null?"null":b2)+"] of "+tableName+" row "+id+" are outside the integer range.");
+				track.add(id, c, (int)b1, (int)b2, ends(c, b1Null, b2Null), g);
+			}
+			rs.close();
+		}
+		finally
+		{
+			s.close();
+		}
+		return track;
+	}
+
+	/**
+	 * Reads the gene names of a gene list table without coordinates. No row has end points, so the track is only used for gene name joins.
+	 */
+	public static RegionTrack loadGeneNames(Connection connection, String schemaName, String tableName) throws SQLException
+	{
+		RegionTrack track = new RegionTrack(tableName);
+		Statement s = connection.createStatement();
+		try
+		{
+			ResultSet rs = s.executeQuery("SELECT _ROWID_, GENENAME FROM "+schemaName+"."+tableName);
+			while(rs.next())
+				track.add(rs.getLong(1), null, 0, 0, endsNone, rs.getString(2));
+			rs.close();
+		}
+		finally
+		{
+			s.close();
+		}
+		return track;
+	}
+
+	/**
+	 * Adds a row with both end points.
+	 */
+	public void add(long nRowId, String nChr, int nBp1, int nBp2)
+	{
+		add(nRowId, nChr, nBp1, nBp2, ends(nChr, false, false), null);
+	}
+
+	/**
+	 * Adds a row, with null for a missing chr, end point or gene name.
+	 */
+	public void add(long nRowId, String nChr, Integer nBp1, Integer nBp2, String nGeneName)
+	{
+		add(nRowId, nChr, nBp1==null?0:nBp1, nBp2==null?0:nBp2, ends(nChr, nBp1==null, nBp2==null), nGeneName);
+	}
+
+	private void add(long nRowId, String nChr, int nBp1, int nBp2, byte nEnds, String nGeneName)
+	{
+		if(size==rowId.capacity())
+		{
+			int capacity = size*2;
+			rowId = LongBuffer.wrap(Arrays.copyOf(rowId.array(), capacity));
+			chrCode = IntBuffer.wrap(Arrays.copyOf(chrCode.array(), capacity));
+			bp1 = IntBuffer.wrap(Arrays.copyOf(bp1.array(), capacity));
+			bp2 = IntBuffer.wrap(Arrays.copyOf(bp2.array(), capacity));
+			ends = ByteBuffer.wrap(Arrays.copyOf(ends.array(), capacity));
+			geneNameCode = IntBuffer.wrap(Arrays.copyOf(geneNameCode.array(), capacity));
+		}
+		rowId.put(size, nRowId);
+		chrCode.put(size, encode(nChr, chrName, chrCodeMap));
+		geneNameCode.put(size, encode(nGeneName, geneName, geneNameCodeMap));
+		bp1.put(size, nBp1);
+		bp2.put(size, nBp2);
+		ends.put(size, nEnds);
+		size++;
+		index=null;
+	}
+
+	/**
+	 * The end points of a row, from the nulls of its chr and coordinates.
+	 */
+	static byte ends(String chr, boolean bp1Null, boolean bp2Null)
+	{
+		if(chr==null || bp1Null&&bp2Null)
+			return endsNone;
+		if(bp1Null)
+			return endsBp2;
+		if(bp2Null)
+			return endsBp1;
+		return endsBoth;
+	}
+
+	private static int encode(String value, ArrayList<String> values, HashMap<String, Integer> codeMap)
+	{
+		if(value==null)
+			return -1;
+		Integer code = codeMap.get(value);
+		if(code==null)
+		{
+			code = values.size();
+			values.add(value);
+			codeMap.put(value, code);
+		}
+		return code;
+	}
+
+	/**
+	 * The positions of the rows with end points, per chromosome, in chromosome name order. These are the partitions of the parallel native operations.
+	 */
+	public LinkedHashMap<String, IntArrayList> getPartitions()
+	{
+		TreeMap<String, IntArrayList> byChr = new TreeMap<String, IntArrayList>();
+		for(int i=0; i<size; i++)
+		{
+			if(!hasEnds(i))
+				continue;
+			IntArrayList positions = byChr.get(getChr(i));
+			if(positions==null)
+			{
+				positions = new IntArrayList();
+				byChr.put(getChr(i), positions);
+			}
+			positions.add(i);
+		}
+		return new LinkedHashMap<String, IntArrayList>(byChr);
+	}
+
+	/**
+	 * The interval index of the rows with end points, labelled by row position. A row with one end point is indexed as that point. Built on first use.
+	 */
+	public IntervalIndex getIndex()
+	{
+		if(index==null)
+		{
+			IntervalIndex nIndex = new IntervalIndex();
+			for(int i=0; i<size; i++)
+			{
+				if(hasEnds(i))
+					nIndex.add(getChr(i), getSegmentBp1(i), getSegmentBp2(i), i);
+			}
+			index=nIndex.build();
+		}
+		return index;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public long getRowId(int position)
+	{
+		return rowId.get(position);
+	}
+
+	public String getChr(int position)
+	{
+		int code = chrCode.get(position);
+		return code<0?null:chrName.get(code);
+	}
+
+	public int getBp1(int position)
+	{
+		return bp1.get(position);
+	}
+
+	public int getBp2(int position)
+	{
+		return bp2.get(position);
+	}
+
+	/**
+	 * bp1, or for a row with a null bp1 its bp2.
+	 */
+	public int getSegmentBp1(int position)
+	{
+		return ends.get(position)==endsBp2?bp2.get(position):bp1.get(position);
+	}
+
+	/**
+	 * bp2, or for a row with a null bp2 its bp1.
+	 */
+	public int getSegmentBp2(int position)
+	{
+		return ends.get(position)==endsBp1?bp1.get(position):bp2.get(position);
+	}
+
+	/**
+	 * @return {@link #endsNone}, {@link #endsBoth}, or {@link #endsBp1} or {@link #endsBp2} for a row with only that end point
+	 */
+	public byte getEnds(int position)
+	{
+		return ends.get(position);
+	}
+
+	public boolean hasEnds(int position)
+	{
+		return ends.get(position)!=endsNone;
+	}
+
+	public boolean isComplete(int position)
+	{
+		return ends.get(position)==endsBoth;
+	}
+
+	/**
+	 * If the row has only one end point, matched as a point.
+	 */
+	public boolean isPoint(int position)
+	{
+		byte e = ends.get(position);
+		return e==endsBp1 || e==endsBp2;
+	}
+
+	public boolean hasGeneName()
+	{
+		return geneNameCode!=null;
+	}
+
+	/**
+	 * @return the track local code of the gene name, -1 for null
+	 */
+	public int getGeneNameCode(int position)
+	{
+		return geneNameCode.get(position);
+	}
+
+	public String getGeneName(int position)
+	{
+		int code = geneNameCode.get(position);
+		return code<0?null:geneName.get(code);
+	}
+
+	/**
+	 * The number of distinct gene names, i.e. of gene name codes.
+	 */
+	public int getGeneNameCount()
+	{
+		return geneName.size();
+	}
+
+	public String getGeneNameByCode(int code)
+	{
+		return geneName.get(code);
+	}
+}
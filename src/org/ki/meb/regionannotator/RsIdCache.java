@@ -0,0 +1,300 @@
+package org.ki.meb.regionannotator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * On-disk cache of resolved rsID coordinates, per assembly, as an append-only log with an in-memory hash index of record offsets.
+ * A record is (key, found, coordinate, timestamp), the last record of a key wins, and a negative result (not found) is cached too. Entries expire after a time to live, separately for positive and negative results.
+ * The index is rebuilt by scanning the log when opened. A partly written last record is cut off, and the log is compacted when most records are superseded.
+ * <p>
+ * Record layout: key length (short), key (UTF-8), found (byte), coordinate (int), timestamp in epoch milliseconds (long).
+ */
+public class RsIdCache
+{
+	public static final long defaultPositiveTimeToLiveMillis = 180L*24*3600*1000;
+	public static final long defaultNegativeTimeToLiveMillis = 30L*24*3600*1000;
+	private static final int writeBufferSize = 1<<16;
+
+	/**
+	 * A cached result.
+	 */
+	public static class Entry
+	{
+		private boolean found;
+		private int coordinate;
+		private long timestamp;
+
+		public boolean isFound()
+		{
+			return found;
+		}
+
+		public int getCoordinate()
+		{
+			return coordinate;
+		}
+
+		public long getTimestamp()
+		{
+			return timestamp;
+		}
+	}
+
+	private File file;
+	private RandomAccessFile log;
+	private long positiveTimeToLiveMillis, negativeTimeToLiveMillis;
+	private ByteArrayOutputStream writeBuffer;
+	private long logLength;
+	//open addressing index: key hash and record offset+1 (0 is an empty slot)
+	private long[] slotHash, slotOffset;
+	private int size, recordCount;
+	private long hits, misses, expired;
+
+	public RsIdCache(File nFile) throws IOException
+	{
+		this(nFile, defaultPositiveTimeToLiveMillis, defaultNegativeTimeToLiveMillis);
+	}
+
+	public RsIdCache(File nFile, long nPositiveTimeToLiveMillis, long nNegativeTimeToLiveMillis) throws IOException
+	{
+		file=nFile;
+		positiveTimeToLiveMillis=nPositiveTimeToLiveMillis;
+		negativeTimeToLiveMillis=nNegativeTimeToLiveMillis;
+		writeBuffer = new ByteArrayOutputStream(writeBufferSize);
+		open();
+		if(recordCount>1024 && recordCount>2*size)
+			compact();
+	}
+
+	private void open() throws IOException
+	{
+		log = new RandomAccessFile(file, "rw");
+		slotHash = new long[1024];
+		slotOffset = new long[1024];
+		size = 0;
+		recordCount = 0;
+		logLength = 0;
+		long fileLength = log.length();
+		byte[] buffer = new byte[256];
+		log.seek(0);
+		while(logLength<fileLength)
+		{
+			try
+			{
+				int keyLength = log.readUnsignedShort();
+				if(keyLength>buffer.length)
+					buffer = new byte[keyLength];
+				long recordEnd = logLength+2+keyLength+1+4+8;
+				if(recordEnd>fileLength)
+					throw new EOFException();
+				log.readFully(buffer, 0, keyLength);
+				log.seek(recordEnd);
+				index(hash(new String(buffer, 0, keyLength, StandardCharsets.UTF_8)), logLength);
+				recordCount++;
+				logLength = recordEnd;
+			}
+			catch (EOFException e)
+			{
+				//a record cut off by an interrupted write
+				log.setLength(logLength);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return the cached result, or null if there is none or it has expired
+	 */
+	public synchronized Entry get(String assembly, String rsId) throws IOException
+	{
+		String key = assembly+":"+rsId;
+		long keyHash = hash(key);
+		int slot = findSlot(keyHash);
+		if(slotOffset[slot]==0)
+		{
+			misses++;
+			return null;
+		}
+		flush();
+		log.seek(slotOffset[slot]-1);
+		byte[] keyBytes = new byte[log.readUnsignedShort()];
+		log.readFully(keyBytes);
+		if(!key.equals(new String(keyBytes, StandardCharsets.UTF_8)))
+		{
+			misses++;
+			return null;
+		}
+		Entry entry = new Entry();
+		entry.found = log.readByte()!=0;
+		entry.coordinate = log.readInt();
+		entry.timestamp = log.readLong();
+		if(System.currentTimeMillis()-entry.timestamp>(entry.found?positiveTimeToLiveMillis:negativeTimeToLiveMillis))
+		{
+			expired++;
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry;
+	}
+
+	/**
+	 * Appends a result.
+	 * @param coordinate the resolved coordinate, or null for a negative result
+	 */
+	public synchronized void put(String assembly, String rsId, Integer coordinate) throws IOException
+	{
+		put(assembly+":"+rsId, coordinate!=null, coordinate!=null?coordinate:0, System.currentTimeMillis());
+	}
+
+	private void put(String key, boolean found, int coordinate, long timestamp) throws IOException
+	{
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		DataOutputStream out = new DataOutputStream(writeBuffer);
+		out.writeShort(keyBytes.length);
+		out.write(keyBytes);
+		out.writeByte(found?1:0);
+		out.writeInt(coordinate);
+		out.writeLong(timestamp);
+		index(hash(key), logLength);
+		recordCount++;
+		logLength += 2+keyBytes.length+1+4+8;
+		if(writeBuffer.size()>=writeBufferSize)
+			flush();
+	}
+
+	private void flush() throws IOException
+	{
+		if(writeBuffer.size()==0)
+			return;
+		log.seek(logLength-writeBuffer.size());
+		log.write(writeBuffer.toByteArray());
+		writeBuffer.reset();
+	}
+
+	/**
+	 * Rewrites the log with the last record of every key only.
+	 */
+	private void compact() throws IOException
+	{
+		File compacted = new File(file.getPath()+".compact");
+		compacted.delete();
+		RandomAccessFile compactedLog = new RandomAccessFile(compacted, "rw");
+		try
+		{
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(writeBufferSize);
+			for(int slot=0; slot<slotOffset.length; slot++)
+			{
+				if(slotOffset[slot]==0)
+					continue;
+				log.seek(slotOffset[slot]-1);
+				int keyLength = log.readUnsignedShort();
+				byte[] record = new byte[2+keyLength+1+4+8];
+				log.seek(slotOffset[slot]-1);
+				log.readFully(record);
+				buffer.write(record);
+				if(buffer.size()>=writeBufferSize)
+				{
+					compactedLog.write(buffer.toByteArray());
+					buffer.reset();
+				}
+			}
+			compactedLog.write(buffer.toByteArray());
+		}
+		finally
+		{
+			compactedLog.close();
+		}
+		log.close();
+		if(!file.delete() || !compacted.renameTo(file))
+			throw new IOException("Failed to replace "+file+" with the compacted "+compacted);
+		open();
+	}
+
+	private void index(long keyHash, long offset)
+	{
+		if(2*(size+1)>slotOffset.length)
+			grow();
+		int slot = findSlot(keyHash);
+		if(slotOffset[slot]==0)
+		{
+			slotHash[slot]=keyHash;
+			size++;
+		}
+		slotOffset[slot]=offset+1;
+	}
+
+	private int findSlot(long keyHash)
+	{
+		int mask = slotOffset.length-1;
+		int slot = (int)(keyHash^(keyHash>>>32))&mask;
+		while(slotOffset[slot]!=0 && slotHash[slot]!=keyHash)
+			slot = (slot+1)&mask;
+		return slot;
+	}
+
+	private void grow()
+	{
+		long[] oldHash = slotHash, oldOffset = slotOffset;
+		slotHash = new long[oldOffset.length*2];
+		slotOffset = new long[oldOffset.length*2];
+		for(int i=0; i<oldOffset.length; i++)
+		{
+			if(oldOffset[i]!=0)
+			{
+				int slot = findSlot(oldHash[i]);
+				slotHash[slot]=oldHash[i];
+				slotOffset[slot]=oldOffset[i];
+			}
+		}
+	}
+
+	/**
+	 * 64 bit FNV-1a hash, with the key verified against the record on lookup.
+	 */
+	private static long hash(String key)
+	{
+		long h = 0xcbf29ce484222325L;
+		for(int i=0; i<key.length(); i++)
+		{
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * The number of misses due to expired entries.
+	 */
+	public synchronized long getExpired()
+	{
+		return expired;
+	}
+
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	public synchronized void close() throws IOException
+	{
+		flush();
+		log.close();
+	}
+}
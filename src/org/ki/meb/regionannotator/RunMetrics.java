@@ -0,0 +1,409 @@
+package org.ki.meb.regionannotator;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Metrics of the units of a run: the input loaders, the operation stages and the output writers. Per unit the wall time, the CPU time and allocated bytes of the thread running it, the rows produced and the database statements executed.
+ * The statements are counted from the H2 query statistics, which are database wide, so the counts of concurrently run units overlap, and a batched statement counts once per row. -1 if unknown.
+ * The measured units are passed to the listeners, e.g. the Java Flight Recorder events of {@link #addFlightRecorderListener()}, and written as a JSON run summary.
+ */
+public class RunMetrics
+{
+	public static final String kindInput = "input", kindStage = "stage", kindOutput = "output";
+	private static final String flightRecorderListenerClass = "org.ki.meb.regionannotator.FlightRecorderListener";
+
+	/**
+	 * Receives the units as measured, on the thread running the unit: begin as it starts, stop as it stops and before its rows are counted, and end with the recorded metric. The token of begin is passed to stop and end.
+	 */
+	public interface Listener
+	{
+		public Object begin(String kind, String name);
+		public void stop(Object token);
+		public void end(Object token, Metric metric);
+	}
+
+	/**
+	 * The measured values of a unit.
+	 */
+	public static class Metric
+	{
+		private String kind, name, file, thread;
+		private long startNanos, wallNanos, cpuNanos, allocatedBytes, statements, rows;
+
+		public String getKind()
+		{
+			return kind;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * The input or output file, or null.
+		 */
+		public String getFile()
+		{
+			return file;
+		}
+
+		public String getThread()
+		{
+			return thread;
+		}
+
+		/**
+		 * The start, relative to the start of the run.
+		 */
+		public long getStartNanos()
+		{
+			return startNanos;
+		}
+
+		public long getWallNanos()
+		{
+			return wallNanos;
+		}
+
+		public long getCpuNanos()
+		{
+			return cpuNanos;
+		}
+
+		public long getAllocatedBytes()
+		{
+			return allocatedBytes;
+		}
+
+		public long getStatements()
+		{
+			return statements;
+		}
+
+		public long getRows()
+		{
+			return rows;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder out = new StringBuilder();
+			out.append(wallNanos/1E9).append(" seconds");
+			if(rows>=0)
+				out.append(", ").append(rows).append(" rows");
+			if(cpuNanos>=0)
+				out.append(", CPU ").append(cpuNanos/1E9).append(" seconds");
+			if(allocatedBytes>=0)
+				out.append(", ").append(allocatedBytes/(1<<20)).append(" MB allocated");
+			if(statements>=0)
+				out.append(", ").append(statements).append(" statements");
+			return out.toString();
+		}
+	}
+
+	/**
+	 * A started unit, stopped on the same thread.
+	 */
+	public class Measurement
+	{
+		private Metric metric;
+		private Connection connection;
+		private Object[] tokens;
+		private long startNanos, startCpuNanos, startAllocatedBytes, startStatements;
+
+		private Measurement(String kind, String name, String file, Connection nConnection)
+		{
+			metric = new Metric();
+			metric.kind=kind;
+			metric.name=name;
+			metric.file=file;
+			metric.thread=Thread.currentThread().getName();
+			connection=nConnection;
+			tokens = new Object[listeners.size()];
+			for(int i=0; i<tokens.length; i++)
+				tokens[i]=listeners.get(i).begin(kind, name);
+			startStatements = countStatements(connection);
+			startCpuNanos = getCpuNanos();
+			startAllocatedBytes = getAllocatedBytes();
+			startNanos = System.nanoTime();
+		}
+
+		/**
+		 * Stops the measurement, before the rows are counted.
+		 */
+		public Metric stop()
+		{
+			long endNanos = System.nanoTime();
+			long endCpuNanos = getCpuNanos(), endAllocatedBytes = getAllocatedBytes();
+			for(int i=0; i<tokens.length; i++)
+				listeners.get(i).stop(tokens[i]);
+			metric.startNanos = startNanos-runStartNanos;
+			metric.wallNanos = endNanos-startNanos;
+			metric.cpuNanos = startCpuNanos<0||endCpuNanos<0?-1:endCpuNanos-startCpuNanos;
+			metric.allocatedBytes = startAllocatedBytes<0||endAllocatedBytes<0?-1:endAllocatedBytes-startAllocatedBytes;
+			long endStatements = countStatements(connection);
+			//the first count is itself counted
+			metric.statements = startStatements<0||endStatements<0?-1:Math.max(0, endStatements-startStatements-1);
+			return metric;
+		}
+
+		/**
+		 * Records the stopped unit with the number of rows produced, -1 if unknown.
+		 */
+		public Metric record(long rows)
+		{
+			metric.rows=rows;
+			synchronized(metrics)
+			{
+				metrics.add(metric);
+			}
+			for(int i=0; i<tokens.length; i++)
+				listeners.get(i).end(tokens[i], metric);
+			return metric;
+		}
+	}
+
+	private ArrayList<Metric> metrics;
+	private ArrayList<Listener> listeners;
+	private ThreadMXBean threadBean;
+	private long runStartNanos, runStartMillis;
+	private volatile boolean statementCounting;
+
+	public RunMetrics()
+	{
+		metrics = new ArrayList<Metric>();
+		listeners = new ArrayList<Listener>();
+		threadBean = ManagementFactory.getThreadMXBean();
+		if(threadBean.isThreadCpuTimeSupported() && !threadBean.isThreadCpuTimeEnabled())
+			threadBean.setThreadCpuTimeEnabled(true);
+		if(threadBean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)threadBean).isThreadAllocatedMemorySupported())
+			((com.sun.management.ThreadMXBean)threadBean).setThreadAllocatedMemoryEnabled(true);
+		runStartNanos = System.nanoTime();
+		runStartMillis = System.currentTimeMillis();
+	}
+
+	public void addListener(Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	/**
+	 * Adds the listener publishing the units as Java Flight Recorder events, recorded when a flight recording is running. It is built from src_jfr with JDK 11 or later.
+	 * @return false if it is not built or the Java runtime has no flight recorder
+	 */
+	public boolean addFlightRecorderListener()
+	{
+		try
+		{
+			addListener((Listener)Class.forName(flightRecorderListenerClass).getDeclaredConstructor().newInstance());
+			return true;
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return false;
+		}
+		catch (LinkageError e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Turns on the query statistics of the database, from which the statements are counted.
+	 */
+	public void enableStatementCounting(Connection connection)
+	{
+		try
+		{
+			Statement s = connection.createStatement();
+			try
+			{
+				s.execute("SET QUERY_STATISTICS_MAX_ENTRIES 10000");
+				s.execute("SET QUERY_STATISTICS TRUE");
+			}
+			finally
+			{
+				s.close();
+			}
+			statementCounting=true;
+		}
+		catch (SQLException e)
+		{
+			System.err.println("Statements are not counted, the query statistics are not available: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts measuring a unit on the current thread.
+	 * @param file the input or output file, or null
+	 * @param connection the connection of the unit, for the statement count, or null
+	 */
+	public Measurement start(String kind, String name, File file, Connection connection)
+	{
+		return new Measurement(kind, name, file==null?null:file.getAbsolutePath(), connection);
+	}
+
+	private long getCpuNanos()
+	{
+		return threadBean.isCurrentThreadCpuTimeSupported()?threadBean.getCurrentThreadCpuTime():-1;
+	}
+
+	private long getAllocatedBytes()
+	{
+		if(threadBean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)threadBean).isThreadAllocatedMemoryEnabled())
+			return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	private long countStatements(Connection connection)
+	{
+		if(!statementCounting || connection==null)
+			return -1;
+		try
+		{
+			Statement s = connection.createStatement();
+			try
+			{
+				ResultSet rs = s.executeQuery("SELECT SUM(EXECUTION_COUNT) FROM INFORMATION_SCHEMA.QUERY_STATISTICS");
+				rs.next();
+				return rs.getLong(1);
+			}
+			finally
+			{
+				s.close();
+			}
+		}
+		catch (SQLException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * The number of rows of a table, -1 for a view or a missing table, which are not counted.
+	 */
+	public static long countTableRows(Connection connection, String schemaName, String tableName) throws SQLException
+	{
+		ResultSet rs = connection.getMetaData().getTables(null, schemaName.toUpperCase(Locale.ROOT), tableName.toUpperCase(Locale.ROOT), null);
+		try
+		{
+			if(!rs.next() || !"TABLE".equals(rs.getString("TABLE_TYPE")))
+				return -1;
+		}
+		finally
+		{
+			rs.close();
+		}
+		Statement s = connection.createStatement();
+		try
+		{
+			ResultSet count = s.executeQuery("SELECT COUNT(*) FROM "+schemaName+"."+tableName);
+			count.next();
+			return count.getLong(1);
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+
+	public ArrayList<Metric> getMetrics()
+	{
+		synchronized(metrics)
+		{
+			return new ArrayList<Metric>(metrics);
+		}
+	}
+
+	/**
+	 * The run summary: the run wall time, and the units with their totals by kind, of the known values. Unknown values are null.
+	 */
+	public String toJSON(String version, String engine, int threads)
+	{
+		ArrayList<Metric> units = getMetrics();
+		StringBuilder out = new StringBuilder("{\"version\":");
+		AnnotationServer.appendJSONString(out, version);
+		out.append(",\"engine\":");
+		AnnotationServer.appendJSONString(out, engine);
+		out.append(",\"threads\":").append(threads);
+		out.append(",\"startTimeMillis\":").append(runStartMillis);
+		out.append(",\"wallSeconds\":").append((System.nanoTime()-runStartNanos)/1E9);
+		out.append(",\"statementCounting\":").append(statementCounting);
+		out.append(",\"units\":[");
+		LinkedHashMap<String, long[]> total = new LinkedHashMap<String, long[]>();
+		for(int i=0; i<units.size(); i++)
+		{
+			Metric metric = units.get(i);
+			if(i>0)
+				out.append(',');
+			out.append("{\"kind\":");
+			AnnotationServer.appendJSONString(out, metric.kind);
+			out.append(",\"name\":");
+			AnnotationServer.appendJSONString(out, metric.name);
+			out.append(",\"file\":");
+			AnnotationServer.appendJSONString(out, metric.file);
+			out.append(",\"thread\":");
+			AnnotationServer.appendJSONString(out, metric.thread);
+			out.append(",\"startSeconds\":").append(metric.startNanos/1E9);
+			appendMetricValues(out, metric.wallNanos, metric.cpuNanos, metric.allocatedBytes, metric.rows, metric.statements);
+			out.append('}');
+
+			long[] kindTotal = total.get(metric.kind);
+			if(kindTotal==null)
+			{
+				kindTotal = new long[]{-1, -1, -1, -1, -1};
+				total.put(metric.kind, kindTotal);
+			}
+			//the sums of the known values
+			long[] value = new long[]{metric.wallNanos, metric.cpuNanos, metric.allocatedBytes, metric.rows, metric.statements};
+			for(int iValue=0; iValue<value.length; iValue++)
+			{
+				if(value[iValue]>=0)
+					kindTotal[iValue] = Math.max(kindTotal[iValue], 0)+value[iValue];
+			}
+		}
+		out.append("],\"totals\":{");
+		int i=0;
+		for(Map.Entry<String, long[]> e : total.entrySet())
+		{
+			if(i++>0)
+				out.append(',');
+			AnnotationServer.appendJSONString(out, e.getKey());
+			out.append(":{");
+			appendMetricValues(out, e.getValue()[0], e.getValue()[1], e.getValue()[2], e.getValue()[3], e.getValue()[4]);
+			out.append('}');
+		}
+		return out.append("}}").toString();
+	}
+
+	private static void appendMetricValues(StringBuilder out, long wallNanos, long cpuNanos, long allocatedBytes, long rows, long statements)
+	{
+		if(out.charAt(out.length()-1)!='{')
+			out.append(',');
+		out.append("\"wallSeconds\":").append(wallNanos/1E9);
+		out.append(",\"cpuSeconds\":").append(cpuNanos<0?"null":Double.toString(cpuNanos/1E9));
+		out.append(",\"allocatedBytes\":").append(allocatedBytes<0?"null":Long.toString(allocatedBytes));
+		out.append(",\"rows\":").append(rows<0?"null":Long.toString(rows));
+		out.append(",\"statements\":").append(statements<0?"null":Long.toString(statements));
+	}
+
+	public void writeJSON(File file, String version, String engine, int threads) throws IOException
+	{
+		Files.write(file.toPath(), toJSON(version, engine, threads).getBytes(StandardCharsets.UTF_8));
+	}
+}
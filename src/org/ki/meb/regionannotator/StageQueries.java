@@ -0,0 +1,131 @@
+package org.ki.meb.regionannotator;
+
+import org.apache.ibatis.jdbc.SQL;
+import org.jakz.common.DataCache;
+
+/**
+ * The queries of the operation stages joining in the database (-engine SQL), and the result columns of the reference tables. Shared by the operation and the benchmark module, so that the benchmarks run the same statements.
+ * The overlap joins are restricted by the {@link GenomicBin} columns and the bin list table _USER_INPUT_BIN.
+ */
+public class StageQueries
+{
+	public static final int proteinCodingMaxDistance = 100000;
+	public static final long proteinCodingExpansion = 10000000;
+	public static final String proteinCodingGeneColumns = "g.bp1 AS bp1_gm, g.bp2 AS bp2_gm, g.genename AS genename_gm, g.entrez AS entrez_gm, g.ensembl AS ensembl_gm, g.ttype AS ttype_gm, g.strand AS strand_gm, g.product AS product_gm";
+	public static final String gwasCatalogColumns = "r.bp1 AS bp1_gwas, r.snpid AS snpid_gwas, r.pvalue AS pvalue_gwas, r.pmid AS pmid_gwas, r.trait AS trait_gwas";
+	public static final String omimColumns = "r.OMIMgene AS omimgene_omim, r.OMIMDisease AS omimdisease_omim, r.type AS type_omimi";
+	public static final String psychiatricCnvsColumns = "r.chr AS chr_r, r.bp1 AS bp1_r, r.bp2 AS bp2_r, r.disease AS disease_r, r.type AS type_r, r.note AS note_r";
+	public static final String asdGenesColumns = "r.type AS type_asd";
+	public static final String idDevdelayGenesColumns = "r.type AS type_id_dd";
+	public static final String mouseKnockoutColumns = "r.musName AS musname_r, r.phenotype AS phenotype_r";
+	public static final String userInputBinTable = "_USER_INPUT_BIN";
+
+	/**
+	 * The GENE_MASTER_EXPANDED view: the genes with the coordinates expanded by 20 kbases and 10 Mbases.
+	 */
+	public static String geneMasterExpanded(final String schemaName)
+	{
+		return new SQL()
+		{
+			{
+				SELECT("g.*");
+				SELECT("(g.bp1-20000) AS bp1s20k_gm"); //expand by 20kb;
+				SELECT("(g.bp2+20000) AS bp2a20k_gm");
+				SELECT("(g.bp1-10e6) AS bp1s10m_gm"); //expand by 10mb;
+				SELECT("(g.bp2+10e6) AS bp2a10m_gm");
+				FROM(schemaName+".GENE_MASTER g");
+			}
+		}.toString();
+	}
+
+	/**
+	 * The PROTEIN_CODING_GENES_ALL table: the protein coding genes overlapping the user input regions expanded by 10 Mbases, with their distance.
+	 */
+	public static String proteinCodingGenesAll(final DataCache cache, final String schemaName)
+	{
+		return new SQL()
+		{
+			{
+				SELECT("c.*");
+				//SELECT("g.chr AS chr_gm");
+				SELECT(proteinCodingGeneColumns);
+				FROM(schemaName+"._USER_INPUT c");
+				SELECT("( CASE WHEN ("+cache.scriptTwoSegmentOverlapCondition("c.bp1","c.bp2","g.bp1","g.bp2")+") THEN 0 WHEN c.bp1 IS NULL OR c.bp2 IS NULL THEN 9e9 ELSE NUM_MAX_INTEGER(ABS(c.bp1-g.bp2),ABS(c.bp2-g.bp1)) END) dist");
+				//INNER_JOIN(schemaName+".GENE_MASTER_EXPANDED g ON (g.ttype='protein_coding' AND c.chr=g.chr AND ("+dataCache.scriptTwoSegmentOverlapCondition("c.bp1","c.bp2","g.bp1s10m_gm","g.bp1")+" OR "+dataCache.scriptTwoSegmentOverlapCondition("c.bp1","c.bp2","g.bp2","g.bp2a10m_gm")+"))");
+				INNER_JOIN(schemaName+"."+userInputBinTable+" b ON b.INPUT_ROW=c._ROWID_");
+				INNER_JOIN(schemaName+".GENE_MASTER_EXPANDED g ON (g.ttype='protein_coding' AND g.chr=b.chr AND g."+GenomicBin.expandedBinColumn+"=b."+GenomicBin.binColumn+" AND "+cache.scriptTwoSegmentOverlapCondition("c.bp1","c.bp2","g.bp1s10m_gm","g.bp2a10m_gm")+")");
+				ORDER_BY("INPUTID,chr,bp1,bp2");
+			}
+		}.toString();
+	}
+
+	/**
+	 * The PROTEIN_CODING_GENES view: the protein coding genes within the distance threshold.
+	 */
+	public static String proteinCodingGenes(final String schemaName, final int maxDistance)
+	{
+		return new SQL()
+		{
+			{
+				SELECT("g.*");
+				FROM(schemaName+".PROTEIN_CODING_GENES_ALL g");
+				WHERE("dist<"+maxDistance);
+				ORDER_BY("INPUTID,dist,ensembl_gm");
+			}
+		}.toString();
+	}
+
+	/**
+	 * The user input joined with a reference table by segment overlap.
+	 */
+	public static String overlapLink(final DataCache cache, final String schemaName, final String referenceTable, final String referenceColumns, final String orderBy)
+	{
+		return new SQL()
+		{
+			{
+				SELECT("c.*, "+referenceColumns);
+				FROM(schemaName+"._USER_INPUT c");
+				INNER_JOIN(schemaName+"."+userInputBinTable+" b ON b.INPUT_ROW=c._ROWID_");
+				INNER_JOIN(schemaName+"."+referenceTable+" r ON r.chr=b.chr AND r."+GenomicBin.binColumn+"=b."+GenomicBin.binColumn+" AND "+cache.scriptTwoSegmentOverlapCondition("c.bp1", "c.bp2", "r.bp1", "r.bp2"));
+				ORDER_BY(orderBy);
+			}
+		}.toString();
+	}
+
+	/**
+	 * The protein coding genes near the user input joined with a reference gene list by gene name.
+	 */
+	public static String geneNameLink(final String schemaName, final String referenceTable, final String referenceColumns, final String orderBy)
+	{
+		return new SQL()
+		{
+			{
+				SELECT("g.*, "+referenceColumns);
+				FROM(schemaName+".PROTEIN_CODING_GENES g");
+				INNER_JOIN(schemaName+"."+referenceTable+" r ON g.genename_gm=r.geneName AND g.geneName_gm IS NOT NULL AND g.geneName_gm!='' AND r.geneName IS NOT NULL AND r.geneName!=''");
+				ORDER_BY(orderBy);
+			}
+		}.toString();
+	}
+
+	/**
+	 * The link query of the SQL engine reading a reference table, or null if no stage reads the table.
+	 */
+	public static String referenceLink(final DataCache cache, final String schemaName, final String referenceTable)
+	{
+		String table = referenceTable.toLowerCase();
+		if(table.equals("_gwas_catalog"))
+			return overlapLink(cache, schemaName, referenceTable, gwasCatalogColumns, "INPUTID");
+		if(table.equals("_psychiatric_cnvs"))
+			return overlapLink(cache, schemaName, referenceTable, psychiatricCnvsColumns, "INPUTID");
+		if(table.equals("_omim"))
+			return geneNameLink(schemaName, referenceTable, omimColumns, "INPUTID");
+		if(table.equals("_asd_genes"))
+			return geneNameLink(schemaName, referenceTable, asdGenesColumns, "INPUTID");
+		if(table.equals("_id_devdelay_genes"))
+			return geneNameLink(schemaName, referenceTable, idDevdelayGenesColumns, "INPUTID");
+		if(table.equals("_mouse_knockout"))
+			return geneNameLink(schemaName, referenceTable, mouseKnockoutColumns, "INPUTID");
+		return null;
+	}
+}
@@ -0,0 +1,265 @@
+package org.ki.meb.regionannotator;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jakz.common.ApplicationException;
+import org.jakz.common.DataCache;
+
+/**
+ * Runs operation stages as a DAG. A stage depends on the last earlier added stage creating any of its inputs, inputs that no stage creates are expected to exist.
+ * With one thread the stages run in the order added, on the given cache. With more threads every ready stage runs on a bounded pool, each on its own connection from the cache factory.
+ */
+public class StageScheduler
+{
+	/**
+	 * Opens and closes the separate database connections of concurrently run stages.
+	 */
+	public interface CacheFactory
+	{
+		public DataCache open() throws Exception;
+		public void close(DataCache cache) throws Exception;
+	}
+
+	/**
+	 * Called on the scheduling thread as each stage is done.
+	 */
+	public interface Listener
+	{
+		public void stageDone(OperationStage stage);
+	}
+
+	private ArrayList<OperationStage> stages;
+	private ArrayList<ArrayList<Integer>> dependencies, dependents;
+	private HashMap<String, Integer> creator;
+	private long wallTimeNanos;
+	private RunMetrics metrics;
+	private String schemaName;
+
+	public StageScheduler()
+	{
+		stages = new ArrayList<OperationStage>();
+		dependencies = new ArrayList<ArrayList<Integer>>();
+		dependents = new ArrayList<ArrayList<Integer>>();
+		creator = new HashMap<String, Integer>();
+	}
+
+	public StageScheduler add(OperationStage stage)
+	{
+		int iStage = stages.size();
+		ArrayList<Integer> stageDependencies = new ArrayList<Integer>();
+		for(String input : stage.getInputs())
+		{
+			Integer iCreator = creator.get(input);
+			if(iCreator!=null && !stageDependencies.contains(iCreator))
+			{
+				stageDependencies.add(iCreator);
+				dependents.get(iCreator).add(iStage);
+			}
+		}
+		stages.add(stage);
+		dependencies.add(stageDependencies);
+		dependents.add(new ArrayList<Integer>());
+		for(String output : stage.getOutputs())
+			creator.put(output, iStage);
+		return this;
+	}
+
+	/**
+	 * Measures every stage run, counting the rows of the output tables of the schema.
+	 */
+	public StageScheduler setMetrics(RunMetrics nMetrics, String nSchemaName)
+	{
+		metrics=nMetrics;
+		schemaName=nSchemaName;
+		return this;
+	}
+
+	/**
+	 * @param serialCache the cache of the stages if run with one thread
+	 * @param cacheFactory the connections of the stages if run with more threads
+	 */
+	public void run(int threads, DataCache serialCache, CacheFactory cacheFactory, Listener listener) throws ApplicationException
+	{
+		long runStartTimeNanos = System.nanoTime();
+		if(threads<=1)
+		{
+			for(OperationStage stage : stages)
+			{
+				runStage(stage, serialCache);
+				listener.stageDone(stage);
+			}
+		}
+		else
+			runConcurrent(threads, cacheFactory, listener);
+		wallTimeNanos = System.nanoTime()-runStartTimeNanos;
+	}
+
+	private void runConcurrent(int threads, final CacheFactory cacheFactory, Listener listener) throws ApplicationException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ExecutorCompletionService<Integer> completion = new ExecutorCompletionService<Integer>(executor);
+		int[] pending = new int[stages.size()];
+		int running = 0;
+		ApplicationException failure = null;
+		try
+		{
+			for(int iStage=0; iStage<stages.size(); iStage++)
+			{
+				pending[iStage]=dependencies.get(iStage).size();
+				if(pending[iStage]==0)
+				{
+					submit(completion, iStage, cacheFactory);
+					running++;
+				}
+			}
+
+			while(running>0)
+			{
+				int iDone;
+				try
+				{
+					iDone = completion.take().get();
+				}
+				catch (ExecutionException e)
+				{
+					if(failure==null)
+						failure = e.getCause() instanceof ApplicationException?(ApplicationException)e.getCause():new ApplicationException("Stage error", e.getCause());
+					continue;
+				}
+				finally
+				{
+					running--;
+				}
+				listener.stageDone(stages.get(iDone));
+				for(int iDependent : dependents.get(iDone))
+				{
+					pending[iDependent]--;
+					if(pending[iDependent]==0 && failure==null)
+					{
+						submit(completion, iDependent, cacheFactory);
+						running++;
+					}
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			throw new ApplicationException("Stage scheduling interrupted", e);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		if(failure!=null)
+			throw failure;
+	}
+
+	private void submit(ExecutorCompletionService<Integer> completion, final int iStage, final CacheFactory cacheFactory)
+	{
+		completion.submit(new Callable<Integer>()
+		{
+			@Override
+			public Integer call() throws Exception
+			{
+				DataCache cache = cacheFactory.open();
+				try
+				{
+					runStage(stages.get(iStage), cache);
+				}
+				finally
+				{
+					cacheFactory.close(cache);
+				}
+				return iStage;
+			}
+		});
+	}
+
+	private void runStage(OperationStage stage, DataCache cache) throws ApplicationException
+	{
+		RunMetrics.Measurement measurement = metrics!=null?metrics.start(RunMetrics.kindStage, stage.getName(), null, cache.getConnection()):null;
+		long stageStartTimeNanos = System.nanoTime();
+		try
+		{
+			stage.run(cache);
+		}
+		catch (Exception e)
+		{
+			throw new ApplicationException("Stage error ["+stage.getName()+"]", e);
+		}
+		stage.setTime(stageStartTimeNanos, System.nanoTime());
+		if(measurement!=null)
+		{
+			measurement.stop();
+			stage.setMetric(measurement.record(countOutputRows(stage, cache)));
+		}
+	}
+
+	/**
+	 * The rows of the output tables of the stage, -1 if every output is a view.
+	 */
+	private long countOutputRows(OperationStage stage, DataCache cache) throws ApplicationException
+	{
+		long rows = -1;
+		try
+		{
+			for(String output : stage.getOutputs())
+			{
+				long outputRows = RunMetrics.countTableRows(cache.getConnection(), schemaName, output);
+				if(outputRows>=0)
+					rows = Math.max(rows, 0)+outputRows;
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new ApplicationException("Stage error ["+stage.getName()+"]", e);
+		}
+		return rows;
+	}
+
+	public ArrayList<OperationStage> getStages()
+	{
+		return stages;
+	}
+
+	/**
+	 * The summed stage times, i.e. the time of a serial run.
+	 */
+	public long getStageTimeNanos()
+	{
+		long sum = 0;
+		for(OperationStage stage : stages)
+			sum+=stage.getDurationNanos();
+		return sum;
+	}
+
+	/**
+	 * The longest chain of dependent stage times, the lower bound of the wall time with unbounded threads.
+	 */
+	public long getCriticalPathNanos()
+	{
+		long[] finish = new long[stages.size()];
+		long criticalPath = 0;
+		for(int iStage=0; iStage<stages.size(); iStage++)
+		{
+			long start = 0;
+			for(int iDependency : dependencies.get(iStage))
+				start = Math.max(start, finish[iDependency]);
+			finish[iStage] = start+stages.get(iStage).getDurationNanos();
+			criticalPath = Math.max(criticalPath, finish[iStage]);
+		}
+		return criticalPath;
+	}
+
+	public long getWallTimeNanos()
+	{
+		return wallTimeNanos;
+	}
+}
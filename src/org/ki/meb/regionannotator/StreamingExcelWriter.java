@@ -0,0 +1,156 @@
+package org.ki.meb.regionannotator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.xssf.streaming.SXSSFCell;
+import org.apache.poi.xssf.streaming.SXSSFRow;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.jakz.common.DataEntry;
+
+/**
+ * Writes datasets as sheets of one streaming (SXSSF) workbook, row by row from the result sets, in a single pass. Only a fixed window of rows per sheet is kept in memory, the rest is flushed to compressed temporary files until the workbook is written.
+ * Columns follow the {@link ExcelSheetLayout}: isExcelFormula columns are written as formulas (hyperlink styled if isHyperlink), hide columns are hidden, and columns without any value are skipped.
+ */
+public class StreamingExcelWriter
+{
+	private File outputFile;
+	private SXSSFWorkbook workbook;
+	private CellStyle hyperlinkStyle;
+
+	/**
+	 * @param rowWindow the number of rows per sheet kept in memory
+	 */
+	public StreamingExcelWriter(File nOutputFile, int rowWindow)
+	{
+		outputFile=nOutputFile;
+		workbook = new SXSSFWorkbook(rowWindow);
+		workbook.setCompressTempFiles(true);
+
+		Font hyperlinkFont = workbook.createFont();
+		hyperlinkFont.setUnderline(Font.U_SINGLE);
+		hyperlinkFont.setColor(IndexedColors.BLUE.getIndex());
+		hyperlinkStyle = workbook.createCellStyle();
+		hyperlinkStyle.setFont(hyperlinkFont);
+	}
+
+	public SXSSFWorkbook getWorkbook()
+	{
+		return workbook;
+	}
+
+	/**
+	 * Writes the rows of a table or view to a new sheet. Rows beyond the sheet row limit continue on sheets with the suffix _2, _3, ...
+	 * @param entryTemplate column settings by upper case column name, or null
+	 * @return the number of rows written
+	 */
+	public long writeSheet(Connection connection, String schemaName, String datasetName, String sheetName, DataEntry entryTemplate) throws SQLException
+	{
+		ExcelSheetLayout layout = ExcelSheetLayout.describe(connection, schemaName+"."+datasetName, entryTemplate);
+
+		Statement s = connection.createStatement();
+		s.setFetchSize(1000);
+		long rowCount = 0;
+		try
+		{
+			ResultSet rs = s.executeQuery("SELECT * FROM "+layout.getPath());
+			int sheetNumber = 1;
+			SXSSFSheet sheet = createSheet(ExcelSheetLayout.getSheetName(sheetName, sheetNumber), layout);
+			int sheetRow = 1;
+			while(rs.next())
+			{
+				if(sheetRow==ExcelSheetLayout.maxSheetRows)
+				{
+					sheetNumber++;
+					sheet = createSheet(ExcelSheetLayout.getSheetName(sheetName, sheetNumber), layout);
+					sheetRow = 1;
+				}
+				SXSSFRow row = sheet.createRow(sheetRow++);
+				for(int i=0; i<layout.size(); i++)
+				{
+					int ic = layout.getColumn(i);
+					if(layout.isNumeric(i))
+					{
+						double value = rs.getDouble(ic);
+						if(!rs.wasNull())
+							row.createCell(i).setCellValue(value);
+					}
+					else if(layout.isBoolean(i))
+					{
+						boolean value = rs.getBoolean(ic);
+						if(!rs.wasNull())
+							row.createCell(i).setCellValue(value);
+					}
+					else
+					{
+						String value = rs.getString(ic);
+						if(value==null)
+							continue;
+						SXSSFCell cell = row.createCell(i);
+						if(layout.isFormula(i))
+						{
+							cell.setCellFormula(value);
+							if(layout.isHyperlink(i))
+								cell.setCellStyle(hyperlinkStyle);
+						}
+						else
+							cell.setCellValue(value);
+					}
+				}
+				rowCount++;
+			}
+			rs.close();
+		}
+		finally
+		{
+			s.close();
+		}
+		return rowCount;
+	}
+
+	private SXSSFSheet createSheet(String sheetName, ExcelSheetLayout layout)
+	{
+		SXSSFSheet sheet = workbook.createSheet(sheetName);
+		SXSSFRow header = sheet.createRow(0);
+		for(int i=0; i<layout.size(); i++)
+		{
+			header.createCell(i).setCellValue(layout.getName(i));
+			if(layout.isHidden(i))
+				sheet.setColumnHidden(i, true);
+		}
+		return sheet;
+	}
+
+	/**
+	 * Writes the workbook to the output file.
+	 */
+	public void write() throws IOException
+	{
+		FileOutputStream fileOut = new FileOutputStream(outputFile);
+		try
+		{
+			workbook.write(fileOut);
+		}
+		finally
+		{
+			fileOut.close();
+		}
+	}
+
+	/**
+	 * Deletes the temporary files, whether the workbook was written or not.
+	 */
+	public void dispose()
+	{
+		workbook.dispose();
+	}
+}
@@ -0,0 +1,95 @@
+package org.ki.meb.regionannotator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Writes the result cursor of a query as TSV or CSV with a header row, row by row to a buffered NIO writer, without materialising the result in the database or in memory.
+ * With {@link #setCompressionThreads(int)} the file is block gzipped (BGZF) while writing. Null values are empty. In TSV tabs and line breaks in values are replaced by spaces, in CSV values with commas, quotes or line breaks are quoted.
+ */
+public class StreamingTextWriter
+{
+	private static final int fetchSize = 1000;
+	private char separator;
+	private int compressionThreads;
+
+	/**
+	 * @param nSeparator '\t' for TSV or ',' for CSV
+	 */
+	public StreamingTextWriter(char nSeparator)
+	{
+		separator=nSeparator;
+	}
+
+	/**
+	 * The number of threads deflating the file as BGZF, 0 for a plain file.
+	 */
+	public void setCompressionThreads(int nCompressionThreads)
+	{
+		compressionThreads=nCompressionThreads;
+	}
+
+	/**
+	 * Runs the query and writes its rows to the file, replacing it.
+	 * @return the number of rows written
+	 */
+	public long write(Connection connection, String query, File file) throws SQLException, IOException
+	{
+		long rowCount = 0;
+		BufferedWriter out = compressionThreads>0?new BufferedWriter(new OutputStreamWriter(CompressedFiles.create(file, compressionThreads), StandardCharsets.UTF_8), 1<<16):Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+		try
+		{
+			Statement s = connection.createStatement();
+			s.setFetchSize(fetchSize);
+			try
+			{
+				ResultSet rs = s.executeQuery(query);
+				ResultSetMetaData md = rs.getMetaData();
+				int columnCount = md.getColumnCount();
+				for(int ic=1; ic<=columnCount; ic++)
+					writeValue(out, ic, md.getColumnLabel(ic));
+				out.write('\n');
+				while(rs.next())
+				{
+					for(int ic=1; ic<=columnCount; ic++)
+						writeValue(out, ic, rs.getString(ic));
+					out.write('\n');
+					rowCount++;
+				}
+				rs.close();
+			}
+			finally
+			{
+				s.close();
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		return rowCount;
+	}
+
+	private void writeValue(BufferedWriter out, int ic, String value) throws IOException
+	{
+		if(ic>1)
+			out.write(separator);
+		if(value==null)
+			return;
+		if(separator=='\t')
+			out.write(value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+		else if(value.indexOf(',')>=0 || value.indexOf('"')>=0 || value.indexOf('\n')>=0 || value.indexOf('\r')>=0)
+			out.write("\""+value.replace("\"", "\"\"")+"\"");
+		else
+			out.write(value);
+	}
+}
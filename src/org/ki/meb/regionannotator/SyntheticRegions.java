@@ -0,0 +1,110 @@
+package org.ki.meb.regionannotator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Synthetic GWAS clump regions, for benchmarks: a lead SNP on a GRCh37 chromosome drawn by length, and a clump around it, a single SNP in one of ten clumps, else of a log uniform width of 1 kbase to 2 Mbases.
+ * The same seed gives the same regions.
+ */
+public class SyntheticRegions
+{
+	public static final long defaultSeed = 20180503L;
+	private static final String[] chrName = new String[]{"chr1","chr2","chr3","chr4","chr5","chr6","chr7","chr8","chr9","chr10","chr11","chr12","chr13","chr14","chr15","chr16","chr17","chr18","chr19","chr20","chr21","chr22","chrX"};
+	private static final int[] chrLength = new int[]{249250621,243199373,198022430,191154276,180915260,171115067,159138663,146364022,141213431,135534747,135006516,133851895,115169878,107349540,102531392,90354753,81195210,78077248,59128983,63025520,48129895,51304566,155270560};
+
+	private Random random;
+	private long[] cumulativeLength;
+	private int inputId, bp1, bp2;
+	private String chr, snpId;
+	private double pvalue;
+
+	public SyntheticRegions(long nSeed)
+	{
+		random = new Random(nSeed);
+		cumulativeLength = new long[chrLength.length];
+		long sum = 0;
+		for(int i=0; i<chrLength.length; i++)
+		{
+			sum += chrLength[i];
+			cumulativeLength[i] = sum;
+		}
+	}
+
+	/**
+	 * Generates the next region.
+	 */
+	public void next()
+	{
+		long position = (long)(random.nextDouble()*cumulativeLength[cumulativeLength.length-1]);
+		int iChr = 0;
+		while(position>=cumulativeLength[iChr])
+			iChr++;
+		int lead = (int)(position-(iChr>0?cumulativeLength[iChr-1]:0))+1;
+		int width = random.nextInt(10)==0?0:(int)Math.pow(10, 3+random.nextDouble()*Math.log10(2000));
+		int left = (int)(width*random.nextDouble());
+		inputId++;
+		chr = chrName[iChr];
+		bp1 = Math.max(1, lead-left);
+		bp2 = Math.min(chrLength[iChr], lead+width-left);
+		snpId = "rs"+(1+random.nextInt(150000000));
+		pvalue = Math.pow(10, -7.3-random.nextDouble()*22);
+	}
+
+	public int getInputId()
+	{
+		return inputId;
+	}
+
+	public String getChr()
+	{
+		return chr;
+	}
+
+	public int getBp1()
+	{
+		return bp1;
+	}
+
+	public int getBp2()
+	{
+		return bp2;
+	}
+
+	public String getSnpId()
+	{
+		return snpId;
+	}
+
+	public double getPvalue()
+	{
+		return pvalue;
+	}
+
+	/**
+	 * Writes the regions as user input TSV, with the columns INPUTID, CHR, BP1, BP2, SNPID and PVALUE.
+	 */
+	public static void writeTsv(File file, int regions, long seed) throws IOException
+	{
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1<<16);
+		try
+		{
+			out.write("INPUTID\tCHR\tBP1\tBP2\tSNPID\tPVALUE\n");
+			SyntheticRegions generator = new SyntheticRegions(seed);
+			for(int i=0; i<regions; i++)
+			{
+				generator.next();
+				out.write(generator.inputId+"\t"+generator.chr+"\t"+generator.bp1+"\t"+generator.bp2+"\t"+generator.snpId+"\t"+generator.pvalue+"\n");
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
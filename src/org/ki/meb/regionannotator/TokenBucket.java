@@ -0,0 +1,83 @@
+package org.ki.meb.regionannotator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter shared by concurrent requests. Tokens are refilled at a rate per second up to the capacity, and a request takes one token, waiting for it if needed.
+ * A pause (e.g. from a Retry-After header) holds back all requests until it has passed.
+ */
+public class TokenBucket
+{
+	private double rate, capacity, tokens;
+	private long refillNanos, pausedUntilNanos;
+
+	/**
+	 * @param nRate tokens per second
+	 * @param nCapacity the maximum number of tokens, i.e. the burst size
+	 */
+	public TokenBucket(double nRate, double nCapacity)
+	{
+		rate=nRate;
+		capacity=nCapacity;
+		tokens=nCapacity;
+		refillNanos=System.nanoTime();
+		pausedUntilNanos=refillNanos;
+	}
+
+	/**
+	 * Takes a token, waiting for one, and for any pause to pass.
+	 */
+	public synchronized void acquire() throws InterruptedException
+	{
+		while(true)
+		{
+			long now = System.nanoTime();
+			if(now-pausedUntilNanos<0)
+			{
+				TimeUnit.NANOSECONDS.timedWait(this, pausedUntilNanos-now);
+				continue;
+			}
+			refill(now);
+			if(tokens>=1)
+			{
+				tokens-=1;
+				return;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, Math.max(1000000L, (long)((1-tokens)/rate*1E9)));
+		}
+	}
+
+	/**
+	 * Holds back all requests for the given time from now, with an empty bucket after it.
+	 */
+	public synchronized void pause(long millis)
+	{
+		long until = System.nanoTime()+millis*1000000L;
+		if(until-pausedUntilNanos>0)
+			pausedUntilNanos=until;
+		tokens=0;
+		refillNanos=pausedUntilNanos;
+		notifyAll();
+	}
+
+	public synchronized void setRate(double nRate)
+	{
+		refill(System.nanoTime());
+		rate=nRate;
+		notifyAll();
+	}
+
+	public synchronized double getRate()
+	{
+		return rate;
+	}
+
+	private void refill(long now)
+	{
+		if(now-refillNanos>0)
+		{
+			tokens = Math.min(capacity, tokens+(now-refillNanos)/1E9*rate);
+			refillNanos=now;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package org.ki.meb.regionannotator;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Publishes the measured units of the {@link RunMetrics} as Java Flight Recorder events, recorded with e.g. -XX:StartFlightRecording=filename=run.jfr.
+ * Built with JDK 11 or later only, and loaded by name, so that the application runs without it on older Java runtimes.
+ */
+public class FlightRecorderListener implements RunMetrics.Listener
+{
+	@Name("org.ki.meb.regionannotator.Unit")
+	@Label("RegionAnnotator Unit")
+	@Description("An input loader, operation stage or output writer of a RegionAnnotator run")
+	@Category("RegionAnnotator")
+	@StackTrace(false)
+	static class UnitEvent extends Event
+	{
+		@Label("Kind")
+		String kind;
+
+		@Label("Name")
+		String name;
+
+		@Label("File")
+		String file;
+
+		@Label("CPU Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long cpuTime;
+
+		@Label("Allocated")
+		@DataAmount
+		long allocated;
+
+		@Label("Rows")
+		long rows;
+
+		@Label("Statements")
+		long statements;
+	}
+
+	@Override
+	public Object begin(String kind, String name)
+	{
+		UnitEvent event = new UnitEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void stop(Object token)
+	{
+		((UnitEvent)token).end();
+	}
+
+	@Override
+	public void end(Object token, RunMetrics.Metric metric)
+	{
+		UnitEvent event = (UnitEvent)token;
+		if(!event.shouldCommit())
+			return;
+		event.kind=metric.getKind();
+		event.name=metric.getName();
+		event.file=metric.getFile();
+		event.cpuTime=metric.getCpuNanos();
+		event.allocated=metric.getAllocatedBytes();
+		event.rows=metric.getRows();
+		event.statements=metric.getStatements();
+		event.commit();
+	}
+}
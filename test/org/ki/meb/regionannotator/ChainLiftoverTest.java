@@ -0,0 +1,87 @@
+package org.ki.meb.regionannotator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Lifts points and intervals with two overlapping chains of different scores.
+ */
+public class ChainLiftoverTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ChainLiftover liftover;
+	private int chr1;
+
+	@Before
+	public void loadChains() throws Exception
+	{
+		//target 0-100 to query chr1 500-600 with score 100, target 50-150 to query chr2 0-100 with score 5000
+		liftover = new ChainLiftover(write("chain 100 chr1 1000 + 0 100 chr1 1000 + 500 600 1\n100\n\nchain 5000 chr1 1000 + 50 150 chr2 1000 + 0 100 2\n100\n"));
+		chr1 = liftover.getTargetChrCode("chr1");
+	}
+
+	@Test
+	public void pointIsLiftedWithHighestScoringChain()
+	{
+		assertEquals("0:510", point(liftover.liftPoint(chr1, 10)));
+		assertEquals("1:10", point(liftover.liftPoint(chr1, 60)));
+		assertEquals("0:560", point(liftover.liftPoint(chr1, 60, 0)));
+		assertEquals(-1, liftover.liftPoint(chr1, 120, 0));
+		assertEquals(-1, liftover.liftPoint(chr1, 200));
+	}
+
+	@Test
+	public void intervalIsLiftedWithChainCoveringBothEnds()
+	{
+		int[] chrCode = {chr1, chr1, chr1, chr1};
+		int[] bp1 = {10, 60, 60, 10};
+		int[] bp2 = {60, 120, 80, 200};
+		int[] outChr = new int[4], outBp1 = new int[4], outBp2 = new int[4];
+		assertEquals(3, liftover.lift(chrCode, bp1, bp2, outChr, outBp1, outBp2, 0, 4));
+		assertEquals("1:510-560", interval(outChr, outBp1, outBp2, 0));
+		assertEquals("2:10-70", interval(outChr, outBp1, outBp2, 1));
+		assertEquals("2:10-30", interval(outChr, outBp1, outBp2, 2));
+		assertEquals(-1, outChr[3]);
+	}
+
+	/**
+	 * The chain and position of a lifted point.
+	 */
+	private static String point(long lifted)
+	{
+		return (lifted>>>32)+":"+(int)lifted;
+	}
+
+	private String interval(int[] outChr, int[] outBp1, int[] outBp2, int i)
+	{
+		return liftover.getQueryChrName(outChr[i])+":"+outBp1[i]+"-"+outBp2[i];
+	}
+
+	private File write(String content) throws IOException
+	{
+		File file = folder.newFile("test.over.chain");
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII);
+		try
+		{
+			out.write(content);
+		}
+		finally
+		{
+			out.close();
+		}
+		return file;
+	}
+}
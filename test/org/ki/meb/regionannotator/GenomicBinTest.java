@@ -0,0 +1,224 @@
+package org.ki.meb.regionannotator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.jakz.common.DataCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compares the bin restricted overlap joins of {@link StageQueries} with the unrestricted joins of the baseline, on inputs with null coordinates.
+ */
+public class GenomicBinTest
+{
+	private static final String schemaName = "PUBLIC";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DataCache cache;
+	private Connection connection;
+
+	@Before
+	public void createDatabase() throws Exception
+	{
+		cache = new DataCache(new File(folder.getRoot(), "RegionAnnotator").getAbsolutePath()).createCacheConnectionEmbedded();
+		connection = cache.getConnection();
+		execute("CREATE TABLE "+schemaName+"._USER_INPUT(INPUTID INT, CHR VARCHAR, BP1 INT, BP2 INT)");
+		execute("CREATE TABLE "+schemaName+"._ref(ID INT, CHR VARCHAR, BP1 INT, BP2 INT)");
+		execute("CREATE TABLE "+schemaName+".GENE_MASTER(CHR VARCHAR, BP1 INT, BP2 INT, GENENAME VARCHAR, ENTREZ INT, ENSEMBL VARCHAR, TTYPE VARCHAR, STRAND VARCHAR, PRODUCT VARCHAR)");
+
+		//full, half null, null, null chr and reversed regions
+		insertRegion("_USER_INPUT", 1, "chr1", 1000, 2000);
+		insertRegion("_USER_INPUT", 2, "chr1", null, 150000);
+		insertRegion("_USER_INPUT", 3, "chr1", 5000000, null);
+		insertRegion("_USER_INPUT", 4, "chr1", null, null);
+		insertRegion("_USER_INPUT", 5, null, 1000, 2000);
+		insertRegion("_USER_INPUT", 6, "chr1", 300000, 100000);
+		insertRegion("_USER_INPUT", 7, "chr1", 4000000, 6000000);
+		insertRegion("_USER_INPUT", 8, "chr1", 21000000, 23000000);
+		insertRegion("_ref", 1, "chr1", 100000, 200000);
+		insertRegion("_ref", 2, "chr1", null, 1500);
+		insertRegion("_ref", 3, "chr1", 4990000, 5010000);
+		insertRegion("_ref", 4, "chr1", null, null);
+		insertRegion("_ref", 5, "chr2", 1000, 2000);
+		insertGene("GENE1", "chr1", 14000000, 14100000);
+		insertGene("GENE2", "chr1", null, 12000000);
+		insertGene("GENE3", "chr1", 15000000, null);
+
+		Random random = new Random(19);
+		for(int i=0; i<400; i++)
+		{
+			insertRegion("_USER_INPUT", 100+i, random.nextBoolean()?"chr1":"chr2", randomStart(random), null);
+			insertRegion("_ref", 100+i, random.nextBoolean()?"chr1":"chr2", randomStart(random), null);
+			insertGene("RANDOM"+i, random.nextBoolean()?"chr1":"chr2", randomStart(random), null);
+		}
+		randomizeEnds(random, "_USER_INPUT", "INPUTID>=100", 1000000);
+		randomizeEnds(random, "_ref", "ID>=100", 2000000);
+		randomizeEnds(random, "GENE_MASTER", "GENENAME LIKE 'RANDOM%'", 2000000);
+
+		GenomicBin.updateBinColumn(connection, schemaName, "_ref", GenomicBin.binColumn, 0);
+		GenomicBin.updateBinColumn(connection, schemaName, "GENE_MASTER", GenomicBin.expandedBinColumn, StageQueries.proteinCodingExpansion);
+		GenomicBin.createBinListTable(connection, schemaName, "_USER_INPUT", StageQueries.userInputBinTable);
+		cache.view("GENE_MASTER_EXPANDED", StageQueries.geneMasterExpanded(schemaName)).commit();
+	}
+
+	@After
+	public void closeDatabase() throws SQLException
+	{
+		cache.shutdownCacheConnection();
+	}
+
+	@Test
+	public void halfNullSegmentIsBinnedAsPoint()
+	{
+		assertEquals(GenomicBin.bin(150000L, 150000L), GenomicBin.bin(null, 150000L));
+		assertEquals(GenomicBin.bin(150000L, 150000L), GenomicBin.bin(150000L, null));
+		assertEquals(null, GenomicBin.bin(null, null));
+	}
+
+	@Test
+	public void overlapLinkMatchesBaselineJoin() throws SQLException
+	{
+		ArrayList<String> baseline = pairs("SELECT c.INPUTID, r.ID AS REF_ID FROM "+schemaName+"._USER_INPUT c INNER JOIN "+schemaName+"._ref r ON c.chr=r.chr AND "+cache.scriptTwoSegmentOverlapCondition("c.bp1", "c.bp2", "r.bp1", "r.bp2"), "REF_ID");
+		ArrayList<String> binned = pairs(StageQueries.overlapLink(cache, schemaName, "_ref", "r.ID AS REF_ID", "INPUTID"), "REF_ID");
+		assertTrue(baseline.contains("1:2"));
+		assertTrue(baseline.contains("2:1"));
+		assertTrue(baseline.contains("3:3"));
+		assertTrue(baseline.size()>100);
+		assertEquals(baseline, binned);
+	}
+
+	@Test
+	public void proteinCodingGenesAllMatchesBaselineJoin() throws SQLException
+	{
+		ArrayList<String> baseline = pairs("SELECT c.INPUTID, g.GENENAME AS GENENAME_GM FROM "+schemaName+"._USER_INPUT c INNER JOIN "+schemaName+".GENE_MASTER_EXPANDED g ON (g.ttype='protein_coding' AND c.chr=g.chr AND "+cache.scriptTwoSegmentOverlapCondition("c.bp1", "c.bp2", "g.bp1s10m_gm", "g.bp2a10m_gm")+")", "GENENAME_GM");
+		ArrayList<String> binned = pairs(StageQueries.proteinCodingGenesAll(cache, schemaName), "GENENAME_GM");
+		assertTrue(baseline.contains("3:GENE1"));
+		assertTrue(baseline.contains("7:GENE3"));
+		assertTrue(baseline.contains("8:GENE2"));
+		assertTrue(baseline.size()>100);
+		assertEquals(baseline, binned);
+	}
+
+	private static int randomStart(Random random)
+	{
+		return random.nextInt(60000000);
+	}
+
+	/**
+	 * Sets BP2 of the random rows to BP1 plus up to the given length, and a tenth of BP1 and a tenth of BP2 to null.
+	 */
+	private void randomizeEnds(Random random, String tableName, String condition, int maxLength) throws SQLException
+	{
+		Statement s = connection.createStatement();
+		try
+		{
+			ResultSet rs = s.executeQuery("SELECT _ROWID_ FROM "+schemaName+"."+tableName+" WHERE "+condition);
+			ArrayList<Long> rows = new ArrayList<Long>();
+			while(rs.next())
+				rows.add(rs.getLong(1));
+			rs.close();
+			for(long row : rows)
+			{
+				int draw = random.nextInt(10);
+				String update = draw==0?"BP2=BP1, BP1=NULL":draw==1?"BP2=NULL":"BP2=BP1+"+random.nextInt(maxLength);
+				s.execute("UPDATE "+schemaName+"."+tableName+" SET "+update+" WHERE _ROWID_="+row);
+			}
+		}
+		finally
+		{
+			s.close();
+		}
+		connection.commit();
+	}
+
+	private ArrayList<String> pairs(String query, String column) throws SQLException
+	{
+		ArrayList<String> pairs = new ArrayList<String>();
+		Statement s = connection.createStatement();
+		try
+		{
+			ResultSet rs = s.executeQuery(query);
+			while(rs.next())
+				pairs.add(rs.getInt("INPUTID")+":"+rs.getString(column));
+			rs.close();
+		}
+		finally
+		{
+			s.close();
+		}
+		Collections.sort(pairs);
+		return pairs;
+	}
+
+	private void insertRegion(String tableName, int id, String chr, Integer bp1, Integer bp2) throws SQLException
+	{
+		PreparedStatement ps = connection.prepareStatement("INSERT INTO "+schemaName+"."+tableName+" VALUES(?,?,?,?)");
+		try
+		{
+			ps.setInt(1, id);
+			ps.setString(2, chr);
+			setCoordinate(ps, 3, bp1);
+			setCoordinate(ps, 4, bp2);
+			ps.execute();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	private void insertGene(String geneName, String chr, Integer bp1, Integer bp2) throws SQLException
+	{
+		PreparedStatement ps = connection.prepareStatement("INSERT INTO "+schemaName+".GENE_MASTER(CHR, BP1, BP2, GENENAME, TTYPE) VALUES(?,?,?,?,'protein_coding')");
+		try
+		{
+			ps.setString(1, chr);
+			setCoordinate(ps, 2, bp1);
+			setCoordinate(ps, 3, bp2);
+			ps.setString(4, geneName);
+			ps.execute();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	private static void setCoordinate(PreparedStatement ps, int index, Integer coordinate) throws SQLException
+	{
+		if(coordinate==null)
+			ps.setNull(index, Types.INTEGER);
+		else
+			ps.setInt(index, coordinate);
+	}
+
+	private void execute(String statement) throws SQLException
+	{
+		Statement s = connection.createStatement();
+		try
+		{
+			s.execute(statement);
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package org.ki.meb.regionannotator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.jakz.common.DataCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the indexes planned from the stage queries, created when a table is loaded and found in place by the operation.
+ */
+public class IndexPlannerTest
+{
+	private static final String schemaName = "PUBLIC";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DataCache cache;
+	private Connection connection;
+
+	@Before
+	public void createDatabase() throws Exception
+	{
+		cache = new DataCache(new File(folder.getRoot(), "RegionAnnotator").getAbsolutePath()).createCacheConnectionEmbedded();
+		connection = cache.getConnection();
+		execute("CREATE TABLE "+schemaName+"._USER_INPUT(INPUTID INT, CHR VARCHAR, BP1 INT, BP2 INT)");
+		execute("CREATE TABLE "+schemaName+"."+StageQueries.userInputBinTable+"(INPUT_ROW BIGINT, CHR VARCHAR, "+GenomicBin.binColumn+" INT)");
+		execute("CREATE TABLE "+schemaName+"._gwas_catalog(CHR VARCHAR, BP1 INT, BP2 INT, SNPID VARCHAR, PVALUE DOUBLE, PMID VARCHAR, TRAIT VARCHAR, "+GenomicBin.binColumn+" INT)");
+		execute("CREATE TABLE "+schemaName+"._omim(GENENAME VARCHAR, OMIMGENE VARCHAR, OMIMDISEASE VARCHAR, TYPE VARCHAR)");
+		connection.commit();
+	}
+
+	@After
+	public void closeDatabase() throws SQLException
+	{
+		cache.shutdownCacheConnection();
+	}
+
+	@Test
+	public void loadedTableGetsOnlyItsPlannedIndex() throws SQLException
+	{
+		IndexPlanner loader = new IndexPlanner(schemaName);
+		loader.prepareTable(connection, "_gwas_catalog", StageQueries.referenceLink(cache, schemaName, "_gwas_catalog"));
+		loader.prepareTable(connection, "_omim", StageQueries.referenceLink(cache, schemaName, "_omim"));
+		assertEquals("[IX__GWAS_CATALOG_CHR_"+GenomicBin.binColumn.toUpperCase()+"_BP1]", indexes("_GWAS_CATALOG").toString());
+		assertEquals("[IX__OMIM_GENENAME]", indexes("_OMIM").toString());
+		assertEquals("[]", indexes("_USER_INPUT").toString());
+		assertEquals(2, loader.getCreatedIndexCount());
+
+		//the operation creates the indexes of the user input and its bin list, and finds the one of the reference table
+		IndexPlanner operation = new IndexPlanner(schemaName);
+		operation.prepare(connection, StageQueries.overlapLink(cache, schemaName, "_gwas_catalog", StageQueries.gwasCatalogColumns, "INPUTID"));
+		assertEquals(2, operation.getCreatedIndexCount());
+		assertTrue(operation.getSummary(connection).contains("1 found from loading"));
+	}
+
+	@Test
+	public void queryWithoutIndexableConditionIsReported() throws SQLException
+	{
+		String warnings = prepareCapturingErrors("SELECT c.* FROM "+schemaName+"._USER_INPUT c INNER JOIN "+schemaName+"._omim r ON c._ROWID_=r._ROWID_");
+		assertTrue(warnings.contains("Index planner warning"));
+		assertEquals("", prepareCapturingErrors("SELECT c.* FROM "+schemaName+"._USER_INPUT c"));
+		assertEquals("", prepareCapturingErrors(StageQueries.referenceLink(cache, schemaName, "_omim")));
+	}
+
+	private String prepareCapturingErrors(String query) throws SQLException
+	{
+		PrintStream err = System.err;
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(captured, true));
+		try
+		{
+			new IndexPlanner(schemaName).prepare(connection, query);
+		}
+		finally
+		{
+			System.setErr(err);
+		}
+		return captured.toString();
+	}
+
+	private ArrayList<String> indexes(String tableName) throws SQLException
+	{
+		ArrayList<String> indexes = new ArrayList<String>();
+		ResultSet rs = connection.getMetaData().getIndexInfo(null, schemaName, tableName, false, true);
+		try
+		{
+			while(rs.next())
+			{
+				if(!indexes.contains(rs.getString("INDEX_NAME")))
+					indexes.add(rs.getString("INDEX_NAME"));
+			}
+		}
+		finally
+		{
+			rs.close();
+		}
+		Collections.sort(indexes);
+		return indexes;
+	}
+
+	private void execute(String statement) throws SQLException
+	{
+		Statement s = connection.createStatement();
+		try
+		{
+			s.execute(statement);
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+}
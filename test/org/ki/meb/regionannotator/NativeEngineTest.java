@@ -0,0 +1,237 @@
+package org.ki.meb.regionannotator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.jakz.common.ApplicationException;
+import org.jakz.common.DataCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compares the native join engines, on tracks read from the database and from a reference snapshot, with the SQL joins, on inputs with null and reversed coordinates.
+ */
+public class NativeEngineTest
+{
+	private static final String schemaName = "PUBLIC";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DataCache cache;
+	private Connection connection;
+
+	@Before
+	public void createDatabase() throws Exception
+	{
+		cache = new DataCache(new File(folder.getRoot(), "RegionAnnotator").getAbsolutePath()).createCacheConnectionEmbedded();
+		connection = cache.getConnection();
+		execute("CREATE TABLE "+schemaName+"._USER_INPUT(CHR VARCHAR, BP1 INT, BP2 INT)");
+		execute("CREATE TABLE "+schemaName+"._ref(CHR VARCHAR, BP1 INT, BP2 INT)");
+		execute("CREATE TABLE "+schemaName+".GENE_MASTER(CHR VARCHAR, BP1 INT, BP2 INT, GENENAME VARCHAR, TTYPE VARCHAR)");
+
+		//full, half null, null, null chr and reversed regions
+		insertRegion("_USER_INPUT", "chr1", 1000, 2000);
+		insertRegion("_USER_INPUT", "chr1", null, 150000);
+		insertRegion("_USER_INPUT", "chr1", 5000000, null);
+		insertRegion("_USER_INPUT", "chr1", null, null);
+		insertRegion("_USER_INPUT", null, 1000, 2000);
+		insertRegion("_USER_INPUT", "chr1", 300000, 100000);
+		insertRegion("_USER_INPUT", "chr1", 0, 12000000);
+		insertRegion("_ref", "chr1", 100000, 200000);
+		insertRegion("_ref", "chr1", null, 1500);
+		insertRegion("_ref", "chr1", 4990000, 5010000);
+		insertRegion("_ref", "chr1", 5010000, 4990000);
+		insertRegion("_ref", "chr1", null, null);
+		insertGene("GENE1", "chr1", 4900000, 5100000);
+		insertGene("GENE2", "chr1", null, 1800);
+		insertGene("GENE3", "chr1", 2050, 3000);
+
+		Random random = new Random(23);
+		for(int i=0; i<500; i++)
+		{
+			insertRegion("_USER_INPUT", randomChr(random), randomCoordinate(random, 1000000), randomCoordinate(random, 1000000));
+			insertRegion("_ref", randomChr(random), randomCoordinate(random, 1000000), randomCoordinate(random, 1000000));
+			insertGene("RANDOM"+i, randomChr(random), randomCoordinate(random, 1000000), randomCoordinate(random, 1000000));
+		}
+		connection.commit();
+	}
+
+	@After
+	public void closeDatabase() throws SQLException
+	{
+		cache.shutdownCacheConnection();
+	}
+
+	@Test
+	public void overlapEngineMatchesSqlJoin() throws Exception
+	{
+		ArrayList<String> sql = pairs("SELECT c._ROWID_, r._ROWID_ FROM "+schemaName+"._USER_INPUT c INNER JOIN "+schemaName+"._ref r ON c.chr=r.chr AND "+cache.scriptTwoSegmentOverlapCondition("c.bp1", "c.bp2", "r.bp1", "r.bp2"));
+		assertTrue(sql.contains("1:2"));
+		assertTrue(sql.contains("2:1"));
+		assertTrue(sql.contains("3:3"));
+		assertTrue(!sql.contains("3:4"));
+		assertTrue(sql.size()>100);
+
+		RegionTrack userInput = RegionTrack.load(connection, schemaName, "_USER_INPUT", null);
+		assertEquals(sql, pairs(new OverlapEngine().link(userInput, RegionTrack.load(connection, schemaName, "_ref", null)), false));
+		assertEquals(sql, pairs(new OverlapEngine().link(userInput, openSnapshot().getTable("_REF").toRegionTrack()), false));
+	}
+
+	@Test
+	public void geneDistanceEngineMatchesSqlJoin() throws Exception
+	{
+		String dist = "(CASE WHEN ("+cache.scriptTwoSegmentOverlapCondition("c.bp1", "c.bp2", "g.bp1", "g.bp2")+") THEN 0 WHEN c.bp1 IS NULL OR c.bp2 IS NULL THEN 9e9 ELSE NUM_MAX_INTEGER(ABS(c.bp1-g.bp2),ABS(c.bp2-g.bp1)) END)";
+		ArrayList<String> sql = pairs("SELECT c._ROWID_, g._ROWID_, "+dist+" FROM "+schemaName+"._USER_INPUT c INNER JOIN "+schemaName+".GENE_MASTER g ON g.ttype='protein_coding' AND c.chr=g.chr AND "+cache.scriptTwoSegmentOverlapCondition("c.bp1", "c.bp2", "g.bp1-"+StageQueries.proteinCodingExpansion, "g.bp2+"+StageQueries.proteinCodingExpansion)+" WHERE "+dist+"<"+StageQueries.proteinCodingMaxDistance);
+		assertTrue(sql.contains("1:3:2000"));
+		assertTrue(sql.contains("7:2:0"));
+		assertTrue(sql.contains("3:1:0"));
+		assertTrue(sql.size()>100);
+
+		RegionTrack userInput = RegionTrack.load(connection, schemaName, "_USER_INPUT", null);
+		RegionTrack genes = RegionTrack.load(connection, schemaName, "GENE_MASTER", "TTYPE='protein_coding'", true);
+		assertEquals(sql, pairs(new GeneDistanceEngine(genes, StageQueries.proteinCodingExpansion).link(userInput, StageQueries.proteinCodingMaxDistance), true));
+		RegionTrack snapshotGenes = openSnapshot().getTable("GENE_MASTER").toRegionTrack("TTYPE", "protein_coding");
+		assertEquals(sql, pairs(new GeneDistanceEngine(snapshotGenes, StageQueries.proteinCodingExpansion).link(userInput, StageQueries.proteinCodingMaxDistance), true));
+	}
+
+	@Test
+	public void snapshotTableCarriesManifestLoadStamp() throws Exception
+	{
+		assertEquals(null, openSnapshot().getTable("_REF").getLoadStamp());
+
+		File file = folder.newFile("ref.tsv");
+		new ReferenceManifest(connection, schemaName).record("_ref", file, "hash", 0);
+		connection.commit();
+		String loadStamp = ReferenceManifest.getLoadStamp(connection, schemaName, "_REF");
+		assertTrue(loadStamp.startsWith("hash@"));
+		ReferenceSnapshot snapshot = openSnapshot();
+		assertEquals(loadStamp, snapshot.getTable("_REF").getLoadStamp());
+		assertEquals(null, snapshot.getTable("GENE_MASTER").getLoadStamp());
+	}
+
+	@Test(expected=ApplicationException.class)
+	public void coordinateOutsideIntRangeIsRejected() throws Exception
+	{
+		execute("CREATE TABLE "+schemaName+"._wide(CHR VARCHAR, BP1 BIGINT, BP2 BIGINT)");
+		execute("INSERT INTO "+schemaName+"._wide VALUES('chr1', 1000, 3000000000)");
+		RegionTrack.load(connection, schemaName, "_wide", null);
+	}
+
+	private ReferenceSnapshot openSnapshot() throws Exception
+	{
+		File file = new File(folder.getRoot(), "RegionAnnotator.snapshot");
+		ReferenceSnapshot.compile(connection, schemaName, file);
+		return ReferenceSnapshot.open(file);
+	}
+
+	private static String randomChr(Random random)
+	{
+		return random.nextInt(20)==0?null:random.nextBoolean()?"chr1":"chr2";
+	}
+
+	/**
+	 * A coordinate below range, null in a tenth of the draws.
+	 */
+	private static Integer randomCoordinate(Random random, int range)
+	{
+		return random.nextInt(10)==0?null:random.nextInt(range);
+	}
+
+	private ArrayList<String> pairs(String query) throws SQLException
+	{
+		ArrayList<String> pairs = new ArrayList<String>();
+		Statement s = connection.createStatement();
+		try
+		{
+			ResultSet rs = s.executeQuery(query);
+			int columnCount = rs.getMetaData().getColumnCount();
+			while(rs.next())
+				pairs.add(rs.getLong(1)+":"+rs.getLong(2)+(columnCount>2?":"+rs.getLong(3):""));
+			rs.close();
+		}
+		finally
+		{
+			s.close();
+		}
+		Collections.sort(pairs);
+		return pairs;
+	}
+
+	private static ArrayList<String> pairs(LinkPairs link, boolean withDistance)
+	{
+		ArrayList<String> pairs = new ArrayList<String>();
+		for(int i=0; i<link.size(); i++)
+			pairs.add(link.getLeftTrack().getRowId(link.getLeft(i))+":"+link.getRightTrack().getRowId(link.getRight(i))+(withDistance?":"+(long)link.getDistance(i):""));
+		Collections.sort(pairs);
+		return pairs;
+	}
+
+	private void insertRegion(String tableName, String chr, Integer bp1, Integer bp2) throws SQLException
+	{
+		PreparedStatement ps = connection.prepareStatement("INSERT INTO "+schemaName+"."+tableName+" VALUES(?,?,?)");
+		try
+		{
+			ps.setString(1, chr);
+			setCoordinate(ps, 2, bp1);
+			setCoordinate(ps, 3, bp2);
+			ps.execute();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	private void insertGene(String geneName, String chr, Integer bp1, Integer bp2) throws SQLException
+	{
+		PreparedStatement ps = connection.prepareStatement("INSERT INTO "+schemaName+".GENE_MASTER VALUES(?,?,?,?,'protein_coding')");
+		try
+		{
+			ps.setString(1, chr);
+			setCoordinate(ps, 2, bp1);
+			setCoordinate(ps, 3, bp2);
+			ps.setString(4, geneName);
+			ps.execute();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	private static void setCoordinate(PreparedStatement ps, int index, Integer coordinate) throws SQLException
+	{
+		if(coordinate==null)
+			ps.setNull(index, Types.INTEGER);
+		else
+			ps.setInt(index, coordinate);
+	}
+
+	private void execute(String statement) throws SQLException
+	{
+		Statement s = connection.createStatement();
+		try
+		{
+			s.execute(statement);
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package org.ki.meb.regionannotator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jakz.common.ApplicationException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs RegionBuilder against a stub of the Ensembl variation endpoint, which resolves rsN to N*10 unless a scripted response is queued.
+ */
+public class RegionBuilderTest
+{
+	private static final Pattern idPattern = Pattern.compile("\"(rs[^\"]*)\"");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HttpServer server;
+	private String serverUrl;
+	private File outfile, cacheFile;
+	/** Queued responses: the status followed by header name and value pairs. */
+	private ArrayDeque<String[]> script;
+	/** An rsID whose batches are answered with 400. */
+	private String badRsId;
+	private ArrayList<Integer> requestSize;
+	private ArrayList<Long> requestNanos;
+
+	@Before
+	public void startServer() throws IOException
+	{
+		script = new ArrayDeque<String[]>();
+		requestSize = new ArrayList<Integer>();
+		requestNanos = new ArrayList<Long>();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/"+RegionBuilder.variationPath, new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				respond(exchange);
+			}
+		});
+		server.start();
+		serverUrl = "http://127.0.0.1:"+server.getAddress().getPort();
+		outfile = new File(folder.getRoot(), "newSNPMapping.tsv");
+		cacheFile = new File(folder.getRoot(), RegionBuilder.cacheFileName);
+	}
+
+	@After
+	public void stopServer()
+	{
+		server.stop(0);
+	}
+
+	@Test
+	public void distinctRsIdsAreBatchedAndWrittenInInputOrder() throws Exception
+	{
+		ArrayList<String> rsId = new ArrayList<String>();
+		for(int i=450; i>=1; i--)
+			rsId.add(""+i);
+		rsId.add("7");
+		rsId.add(2, "");
+		build(rsId);
+
+		ArrayList<Integer> sizes = new ArrayList<Integer>(requestSize);
+		Collections.sort(sizes);
+		assertEquals("[50, 200, 200]", sizes.toString());
+		ArrayList<String> lines = readOutput();
+		assertEquals(452, lines.size());
+		assertEquals("rs450\t4500", lines.get(0));
+		assertEquals("rs449\t4490", lines.get(1));
+		assertEquals("rs\t", lines.get(2));
+		assertEquals("rs448\t4480", lines.get(3));
+		assertEquals("rs1\t10", lines.get(450));
+		assertEquals("rs7\t70", lines.get(451));
+	}
+
+	@Test
+	public void badRsIdAloneIsLeftUnresolvedAndCached() throws Exception
+	{
+		badRsId = "rs66";
+		ArrayList<String> rsId = new ArrayList<String>();
+		for(int i=1; i<=200; i++)
+			rsId.add(""+i);
+		build(rsId);
+
+		ArrayList<String> lines = readOutput();
+		assertEquals("rs65\t650", lines.get(64));
+		assertEquals("rs66\t", lines.get(65));
+		assertEquals("rs67\t670", lines.get(66));
+		int resolved = 0;
+		for(String line : lines)
+		{
+			if(!line.endsWith("\t"))
+				resolved++;
+		}
+		assertEquals(199, resolved);
+		//the batch of 200 is bisected at most 8 times, each time requesting both halves
+		assertTrue(requestSize.size()<=1+2*8);
+
+		//all ids are cached, also the bad one
+		requestSize.clear();
+		build(rsId);
+		assertEquals(0, requestSize.size());
+		assertEquals(lines, readOutput());
+	}
+
+	@Test
+	public void rateLimitedAndFailedRequestsAreRetried() throws Exception
+	{
+		script.add(new String[]{"429", "Retry-After", "1"});
+		script.add(new String[]{"503"});
+		ArrayList<String> rsId = new ArrayList<String>();
+		rsId.add("1");
+		rsId.add("2");
+		build(rsId);
+
+		assertEquals(3, requestSize.size());
+		assertTrue(gapMillis(0)>=950);
+		assertTrue(gapMillis(1)>=950);
+		assertEquals("[rs1\t10, rs2\t20]", readOutput().toString());
+	}
+
+	@Test
+	public void rateLimitHeadersAreFollowed() throws Exception
+	{
+		//a pause of 1 s from X-RateLimit-Reset, then 2 requests per second
+		script.add(new String[]{"400", "X-RateLimit-Limit", "2", "X-RateLimit-Period", "1", "X-RateLimit-Remaining", "0", "X-RateLimit-Reset", "1"});
+		ArrayList<String> rsId = new ArrayList<String>();
+		rsId.add("1");
+		rsId.add("2");
+		build(rsId);
+
+		assertEquals("[2, 1, 1]", requestSize.toString());
+		assertTrue(gapMillis(0)>=1400);
+		assertTrue(gapMillis(1)>=450);
+		assertEquals("[rs1\t10, rs2\t20]", readOutput().toString());
+	}
+
+	@Test
+	public void requestsAreAttemptedAtMostMaxAttemptsTimes() throws Exception
+	{
+		for(int i=0; i<RegionBuilder.maxAttempts+5; i++)
+			script.add(new String[]{"429", "Retry-After", "0"});
+		ArrayList<String> rsId = new ArrayList<String>();
+		rsId.add("1");
+		try
+		{
+			build(rsId);
+			fail("No exception after "+requestSize.size()+" attempts");
+		}
+		catch (ApplicationException e)
+		{
+			assertEquals(RegionBuilder.maxAttempts, requestSize.size());
+		}
+	}
+
+	private void build(ArrayList<String> rsId) throws IOException, ApplicationException
+	{
+		File infile = new File(folder.getRoot(), "gwas_catalog.tsv");
+		Writer out = new FileWriter(infile);
+		try
+		{
+			out.write(row("CHR_ID")+"\n");
+			out.write("# comment"+row("")+"\n");
+			for(String id : rsId)
+				out.write(row(id)+"\n");
+		}
+		finally
+		{
+			out.close();
+		}
+		new RegionBuilder(infile.getAbsolutePath(), serverUrl, outfile, cacheFile);
+	}
+
+	/**
+	 * A row of 24 columns, with the rsID number last.
+	 */
+	private static String row(String rsIdNumber)
+	{
+		StringBuilder row = new StringBuilder();
+		for(int i=0; i<23; i++)
+			row.append('\t');
+		return row.append(rsIdNumber).toString();
+	}
+
+	private ArrayList<String> readOutput() throws IOException
+	{
+		ArrayList<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(outfile));
+		try
+		{
+			String line;
+			while((line=reader.readLine())!=null)
+				lines.add(line);
+		}
+		finally
+		{
+			reader.close();
+		}
+		return lines;
+	}
+
+	private synchronized long gapMillis(int request)
+	{
+		return (requestNanos.get(request+1)-requestNanos.get(request))/1000000;
+	}
+
+	private void respond(HttpExchange exchange) throws IOException
+	{
+		ArrayList<String> ids = new ArrayList<String>();
+		Matcher m = idPattern.matcher(read(exchange.getRequestBody()));
+		while(m.find())
+			ids.add(m.group(1));
+
+		String[] reply;
+		synchronized(this)
+		{
+			requestSize.add(ids.size());
+			requestNanos.add(System.nanoTime());
+			reply = script.poll();
+		}
+		int status = reply!=null?Integer.parseInt(reply[0]):badRsId!=null && ids.contains(badRsId)?400:200;
+		if(reply!=null)
+		{
+			for(int i=1; i+1<reply.length; i+=2)
+				exchange.getResponseHeaders().add(reply[i], reply[i+1]);
+		}
+
+		StringBuilder body = new StringBuilder("{");
+		if(status==200)
+		{
+			for(String id : ids)
+			{
+				if(body.length()>1)
+					body.append(',');
+				body.append('"').append(id).append("\":{\"mappings\":[{\"assembly_name\":\"").append(RegionBuilder.assembly).append("\",\"start\":").append(Integer.parseInt(id.substring(2))*10).append("}]}");
+			}
+		}
+		body.append('}');
+		byte[] b = body.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, b.length);
+		OutputStream out = exchange.getResponseBody();
+		try
+		{
+			out.write(b);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static String read(InputStream in) throws IOException
+	{
+		StringBuilder s = new StringBuilder();
+		byte[] b = new byte[1<<12];
+		int count;
+		while((count=in.read(b))>=0)
+			s.append(new String(b, 0, count, StandardCharsets.UTF_8));
+		return s.toString();
+	}
+}